@@ -9,10 +9,13 @@
 
 package java2c;
 
+import fuse.FuseConnInfo;
 import fuse.FuseContext;
 import fuse.FuseFS;
+import fuse.FuseFSConnInfoSupport;
 import fuse.FuseFSDirEnt;
 import fuse.FuseFSDirFiller;
+import fuse.FuseFSFileHandleSupport;
 import fuse.FuseFSFactory;
 import fuse.FuseGetattr;
 import fuse.FuseOpen;
@@ -464,7 +467,10 @@ public class CAPIGenerator {
             new CAPIGenerator(FuseSize.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(FuseOpen.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(FuseContext.class).generateClassAPI(overload, hOut, cOut, false, false);
+            new CAPIGenerator(FuseConnInfo.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(FuseFS.class).generateClassAPI(overload, hOut, cOut, false, false);
+            new CAPIGenerator(FuseFSConnInfoSupport.class).generateClassAPI(overload, hOut, cOut, false, false);
+            new CAPIGenerator(FuseFSFileHandleSupport.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(ByteBuffer.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(FuseFSFactory.class).generateClassAPI(overload, hOut, cOut, false, false);
             new CAPIGenerator(PasswordEntry.class).generateClassAPI(overload, hOut, cOut, false, false);
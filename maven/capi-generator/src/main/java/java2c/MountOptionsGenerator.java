@@ -0,0 +1,54 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package java2c;
+
+import fuse.FuseMountOptions;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+
+/**
+ * Writes the table of the mount options the native launcher passes on to libfuse, from the option
+ * names of fuse.FuseMountOptions, so that the launcher and the Java side know the same options:
+ * <pre>
+ *    java java2c.MountOptionsGenerator javafs_mount_options.h
+ * </pre>
+ */
+public class MountOptionsGenerator
+{
+   public static void main(String[] args) throws IOException
+   {
+      PrintStream out = (args.length == 0)? System.out : new PrintStream(new FileOutputStream(args[0]));
+
+      out.print(
+         "/**\n" +
+         " * javafs_mount_options.h - autogenerated from fuse.FuseMountOptions by java2c.MountOptionsGenerator\n" +
+         " */\n" +
+         "\n" +
+         "// the mount options known to fuse.FuseMountOptions, these are passed on to javafs_main()\n" +
+         "static const char *fuse_mount_options[] =\n" +
+         "{\n"
+      );
+
+      String[] names = FuseMountOptions.getOptionNames();
+      for (int i = 0; i < names.length; i++)
+         out.print("    \"" + names[i] + "\",\n");
+
+      out.print(
+         "    NULL\n" +
+         "};\n"
+      );
+
+      if (out != System.out)
+         out.close();
+   }
+}
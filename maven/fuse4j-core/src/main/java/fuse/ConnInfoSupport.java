@@ -0,0 +1,17 @@
+package fuse;
+
+/**
+ * if fuse.Filesystem3 implementation also implements this interface, then it takes part in the
+ * negotiation of connection parameters (max_write, max_readahead, capabilities, ...) with the kernel
+ */
+public interface ConnInfoSupport
+{
+   /**
+    * Called once when the kernel initializes the connection, after <code>LifecycleSupport.init()</code>.
+    *
+    * @param connInfo the parameters offered by the kernel; changes to the writable attributes are applied to the connection
+    * @return 0 if Ok or errno when error (the connection is then left with the libfuse defaults)
+    * @throws FuseException an alternative to returning errno is to throw this exception with errno initialized
+    */
+   public int init(FuseConnInfo connInfo) throws FuseException;
+}
@@ -0,0 +1,45 @@
+package fuse;
+
+/**
+ * if fuse.Filesystem3 implementation also implements this interface, then it supports the filehandle
+ * based create(), ftruncate() and fgetattr() operations.
+ * <p/>
+ * Without it, creating a file costs a mknod(), getattr() and open() call and ftruncate()/fstat() on an
+ * open file are served by the path based truncate() and getattr() methods.
+ */
+public interface FileHandleSupport
+{
+   /**
+    * Create and open a file. Called instead of mknod() followed by open() for regular files.
+    *
+    * @param path the path of the file to create
+    * @param mode file type and permission bits of the new file
+    * @param flags the open flags
+    * @param openSetter a callback interface that should be used to return the filehandle and open options
+    * @return 0 if Ok or errno when error (returning Errno.ENOSYS makes the kernel fall back to mknod() and open())
+    * @throws FuseException an alternative to returning errno is to throw this exception with errno initialized
+    */
+   public int create(String path, int mode, int flags, FuseOpenSetter openSetter) throws FuseException;
+
+   /**
+    * Change the size of an open file
+    *
+    * @param path the path of the file
+    * @param fh the filehandle passed from open() or create()
+    * @param size the new size
+    * @return 0 if Ok or errno when error
+    * @throws FuseException an alternative to returning errno is to throw this exception with errno initialized
+    */
+   public int ftruncate(String path, Object fh, long size) throws FuseException;
+
+   /**
+    * Get attributes of an open file
+    *
+    * @param path the path of the file
+    * @param fh the filehandle passed from open() or create()
+    * @param getattrSetter a callback interface that should be used to return the attributes
+    * @return 0 if Ok or errno when error
+    * @throws FuseException an alternative to returning errno is to throw this exception with errno initialized
+    */
+   public int fgetattr(String path, Object fh, FuseGetattrSetter getattrSetter) throws FuseException;
+}
@@ -27,7 +27,8 @@ import java.nio.CharBuffer;
  *  in one call.
  *
  *  - There is no create() operation, mknod() will be called for
- *  creation of all non directory, non symlink nodes.
+ *  creation of all non directory, non symlink nodes, unless the filesystem
+ *  also implements fuse.FileHandleSupport.
  *
  *  - open() No
  *  creation, or trunctation flags (O_CREAT, O_EXCL, O_TRUNC) will be
@@ -24,10 +24,12 @@ import org.apache.commons.logging.Log;
  * to the fuse.Filesystem3 String level API. You specify the encoding to be used
  * for file names and paths.
  */
-public class Filesystem3ToFuseFSAdapter implements FuseFS {
+public class Filesystem3ToFuseFSAdapter implements FuseFS, FuseFSFileHandleSupport, FuseFSConnInfoSupport {
 	private Filesystem3 fs3;
 	private XattrSupport xattrSupport;
 	private LifecycleSupport lifecycleSupport;
+	private ConnInfoSupport connInfoSupport;
+	private FileHandleSupport fileHandleSupport;
 
 	private Charset cs;
 	private Log log;
@@ -54,6 +56,16 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 			lifecycleSupport = (LifecycleSupport) fs3;
 		}
 
+		// filehandle based operations are optional
+		if (fs3 instanceof FileHandleSupport) {
+			fileHandleSupport = (FileHandleSupport) fs3;
+		}
+
+		// Connection parameters negotiation is optional
+		if (fs3 instanceof ConnInfoSupport) {
+			connInfoSupport = (ConnInfoSupport) fs3;
+		}
+
 		this.cs = cs;
 		this.log = log;
 	}
@@ -416,6 +428,69 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 		}
 	}
 
+	//
+	// FuseFSFileHandleSupport implementation, filehandle based operations are optional
+
+	public int create(ByteBuffer path, int mode, int flags, FuseOpenSetter openSetter) {
+		if (fileHandleSupport == null) {
+			// the kernel falls back to mknod() + open()
+			return handleErrno(Errno.ENOSYS);
+		}
+
+		String pathStr = cs.decode(path).toString();
+
+		if (log != null && log.isDebugEnabled()) {
+			log.debug("create: path=" + pathStr + ", mode=" + Integer.toOctalString(mode) + "(OCT), flags=" + flags);
+		}
+
+		try {
+			return handleErrno(fileHandleSupport.create(pathStr, mode, flags, openSetter), openSetter);
+		}
+		catch(Exception e) {
+			return handleException(e);
+		}
+	}
+
+
+	public int ftruncate(ByteBuffer path, Object fh, long size) {
+		if (fileHandleSupport == null) {
+			return truncate(path, size);
+		}
+
+		String pathStr = cs.decode(path).toString();
+
+		if (log != null && log.isDebugEnabled()) {
+			log.debug("ftruncate: path=" + pathStr + ", fh=" + fh + ", size=" + size);
+		}
+
+		try {
+			return handleErrno(fileHandleSupport.ftruncate(pathStr, fh, size));
+		}
+		catch(Exception e) {
+			return handleException(e);
+		}
+	}
+
+
+	public int fgetattr(ByteBuffer path, Object fh, FuseGetattrSetter getattrSetter) {
+		if (fileHandleSupport == null) {
+			return getattr(path, getattrSetter);
+		}
+
+		String pathStr = cs.decode(path).toString();
+
+		if (log != null && log.isDebugEnabled()) {
+			log.debug("fgetattr: path=" + pathStr + ", fh=" + fh);
+		}
+
+		try {
+			return handleErrno(fileHandleSupport.fgetattr(pathStr, fh, getattrSetter), getattrSetter);
+		}
+		catch(Exception e) {
+			return handleException(e);
+		}
+	}
+
 	//
 	// extended attribute support is optional
 
@@ -674,6 +749,25 @@ public class Filesystem3ToFuseFSAdapter implements FuseFS {
 		}
 	}
 
+	//
+	// FuseFSConnInfoSupport implementation, connection parameters negotiation is optional
+
+	public int init(FuseConnInfo connInfo) {
+		if (connInfoSupport == null) {
+			return handleErrno(Errno.ENOTSUPP);
+		}
+
+		if (log != null && log.isDebugEnabled()) {
+			log.debug("init: connInfo=" + connInfo);
+		}
+
+		try {
+			return handleErrno(connInfoSupport.init(connInfo), connInfo);
+		} catch(Exception e) {
+			return handleException(e);
+		}
+	}
+
 	//
 	// private
 	private int handleErrno(int errno) {
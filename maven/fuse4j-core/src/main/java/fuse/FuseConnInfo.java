@@ -0,0 +1,188 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+import fuse.util.Struct;
+
+/**
+ * Java counterpart of struct fuse_conn_info FUSE C API.
+ * An instance is filled-in with the parameters offered by the kernel and passed to
+ * <code>fuse.ConnInfoSupport.init()</code>. Any changes made to the writable attributes are
+ * copied back to the connection before the reply to FUSE_INIT is sent to the kernel.
+ * <p/>
+ * Capability bits are only reported in <code>capable</code> if both the kernel and the libfuse the
+ * native library was built against support them, so <code>want()</code> should be used to request
+ * them instead of modifying <code>want</code> directly.
+ */
+public class FuseConnInfo extends Struct
+{
+   // capability bits (FUSE_CAP_* from fuse_common.h)
+
+   public static final int CAP_ASYNC_READ       = 1 << 0;
+   public static final int CAP_POSIX_LOCKS      = 1 << 1;
+   public static final int CAP_ATOMIC_O_TRUNC   = 1 << 3;
+   public static final int CAP_EXPORT_SUPPORT   = 1 << 4;
+   public static final int CAP_BIG_WRITES       = 1 << 5;
+   public static final int CAP_DONT_MASK        = 1 << 6;
+   public static final int CAP_SPLICE_WRITE     = 1 << 7;
+   public static final int CAP_SPLICE_MOVE      = 1 << 8;
+   public static final int CAP_SPLICE_READ      = 1 << 9;
+   public static final int CAP_FLOCK_LOCKS      = 1 << 10;
+   public static final int CAP_IOCTL_DIR        = 1 << 11;
+   public static final int CAP_AUTO_INVAL_DATA  = 1 << 12;
+   public static final int CAP_READDIRPLUS      = 1 << 13;
+   public static final int CAP_READDIRPLUS_AUTO = 1 << 14;
+   public static final int CAP_ASYNC_DIO        = 1 << 15;
+   public static final int CAP_WRITEBACK_CACHE  = 1 << 16;
+   public static final int CAP_NO_OPEN_SUPPORT  = 1 << 17;
+   public static final int CAP_PARALLEL_DIROPS  = 1 << 18;
+
+   // read-only: negotiated protocol version
+   public int protoMajor;
+   public int protoMinor;
+
+   // read-only: capabilities supported by the kernel and libfuse
+   public int capable;
+
+   // read-write: capabilities requested by the filesystem (initialized with the libfuse defaults)
+   public int want;
+
+   // read-write: connection parameters
+   public boolean asyncRead;
+   public int maxWrite;
+   public int maxReadahead;
+   public int maxBackground;
+   public int congestionThreshold;
+
+   // the readahead offered by the kernel, the upper bound of maxReadahead
+   private final int offeredMaxReadahead;
+
+
+   /**
+    * @param offeredMaxReadahead the maximum readahead offered by the kernel
+    */
+   public FuseConnInfo(int offeredMaxReadahead)
+   {
+      this.offeredMaxReadahead = offeredMaxReadahead;
+      this.maxReadahead = offeredMaxReadahead;
+   }
+
+   /**
+    * @param cap one of the CAP_* bits
+    * @return true if the capability is supported by the kernel and libfuse
+    */
+   public boolean isCapable(int cap)
+   {
+      return (capable & cap) == cap;
+   }
+
+   /**
+    * @param cap one of the CAP_* bits
+    * @return true if the capability is currently requested
+    */
+   public boolean isWanted(int cap)
+   {
+      return (want & cap) == cap;
+   }
+
+   /**
+    * Requests a capability if it is supported.
+    * <p/>
+    * @param cap one of the CAP_* bits
+    * @return true if the capability is supported and has been requested, false if it is not supported
+    */
+   public boolean want(int cap)
+   {
+      if (!isCapable(cap))
+         return false;
+
+      want |= cap;
+      if (cap == CAP_ASYNC_READ)
+         asyncRead = true;
+
+      return true;
+   }
+
+   /**
+    * Withdraws a request for a capability
+    * <p/>
+    * @param cap one of the CAP_* bits
+    */
+   public void unwant(int cap)
+   {
+      want &= ~cap;
+      if (cap == CAP_ASYNC_READ)
+         asyncRead = false;
+   }
+
+   /**
+    * Sets the maximum size of a single write request. Values above 4KiB only take effect if
+    * <code>CAP_BIG_WRITES</code> is requested (libfuse silently limits it to its buffer size).
+    */
+   public void setMaxWrite(int maxWrite)
+   {
+      if (maxWrite < 4096)
+         throw new IllegalArgumentException("maxWrite must be at least 4096: " + maxWrite);
+
+      this.maxWrite = maxWrite;
+   }
+
+   /**
+    * Sets the maximum readahead. The kernel never reads ahead more than it offered, so larger
+    * values are clamped to the offer (not to the current value, which can be raised again).
+    */
+   public void setMaxReadahead(int maxReadahead)
+   {
+      if (maxReadahead < 0)
+         throw new IllegalArgumentException("maxReadahead must not be negative: " + maxReadahead);
+
+      this.maxReadahead = Math.min(maxReadahead, offeredMaxReadahead);
+   }
+
+   /**
+    * Sets the maximum number of pending background requests (0 keeps the kernel default).
+    */
+   public void setMaxBackground(int maxBackground)
+   {
+      if (maxBackground < 0 || maxBackground > 0xffff)
+         throw new IllegalArgumentException("maxBackground out of range: " + maxBackground);
+
+      this.maxBackground = maxBackground;
+   }
+
+   /**
+    * Sets the number of pending background requests at which the kernel considers the
+    * filesystem congested (0 keeps the kernel default).
+    */
+   public void setCongestionThreshold(int congestionThreshold)
+   {
+      if (congestionThreshold < 0 || congestionThreshold > 0xffff)
+         throw new IllegalArgumentException("congestionThreshold out of range: " + congestionThreshold);
+
+      this.congestionThreshold = congestionThreshold;
+   }
+
+
+   protected boolean appendAttributes(StringBuilder buff, boolean isPrefixed)
+   {
+      buff.append(super.appendAttributes(buff, isPrefixed)? ", " : " ");
+
+      buff.append("proto=").append(protoMajor).append('.').append(protoMinor)
+          .append(", capable=0x").append(Integer.toHexString(capable))
+          .append(", want=0x").append(Integer.toHexString(want))
+          .append(", asyncRead=").append(asyncRead)
+          .append(", maxWrite=").append(maxWrite)
+          .append(", maxReadahead=").append(maxReadahead)
+          .append(", maxBackground=").append(maxBackground)
+          .append(", congestionThreshold=").append(congestionThreshold);
+
+      return true;
+   }
+}
@@ -13,6 +13,9 @@ public class FuseContext extends Struct
    public int gid;
    public int pid;
 
+   // set on threads that handle requests on behalf of a FUSE thread (see FuseRequestRing)
+   private static final ThreadLocal<FuseContext> delegatedContext = new ThreadLocal<FuseContext>();
+
    private FuseContext()
    {
    }
@@ -21,11 +24,36 @@ public class FuseContext extends Struct
    public static FuseContext get()
    {
       FuseContext fuseContext = new FuseContext();
-      fuseContext.fillInFuseContext();
+      FuseContext delegated = delegatedContext.get();
+
+      if (delegated != null)
+      {
+         fuseContext.uid = delegated.uid;
+         fuseContext.gid = delegated.gid;
+         fuseContext.pid = delegated.pid;
+      }
+      else
+         fuseContext.fillInFuseContext();
+
       return fuseContext;
    }
 
 
+   static FuseContext newInstance()
+   {
+      return new FuseContext();
+   }
+
+
+   static void delegate(FuseContext context)
+   {
+      if (context == null)
+         delegatedContext.remove();
+      else
+         delegatedContext.set(context);
+   }
+
+
    protected boolean appendAttributes(StringBuilder buff, boolean isPrefixed)
    {
       buff.append(super.appendAttributes(buff, isPrefixed)? ", " : " ");
@@ -0,0 +1,25 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+
+/**
+ * If a fuse.FuseFS implementation also implements this interface, then it takes part in the negotiation
+ * of connection parameters with the kernel. This is the byte level counterpart of fuse.ConnInfoSupport,
+ * fuse.Filesystem3ToFuseFSAdapter implements it and delegates to the filesystem if that supports it.
+ */
+public interface FuseFSConnInfoSupport {
+    /**
+     * Called from the FUSE init callback after <code>FuseFS.init()</code>.
+     *
+     * @return 0 if Ok or errno when error (the connection is then left with the libfuse defaults)
+     */
+    public int init(FuseConnInfo connInfo);
+}
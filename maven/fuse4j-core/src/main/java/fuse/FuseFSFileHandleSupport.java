@@ -0,0 +1,30 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * If a fuse.FuseFS implementation also implements this interface, then it supports the filehandle based
+ * create(), ftruncate() and fgetattr() operations. This is the byte level counterpart of
+ * fuse.FileHandleSupport, fuse.Filesystem3ToFuseFSAdapter implements it and delegates to the filesystem
+ * if that supports it.
+ * <p/>
+ * Without it, the kernel creates files with mknod() and open() and ftruncate()/fstat() on an open file
+ * are served by the path based truncate() and getattr() methods.
+ */
+public interface FuseFSFileHandleSupport {
+    public int create(ByteBuffer path, int mode, int flags, FuseOpenSetter openSetter);
+
+    public int ftruncate(ByteBuffer path, Object fh, long size);
+
+    public int fgetattr(ByteBuffer path, Object fh, FuseGetattrSetter getattrSetter);
+}
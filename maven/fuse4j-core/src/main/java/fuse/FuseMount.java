@@ -45,6 +45,20 @@ public class FuseMount {
         mount(args, new Filesystem3ToFuseFSAdapter(filesystem3, log));
     }
 
+    //
+    // typed mount options
+    public static void mount(FuseMountOptions options, Filesystem3 filesystem3, Log log) throws Exception {
+        mount(options.toArgs(), filesystem3, log);
+    }
+
+    public static void mount(FuseMountOptions options, FuseFS fuseFS) throws Exception {
+        mount(options.toArgs(), fuseFS);
+    }
+
+    public static void mount(FuseMountOptions options, Filesystem3 filesystem3, ThreadGroup group, Log log) throws Exception {
+        mount(options.toArgs(), filesystem3, group, log);
+    }
+
     //
     // byte level API
     public static void mount(String[] args, FuseFS fuseFS) throws Exception {
@@ -0,0 +1,738 @@
+package fuse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Typed and validated FUSE mount options.
+ * <p/>
+ * Instances are created with a {@link Builder} or parsed from a command line with {@link #parse(String[])},
+ * which rejects unknown or malformed options instead of silently ignoring them. The native launcher
+ * recognizes the same option names and passes them on to libfuse.
+ */
+public class FuseMountOptions {
+    private static final double DEFAULT_TIMEOUT = -1.0;
+
+    /**
+     * Upper limit of the worker pool size accepted by the native dispatcher.
+     */
+    public static final int MAX_THREADS_LIMIT = 1024;
+
+    /**
+     * Upper limit of the request ring size accepted by the native dispatcher.
+     */
+    public static final int MAX_RING_SLOTS = 65536;
+
+    private static final Pattern CPU_LIST = Pattern.compile("\\d+(-\\d+)?(:\\d+(-\\d+)?)*");
+
+    /**
+     * The names of the <code>-o</code> options, the ones that take a value end with '='. The native
+     * launcher passes exactly these on to libfuse: native/javafs_mount_options.h is generated from this
+     * list by java2c.MountOptionsGenerator.
+     */
+    private static final String[] OPTION_NAMES = {
+        "entry_timeout=", "attr_timeout=", "negative_timeout=",
+        "kernel_cache", "auto_cache", "direct_io",
+        "max_read=", "max_write=", "max_readahead=",
+        "large_read", "big_writes", "sync_read", "async_read",
+        "allow_other", "allow_root", "default_permissions",
+        "fsname=", "subtype=",
+        "max_threads=", "worker_cpus=", "ring_slots=", "ring_consumers=",
+    };
+
+    private final String mountPoint;
+    private final boolean foreground;
+    private final boolean singleThreaded;
+    private final boolean debug;
+    private final int maxThreads;
+    private final String workerCpus;
+    private final int ringSlots;
+    private final int ringConsumers;
+
+    private final double entryTimeout;
+    private final double attrTimeout;
+    private final double negativeTimeout;
+
+    private final boolean kernelCache;
+    private final boolean autoCache;
+    private final boolean directIO;
+
+    private final int maxRead;
+    private final int maxWrite;
+    private final int maxReadahead;
+    private final boolean largeRead;
+    private final boolean bigWrites;
+    private final boolean syncRead;
+
+    private final boolean allowOther;
+    private final boolean allowRoot;
+    private final boolean defaultPermissions;
+    private final String fsName;
+    private final String subtype;
+
+    private FuseMountOptions(Builder b) {
+        mountPoint = b.mountPoint;
+        foreground = b.foreground;
+        singleThreaded = b.singleThreaded;
+        debug = b.debug;
+        maxThreads = b.maxThreads;
+        workerCpus = b.workerCpus;
+        ringSlots = b.ringSlots;
+        ringConsumers = b.ringConsumers;
+        entryTimeout = b.entryTimeout;
+        attrTimeout = b.attrTimeout;
+        negativeTimeout = b.negativeTimeout;
+        kernelCache = b.kernelCache;
+        autoCache = b.autoCache;
+        directIO = b.directIO;
+        maxRead = b.maxRead;
+        maxWrite = b.maxWrite;
+        maxReadahead = b.maxReadahead;
+        largeRead = b.largeRead;
+        bigWrites = b.bigWrites;
+        syncRead = b.syncRead;
+        allowOther = b.allowOther;
+        allowRoot = b.allowRoot;
+        defaultPermissions = b.defaultPermissions;
+        fsName = b.fsName;
+        subtype = b.subtype;
+    }
+
+    /**
+     * @return the names of the options {@link Builder#option(String)} accepts, with a trailing '=' on
+     *         the ones that take a value.
+     */
+    public static String[] getOptionNames() {
+        return OPTION_NAMES.clone();
+    }
+
+    public static Builder builder(String mountPoint) {
+        return new Builder(mountPoint);
+    }
+
+    public String getMountPoint() {
+        return mountPoint;
+    }
+
+    public boolean isForeground() {
+        return foreground;
+    }
+
+    public boolean isSingleThreaded() {
+        return singleThreaded;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public String getWorkerCpus() {
+        return workerCpus;
+    }
+
+    public int getRingSlots() {
+        return ringSlots;
+    }
+
+    public int getRingConsumers() {
+        return ringConsumers;
+    }
+
+    public double getEntryTimeout() {
+        return entryTimeout;
+    }
+
+    public double getAttrTimeout() {
+        return attrTimeout;
+    }
+
+    public double getNegativeTimeout() {
+        return negativeTimeout;
+    }
+
+    public boolean isKernelCache() {
+        return kernelCache;
+    }
+
+    public boolean isAutoCache() {
+        return autoCache;
+    }
+
+    public boolean isDirectIO() {
+        return directIO;
+    }
+
+    public int getMaxRead() {
+        return maxRead;
+    }
+
+    public int getMaxWrite() {
+        return maxWrite;
+    }
+
+    public int getMaxReadahead() {
+        return maxReadahead;
+    }
+
+    public boolean isLargeRead() {
+        return largeRead;
+    }
+
+    public boolean isBigWrites() {
+        return bigWrites;
+    }
+
+    public boolean isSyncRead() {
+        return syncRead;
+    }
+
+    public boolean isAllowOther() {
+        return allowOther;
+    }
+
+    public boolean isAllowRoot() {
+        return allowRoot;
+    }
+
+    public boolean isDefaultPermissions() {
+        return defaultPermissions;
+    }
+
+    public String getFsName() {
+        return fsName;
+    }
+
+    public String getSubtype() {
+        return subtype;
+    }
+
+    /**
+     * Returns the options as command line arguments understood by libfuse (and the native launcher).
+     *
+     * @return the mount point followed by flags and one <code>-o</code> pair per option.
+     */
+    public String[] toArgs() {
+        List<String> args = new ArrayList<String>();
+
+        args.add(mountPoint);
+        if (foreground) {
+            args.add("-f");
+        }
+        if (singleThreaded) {
+            args.add("-s");
+        }
+        if (debug) {
+            args.add("-d");
+        }
+
+        for (String option : getOptions()) {
+            args.add("-o");
+            args.add(option);
+        }
+
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * @return the <code>-o</code> options in <code>name[=value]</code> form.
+     */
+    public List<String> getOptions() {
+        List<String> options = new ArrayList<String>();
+
+        addSize(options, "max_threads", maxThreads);
+        if (workerCpus != null) {
+            options.add("worker_cpus=" + workerCpus);
+        }
+        addSize(options, "ring_slots", ringSlots);
+        addSize(options, "ring_consumers", ringConsumers);
+        addTimeout(options, "entry_timeout", entryTimeout);
+        addTimeout(options, "attr_timeout", attrTimeout);
+        addTimeout(options, "negative_timeout", negativeTimeout);
+        addFlag(options, "kernel_cache", kernelCache);
+        addFlag(options, "auto_cache", autoCache);
+        addFlag(options, "direct_io", directIO);
+        addSize(options, "max_read", maxRead);
+        addSize(options, "max_write", maxWrite);
+        addSize(options, "max_readahead", maxReadahead);
+        addFlag(options, "large_read", largeRead);
+        addFlag(options, "big_writes", bigWrites);
+        addFlag(options, "sync_read", syncRead);
+        addFlag(options, "allow_other", allowOther);
+        addFlag(options, "allow_root", allowRoot);
+        addFlag(options, "default_permissions", defaultPermissions);
+        if (fsName != null) {
+            options.add("fsname=" + fsName);
+        }
+        if (subtype != null) {
+            options.add("subtype=" + subtype);
+        }
+
+        return options;
+    }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        String[] args = toArgs();
+
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(args[i]);
+        }
+
+        return sb.toString();
+    }
+
+    private static void addFlag(List<String> options, String name, boolean value) {
+        if (value) {
+            options.add(name);
+        }
+    }
+
+    private static void addSize(List<String> options, String name, int value) {
+        if (value > 0) {
+            options.add(name + "=" + value);
+        }
+    }
+
+    private static void addTimeout(List<String> options, String name, double value) {
+        if (value >= 0.0) {
+            // libfuse parses timeouts with "%lf"
+            options.add(name + "=" + ((value == Math.rint(value)) ? Long.toString((long) value) : Double.toString(value)));
+        }
+    }
+
+    /**
+     * Parses a libfuse style command line (mount point, <code>-f</code>, <code>-s</code>, <code>-d</code> and
+     * <code>-o opt[,opt...]</code>).
+     *
+     * @param args the command line arguments
+     * @return the validated options
+     * @throws IllegalArgumentException if an argument or option is unknown or has an invalid value
+     */
+    public static FuseMountOptions parse(String[] args) {
+        String mountPoint = null;
+        List<String> options = new ArrayList<String>();
+        boolean foreground = false;
+        boolean singleThreaded = false;
+        boolean debug = false;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+
+            if ("-o".equals(arg)) {
+                if (++i >= args.length) {
+                    throw new IllegalArgumentException("Missing argument to -o");
+                }
+                splitOptions(args[i], options);
+            } else if (arg.startsWith("-o")) {
+                splitOptions(arg.substring(2), options);
+            } else if ("-f".equals(arg)) {
+                foreground = true;
+            } else if ("-s".equals(arg)) {
+                singleThreaded = true;
+            } else if ("-d".equals(arg)) {
+                debug = true;
+                foreground = true;
+            } else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            } else if (mountPoint == null) {
+                mountPoint = arg;
+            } else {
+                throw new IllegalArgumentException("Unexpected argument: " + arg);
+            }
+        }
+
+        if (mountPoint == null) {
+            throw new IllegalArgumentException("Missing mount point");
+        }
+
+        Builder b = builder(mountPoint).foreground(foreground).singleThreaded(singleThreaded).debug(debug);
+        for (String option : options) {
+            b.option(option);
+        }
+
+        return b.build();
+    }
+
+    private static void splitOptions(String value, List<String> options) {
+        for (String option : value.split(",")) {
+            if (option.length() > 0) {
+                options.add(option);
+            }
+        }
+    }
+
+    /**
+     * Builder for {@link FuseMountOptions}. Every setter validates its argument and {@link #build()}
+     * validates combinations of options.
+     */
+    public static class Builder {
+        private String mountPoint;
+        private boolean foreground;
+        private boolean singleThreaded;
+        private boolean debug;
+        private int maxThreads;
+        private String workerCpus;
+        private int ringSlots;
+        private int ringConsumers;
+
+        private double entryTimeout = DEFAULT_TIMEOUT;
+        private double attrTimeout = DEFAULT_TIMEOUT;
+        private double negativeTimeout = DEFAULT_TIMEOUT;
+
+        private boolean kernelCache;
+        private boolean autoCache;
+        private boolean directIO;
+
+        private int maxRead;
+        private int maxWrite;
+        private int maxReadahead;
+        private boolean largeRead;
+        private boolean bigWrites;
+        private boolean syncRead;
+
+        private boolean allowOther;
+        private boolean allowRoot;
+        private boolean defaultPermissions;
+        private String fsName;
+        private String subtype;
+
+        Builder(String mountPoint) {
+            if (mountPoint == null || mountPoint.length() == 0) {
+                throw new IllegalArgumentException("Missing mount point");
+            }
+            this.mountPoint = mountPoint;
+        }
+
+        /**
+         * Stay in the foreground (<code>-f</code>).
+         */
+        public Builder foreground(boolean foreground) {
+            this.foreground = foreground;
+            return this;
+        }
+
+        /**
+         * Use the single threaded session loop (<code>-s</code>) instead of the pool of worker threads.
+         */
+        public Builder singleThreaded(boolean singleThreaded) {
+            this.singleThreaded = singleThreaded;
+            return this;
+        }
+
+        /**
+         * Enable libfuse debug output (<code>-d</code>), implies foreground.
+         */
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            if (debug) {
+                foreground = true;
+            }
+            return this;
+        }
+
+        /**
+         * Number of worker threads of the multithreaded session loop (0 keeps the default of 10).
+         * The workers are started and attached to the JVM when the filesystem is mounted.
+         */
+        public Builder maxThreads(int threads) {
+            if (threads < 0 || threads > MAX_THREADS_LIMIT) {
+                throw new IllegalArgumentException("max_threads out of range: " + threads);
+            }
+            maxThreads = threads;
+            return this;
+        }
+
+        /**
+         * Pins the worker threads round-robin to the given CPUs, e.g. <code>0-3:8-11</code>
+         * (ranges are separated by colons because commas separate mount options).
+         */
+        public Builder workerCpus(String cpus) {
+            if (cpus == null || !CPU_LIST.matcher(cpus).matches()) {
+                throw new IllegalArgumentException("Invalid worker_cpus: " + cpus);
+            }
+            for (String range : cpus.split(":")) {
+                int dash = range.indexOf('-');
+                if (dash > 0 && Integer.parseInt(range.substring(0, dash)) > Integer.parseInt(range.substring(dash + 1))) {
+                    throw new IllegalArgumentException("Invalid worker_cpus range: " + range);
+                }
+            }
+            workerCpus = cpus;
+            return this;
+        }
+
+        /**
+         * Dispatch getattr, fgetattr and readlink through a shared-memory request ring with the given number of
+         * slots, which Java threads drain in batches instead of taking one JNI upcall per request
+         * (0 disables the ring).
+         */
+        public Builder ringSlots(int slots) {
+            if (slots < 0 || slots > MAX_RING_SLOTS) {
+                throw new IllegalArgumentException("ring_slots out of range: " + slots);
+            }
+            ringSlots = slots;
+            return this;
+        }
+
+        /**
+         * Number of Java threads draining the request ring (0 keeps the default of 2).
+         */
+        public Builder ringConsumers(int consumers) {
+            if (consumers < 0 || consumers > MAX_THREADS_LIMIT) {
+                throw new IllegalArgumentException("ring_consumers out of range: " + consumers);
+            }
+            ringConsumers = consumers;
+            return this;
+        }
+
+        /**
+         * Seconds the kernel caches name lookups (libfuse default 1.0).
+         */
+        public Builder entryTimeout(double seconds) {
+            entryTimeout = checkTimeout("entry_timeout", seconds);
+            return this;
+        }
+
+        /**
+         * Seconds the kernel caches file attributes (libfuse default 1.0).
+         */
+        public Builder attrTimeout(double seconds) {
+            attrTimeout = checkTimeout("attr_timeout", seconds);
+            return this;
+        }
+
+        /**
+         * Seconds the kernel caches failed name lookups (libfuse default 0.0).
+         */
+        public Builder negativeTimeout(double seconds) {
+            negativeTimeout = checkTimeout("negative_timeout", seconds);
+            return this;
+        }
+
+        /**
+         * Keep the page cache between opens of the same file.
+         */
+        public Builder kernelCache(boolean kernelCache) {
+            this.kernelCache = kernelCache;
+            return this;
+        }
+
+        /**
+         * Keep the page cache between opens unless the file size or modification time changed.
+         */
+        public Builder autoCache(boolean autoCache) {
+            this.autoCache = autoCache;
+            return this;
+        }
+
+        /**
+         * Bypass the page cache by default for all opened files.
+         */
+        public Builder directIO(boolean directIO) {
+            this.directIO = directIO;
+            return this;
+        }
+
+        /**
+         * Maximum size of a read request in bytes (0 keeps the default).
+         */
+        public Builder maxRead(int bytes) {
+            maxRead = checkSize("max_read", bytes, 0);
+            return this;
+        }
+
+        /**
+         * Maximum size of a write request in bytes, requires big writes above 4KiB (0 keeps the default).
+         */
+        public Builder maxWrite(int bytes) {
+            maxWrite = checkSize("max_write", bytes, 4096);
+            return this;
+        }
+
+        /**
+         * Maximum readahead in bytes (0 keeps the default).
+         */
+        public Builder maxReadahead(int bytes) {
+            maxReadahead = checkSize("max_readahead", bytes, 0);
+            return this;
+        }
+
+        /**
+         * Issue large read requests (only relevant for 2.4 kernels).
+         */
+        public Builder largeRead(boolean largeRead) {
+            this.largeRead = largeRead;
+            return this;
+        }
+
+        /**
+         * Allow write requests larger than 4KiB.
+         */
+        public Builder bigWrites(boolean bigWrites) {
+            this.bigWrites = bigWrites;
+            return this;
+        }
+
+        /**
+         * Serialize read requests instead of issuing them asynchronously.
+         */
+        public Builder syncRead(boolean syncRead) {
+            this.syncRead = syncRead;
+            return this;
+        }
+
+        public Builder allowOther(boolean allowOther) {
+            this.allowOther = allowOther;
+            return this;
+        }
+
+        public Builder allowRoot(boolean allowRoot) {
+            this.allowRoot = allowRoot;
+            return this;
+        }
+
+        public Builder defaultPermissions(boolean defaultPermissions) {
+            this.defaultPermissions = defaultPermissions;
+            return this;
+        }
+
+        public Builder fsName(String fsName) {
+            this.fsName = checkString("fsname", fsName);
+            return this;
+        }
+
+        public Builder subtype(String subtype) {
+            this.subtype = checkString("subtype", subtype);
+            return this;
+        }
+
+        /**
+         * Sets an option given in its <code>name[=value]</code> command line form.
+         *
+         * @throws IllegalArgumentException if the option is unknown or the value is invalid
+         */
+        public Builder option(String option) {
+            int eq = option.indexOf('=');
+            String name = (eq < 0) ? option : option.substring(0, eq);
+            String value = (eq < 0) ? null : option.substring(eq + 1);
+
+            if ("max_threads".equals(name)) {
+                return maxThreads(parseInt(name, value));
+            } else if ("worker_cpus".equals(name)) {
+                return workerCpus(value);
+            } else if ("ring_slots".equals(name)) {
+                return ringSlots(parseInt(name, value));
+            } else if ("ring_consumers".equals(name)) {
+                return ringConsumers(parseInt(name, value));
+            } else if ("entry_timeout".equals(name)) {
+                return entryTimeout(parseDouble(name, value));
+            } else if ("attr_timeout".equals(name)) {
+                return attrTimeout(parseDouble(name, value));
+            } else if ("negative_timeout".equals(name)) {
+                return negativeTimeout(parseDouble(name, value));
+            } else if ("max_read".equals(name)) {
+                return maxRead(parseInt(name, value));
+            } else if ("max_write".equals(name)) {
+                return maxWrite(parseInt(name, value));
+            } else if ("max_readahead".equals(name)) {
+                return maxReadahead(parseInt(name, value));
+            } else if ("fsname".equals(name)) {
+                return fsName(value);
+            } else if ("subtype".equals(name)) {
+                return subtype(value);
+            }
+
+            if (value != null) {
+                throw new IllegalArgumentException("Option " + name + " does not take a value: " + option);
+            }
+
+            if ("kernel_cache".equals(name)) {
+                return kernelCache(true);
+            } else if ("auto_cache".equals(name)) {
+                return autoCache(true);
+            } else if ("direct_io".equals(name)) {
+                return directIO(true);
+            } else if ("large_read".equals(name)) {
+                return largeRead(true);
+            } else if ("big_writes".equals(name)) {
+                return bigWrites(true);
+            } else if ("sync_read".equals(name)) {
+                return syncRead(true);
+            } else if ("async_read".equals(name)) {
+                return syncRead(false);
+            } else if ("allow_other".equals(name)) {
+                return allowOther(true);
+            } else if ("allow_root".equals(name)) {
+                return allowRoot(true);
+            } else if ("default_permissions".equals(name)) {
+                return defaultPermissions(true);
+            }
+
+            throw new IllegalArgumentException("Unknown mount option: " + option);
+        }
+
+        public FuseMountOptions build() {
+            if (kernelCache && autoCache) {
+                throw new IllegalArgumentException("kernel_cache and auto_cache are mutually exclusive");
+            }
+            if (allowOther && allowRoot) {
+                throw new IllegalArgumentException("allow_other and allow_root are mutually exclusive");
+            }
+            if (maxWrite > 4096 && !bigWrites) {
+                throw new IllegalArgumentException("max_write above 4096 requires big_writes");
+            }
+            if (singleThreaded && (maxThreads > 0 || workerCpus != null)) {
+                throw new IllegalArgumentException("max_threads and worker_cpus require the multithreaded session loop");
+            }
+            if (ringConsumers > 0 && ringSlots == 0) {
+                throw new IllegalArgumentException("ring_consumers requires ring_slots");
+            }
+
+            return new FuseMountOptions(this);
+        }
+
+        private static double checkTimeout(String name, double seconds) {
+            if (!(seconds >= 0.0) || Double.isInfinite(seconds)) {
+                throw new IllegalArgumentException(name + " must be a non-negative number of seconds: " + seconds);
+            }
+            return seconds;
+        }
+
+        private static int checkSize(String name, int bytes, int min) {
+            if (bytes != 0 && bytes < Math.max(min, 1)) {
+                throw new IllegalArgumentException(name + " out of range: " + bytes);
+            }
+            return bytes;
+        }
+
+        private static String checkString(String name, String value) {
+            if (value == null || value.length() == 0 || value.indexOf(',') >= 0) {
+                throw new IllegalArgumentException("Invalid " + name + ": " + value);
+            }
+            return value;
+        }
+
+        private static double parseDouble(String name, String value) {
+            try {
+                return Double.parseDouble(value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Option " + name + " requires a number: " + value);
+            }
+        }
+
+        private static int parseInt(String name, String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Option " + name + " requires an integer: " + value);
+            }
+        }
+    }
+}
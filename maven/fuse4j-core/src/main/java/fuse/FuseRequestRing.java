@@ -0,0 +1,201 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Java side of the shared-memory request ring (mount options <code>ring_slots</code> and
+ * <code>ring_consumers</code>).
+ * <p/>
+ * The native dispatcher encodes getattr, fgetattr and readlink requests into fixed size slots of a
+ * direct buffer; the file handle of an fgetattr is handed over with the batch. Consumer threads take the submitted slots in batches, call the <code>FuseFS</code> with
+ * buffer views that are allocated once per slot, write the replies into the same slots and
+ * complete the whole batch with a single native call. While a request is handled,
+ * <code>FuseContext.get()</code> returns the context of the process that issued it.
+ */
+public class FuseRequestRing {
+    private static final Log log = LogFactory.getLog(FuseRequestRing.class);
+
+    static final int OP_GETATTR = 1;
+    static final int OP_READLINK = 2;
+    static final int OP_FGETATTR = 3;
+
+    private static final int MAX_BATCH = 64;
+
+    // slot layout, must match struct jfuse_ring_slot in native/ring.c
+    static final int SLOT_SIZE = 8280;
+    private static final int OPCODE = 0;
+    private static final int ERRNO = 4;
+    private static final int PATH_LEN = 8;
+    private static final int DATA_LEN = 12;
+    private static final int UID = 16;
+    private static final int GID = 20;
+    private static final int PID = 24;
+    private static final int MODE = 28;
+    private static final int INODE = 32;
+    private static final int NLINK = 40;
+    private static final int ST_UID = 44;
+    private static final int ST_GID = 48;
+    private static final int RDEV = 52;
+    private static final int SIZE = 56;
+    private static final int BLOCKS = 64;
+    private static final int ATIME = 72;
+    private static final int MTIME = 76;
+    private static final int CTIME = 80;
+    private static final int PATH = 88;
+    private static final int PATH_MAX = 4096;
+    private static final int DATA = PATH + PATH_MAX;
+    private static final int DATA_MAX = 4096;
+
+    private final FuseFS fuseFS;
+    private final ByteBuffer buffer;
+    private final ByteBuffer[] paths;
+    private final ByteBuffer[] data;
+
+    private FuseRequestRing(FuseFS fuseFS, ByteBuffer buffer, int slots) {
+        this.fuseFS = fuseFS;
+        this.buffer = buffer.order(ByteOrder.nativeOrder());
+        paths = new ByteBuffer[slots];
+        data = new ByteBuffer[slots];
+
+        for (int i = 0; i < slots; i++) {
+            paths[i] = view(i * SLOT_SIZE + PATH, PATH_MAX);
+            data[i] = view(i * SLOT_SIZE + DATA, DATA_MAX);
+        }
+    }
+
+    private ByteBuffer view(int offset, int length) {
+        ByteBuffer dup = buffer.duplicate();
+        dup.limit(offset + length).position(offset);
+        return dup.slice();
+    }
+
+    /**
+     * Called by the native dispatcher before the session loop starts.
+     */
+    static void start(FuseFS fuseFS, ByteBuffer buffer, int slots, int consumers, ThreadGroup group) {
+        FuseRequestRing ring = new FuseRequestRing(fuseFS, buffer, slots);
+        int batchSize = Math.min(slots, MAX_BATCH);
+
+        log.info("Starting request ring with " + slots + " slots and " + consumers + " consumers");
+
+        for (int i = 0; i < consumers; i++) {
+            Thread thread = new Thread(group, ring.new Consumer(batchSize), "fuse4j-ring-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private class Consumer implements Runnable, FuseGetattrSetter {
+        private final int[] batch;
+        private final Object[] handles;
+        private final FuseContext context = FuseContext.newInstance();
+        private int base;
+
+        Consumer(int batchSize) {
+            batch = new int[batchSize];
+            handles = new Object[batchSize];
+        }
+
+        public void run() {
+            int n;
+
+            FuseContext.delegate(context);
+
+            while ((n = awaitBatch(batch, handles)) >= 0) {
+                for (int i = 0; i < n; i++) {
+                    process(batch[i], handles[i]);
+                    handles[i] = null;
+                }
+                complete(batch, n);
+            }
+
+            FuseContext.delegate(null);
+        }
+
+        private void process(int slot, Object handle) {
+            int errno;
+
+            base = slot * SLOT_SIZE;
+            context.uid = buffer.getInt(base + UID);
+            context.gid = buffer.getInt(base + GID);
+            context.pid = buffer.getInt(base + PID);
+
+            ByteBuffer path = paths[slot];
+            path.clear();
+            path.limit(buffer.getInt(base + PATH_LEN));
+
+            try {
+                switch (buffer.getInt(base + OPCODE)) {
+                    case OP_GETATTR:
+                        errno = fuseFS.getattr(path, this);
+                        break;
+
+                    case OP_FGETATTR:
+                        if (fuseFS instanceof FuseFSFileHandleSupport) {
+                            errno = ((FuseFSFileHandleSupport) fuseFS).fgetattr(path, handle, this);
+                        } else {
+                            errno = fuseFS.getattr(path, this);
+                        }
+                        break;
+
+                    case OP_READLINK:
+                        ByteBuffer link = data[slot];
+                        link.clear();
+                        link.limit(buffer.getInt(base + DATA_LEN));
+                        errno = fuseFS.readlink(path, link);
+                        buffer.putInt(base + DATA_LEN, link.position());
+                        break;
+
+                    default:
+                        errno = Errno.ENOSYS;
+                }
+            } catch (Throwable t) {
+                // same as an exception escaping a per-call upcall
+                log.error("request ring: unexpected exception", t);
+                errno = Errno.EFAULT;
+            }
+
+            buffer.putInt(base + ERRNO, errno);
+        }
+
+        public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long size, long blocks, int atime, int mtime, int ctime) {
+            buffer.putLong(base + INODE, inode);
+            buffer.putInt(base + MODE, mode);
+            buffer.putInt(base + NLINK, nlink);
+            buffer.putInt(base + ST_UID, uid);
+            buffer.putInt(base + ST_GID, gid);
+            buffer.putInt(base + RDEV, rdev);
+            buffer.putLong(base + SIZE, size);
+            buffer.putLong(base + BLOCKS, blocks);
+            buffer.putInt(base + ATIME, atime);
+            buffer.putInt(base + MTIME, mtime);
+            buffer.putInt(base + CTIME, ctime);
+        }
+    }
+
+    /**
+     * Blocks until at least one request is submitted and takes up to <code>slots.length</code> of them,
+     * storing the file handle of each into <code>handles</code> (<code>null</code> unless it's an fgetattr).
+     *
+     * @return the number of slot indexes stored into <code>slots</code> or -1 when the ring has been stopped
+     */
+    private static native int awaitBatch(int[] slots, Object[] handles);
+
+    /**
+     * Hands the replies written into the given slots back to the waiting FUSE threads.
+     */
+    private static native void complete(int[] slots, int count);
+}
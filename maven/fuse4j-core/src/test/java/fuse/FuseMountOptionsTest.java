@@ -0,0 +1,166 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Formats options with toArgs() and parses them back, and checks that invalid options and values
+ * are rejected and that the option names the native launcher is generated from are the ones the
+ * builder accepts.
+ */
+public class FuseMountOptionsTest extends TestCase {
+
+    public void testRoundTrip() {
+        FuseMountOptions options = FuseMountOptions.builder("/mnt/fs")
+            .foreground(true)
+            .maxThreads(16)
+            .workerCpus("0-3:8")
+            .ringSlots(256)
+            .ringConsumers(4)
+            .entryTimeout(2.0)
+            .attrTimeout(0.5)
+            .negativeTimeout(0.0)
+            .autoCache(true)
+            .directIO(true)
+            .maxRead(131072)
+            .maxWrite(131072)
+            .maxReadahead(65536)
+            .bigWrites(true)
+            .syncRead(true)
+            .allowOther(true)
+            .defaultPermissions(true)
+            .fsName("archive.zip")
+            .subtype("zipfs")
+            .build();
+
+        String[] args = options.toArgs();
+        assertEquals(Arrays.asList(args), Arrays.asList(FuseMountOptions.parse(args).toArgs()));
+
+        assertEquals("/mnt/fs -f -o max_threads=16 -o worker_cpus=0-3:8 -o ring_slots=256 -o ring_consumers=4 " +
+                     "-o entry_timeout=2 -o attr_timeout=0.5 -o negative_timeout=0 -o auto_cache -o direct_io " +
+                     "-o max_read=131072 -o max_write=131072 -o max_readahead=65536 -o big_writes -o sync_read " +
+                     "-o allow_other -o default_permissions -o fsname=archive.zip -o subtype=zipfs", options.toString());
+    }
+
+    public void testDefaults() {
+        FuseMountOptions options = FuseMountOptions.parse(new String[] { "/mnt/fs" });
+
+        assertEquals("/mnt/fs", options.toString());
+        assertEquals(-1.0, options.getAttrTimeout(), 0.0);
+        assertFalse(options.isForeground());
+        assertEquals(0, options.getMaxThreads());
+    }
+
+    public void testParseLists() {
+        FuseMountOptions options = FuseMountOptions.parse(new String[] {
+            "-d", "-o", "kernel_cache,,max_read=4096", "/mnt/fs", "-oallow_root,async_read", "-s"
+        });
+
+        assertEquals("/mnt/fs", options.getMountPoint());
+        assertTrue(options.isDebug());
+        assertTrue(options.isForeground());
+        assertTrue(options.isSingleThreaded());
+        assertTrue(options.isKernelCache());
+        assertEquals(4096, options.getMaxRead());
+        assertTrue(options.isAllowRoot());
+        assertFalse(options.isSyncRead());
+    }
+
+    public void testRejectsArguments() {
+        assertRejected(new String[0]);
+        assertRejected(new String[] { "/mnt/a", "/mnt/b" });
+        assertRejected(new String[] { "/mnt/fs", "-x" });
+        assertRejected(new String[] { "/mnt/fs", "-o" });
+    }
+
+    public void testRejectsOptions() {
+        assertRejected("uid=1000");
+        assertRejected("allow_other=1");
+        assertRejected("max_threads");
+        assertRejected("max_threads=-1");
+        assertRejected("max_threads=" + (FuseMountOptions.MAX_THREADS_LIMIT + 1));
+        assertRejected("max_threads=ten");
+        assertRejected("worker_cpus=3-1");
+        assertRejected("worker_cpus=0,1");
+        assertRejected("worker_cpus=");
+        assertRejected("ring_slots=" + (FuseMountOptions.MAX_RING_SLOTS + 1));
+        assertRejected("entry_timeout=-1");
+        assertRejected("attr_timeout=NaN");
+        assertRejected("negative_timeout=Infinity");
+        assertRejected("max_read=-4096");
+        assertRejected("max_write=1024");
+        assertRejected("fsname=");
+        assertRejected("subtype");
+    }
+
+    public void testRejectsCombinations() {
+        assertRejected("kernel_cache,auto_cache");
+        assertRejected("allow_other,allow_root");
+        assertRejected("max_write=8192");
+        assertRejected("ring_consumers=2");
+        assertRejected(new String[] { "/mnt/fs", "-s", "-o", "max_threads=4" });
+        assertRejected(new String[] { "/mnt/fs", "-s", "-o", "worker_cpus=0" });
+
+        // accepted with what they need
+        FuseMountOptions.parse(new String[] { "/mnt/fs", "-o", "max_write=8192,big_writes,ring_slots=64,ring_consumers=2" });
+    }
+
+    public void testOptionNames() {
+        String[] names = FuseMountOptions.getOptionNames();
+        Set<String> nameSet = new HashSet<String>(Arrays.asList(names));
+        assertEquals(names.length, nameSet.size());
+
+        // every name is accepted, with a value if it takes one
+        for (int i = 0; i < names.length; i++) {
+            String name = names[i];
+            String option = name;
+            if ("max_write=".equals(name)) {
+                option += "4096";
+            } else if (name.endsWith("=")) {
+                option += "1";
+            }
+            FuseMountOptions.builder("/mnt/fs").option(option);
+        }
+
+        // and every option formatted has one of the names
+        FuseMountOptions options = FuseMountOptions.parse(new String[] {
+            "/mnt/fs", "-o", "max_threads=2,worker_cpus=1,ring_slots=8,ring_consumers=1,entry_timeout=1,attr_timeout=1," +
+                             "negative_timeout=1,kernel_cache,direct_io,max_read=8192,max_write=8192,max_readahead=8192," +
+                             "large_read,big_writes,sync_read,allow_other,default_permissions,fsname=a,subtype=b"
+        });
+        for (String option : options.getOptions()) {
+            int eq = option.indexOf('=');
+            assertTrue(option, nameSet.contains(eq < 0 ? option : option.substring(0, eq + 1)));
+        }
+    }
+
+
+    //
+    // private methods
+
+    private static void assertRejected(String optionList) {
+        assertRejected(new String[] { "/mnt/fs", "-o", optionList });
+    }
+
+    private static void assertRejected(String[] args) {
+        try {
+            FuseMountOptions.parse(args);
+            fail("accepted " + Arrays.asList(args));
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
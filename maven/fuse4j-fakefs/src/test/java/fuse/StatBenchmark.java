@@ -0,0 +1,105 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures getattr throughput of a mounted filesystem, e.g. to compare the per-call JNI
+ * dispatch with the request ring:
+ * <pre>
+ *    FakeFilesystem /mnt/fake -f -o attr_timeout=0,entry_timeout=0,negative_timeout=0
+ *    FakeFilesystem /mnt/fake -f -o attr_timeout=0,entry_timeout=0,negative_timeout=0,ring_slots=256
+ *
+ *    StatBenchmark /mnt/fake [threads] [seconds]
+ * </pre>
+ * The zero timeouts keep the kernel from answering the requests out of its caches. The benchmark
+ * is compiled with the tests (target/test-classes) and doesn't ship in the jar.
+ */
+public class StatBenchmark {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StatBenchmark <mount point> [threads] [seconds]");
+            System.exit(1);
+        }
+
+        File root = new File(args[0]);
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+
+        final List<File> files = new ArrayList<File>();
+        collect(root, files);
+        if (files.isEmpty()) {
+            System.err.println("Nothing to stat below " + root);
+            System.exit(1);
+        }
+
+        // warm up the JIT of both sides before measuring
+        run(files, threads, Math.min(seconds, 3));
+
+        long ops = run(files, threads, seconds);
+        System.out.println(files.size() + " files, " + threads + " threads, " + seconds + " s: " +
+                (ops / seconds) + " ops/s");
+    }
+
+    private static long run(final List<File> files, int threads, int seconds) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            new Thread(new Runnable() {
+                public void run() {
+                    long n = 0;
+                    int i = offset;
+
+                    try {
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int k = 0; k < 100; k++) {
+                                File file = files.get(i++ % files.size());
+                                file.lastModified();
+                                n++;
+                            }
+                        }
+                    } finally {
+                        ops.addAndGet(n);
+                        done.countDown();
+                    }
+                }
+            }, "bench-" + t).start();
+        }
+
+        done.await();
+
+        return ops.get();
+    }
+
+    private static void collect(File dir, List<File> files) throws IOException {
+        File[] children = dir.listFiles();
+
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            files.add(child);
+            // don't follow symbolic links out of the tree
+            if (child.isDirectory() && child.getCanonicalFile().equals(child.getAbsoluteFile())) {
+                collect(child, files);
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.FuseException;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The memory of a MemFilesystem: fixed-size chunks of off-heap memory, carved from larger direct
+ * buffers (slabs) so that a chunk costs no allocation of its own. Freed chunks are zeroed and kept for
+ * reuse; the slabs are never given back, so the direct memory used is the highest the filesystem has
+ * ever held (at most its capacity).
+ */
+class ChunkStore
+{
+   private static final int SLAB_SIZE = 1 << 20;
+
+
+   private final int chunkSize;
+   private final int chunkShift;
+   private final long capacity;
+   private final int slabSize;
+
+   private final AtomicLong used = new AtomicLong();
+   private final Queue<ByteBuffer> freeChunks = new ConcurrentLinkedQueue<ByteBuffer>();
+   private final byte[] zeros;
+
+   // guarded by this
+   private ByteBuffer slab;
+
+
+   /**
+    * @param capacity  the number of bytes that may be allocated, rounded down to whole chunks
+    * @param chunkSize the size of a chunk, a power of 2
+    */
+   ChunkStore(long capacity, int chunkSize)
+   {
+      if (chunkSize <= 0 || (chunkSize & (chunkSize - 1)) != 0)
+         throw new IllegalArgumentException("chunk size must be a power of 2: " + chunkSize);
+
+      this.chunkSize = chunkSize;
+      this.capacity = capacity - capacity % chunkSize;
+      chunkShift = Integer.numberOfTrailingZeros(chunkSize);
+      slabSize = Math.max(SLAB_SIZE, chunkSize);
+      zeros = new byte[chunkSize];
+   }
+
+   int getChunkSize()
+   {
+      return chunkSize;
+   }
+
+   int getChunkShift()
+   {
+      return chunkShift;
+   }
+
+   long getCapacity()
+   {
+      return capacity;
+   }
+
+   long getUsed()
+   {
+      return used.get();
+   }
+
+   /**
+    * @return a zeroed chunk
+    * @throws FuseException ENOSPC if the capacity is used up
+    */
+   ByteBuffer allocate() throws FuseException
+   {
+      long u;
+      do
+      {
+         u = used.get();
+         if (u + chunkSize > capacity)
+            throw new FuseException("No space left").initErrno(FuseException.ENOSPC);
+      }
+      while (!used.compareAndSet(u, u + chunkSize));
+
+      ByteBuffer chunk = freeChunks.poll();
+      if (chunk == null)
+         chunk = carve();
+
+      return chunk;
+   }
+
+   void free(ByteBuffer chunk)
+   {
+      chunk.clear();
+      chunk.put(zeros);
+      chunk.clear();
+      freeChunks.add(chunk);
+      used.addAndGet(-chunkSize);
+   }
+
+   /**
+    * Puts <code>length</code> zeros into <code>buff</code>, for the holes of sparse files
+    */
+   void putZeros(ByteBuffer buff, int length)
+   {
+      buff.put(zeros, 0, length);
+   }
+
+
+   //
+   // private methods
+
+   private synchronized ByteBuffer carve()
+   {
+      if (slab == null || !slab.hasRemaining())
+      {
+         // new direct buffers are zeroed
+         slab = ByteBuffer.allocateDirect(slabSize);
+      }
+
+      slab.limit(slab.position() + chunkSize);
+      ByteBuffer chunk = slab.slice();
+      slab.position(slab.limit());
+      slab.limit(slab.capacity());
+
+      return chunk;
+   }
+}
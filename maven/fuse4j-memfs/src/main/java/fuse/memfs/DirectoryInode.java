@@ -0,0 +1,44 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.FuseFtype;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * A directory. Its entries are looked up without locking; they are changed while holding the
+ * monitor of the directory (and the rename lock of the filesystem for rename and rmdir).
+ */
+class DirectoryInode extends Inode
+{
+   final ConcurrentHashMap<String, Inode> entries = new ConcurrentHashMap<String, Inode>();
+
+   // changed while holding the rename lock, the root is its own parent
+   volatile DirectoryInode parent;
+
+   // guarded by this, set by rmdir so that nothing is created in a removed directory
+   boolean removed;
+
+
+   DirectoryInode(long ino, int mode, int uid, int gid, DirectoryInode parent)
+   {
+      super(ino, FuseFtype.TYPE_DIR | mode, uid, gid);
+
+      this.parent = parent == null? this : parent;
+      nlink = 2;
+   }
+
+   long getSize()
+   {
+      return entries.size();
+   }
+}
@@ -0,0 +1,254 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.FuseException;
+import fuse.FuseFtype;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+
+/**
+ * A regular file: its content is a list of chunks of a ChunkStore, where a missing chunk is a hole
+ * that reads as zeros (so files are sparse and only the chunks written to use memory). Reads share
+ * the lock of the file, writes and truncates hold it exclusively. The list doubles when it grows, so
+ * appending is O(1) amortized.
+ * <p/>
+ * The content is freed when the last link has been removed and the last handle released.
+ */
+class FileInode extends Inode
+{
+   private final ChunkStore store;
+   private final int chunkSize;
+   private final int chunkShift;
+   private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+   // guarded by lock
+   private ByteBuffer[] chunks = new ByteBuffer[1];
+   private volatile long size;
+   private volatile int allocatedChunks;
+
+   // guarded by this
+   private int openCount;
+
+
+   FileInode(long ino, int mode, int uid, int gid, ChunkStore store)
+   {
+      super(ino, FuseFtype.TYPE_FILE | mode, uid, gid);
+
+      this.store = store;
+      chunkSize = store.getChunkSize();
+      chunkShift = store.getChunkShift();
+   }
+
+   long getSize()
+   {
+      return size;
+   }
+
+   long getBlocks()
+   {
+      return ((long)allocatedChunks * chunkSize) >> 9;
+   }
+
+   void read(ByteBuffer buff, long offset)
+   {
+      lock.readLock().lock();
+      try
+      {
+         long end = Math.min(size, offset + buff.remaining());
+         while (offset < end)
+         {
+            int index = (int)(offset >>> chunkShift);
+            int pos = (int)offset & (chunkSize - 1);
+            int length = (int)Math.min(chunkSize - pos, end - offset);
+
+            ByteBuffer chunk = index < chunks.length? chunks[index] : null;
+            if (chunk == null)
+               store.putZeros(buff, length);
+            else
+            {
+               ByteBuffer src = chunk.duplicate();
+               src.limit(pos + length).position(pos);
+               buff.put(src);
+            }
+            offset += length;
+         }
+      }
+      finally
+      {
+         lock.readLock().unlock();
+      }
+   }
+
+   /**
+    * Writes the remaining bytes of <code>buff</code> at <code>offset</code> or, if <code>append</code>
+    * is set, at the end of the file
+    */
+   void write(ByteBuffer buff, long offset, boolean append) throws FuseException
+   {
+      if (!buff.hasRemaining())
+         return;
+
+      lock.writeLock().lock();
+      try
+      {
+         if (append)
+            offset = size;
+
+         long end = offset + buff.remaining();
+         if ((end - 1) >>> chunkShift >= Integer.MAX_VALUE)
+            throw new FuseException("File too large").initErrno(FuseException.EFBIG);
+
+         ensureCapacity((int)((end - 1) >>> chunkShift) + 1);
+         try
+         {
+            while (buff.hasRemaining())
+            {
+               int index = (int)(offset >>> chunkShift);
+               int pos = (int)offset & (chunkSize - 1);
+               int length = Math.min(chunkSize - pos, buff.remaining());
+
+               ByteBuffer chunk = chunks[index];
+               if (chunk == null)
+               {
+                  chunk = chunks[index] = store.allocate();
+                  allocatedChunks++;
+               }
+
+               ByteBuffer dst = chunk.duplicate();
+               dst.position(pos);
+               int limit = buff.limit();
+               buff.limit(buff.position() + length);
+               dst.put(buff);
+               buff.limit(limit);
+               offset += length;
+            }
+         }
+         finally
+         {
+            // what has been written before running out of space stays
+            if (offset > size)
+               size = offset;
+            touch();
+         }
+      }
+      finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   void truncate(long newSize) throws FuseException
+   {
+      if (newSize < 0)
+         throw new FuseException("Invalid size").initErrno(FuseException.EINVAL);
+      if (newSize > 0 && (newSize - 1) >>> chunkShift >= Integer.MAX_VALUE)
+         throw new FuseException("File too large").initErrno(FuseException.EFBIG);
+
+      lock.writeLock().lock();
+      try
+      {
+         if (newSize < size)
+         {
+            int keep = (int)((newSize + chunkSize - 1) >>> chunkShift);
+            freeChunks(keep);
+
+            // the rest of the last chunk must read as zeros when the file grows again
+            int pos = (int)newSize & (chunkSize - 1);
+            if (pos != 0 && chunks[keep - 1] != null)
+            {
+               ByteBuffer chunk = chunks[keep - 1].duplicate();
+               chunk.position(pos);
+               store.putZeros(chunk, chunkSize - pos);
+            }
+
+            if (keep < chunks.length / 4)
+               chunks = Arrays.copyOf(chunks, Math.max(keep, 1));
+         }
+         size = newSize;
+         touch();
+      }
+      finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   //
+   // links and handles
+
+   synchronized void open()
+   {
+      openCount++;
+   }
+
+   synchronized void release()
+   {
+      openCount--;
+      freeIfUnused();
+   }
+
+   synchronized void link()
+   {
+      nlink++;
+      ctime = now();
+   }
+
+   synchronized void unlink()
+   {
+      nlink--;
+      ctime = now();
+      freeIfUnused();
+   }
+
+
+   //
+   // private methods
+
+   private void freeIfUnused()
+   {
+      if (nlink > 0 || openCount > 0)
+         return;
+
+      lock.writeLock().lock();
+      try
+      {
+         freeChunks(0);
+         chunks = new ByteBuffer[1];
+         size = 0L;
+      }
+      finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   private void freeChunks(int from)
+   {
+      for (int i = from; i < chunks.length; i++)
+      {
+         if (chunks[i] != null)
+         {
+            store.free(chunks[i]);
+            chunks[i] = null;
+            allocatedChunks--;
+         }
+      }
+   }
+
+   private void ensureCapacity(int count)
+   {
+      if (count > chunks.length)
+         chunks = Arrays.copyOf(chunks, (int)Math.min(Math.max(count, 2L * chunks.length), Integer.MAX_VALUE));
+   }
+}
@@ -0,0 +1,82 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.FuseGetattrSetter;
+import fuse.FuseStatConstants;
+
+
+/**
+ * A file, directory or symbolic link of a MemFilesystem. The attributes are read without locking;
+ * the link count is changed while holding the monitor of the inode.
+ */
+abstract class Inode
+{
+   final long ino;
+
+   volatile int mode;
+   volatile int uid;
+   volatile int gid;
+   volatile int atime;
+   volatile int mtime;
+   volatile int ctime;
+   volatile int nlink;
+
+
+   Inode(long ino, int mode, int uid, int gid)
+   {
+      this.ino = ino;
+      this.mode = mode;
+      this.uid = uid;
+      this.gid = gid;
+      atime = mtime = ctime = now();
+   }
+
+   abstract long getSize();
+
+   /**
+    * @return the number of 512 byte blocks allocated
+    */
+   long getBlocks()
+   {
+      return 0L;
+   }
+
+   void getattr(FuseGetattrSetter getattrSetter)
+   {
+      getattrSetter.set(ino, mode, nlink, uid, gid, 0, getSize(), getBlocks(), atime, mtime, ctime);
+   }
+
+   void chmod(int mode)
+   {
+      this.mode = (this.mode & FuseStatConstants.TYPE_MASK) | (mode & FuseStatConstants.MODE_MASK);
+      ctime = now();
+   }
+
+   void chown(int uid, int gid)
+   {
+      // -1 leaves the id unchanged
+      if (uid != -1)
+         this.uid = uid;
+      if (gid != -1)
+         this.gid = gid;
+      ctime = now();
+   }
+
+   void touch()
+   {
+      mtime = ctime = now();
+   }
+
+   static int now()
+   {
+      return (int)(System.currentTimeMillis() / 1000L);
+   }
+}
@@ -0,0 +1,648 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A writable filesystem kept in memory, like tmpfs: scratch space for build sandboxes and the like.
+ * File contents live off-heap in fixed-size chunks (see ChunkStore and FileInode), files are sparse and
+ * the capacity is reported through statfs. Lookups don't lock, each directory and each file has a lock
+ * of its own, so operations on different files don't wait for each other; only rename and rmdir are
+ * serialized. All I/O goes through the handles returned by open and create, so files that are removed
+ * while open stay readable until they are released.
+ * <p/>
+ * Permissions are not checked here, mount with <code>-o default_permissions</code> to have the kernel
+ * check them. Configured by the system properties <code>fuse4j.memfs.size</code> (the capacity in
+ * bytes) and <code>fuse4j.memfs.chunkSize</code> (a power of 2).
+ */
+public class MemFilesystem implements Filesystem3, FileHandleSupport
+{
+   private static final Log log = LogFactory.getLog(MemFilesystem.class);
+
+   public static final long SIZE = Long.getLong("fuse4j.memfs.size", 256L << 20).longValue();
+   public static final int CHUNK_SIZE = Integer.getInteger("fuse4j.memfs.chunkSize", 4096).intValue();
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private static final int NAME_LENGTH = 255;
+
+   // open flags (Linux)
+   private static final int O_ACCMODE = 03;
+   private static final int O_EXCL = 0200;
+   private static final int O_TRUNC = 01000;
+   private static final int O_APPEND = 02000;
+
+
+   private final ChunkStore store;
+   private final DirectoryInode root;
+   private final AtomicLong nextIno = new AtomicLong(1L);
+   private final AtomicLong inodes = new AtomicLong();
+
+   // serializes the operations that lock two directories
+   private final ReentrantLock renameLock = new ReentrantLock();
+
+
+   public MemFilesystem()
+   {
+      this(SIZE, CHUNK_SIZE);
+   }
+
+   /**
+    * @param capacity  the number of bytes of file content the filesystem can hold
+    * @param chunkSize the unit of allocation, a power of 2
+    */
+   public MemFilesystem(long capacity, int chunkSize)
+   {
+      store = new ChunkStore(capacity, chunkSize);
+      root = new DirectoryInode(nextIno.getAndIncrement(), 01777, 0, 0, null);
+      inodes.incrementAndGet();
+
+      log.info("memory filesystem created: " + store.getCapacity() + " bytes in chunks of " + chunkSize + " bytes.");
+   }
+
+
+   public int chmod(String path, int mode) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      node.chmod(mode);
+
+      return 0;
+   }
+
+   public int chown(String path, int uid, int gid) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      node.chown(uid, gid);
+
+      return 0;
+   }
+
+   public int getattr(String path, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      node.getattr(getattrSetter);
+
+      return 0;
+   }
+
+   public int getdir(String path, FuseDirFiller dirFiller) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (!(node instanceof DirectoryInode))
+         return Errno.ENOTDIR;
+
+      for (Map.Entry<String, Inode> entry : ((DirectoryInode)node).entries.entrySet())
+         dirFiller.add(entry.getKey(), entry.getValue().ino, entry.getValue().mode);
+
+      return 0;
+   }
+
+   public int link(String from, String to) throws FuseException
+   {
+      Inode node = lookup(from);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (!(node instanceof FileInode))
+         return Errno.EPERM;
+
+      DirectoryInode parent = lookupParent(to);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      FileInode file = (FileInode)node;
+      file.link();
+      int errno = addEntry(parent, getName(to), file);
+      if (errno != 0)
+         file.unlink();
+
+      return errno;
+   }
+
+   public int mkdir(String path, int mode) throws FuseException
+   {
+      DirectoryInode parent = lookupParent(path);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      FuseContext context = FuseContext.get();
+      DirectoryInode dir = new DirectoryInode(nextIno.getAndIncrement(), mode & FuseStatConstants.MODE_MASK, context.uid, context.gid, parent);
+
+      return addNode(parent, getName(path), dir);
+   }
+
+   public int mknod(String path, int mode, int rdev) throws FuseException
+   {
+      int type = mode & FuseFtype.TYPE_MASK;
+      if (type != 0 && type != FuseFtype.TYPE_FILE)
+         return Errno.EPERM;
+
+      DirectoryInode parent = lookupParent(path);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      FileInode file = createFile(mode);
+      int errno = addNode(parent, getName(path), file);
+      if (errno != 0)
+         file.unlink();
+
+      return errno;
+   }
+
+   public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (node instanceof DirectoryInode)
+         return Errno.EISDIR;
+
+      FileInode file = (FileInode)node;
+      if ((flags & O_TRUNC) != 0 && (flags & O_ACCMODE) != O_RDONLY)
+         file.truncate(0L);
+
+      openSetter.setFh(new FileHandle(file, flags));
+
+      return 0;
+   }
+
+   public int rename(String from, String to) throws FuseException
+   {
+      DirectoryInode fromParent = lookupParent(from);
+      DirectoryInode toParent = lookupParent(to);
+      if (fromParent == null || toParent == null)
+         return Errno.ENOENT;
+
+      renameLock.lock();
+      try
+      {
+         // a consistent order of the monitors, rmdir and other renames wait for the rename lock
+         DirectoryInode first = fromParent.ino <= toParent.ino? fromParent : toParent;
+         DirectoryInode second = first == fromParent? toParent : fromParent;
+         synchronized (first)
+         {
+            synchronized (second)
+            {
+               return rename(fromParent, getName(from), toParent, getName(to));
+            }
+         }
+      }
+      finally
+      {
+         renameLock.unlock();
+      }
+   }
+
+   public int rmdir(String path) throws FuseException
+   {
+      DirectoryInode parent = lookupParent(path);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      String name = getName(path);
+      renameLock.lock();
+      try
+      {
+         synchronized (parent)
+         {
+            Inode node = parent.entries.get(name);
+            if (node == null)
+               return Errno.ENOENT;
+            if (!(node instanceof DirectoryInode))
+               return Errno.ENOTDIR;
+
+            int errno = removeDirectory((DirectoryInode)node);
+            if (errno != 0)
+               return errno;
+
+            parent.entries.remove(name);
+            parent.nlink--;
+            parent.touch();
+         }
+      }
+      finally
+      {
+         renameLock.unlock();
+      }
+
+      return 0;
+   }
+
+   public int statfs(FuseStatfsSetter statfsSetter) throws FuseException
+   {
+      int chunkSize = store.getChunkSize();
+      int blocks = (int)Math.min(store.getCapacity() / chunkSize, Integer.MAX_VALUE);
+      int blocksFree = (int)Math.min((store.getCapacity() - store.getUsed()) / chunkSize, Integer.MAX_VALUE);
+      int files = (int)Math.min(inodes.get(), Integer.MAX_VALUE);
+
+      statfsSetter.set(chunkSize, blocks, blocksFree, blocksFree, files, Integer.MAX_VALUE - files, NAME_LENGTH);
+
+      return 0;
+   }
+
+   public int symlink(String from, String to) throws FuseException
+   {
+      DirectoryInode parent = lookupParent(to);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      FuseContext context = FuseContext.get();
+      SymlinkInode link = new SymlinkInode(nextIno.getAndIncrement(), context.uid, context.gid, from);
+
+      return addNode(parent, getName(to), link);
+   }
+
+   public int truncate(String path, long size) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (node instanceof DirectoryInode)
+         return Errno.EISDIR;
+
+      ((FileInode)node).truncate(size);
+
+      return 0;
+   }
+
+   public int unlink(String path) throws FuseException
+   {
+      DirectoryInode parent = lookupParent(path);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      String name = getName(path);
+      Inode node;
+      synchronized (parent)
+      {
+         node = parent.entries.get(name);
+         if (node == null)
+            return Errno.ENOENT;
+         if (node instanceof DirectoryInode)
+            return Errno.EISDIR;
+
+         parent.entries.remove(name);
+         parent.touch();
+      }
+
+      removeLink(node);
+
+      return 0;
+   }
+
+   public int utime(String path, int atime, int mtime) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      node.atime = atime;
+      node.mtime = mtime;
+      node.ctime = Inode.now();
+
+      return 0;
+   }
+
+   public int readlink(String path, CharBuffer link) throws FuseException
+   {
+      Inode node = lookup(path);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (!(node instanceof SymlinkInode))
+         return Errno.EINVAL;
+
+      String target = ((SymlinkInode)node).target;
+      if (target.length() > link.remaining())
+         return Errno.ENAMETOOLONG;
+
+      link.append(target);
+
+      return 0;
+   }
+
+   public int write(String path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException
+   {
+      FileHandle handle = (FileHandle)fh;
+      if ((handle.flags & O_ACCMODE) == O_RDONLY)
+         return Errno.EBADF;
+
+      handle.file.write(buf, offset, (handle.flags & O_APPEND) != 0);
+
+      return 0;
+   }
+
+   public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException
+   {
+      FileHandle handle = (FileHandle)fh;
+      if ((handle.flags & O_ACCMODE) == O_WRONLY)
+         return Errno.EBADF;
+
+      handle.file.read(buf, offset);
+
+      return 0;
+   }
+
+   public int flush(String path, Object fh) throws FuseException
+   {
+      return 0;
+   }
+
+   public int fsync(String path, Object fh, boolean isDatasync) throws FuseException
+   {
+      return 0;
+   }
+
+   public int release(String path, Object fh, int flags) throws FuseException
+   {
+      ((FileHandle)fh).file.release();
+
+      return 0;
+   }
+
+   //
+   // FileHandleSupport implementation
+
+   public int create(String path, int mode, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      DirectoryInode parent = lookupParent(path);
+      if (parent == null)
+         return Errno.ENOENT;
+
+      FileInode file = createFile(mode);
+      int errno = addNode(parent, getName(path), file);
+      if (errno != 0)
+      {
+         // the new inode was never linked into the tree
+         file.unlink();
+
+         // created by someone else since the kernel looked it up, open it unless O_EXCL asks not to
+         if (errno == Errno.EEXIST && (flags & O_EXCL) == 0)
+            return open(path, flags & ~O_TRUNC, openSetter);
+
+         return errno;
+      }
+
+      openSetter.setFh(new FileHandle(file, flags));
+
+      return 0;
+   }
+
+   public int ftruncate(String path, Object fh, long size) throws FuseException
+   {
+      ((FileHandle)fh).file.truncate(size);
+
+      return 0;
+   }
+
+   public int fgetattr(String path, Object fh, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      ((FileHandle)fh).file.getattr(getattrSetter);
+
+      return 0;
+   }
+
+
+   //
+   // private methods
+
+   private Inode lookup(String path)
+   {
+      return lookup(path, path.length());
+   }
+
+   private DirectoryInode lookupParent(String path)
+   {
+      Inode node = lookup(path, path.lastIndexOf('/'));
+
+      return node instanceof DirectoryInode? (DirectoryInode)node : null;
+   }
+
+   /**
+    * @return the node at the first <code>end</code> characters of <code>path</code> or null
+    */
+   private Inode lookup(String path, int end)
+   {
+      Inode node = root;
+      int start = 1;
+      while (start < end)
+      {
+         int next = path.indexOf('/', start);
+         if (next < 0 || next > end)
+            next = end;
+
+         if (next > start)
+         {
+            if (!(node instanceof DirectoryInode))
+               return null;
+
+            node = ((DirectoryInode)node).entries.get(path.substring(start, next));
+            if (node == null)
+               return null;
+         }
+         start = next + 1;
+      }
+
+      return node;
+   }
+
+   private static String getName(String path)
+   {
+      return path.substring(path.lastIndexOf('/') + 1);
+   }
+
+   private FileInode createFile(int mode)
+   {
+      FuseContext context = FuseContext.get();
+      FileInode file = new FileInode(nextIno.getAndIncrement(), mode & FuseStatConstants.MODE_MASK, context.uid, context.gid, store);
+      file.link();
+
+      return file;
+   }
+
+   private int addNode(DirectoryInode parent, String name, Inode node)
+   {
+      int errno = addEntry(parent, name, node);
+      if (errno == 0)
+         inodes.incrementAndGet();
+
+      return errno;
+   }
+
+   private int addEntry(DirectoryInode parent, String name, Inode node)
+   {
+      if (name.length() > NAME_LENGTH / 3 && name.getBytes(UTF8).length > NAME_LENGTH)
+         return Errno.ENAMETOOLONG;
+
+      synchronized (parent)
+      {
+         if (parent.removed)
+            return Errno.ENOENT;
+         if (parent.entries.putIfAbsent(name, node) != null)
+            return Errno.EEXIST;
+
+         if (node instanceof DirectoryInode)
+            parent.nlink++;
+         parent.touch();
+      }
+
+      return 0;
+   }
+
+   // called holding the rename lock and the monitors of both parents
+   private int rename(DirectoryInode fromParent, String fromName, DirectoryInode toParent, String toName)
+   {
+      Inode node = fromParent.entries.get(fromName);
+      if (node == null)
+         return Errno.ENOENT;
+
+      if (toName.length() > NAME_LENGTH / 3 && toName.getBytes(UTF8).length > NAME_LENGTH)
+         return Errno.ENAMETOOLONG;
+
+      if (toParent.removed)
+         return Errno.ENOENT;
+
+      boolean isDirectory = node instanceof DirectoryInode;
+      if (isDirectory)
+      {
+         // a directory can't be moved below itself
+         for (DirectoryInode dir = toParent; ; dir = dir.parent)
+         {
+            if (dir == node)
+               return Errno.EINVAL;
+            if (dir.parent == dir)
+               break;
+         }
+      }
+
+      Inode existing = toParent.entries.get(toName);
+      if (existing == node)
+         return 0;
+
+      if (existing instanceof DirectoryInode)
+      {
+         if (!isDirectory)
+            return Errno.EISDIR;
+
+         int errno = removeDirectory((DirectoryInode)existing);
+         if (errno != 0)
+            return errno;
+
+         toParent.nlink--;
+      }
+      else if (existing != null && isDirectory)
+         return Errno.ENOTDIR;
+
+      toParent.entries.put(toName, node);
+      fromParent.entries.remove(fromName);
+
+      if (isDirectory && fromParent != toParent)
+      {
+         fromParent.nlink--;
+         toParent.nlink++;
+         ((DirectoryInode)node).parent = toParent;
+      }
+      fromParent.touch();
+      toParent.touch();
+      node.ctime = Inode.now();
+
+      if (existing != null && !(existing instanceof DirectoryInode))
+         removeLink(existing);
+
+      return 0;
+   }
+
+   // called holding the rename lock and the monitor of the parent
+   private int removeDirectory(DirectoryInode dir)
+   {
+      synchronized (dir)
+      {
+         if (!dir.entries.isEmpty())
+            return Errno.ENOTEMPTY;
+
+         dir.removed = true;
+         dir.nlink = 0;
+      }
+      inodes.decrementAndGet();
+
+      return 0;
+   }
+
+   private void removeLink(Inode node)
+   {
+      if (node instanceof FileInode)
+         ((FileInode)node).unlink();
+      else
+         node.nlink = 0;
+
+      if (node.nlink == 0)
+         inodes.decrementAndGet();
+   }
+
+
+   /**
+    * The handle of an open file
+    */
+   private static class FileHandle
+   {
+      final FileInode file;
+      final int flags;
+
+      FileHandle(FileInode file, int flags)
+      {
+         this.file = file;
+         this.flags = flags;
+         file.open();
+      }
+   }
+
+
+
+   //
+   // Java entry point
+
+   public static void main(String[] args)
+   {
+      try
+      {
+         FuseMount.mount(args, new MemFilesystem(), log);
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+      }
+   }
+}
@@ -0,0 +1,37 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.FuseFtype;
+
+
+/**
+ * A symbolic link
+ */
+class SymlinkInode extends Inode
+{
+   final String target;
+   private final long size;
+
+
+   SymlinkInode(long ino, int uid, int gid, String target)
+   {
+      super(ino, FuseFtype.TYPE_SYMLINK | 0777, uid, gid);
+
+      this.target = target;
+      size = target.getBytes(MemFilesystem.UTF8).length;
+      nlink = 1;
+   }
+
+   long getSize()
+   {
+      return size;
+   }
+}
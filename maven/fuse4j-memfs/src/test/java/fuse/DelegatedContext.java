@@ -0,0 +1,31 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse;
+
+
+/**
+ * Gives the calling thread a FuseContext, for tests that call a filesystem directly: without a mount
+ * there is no native context for <code>FuseContext.get()</code> to fill in.
+ */
+public class DelegatedContext
+{
+   public static void set(int uid, int gid)
+   {
+      FuseContext context = FuseContext.newInstance();
+      context.uid = uid;
+      context.gid = gid;
+      FuseContext.delegate(context);
+   }
+
+   public static void clear()
+   {
+      FuseContext.delegate(null);
+   }
+}
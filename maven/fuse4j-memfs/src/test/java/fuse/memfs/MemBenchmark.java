@@ -0,0 +1,150 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+/**
+ * Measures small file creation and large sequential I/O in a directory, to compare a mounted
+ * MemFilesystem with the kernel's tmpfs:
+ * <pre>
+ *    MemFilesystem /mnt/mem -f -o big_writes,max_write=131072
+ *
+ *    MemBenchmark /mnt/mem [small files] [small file size] [large file MiB]
+ *    MemBenchmark /dev/shm [small files] [small file size] [large file MiB]
+ * </pre>
+ * Only the mounted runs compare with tmpfs, as both go through the same system calls. Pointed at a
+ * MemFilesystem called in-process (without the kernel and the FUSE round trips) the numbers measure
+ * its data structures alone and say nothing about how it does against tmpfs.
+ * <p/>
+ * Not part of the jar, it runs from target/test-classes.
+ */
+public class MemBenchmark
+{
+   private static final int BUFFER_SIZE = 128 * 1024;
+
+
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length < 1)
+      {
+         System.err.println("Usage: MemBenchmark <directory> [small files] [small file size] [large file MiB]");
+         System.exit(1);
+      }
+
+      File dir = new File(args[0], "membench-" + System.currentTimeMillis());
+      int smallFiles = (args.length > 1)? Integer.parseInt(args[1]) : 10000;
+      int smallSize = (args.length > 2)? Integer.parseInt(args[2]) : 4096;
+      int largeSize = (args.length > 3)? Integer.parseInt(args[3]) : 256;
+
+      if (!dir.mkdir())
+      {
+         System.err.println("Can't create " + dir);
+         System.exit(1);
+      }
+
+      try
+      {
+         // the first round warms up the JIT of both sides
+         for (int round = 0; round < 2; round++)
+         {
+            long t0 = System.nanoTime();
+            createSmallFiles(dir, smallFiles, smallSize);
+            long t1 = System.nanoTime();
+            deleteSmallFiles(dir, smallFiles);
+            long t2 = System.nanoTime();
+
+            File large = new File(dir, "large");
+            writeLargeFile(large, largeSize);
+            long t3 = System.nanoTime();
+            readLargeFile(large);
+            long t4 = System.nanoTime();
+            large.delete();
+
+            if (round > 0)
+            {
+               System.out.println(smallFiles + " files of " + smallSize + " bytes: create " + perSecond(smallFiles, t1 - t0) + " files/s, delete " +
+                                  perSecond(smallFiles, t2 - t1) + " files/s");
+               System.out.println(largeSize + " MiB file: write " + perSecond(largeSize, t3 - t2) + " MiB/s, read " +
+                                  perSecond(largeSize, t4 - t3) + " MiB/s");
+            }
+         }
+      }
+      finally
+      {
+         dir.delete();
+      }
+   }
+
+   private static void createSmallFiles(File dir, int count, int size) throws IOException
+   {
+      byte[] content = new byte[size];
+      for (int i = 0; i < count; i++)
+      {
+         FileOutputStream out = new FileOutputStream(new File(dir, "f" + i));
+         try
+         {
+            out.write(content);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+   }
+
+   private static void deleteSmallFiles(File dir, int count) throws IOException
+   {
+      for (int i = 0; i < count; i++)
+      {
+         if (!new File(dir, "f" + i).delete())
+            throw new IOException("can't delete f" + i);
+      }
+   }
+
+   private static void writeLargeFile(File file, int mib) throws IOException
+   {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      FileOutputStream out = new FileOutputStream(file);
+      try
+      {
+         for (long written = 0; written < (long)mib << 20; written += buffer.length)
+            out.write(buffer);
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+
+   private static void readLargeFile(File file) throws IOException
+   {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      FileInputStream in = new FileInputStream(file);
+      try
+      {
+         while (in.read(buffer) >= 0)
+            ;
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   private static long perSecond(long count, long nanos)
+   {
+      return count * 1000000000L / Math.max(nanos, 1L);
+   }
+}
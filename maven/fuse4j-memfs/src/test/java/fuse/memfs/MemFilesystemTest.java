@@ -0,0 +1,308 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.memfs;
+
+import fuse.Errno;
+import fuse.FilesystemConstants;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+import fuse.FuseStatfsSetter;
+import fuse.DelegatedContext;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Calls a MemFilesystem directly (without a mount) the way the kernel would: files removed or
+ * replaced while open, renames over files and directories, exclusive creates, running out of space
+ * and sparse files.
+ */
+public class MemFilesystemTest extends TestCase implements FilesystemConstants
+{
+   private static final int CHUNK_SIZE = 4096;
+   private static final int CHUNKS = 8;
+
+   private static final int O_CREAT = 0100;
+   private static final int O_EXCL = 0200;
+
+   private MemFilesystem fs;
+
+
+   protected void setUp() throws Exception
+   {
+      DelegatedContext.set(1000, 1000);
+      fs = new MemFilesystem(CHUNKS * CHUNK_SIZE, CHUNK_SIZE);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      DelegatedContext.clear();
+   }
+
+   public void testUnlinkWhileOpen() throws FuseException
+   {
+      Object fh = create("/f");
+      write(fh, "hello", 0L);
+      assertEquals(0, fs.unlink("/f"));
+
+      assertEquals(Errno.ENOENT, fs.getattr("/f", new Attributes()));
+      assertEquals(Errno.ENOENT, fs.unlink("/f"));
+
+      // the handle still reads and writes the removed file
+      write(fh, " world", 5L);
+      assertEquals("hello world", read(fh, 0L, 100));
+      assertEquals(1, getUsedChunks());
+
+      assertEquals(0, fs.release("/f", fh, 0));
+      assertEquals(0, getUsedChunks());
+   }
+
+   public void testRenameOverFile() throws FuseException
+   {
+      Object a = create("/a");
+      write(a, "new", 0L);
+      release("/a", a);
+      Object b = create("/b");
+      write(b, "old", 0L);
+
+      assertEquals(0, fs.rename("/a", "/b"));
+      assertEquals(Errno.ENOENT, fs.getattr("/a", new Attributes()));
+
+      Object fh = open("/b", O_RDONLY);
+      assertEquals("new", read(fh, 0L, 100));
+      release("/b", fh);
+
+      // the replaced file stays readable through its handle and is freed when it's released
+      assertEquals("old", read(b, 0L, 100));
+      assertEquals(2, getUsedChunks());
+      release("/b", b);
+      assertEquals(1, getUsedChunks());
+   }
+
+   public void testRenameOverDirectory() throws FuseException
+   {
+      assertEquals(0, fs.mkdir("/x", 0755));
+      assertEquals(0, fs.mkdir("/y", 0755));
+      release("/y/f", create("/y/f"));
+      release("/g", create("/g"));
+
+      assertEquals(Errno.ENOTEMPTY, fs.rename("/x", "/y"));
+      assertEquals(Errno.EISDIR, fs.rename("/g", "/y"));
+      assertEquals(Errno.ENOTDIR, fs.rename("/x", "/g"));
+      assertEquals(Errno.EINVAL, fs.rename("/y", "/y/z"));
+
+      assertEquals(0, fs.unlink("/y/f"));
+      assertEquals(0, fs.rename("/x", "/y"));
+      assertEquals(Errno.ENOENT, fs.getattr("/x", new Attributes()));
+
+      Attributes attributes = new Attributes();
+      assertEquals(0, fs.getattr("/y", attributes));
+      assertEquals(FuseFtype.TYPE_DIR, attributes.mode & FuseFtype.TYPE_MASK);
+      assertEquals(0, fs.mkdir("/y/z", 0755));
+
+      // the replaced directory is gone: one root, /y, /y/z and /g
+      assertEquals(4, getFiles());
+   }
+
+   public void testExclusiveCreate() throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(0, fs.create("/f", 0644, O_CREAT | O_EXCL | O_WRONLY, openSetter));
+      write(openSetter.fh, "content", 0L);
+      release("/f", openSetter.fh);
+      int files = getFiles();
+
+      assertEquals(Errno.EEXIST, fs.create("/f", 0644, O_CREAT | O_EXCL | O_WRONLY, new OpenSetter()));
+      assertEquals(files, getFiles());
+
+      // without O_EXCL the existing file is opened
+      openSetter = new OpenSetter();
+      assertEquals(0, fs.create("/f", 0644, O_CREAT | O_RDWR, openSetter));
+      assertEquals("content", read(openSetter.fh, 0L, 100));
+      release("/f", openSetter.fh);
+      assertEquals(files, getFiles());
+   }
+
+   public void testNoSpace() throws FuseException
+   {
+      Object fh = create("/f");
+      ByteBuffer bb = ByteBuffer.allocate((CHUNKS + 1) * CHUNK_SIZE);
+      try
+      {
+         fs.write("/f", fh, false, bb, 0L);
+         fail("written past the capacity");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(Errno.ENOSPC, e.getErrno());
+      }
+
+      // what fitted stays written
+      assertEquals(CHUNKS * CHUNK_SIZE, getattr("/f").size);
+      assertEquals(CHUNKS, getUsedChunks());
+
+      assertEquals(0, fs.ftruncate("/f", fh, CHUNK_SIZE));
+      assertEquals(1, getUsedChunks());
+      write(fh, "more", 2 * CHUNK_SIZE);
+      release("/f", fh);
+   }
+
+   public void testSparseTruncate() throws FuseException
+   {
+      Object fh = create("/f");
+      write(fh, "abcdefgh", 0L);
+
+      // growing adds a hole, no memory
+      assertEquals(0, fs.truncate("/f", 1L << 20));
+      Attributes attributes = getattr("/f");
+      assertEquals(1L << 20, attributes.size);
+      assertEquals(CHUNK_SIZE / 512, attributes.blocks);
+      assertEquals("\0\0\0\0", read(fh, 500000L, 4));
+
+      // the cut off part of a chunk reads as zeros when the file grows again
+      assertEquals(0, fs.truncate("/f", 3L));
+      assertEquals(0, fs.truncate("/f", 8L));
+      assertEquals("abc\0\0\0\0\0", read(fh, 0L, 100));
+
+      write(fh, "z", 5L * CHUNK_SIZE);
+      assertEquals(2, getUsedChunks());
+      assertEquals(0, fs.truncate("/f", CHUNK_SIZE));
+      assertEquals(1, getUsedChunks());
+      assertEquals(CHUNK_SIZE, getattr("/f").size);
+      release("/f", fh);
+   }
+
+
+   //
+   // private methods
+
+   private Object create(String path) throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(path, 0, fs.create(path, 0644, O_CREAT | O_RDWR, openSetter));
+
+      return openSetter.fh;
+   }
+
+   private Object open(String path, int flags) throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(path, 0, fs.open(path, flags, openSetter));
+
+      return openSetter.fh;
+   }
+
+   private void release(String path, Object fh) throws FuseException
+   {
+      assertEquals(path, 0, fs.release(path, fh, 0));
+   }
+
+   private void write(Object fh, String s, long offset) throws FuseException
+   {
+      assertEquals(0, fs.write("/", fh, false, ByteBuffer.wrap(s.getBytes(MemFilesystem.UTF8)), offset));
+   }
+
+   private String read(Object fh, long offset, int len) throws FuseException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(len);
+      assertEquals(0, fs.read("/", fh, bb, offset));
+
+      return new String(bb.array(), 0, bb.position(), MemFilesystem.UTF8);
+   }
+
+   private Attributes getattr(String path) throws FuseException
+   {
+      Attributes attributes = new Attributes();
+      assertEquals(path, 0, fs.getattr(path, attributes));
+
+      return attributes;
+   }
+
+   private int getUsedChunks() throws FuseException
+   {
+      Statfs statfs = new Statfs();
+      assertEquals(0, fs.statfs(statfs));
+
+      return statfs.blocks - statfs.blocksFree;
+   }
+
+   private int getFiles() throws FuseException
+   {
+      Statfs statfs = new Statfs();
+      assertEquals(0, fs.statfs(statfs));
+
+      return statfs.files;
+   }
+
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+      boolean directIO;
+      boolean keepCache;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return directIO;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         this.directIO = directIO;
+      }
+
+      public boolean isKeepCache()
+      {
+         return keepCache;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         this.keepCache = keepCache;
+      }
+   }
+
+   private static class Attributes implements FuseGetattrSetter
+   {
+      int mode;
+      long size;
+      long blocks;
+
+      public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long size, long blocks, int atime, int mtime, int ctime)
+      {
+         this.mode = mode;
+         this.size = size;
+         this.blocks = blocks;
+      }
+   }
+
+   private static class Statfs implements FuseStatfsSetter
+   {
+      int blocks;
+      int blocksFree;
+      int files;
+
+      public void set(int blockSize, int blocks, int blocksFree, int blocksAvail, int files, int filesFree, int namelen)
+      {
+         this.blocks = blocks;
+         this.blocksFree = blocksFree;
+         this.files = files;
+      }
+   }
+}
@@ -12,19 +12,40 @@ package fuse.staticfs;
 import fuse.FuseFtype;
 import fuse.compat.FuseStat;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.Comparator;
 
 
+/**
+ * A directory of a StaticFilesystem. The children are an immutable snapshot, sorted by name, that is
+ * replaced by a copy on every change (under the monitor of the directory) and published through a
+ * volatile field, so lookups take no lock and allocate nothing, however many FUSE threads resolve
+ * paths through the directory. The directories of a StaticImage create their children on first access.
+ */
 public class DirectoryNode extends Node {
     private final static int FILE_PERMS = 493; // 0755 in octal
-    private Map<String, Node> children;
+    private final static Children NO_CHILDREN = new Children(new String[0], new Node[0]);
+    private final static Comparator<Node> BY_NAME = new Comparator<Node>() {
+        public int compare(Node a, Node b) {
+            return a.getName().compareTo(b.getName());
+        }
+    };
+
+    private volatile Children children;
 
     public DirectoryNode(String name) {
         super(name);
 
-        children = new HashMap<String, Node>();
+        children = NO_CHILDREN;
+    }
+
+    /**
+     * A directory whose children are created by createChildren() when they are first needed
+     */
+    DirectoryNode(String name, boolean lazy) {
+        super(name);
+
+        children = lazy ? null : NO_CHILDREN;
     }
 
     //
@@ -45,41 +66,270 @@ public class DirectoryNode extends Node {
     // public API
 
     public synchronized Node addChild(Node node) {
-        Node previousNode = children.put(node.getName(), node);
+        Children current = getCurrentChildren();
+        String name = node.getName();
+        int index = current.indexOf(name, 0, name.length());
+
+        Node previousNode = null;
+        if (index >= 0) {
+            previousNode = current.nodes[index];
+            Node[] nodes = current.nodes.clone();
+            nodes[index] = node;
+            children = new Children(current.names, nodes);
+        } else {
+            index = -index - 1;
+            int size = current.names.length;
+            String[] names = new String[size + 1];
+            Node[] nodes = new Node[size + 1];
+            System.arraycopy(current.names, 0, names, 0, index);
+            System.arraycopy(current.nodes, 0, nodes, 0, index);
+            names[index] = name;
+            nodes[index] = node;
+            System.arraycopy(current.names, index, names, index + 1, size - index);
+            System.arraycopy(current.nodes, index, nodes, index + 1, size - index);
+            children = new Children(names, nodes);
+        }
         node.setParent(this);
 
         FuseStat stat = (FuseStat) getStat().clone();
         stat.mtime = stat.atime = (int) (System.currentTimeMillis() / 1000L);
         setStat(stat);
 
-        if (previousNode != null) {
+        if (previousNode != null && previousNode != node) {
             previousNode.setParent(null);
         }
 
         return previousNode;
     }
 
-    public synchronized Node removeChild(String name) {
-        Node removedNode = children.remove(name);
+    /**
+     * Adds several children as addChild() would one after the other, but sorts them once and merges
+     * them with the current children in one copy, so filling a directory with n children is
+     * O(n log n) instead of O(n<sup>2</sup>).
+     *
+     * @return the children that have been replaced, including those of <code>nodes</code> that
+     *         are replaced by a later one with the same name
+     */
+    public synchronized Node[] addChildren(Node... nodes) {
+        if (nodes.length == 0) {
+            return NO_CHILDREN.nodes;
+        }
+
+        // a stable sort, so of the nodes with the same name the last one wins
+        Node[] added = nodes.clone();
+        Arrays.sort(added, BY_NAME);
 
-        if (removedNode != null) {
-            FuseStat stat = (FuseStat) getStat().clone();
-            stat.mtime = stat.atime = (int) (System.currentTimeMillis() / 1000L);
-            setStat(stat);
+        Children current = getCurrentChildren();
+        int size = current.names.length;
+        String[] names = new String[size + added.length];
+        Node[] merged = new Node[size + added.length];
+        Node[] replaced = new Node[added.length];
+        int count = 0;
+        int replacedCount = 0;
+        int i = 0;
 
-            removedNode.setParent(null);
+        for (int j = 0; j < added.length; j++) {
+            String name = added[j].getName();
+            if (j + 1 < added.length && name.equals(added[j + 1].getName())) {
+                replaced[replacedCount++] = added[j];
+                continue;
+            }
+
+            int cmp = -1;
+            while (i < size && (cmp = current.names[i].compareTo(name)) < 0) {
+                names[count] = current.names[i];
+                merged[count++] = current.nodes[i++];
+            }
+            if (i < size && cmp == 0) {
+                replaced[replacedCount++] = current.nodes[i++];
+            }
+            names[count] = name;
+            merged[count++] = added[j];
+        }
+        System.arraycopy(current.names, i, names, count, size - i);
+        System.arraycopy(current.nodes, i, merged, count, size - i);
+        count += size - i;
+
+        for (int j = 0; j < added.length; j++) {
+            added[j].setParent(this);
         }
+        children = new Children(Arrays.copyOf(names, count), Arrays.copyOf(merged, count));
+
+        FuseStat stat = (FuseStat) getStat().clone();
+        stat.mtime = stat.atime = (int) (System.currentTimeMillis() / 1000L);
+        setStat(stat);
+
+        replaced = Arrays.copyOf(replaced, replacedCount);
+        for (Node node : replaced) {
+            if (node.getParent() == this && getChild(node.getName()) != node) {
+                node.setParent(null);
+            }
+        }
+
+        return replaced;
+    }
+
+    public synchronized Node removeChild(String name) {
+        Children current = getCurrentChildren();
+        int index = current.indexOf(name, 0, name.length());
+        if (index < 0) {
+            return null;
+        }
+
+        Node removedNode = current.nodes[index];
+        int size = current.names.length;
+        String[] names = new String[size - 1];
+        Node[] nodes = new Node[size - 1];
+        System.arraycopy(current.names, 0, names, 0, index);
+        System.arraycopy(current.nodes, 0, nodes, 0, index);
+        System.arraycopy(current.names, index + 1, names, index, size - index - 1);
+        System.arraycopy(current.nodes, index + 1, nodes, index, size - index - 1);
+        children = new Children(names, nodes);
+
+        FuseStat stat = (FuseStat) getStat().clone();
+        stat.mtime = stat.atime = (int) (System.currentTimeMillis() / 1000L);
+        setStat(stat);
+
+        removedNode.setParent(null);
 
         return removedNode;
     }
 
-    public synchronized Node getChild(String name) {
-        return children.get(name);
+    public Node getChild(String name) {
+        return getChild(name, 0, name.length());
     }
 
-    @SuppressWarnings("unchecked")
-    public synchronized Node[] getChildren() {
-        Collection childNodes = children.values();
-        return (Node[]) childNodes.toArray(new Node[childNodes.size()]);
+    /**
+     * @return a copy of the children, sorted by name
+     */
+    public Node[] getChildren() {
+        return getCurrentChildren().nodes.clone();
+    }
+
+    public int getChildCount() {
+        return getCurrentChildren().nodes.length;
+    }
+
+    /**
+     * Pages through a directory in name order without copying all of it. The name of the last child of
+     * a page is a position that stays valid while children are added and removed.
+     *
+     * @param after the name the page starts after or null to start with the first child
+     * @param max   the maximum number of children returned
+     * @return the children following <code>after</code>, sorted by name; empty at the end
+     */
+    public Node[] getChildren(String after, int max) {
+        Children current = getCurrentChildren();
+        int from = 0;
+        if (after != null) {
+            int index = current.indexOf(after, 0, after.length());
+            from = index >= 0 ? index + 1 : -index - 1;
+        }
+
+        int count = Math.max(0, Math.min(max, current.nodes.length - from));
+        Node[] page = new Node[count];
+        System.arraycopy(current.nodes, from, page, 0, count);
+
+        return page;
+    }
+
+    // just for fuse.staticfs internal usage
+
+    /**
+     * @return the child named by the characters <code>start</code> to <code>end</code> of <code>path</code>
+     */
+    Node getChild(String path, int start, int end) {
+        Children current = getCurrentChildren();
+        int index = current.indexOf(path, start, end);
+
+        return index >= 0 ? current.nodes[index] : null;
+    }
+
+    /**
+     * @return the current children, sorted by name; must not be modified
+     */
+    Node[] getChildSnapshot() {
+        return getCurrentChildren().nodes;
+    }
+
+    /**
+     * Creates the children of a lazy directory, called once
+     *
+     * @return the children, sorted by name (as String.compareTo)
+     */
+    Node[] createChildren() {
+        return NO_CHILDREN.nodes;
+    }
+
+    private Children getCurrentChildren() {
+        Children current = children;
+
+        return current != null ? current : loadChildren();
+    }
+
+    private synchronized Children loadChildren() {
+        if (children == null) {
+            Node[] nodes = createChildren();
+            String[] names = new String[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                names[i] = nodes[i].getName();
+                nodes[i].setParent(this);
+            }
+            children = new Children(names, nodes);
+        }
+
+        return children;
+    }
+
+    /**
+     * The children at one point in time, never modified after construction
+     */
+    private static final class Children {
+        // the names the nodes were added with
+        final String[] names;
+        final Node[] nodes;
+
+        Children(String[] names, Node[] nodes) {
+            this.names = names;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Binary search for the region <code>start</code> to <code>end</code> of <code>path</code>
+         *
+         * @return the index of the name or (-(insertion point) - 1) if there is no such name
+         */
+        int indexOf(String path, int start, int end) {
+            int lo = 0;
+            int hi = names.length - 1;
+
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(names[mid], path, start, end);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+
+            return -(lo + 1);
+        }
+
+        // the order of String.compareTo
+        private static int compare(String name, String path, int start, int end) {
+            int len = end - start;
+            int n = Math.min(name.length(), len);
+            for (int i = 0; i < n; i++) {
+                int cmp = name.charAt(i) - path.charAt(start + i);
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+
+            return name.length() - len;
+        }
     }
 }
@@ -10,6 +10,7 @@
 package fuse.staticfs;
 
 import fuse.FuseException;
+import fuse.FuseOpenSetter;
 
 import java.nio.ByteBuffer;
 
@@ -32,4 +33,26 @@ public abstract class FileNode extends Node
    public abstract void truncate(long size) throws FuseException;
 
    public abstract void utime(int atime, int mtime) throws FuseException;
+
+   //
+   // file handles, for nodes that keep state per open file (see GeneratedFileNode)
+
+   /**
+    * Opens the file for StaticFilesystem, which passes the file handle set on <code>openSetter</code> to
+    * read() and release(). By default there is no handle.
+    */
+   public void open(int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      open(flags);
+   }
+
+   public void read(Object fh, ByteBuffer buff, long offset) throws FuseException
+   {
+      read(buff, offset);
+   }
+
+   public void release(Object fh, int flags) throws FuseException
+   {
+      release(flags);
+   }
 }
@@ -0,0 +1,213 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+import fuse.FuseFS;
+import fuse.FuseFtype;
+import fuse.FuseOpenSetter;
+import fuse.compat.FuseStat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+/**
+ * A read-only file whose content is produced by a Generator when the file is opened (like the files
+ * of /proc). Every open file handle reads the rendering it got on open, so a reader never sees a mix
+ * of two renderings; opens within <code>freshness</code> milliseconds of a rendering share it instead
+ * of generating again. getattr reports the size of the last rendering (0 before the first open), and
+ * since the next one may be longer the file is opened with direct I/O, so reads aren't cut at the
+ * size the kernel has seen.
+ */
+public class GeneratedFileNode extends FileNode
+{
+   /**
+    * Produces the content of a GeneratedFileNode
+    */
+   public interface Generator
+   {
+      public byte[] generate() throws FuseException;
+   }
+
+
+   private final Generator generator;
+   private final long freshness;
+
+   private volatile Rendering rendering;
+
+
+   public GeneratedFileNode(String name, Generator generator)
+   {
+      this(name, generator, 0L);
+   }
+
+   /**
+    * @param freshness the number of milliseconds a rendering is shared with later opens, 0 to generate
+    *                  on every open
+    */
+   public GeneratedFileNode(String name, Generator generator, long freshness)
+   {
+      super(name);
+
+      this.generator = generator;
+      this.freshness = freshness * 1000000L;
+   }
+
+   //
+   // create initial FuseStat structure (called from Node's constructor)
+
+   protected FuseStat createStat()
+   {
+      FuseStat stat = new FuseStat();
+
+      stat.mode = FuseFtype.TYPE_FILE | 0444;
+      stat.uid = stat.gid = 0;
+      stat.ctime = stat.mtime = stat.atime = (int)(System.currentTimeMillis() / 1000L);
+      stat.size = 0;
+      stat.blocks = 0;
+
+      return stat;
+   }
+
+   //
+   // FileNode implementation
+
+   public void open(int flags) throws FuseException
+   {
+      if (flags == FuseFS.O_RDWR || flags == FuseFS.O_WRONLY)
+         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void open(int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      open(flags);
+
+      Rendering rendering = getRendering();
+      if (openSetter != null)
+      {
+         openSetter.setFh(rendering);
+         openSetter.setDirectIO(true);
+      }
+   }
+
+   /**
+    * Reads the last rendering, even if it is stale, for callers that have no file handle. Nothing is
+    * generated here, so before the first open there is nothing to read.
+    */
+   public void read(ByteBuffer buff, long offset) throws FuseException
+   {
+      Rendering current = rendering;
+      if (current != null)
+         current.read(buff, offset);
+   }
+
+   public void read(Object fh, ByteBuffer buff, long offset) throws FuseException
+   {
+      if (fh instanceof Rendering)
+         ((Rendering)fh).read(buff, offset);
+      else
+         read(buff, offset);
+   }
+
+   public void release(int flags) throws FuseException
+   {
+      // noop
+   }
+
+   public void write(ByteBuffer buff, long offset) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void truncate(long size) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void utime(int atime, int mtime) throws FuseException
+   {
+      // noop
+   }
+
+   //
+   // renderings
+
+   /**
+    * Drops the last rendering, so that the next open generates the content again
+    */
+   public void invalidate()
+   {
+      Rendering rendering = this.rendering;
+      if (rendering != null)
+         rendering.time = System.nanoTime() - freshness - 1L;
+   }
+
+   private Rendering getRendering() throws FuseException
+   {
+      Rendering rendering = this.rendering;
+      if (rendering != null && System.nanoTime() - rendering.time < freshness)
+         return rendering;
+
+      synchronized (this)
+      {
+         // another open may have generated it meanwhile
+         rendering = this.rendering;
+         if (rendering != null && System.nanoTime() - rendering.time < freshness)
+            return rendering;
+
+         byte[] content = generator.generate();
+         if (content == null)
+            content = new byte[0];
+
+         // stat is by declaration read-only - we must create a copy before modifying it's attributes
+         FuseStat stat = (FuseStat) super.getStat().clone();
+         if (rendering == null || !Arrays.equals(rendering.content, content))
+            stat.mtime = (int)(System.currentTimeMillis() / 1000L);
+         stat.atime = (int)(System.currentTimeMillis() / 1000L);
+         stat.size = content.length;
+         stat.blocks = (content.length + 511) / 512;
+         super.setStat(stat);
+
+         rendering = new Rendering(content, System.nanoTime());
+         this.rendering = rendering;
+
+         return rendering;
+      }
+   }
+
+
+   /**
+    * The content generated at one time, the file handle of the files opened with it
+    */
+   private static class Rendering
+   {
+      final byte[] content;
+      volatile long time;
+
+      Rendering(byte[] content, long time)
+      {
+         this.content = content;
+         this.time = time;
+      }
+
+      void read(ByteBuffer buff, long offset)
+      {
+         if (offset >= content.length)
+            return;
+
+         int length = buff.remaining();
+         if (offset + length > content.length)
+            length = content.length - (int)offset;
+
+         buff.put(content, (int)offset, length);
+      }
+   }
+}
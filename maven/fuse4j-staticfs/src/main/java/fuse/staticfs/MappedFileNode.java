@@ -0,0 +1,163 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseFS;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.compat.FuseStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * A read-only file whose content is a file of the local filesystem, mapped into memory when the node
+ * is created. The content stays in the page cache instead of the heap, so files of any size can be
+ * served, and reads are a single copy without locking. The file must not be truncated while it is mapped.
+ */
+public class MappedFileNode extends FileNode
+{
+   // a MappedByteBuffer can't be larger than 2 GiB
+   private static final long CHUNK_SIZE = 1L << 30;
+
+   private final MappedByteBuffer[] chunks;
+   // the content in the mapped file
+   private final long start;
+   private final long size;
+
+
+   public MappedFileNode(String name, File file) throws IOException
+   {
+      super(name);
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try
+      {
+         size = raf.length();
+         chunks = map(raf.getChannel(), size);
+         start = 0L;
+      }
+      finally
+      {
+         // the mappings stay valid
+         raf.close();
+      }
+
+      FuseStat stat = (FuseStat) getStat().clone();
+      stat.mtime = stat.atime = stat.ctime = (int)(file.lastModified() / 1000L);
+      stat.size = size;
+      stat.blocks = (int)Math.min((size + 511L) / 512L, Integer.MAX_VALUE);
+      setStat(stat);
+   }
+
+   /**
+    * A file whose content is the region <code>start</code> to <code>start + size</code> of a file mapped with map()
+    */
+   MappedFileNode(String name, MappedByteBuffer[] chunks, long start, long size)
+   {
+      super(name);
+
+      this.chunks = chunks;
+      this.start = start;
+      this.size = size;
+   }
+
+   /**
+    * Maps a file read-only in chunks of CHUNK_SIZE bytes
+    */
+   static MappedByteBuffer[] map(FileChannel channel, long size) throws IOException
+   {
+      MappedByteBuffer[] chunks = new MappedByteBuffer[(int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+      for (int i = 0; i < chunks.length; i++)
+      {
+         long position = i * CHUNK_SIZE;
+         chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(CHUNK_SIZE, size - position));
+      }
+
+      return chunks;
+   }
+
+   //
+   // create initial FuseStat structure (called from Node's constructor)
+
+   protected FuseStat createStat()
+   {
+      FuseStat stat = new FuseStat();
+
+      stat.mode = FuseFtype.TYPE_FILE | 0444;
+      stat.uid = stat.gid = 0;
+      stat.ctime = stat.mtime = stat.atime = (int)(System.currentTimeMillis() / 1000L);
+      stat.size = 0;
+      stat.blocks = 0;
+
+      return stat;
+   }
+
+   //
+   // FileNode implementation
+
+   public void read(ByteBuffer buff, long offset) throws FuseException
+   {
+      while (buff.hasRemaining() && offset < size)
+      {
+         // a view of its own for every read, the node is read concurrently
+         long filePosition = start + offset;
+         ByteBuffer chunk = chunks[(int)(filePosition / CHUNK_SIZE)].duplicate();
+         int position = (int)(filePosition % CHUNK_SIZE);
+         chunk.position(position);
+         if (chunk.remaining() > buff.remaining())
+            chunk.limit(position + buff.remaining());
+         if (chunk.remaining() > size - offset)
+            chunk.limit(position + (int)(size - offset));
+
+         offset += chunk.remaining();
+         buff.put(chunk);
+      }
+   }
+
+   public void write(ByteBuffer buff, long offset) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void open(int flags) throws FuseException
+   {
+      if (flags == FuseFS.O_RDWR || flags == FuseFS.O_WRONLY)
+         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void release(int flags) throws FuseException
+   {
+      // noop
+   }
+
+   public void truncate(long size) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void utime(int atime, int mtime) throws FuseException
+   {
+      // noop
+   }
+
+   //
+   // file content access
+
+   public long getSize()
+   {
+      return size;
+   }
+}
@@ -9,28 +9,76 @@
 
 package fuse.staticfs;
 
+import fuse.Filesystem3;
+import fuse.FuseException;
+import fuse.FuseGetattr;
 import fuse.compat.Filesystem1;
+import fuse.compat.Filesystem1ToFilesystem2Adapter;
+import fuse.compat.Filesystem2ToFilesystem3Adapter;
 import fuse.compat.FuseStat;
 
 
 public class MountpointNode extends Node
 {
-   private Filesystem1 filesystem;
+   private Filesystem3 filesystem;
+   private volatile FuseGetattr rootAttributes;
 
-   public MountpointNode(String name, Filesystem1 filesystem)
+   public MountpointNode(String name, Filesystem3 filesystem)
    {
       super(name);
 
       this.filesystem = filesystem;
    }
 
+   public MountpointNode(String name, Filesystem1 filesystem)
+   {
+      this(name, new Filesystem2ToFilesystem3Adapter(new Filesystem1ToFilesystem2Adapter(filesystem)));
+   }
+
    protected FuseStat createStat()
    {
       return null;
    }
 
-   public Filesystem1 getFilesystem()
+   public Filesystem3 getFilesystem()
    {
       return filesystem;
    }
+
+   /**
+    * The attributes of the root of the mounted filesystem, for directory listings: they are asked for
+    * once, so that listing a directory of many mountpoints doesn't call into every filesystem. getattr
+    * still asks the filesystem. Must not be modified.
+    *
+    * @return the attributes or null if the filesystem can't report them (returned an errno or threw a
+    *         FuseException), failures aren't cached
+    */
+   public FuseGetattr getRootAttributes() throws FuseException
+   {
+      FuseGetattr attributes = rootAttributes;
+      if (attributes == null)
+      {
+         attributes = new FuseGetattr();
+         try
+         {
+            if (filesystem.getattr("/", attributes) != 0)
+               return null;
+         }
+         catch (FuseException e)
+         {
+            return null;
+         }
+         rootAttributes = attributes;
+      }
+
+      return attributes;
+   }
+
+   /**
+    * Makes the next listing ask the mounted filesystem for the attributes of its root again
+    */
+   public void invalidateRootAttributes()
+   {
+      rootAttributes = null;
+   }
 }
@@ -12,11 +12,15 @@ package fuse.staticfs;
 import fuse.compat.FuseStat;
 
 
+/**
+ * A node of the tree of a StaticFilesystem. The attributes are published through volatile fields,
+ * so they are read without locking; the FuseStat of a node is never modified, only replaced.
+ */
 public abstract class Node
 {
-   private String name;
-   private FuseStat stat;
-   private DirectoryNode parent;
+   private volatile String name;
+   private volatile FuseStat stat;
+   private volatile DirectoryNode parent;
 
 
    public Node(String name)
@@ -31,34 +35,34 @@ public abstract class Node
 
    // public API
 
-   public synchronized String getName()
+   public String getName()
    {
       return name;
    }
 
-   public synchronized void setName(String name)
+   public void setName(String name)
    {
       this.name = name;
    }
 
-   public synchronized FuseStat getStat()
+   public FuseStat getStat()
    {
       return stat;
    }
 
-   public synchronized void setStat(FuseStat stat)
+   public void setStat(FuseStat stat)
    {
       this.stat = stat;
    }
 
-   public synchronized DirectoryNode getParent()
+   public DirectoryNode getParent()
    {
       return parent;
    }
 
    // just for fuse.staticfs internal usage
 
-   synchronized void setParent(DirectoryNode parent)
+   void setParent(DirectoryNode parent)
    {
       this.parent = parent;
    }
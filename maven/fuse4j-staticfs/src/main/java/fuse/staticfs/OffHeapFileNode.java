@@ -0,0 +1,138 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseFS;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.compat.FuseStat;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A read-only file whose content is held in a direct ByteBuffer, outside of the heap, so it adds
+ * nothing to the work of the garbage collector. Reads are a single copy without locking; the content
+ * may be replaced while the file is read.
+ */
+public class OffHeapFileNode extends FileNode
+{
+   private volatile ByteBuffer content;
+
+   /**
+    * @param content copied to a direct buffer
+    */
+   public OffHeapFileNode(String name, byte[] content)
+   {
+      super(name);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+      buffer.put(content);
+      buffer.flip();
+      setContent(buffer);
+   }
+
+   /**
+    * @param content the remaining bytes are the content of the file, not copied (and not to be modified)
+    */
+   public OffHeapFileNode(String name, ByteBuffer content)
+   {
+      super(name);
+
+      setContent(content);
+   }
+
+   //
+   // create initial FuseStat structure (called from Node's constructor)
+
+   protected FuseStat createStat()
+   {
+      FuseStat stat = new FuseStat();
+
+      stat.mode = FuseFtype.TYPE_FILE | 0444;
+      stat.uid = stat.gid = 0;
+      stat.ctime = stat.mtime = stat.atime = (int)(System.currentTimeMillis() / 1000L);
+      stat.size = 0;
+      stat.blocks = 0;
+
+      return stat;
+   }
+
+   //
+   // FileNode implementation
+
+   public void read(ByteBuffer buff, long offset) throws FuseException
+   {
+      // a view of its own for every read, the node is read concurrently
+      ByteBuffer data = content.duplicate();
+      if (offset >= data.remaining())
+         return;
+
+      data.position(data.position() + (int)offset);
+      if (data.remaining() > buff.remaining())
+         data.limit(data.position() + buff.remaining());
+
+      buff.put(data);
+   }
+
+   public void write(ByteBuffer buff, long offset) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void open(int flags) throws FuseException
+   {
+      if (flags == FuseFS.O_RDWR || flags == FuseFS.O_WRONLY)
+         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void release(int flags) throws FuseException
+   {
+      // noop
+   }
+
+   public void truncate(long size) throws FuseException
+   {
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+   }
+
+   public void utime(int atime, int mtime) throws FuseException
+   {
+      // noop
+   }
+
+   //
+   // file content access
+
+   /**
+    * @return a read-only view of the content
+    */
+   public ByteBuffer getContent()
+   {
+      return content.asReadOnlyBuffer();
+   }
+
+   public synchronized void setContent(ByteBuffer content)
+   {
+      // stat is by declaration read-only - we must create a copy before modifying it's attributes
+      FuseStat stat = (FuseStat) super.getStat().clone();
+
+      if (this.content == null)
+         stat.ctime = (int)(System.currentTimeMillis() / 1000L);
+
+      this.content = content.slice().asReadOnlyBuffer();
+
+      stat.mtime = stat.atime = (int)(System.currentTimeMillis() / 1000L);
+      stat.size = this.content.remaining();
+      stat.blocks = (int)((this.content.remaining() + 511L) / 512L);
+
+      super.setStat(stat);
+   }
+}
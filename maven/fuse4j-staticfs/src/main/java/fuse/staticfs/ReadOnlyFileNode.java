@@ -19,7 +19,7 @@ import java.nio.ByteBuffer;
 
 public class ReadOnlyFileNode extends FileNode
 {
-   private byte[] content;
+   private volatile byte[] content;
 
    public ReadOnlyFileNode(String name)
    {
@@ -52,12 +52,13 @@ public class ReadOnlyFileNode extends FileNode
    //
    // FileNode implementation
 
-   public synchronized void read(ByteBuffer buff, long offset) throws FuseException
+   public void read(ByteBuffer buff, long offset) throws FuseException
    {
+      byte[] content = this.content;
       if (offset >= content.length)
          return;
 
-      int length = buff.capacity();
+      int length = buff.remaining();
       if (offset + length > content.length)
          length = content.length - (int)offset;
 
@@ -93,7 +94,7 @@ public class ReadOnlyFileNode extends FileNode
    //
    // file content access
 
-   public synchronized byte[] getContent()
+   public byte[] getContent()
    {
       return content;
    }
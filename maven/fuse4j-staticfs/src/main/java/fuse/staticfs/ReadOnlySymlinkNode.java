@@ -12,7 +12,7 @@ package fuse.staticfs;
 
 public class ReadOnlySymlinkNode extends SymlinkNode
 {
-   private String target;
+   private volatile String target;
 
    public ReadOnlySymlinkNode(String name, String target)
    {
@@ -21,12 +21,12 @@ public class ReadOnlySymlinkNode extends SymlinkNode
       this.target = target;
    }
 
-   public synchronized String getTarget()
+   public String getTarget()
    {
       return target;
    }
 
-   public synchronized void setTarget(String target)
+   public void setTarget(String target)
    {
       this.target = target;
    }
@@ -10,15 +10,34 @@
 package fuse.staticfs;
 
 import fuse.*;
-import fuse.compat.Filesystem1;
-import fuse.compat.FuseDirEnt;
 import fuse.compat.FuseStat;
 
+import java.io.File;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
-public class StaticFilesystem implements Filesystem1
+
+/**
+ * A read-only tree of nodes built by the application. Filesystems mounted on MountpointNodes get
+ * the requests for the paths below them, including the file handles they return from open(). Requests
+ * on open files go straight to the node or filesystem the file was opened on, without resolving the
+ * path again. Lookups are passed to a SubPathFilesystem as the resolved path and the start of the
+ * part below the mountpoint, so they don't copy the path; other filesystems get the part as a String.
+ * <p/>
+ * The tree may be changed while it is mounted. Paths are resolved without locking (see DirectoryNode),
+ * every directory on the way is seen as it was before or after any concurrent change to it.
+ * <p/>
+ * This used to be a fuse.compat.Filesystem1; since it implements Filesystem3 callers of the old
+ * path-only methods have to move to the Filesystem3 ones (see the README).
+ */
+public class StaticFilesystem implements SubPathFilesystem
 {
+   private static final Log log = LogFactory.getLog(StaticFilesystem.class);
+
    DirectoryNode rootNode;
    FuseStatfs statfs;
 
@@ -36,327 +55,420 @@ public class StaticFilesystem implements Filesystem1
       statfs.namelen = 2048;
    }
 
+   /**
+    * Mounts the tree of an image file written by StaticImageBuilder
+    */
+   public StaticFilesystem(File imageFile) throws IOException
+   {
+      this(StaticImage.open(imageFile));
+   }
+
    public DirectoryNode getRootNode()
    {
       return rootNode;
    }
 
    //
-   // Filesystem implementation
+   // Filesystem3 implementation
 
-   public void chmod(String path, int mode) throws FuseException
+   public int chmod(String path, int mode) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().chmod(rr.path, mode);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().chmod(getSubPath(path, false, node), mode);
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void chown(String path, int uid, int gid) throws FuseException
+   public int chown(String path, int uid, int gid) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().chown(rr.path, uid, gid);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().chown(getSubPath(path, false, node), uid, gid);
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public FuseStat getattr(String path) throws FuseException
+   public int getattr(String path, FuseGetattrSetter getattrSetter) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      return getattr(path, 0, getattrSetter);
+   }
+
+   public int getattr(String path, int start, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      Node node = resolvePath(path, start, false);
 
-      if (rr.node instanceof MountpointNode)
+      if (node instanceof MountpointNode)
       {
-         return ((MountpointNode) rr.node).getFilesystem().getattr(rr.path);
+         Filesystem3 filesystem = ((MountpointNode) node).getFilesystem();
+         int subPath = getSubPathStart(path, start, false, node);
+         if (filesystem instanceof SubPathFilesystem)
+            return ((SubPathFilesystem) filesystem).getattr(path, subPath, getattrSetter);
+
+         return filesystem.getattr(getSubPath(path, subPath), getattrSetter);
       }
 
-      return rr.node.getStat();
+      FuseStat stat = node.getStat();
+      getattrSetter.set(stat.inode, stat.mode, stat.nlink, stat.uid, stat.gid, 0, stat.size, stat.blocks, stat.atime, stat.mtime, stat.ctime);
+
+      return 0;
    }
 
-   public FuseDirEnt[] getdir(String path) throws FuseException
+   public int getdir(String path, FuseDirFiller dirFiller) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      return getdir(path, 0, dirFiller);
+   }
 
-      if (rr.node instanceof MountpointNode)
+   public int getdir(String path, int start, FuseDirFiller dirFiller) throws FuseException
+   {
+      Node node = resolvePath(path, start, false);
+
+      if (node instanceof MountpointNode)
       {
-         return ((MountpointNode) rr.node).getFilesystem().getdir(rr.path);
+         Filesystem3 filesystem = ((MountpointNode) node).getFilesystem();
+         int subPath = getSubPathStart(path, start, false, node);
+         if (filesystem instanceof SubPathFilesystem)
+            return ((SubPathFilesystem) filesystem).getdir(path, subPath, dirFiller);
+
+         return filesystem.getdir(getSubPath(path, subPath), dirFiller);
       }
 
-      if (!(rr.node instanceof DirectoryNode))
+      if (!(node instanceof DirectoryNode))
          throw new FuseException("Not a Directory").initErrno(FuseException.ENOTDIR);
 
-      Node[] children = ((DirectoryNode) rr.node).getChildren();
-      FuseDirEnt[] dirEntries = new FuseDirEnt[children.length];
+      Node[] children = ((DirectoryNode) node).getChildSnapshot();
       for (int i = 0; i < children.length; i++)
       {
          Node child = children[i];
-         FuseStat stat = (child instanceof MountpointNode)
-            ? ((MountpointNode) child).getFilesystem().getattr("/")
-            : child.getStat();
-         FuseDirEnt dirEntry = new FuseDirEnt();
-         dirEntry.name = child.getName();
-         dirEntry.mode = stat.mode;
-         dirEntries[i] = dirEntry;
+         if (child instanceof MountpointNode)
+         {
+            // a filesystem that can't stat its root couldn't be entered either, it isn't listed
+            FuseGetattr attr = ((MountpointNode) child).getRootAttributes();
+            if (attr != null)
+               dirFiller.add(child.getName(), attr.inode, attr.mode);
+         }
+         else
+         {
+            FuseStat stat = child.getStat();
+            dirFiller.add(child.getName(), stat.inode, stat.mode);
+         }
       }
 
-      return dirEntries;
+      return 0;
    }
 
-   public void link(String from, String to) throws FuseException
+   public int link(String from, String to) throws FuseException
    {
-      ResolveResult fromRr = resolvePath(from);
-      ResolveResult toRr = resolveParentPath(to);
+      Node fromNode = resolvePath(from, 0, false);
+      Node toNode = resolvePath(to, 0, true);
 
-      boolean fromIsMount = fromRr.node instanceof MountpointNode;
-      boolean toIsMount = toRr.node instanceof MountpointNode;
+      boolean fromIsMount = fromNode instanceof MountpointNode;
+      boolean toIsMount = toNode instanceof MountpointNode;
 
       if (fromIsMount || toIsMount)
       {
-         if (fromIsMount && toIsMount && fromRr.node == toRr.node)
-         {
-            ((MountpointNode) fromRr.node).getFilesystem().link(fromRr.path, toRr.path);
-         }
-         else
-         {
-            throw new FuseException("Cross Device Link not possible").initErrno(FuseException.EXDEV);
-         }
-      }
-      else
-      {
-         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+         if (fromIsMount && toIsMount && fromNode == toNode)
+            return ((MountpointNode) fromNode).getFilesystem().link(getSubPath(from, false, fromNode), getSubPath(to, true, toNode));
+
+         throw new FuseException("Cross Device Link not possible").initErrno(FuseException.EXDEV);
       }
+
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void mkdir(String path, int mode) throws FuseException
+   public int mkdir(String path, int mode) throws FuseException
    {
-      ResolveResult rr = resolveParentPath(path);
+      Node node = resolvePath(path, 0, true);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().mkdir(rr.path, mode);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().mkdir(getSubPath(path, true, node), mode);
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void mknod(String path, int mode, int rdev) throws FuseException
+   public int mknod(String path, int mode, int rdev) throws FuseException
    {
-      ResolveResult rr = resolveParentPath(path);
+      Node node = resolvePath(path, 0, true);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().mknod(rr.path, mode, rdev);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().mknod(getSubPath(path, true, node), mode, rdev);
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void open(String path, int flags) throws FuseException
+   public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      return open(path, 0, flags, openSetter);
+   }
 
-      if (rr.node instanceof MountpointNode)
+   public int open(String path, int start, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      Node node = resolvePath(path, start, false);
+
+      if (node instanceof MountpointNode)
       {
-         ((MountpointNode) rr.node).getFilesystem().open(rr.path, flags);
-         return;
+         Filesystem3 filesystem = ((MountpointNode) node).getFilesystem();
+         int subPath = getSubPathStart(path, start, false, node);
+         OpenFile openFile;
+         int errno;
+         if (filesystem instanceof SubPathFilesystem)
+         {
+            // the requests on the handle get no path
+            openFile = new OpenFile(node, null, openSetter);
+            errno = ((SubPathFilesystem) filesystem).open(path, subPath, flags, openFile);
+         }
+         else
+         {
+            openFile = new OpenFile(node, getSubPath(path, subPath), openSetter);
+            errno = filesystem.open(openFile.path, flags, openFile);
+         }
+         if (errno == 0)
+            openFile.publish();
+
+         return errno;
       }
 
-      if (rr.node instanceof FileNode)
+      if (node instanceof FileNode)
       {
-         ((FileNode) rr.node).open(flags);
-         return;
+         OpenFile openFile = new OpenFile(node, null, openSetter);
+         ((FileNode) node).open(flags, openFile);
+         openFile.publish();
+
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
    }
 
-   public void read(String path, ByteBuffer buf, long offset) throws FuseException
+   public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
-
-      if (rr.node instanceof MountpointNode)
+      if (fh instanceof OpenFile)
       {
-         ((MountpointNode) rr.node).getFilesystem().read(rr.path, buf, offset);
-         return;
+         OpenFile openFile = (OpenFile) fh;
+         if (openFile.node instanceof MountpointNode)
+            return ((MountpointNode) openFile.node).getFilesystem().read(openFile.path, openFile.fh, buf, offset);
+
+         ((FileNode) openFile.node).read(openFile.fh, buf, offset);
+         return 0;
       }
 
-      if (rr.node instanceof FileNode)
+      Node node = resolvePath(path, 0, false);
+
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().read(getSubPath(path, false, node), fh, buf, offset);
+
+      if (node instanceof FileNode)
       {
-         ((FileNode) rr.node).read(buf, offset);
-         return;
+         ((FileNode) node).read(fh, buf, offset);
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
    }
 
-   public String readlink(String path) throws FuseException
+   public int readlink(String path, CharBuffer link) throws FuseException
+   {
+      return readlink(path, 0, link);
+   }
+
+   public int readlink(String path, int start, CharBuffer link) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, start, false);
 
-      if (rr.node instanceof MountpointNode)
+      if (node instanceof MountpointNode)
       {
-         return ((MountpointNode) rr.node).getFilesystem().readlink(rr.path);
+         Filesystem3 filesystem = ((MountpointNode) node).getFilesystem();
+         int subPath = getSubPathStart(path, start, false, node);
+         if (filesystem instanceof SubPathFilesystem)
+            return ((SubPathFilesystem) filesystem).readlink(path, subPath, link);
+
+         return filesystem.readlink(getSubPath(path, subPath), link);
       }
 
-      if (rr.node instanceof SymlinkNode)
+      if (node instanceof SymlinkNode)
       {
-         return ((SymlinkNode) rr.node).getTarget();
+         link.append(((SymlinkNode) node).getTarget());
+         return 0;
       }
 
       throw new FuseException("Not a Symbolic Link").initErrno(FuseException.EINVAL);
    }
 
-   public void release(String path, int flags) throws FuseException
+   public int flush(String path, Object fh) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      if (fh instanceof OpenFile)
+      {
+         OpenFile openFile = (OpenFile) fh;
+         if (openFile.node instanceof MountpointNode)
+            return ((MountpointNode) openFile.node).getFilesystem().flush(openFile.path, openFile.fh);
+
+         return 0;
+      }
 
-      if (rr.node instanceof MountpointNode)
+      Node node = resolvePath(path, 0, false);
+
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().flush(getSubPath(path, false, node), fh);
+
+      return 0;
+   }
+
+   public int fsync(String path, Object fh, boolean isDatasync) throws FuseException
+   {
+      if (fh instanceof OpenFile)
       {
-         ((MountpointNode) rr.node).getFilesystem().release(rr.path, flags);
-         return;
+         OpenFile openFile = (OpenFile) fh;
+         if (openFile.node instanceof MountpointNode)
+            return ((MountpointNode) openFile.node).getFilesystem().fsync(openFile.path, openFile.fh, isDatasync);
+
+         return 0;
       }
 
-      if (rr.node instanceof FileNode)
+      Node node = resolvePath(path, 0, false);
+
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().fsync(getSubPath(path, false, node), fh, isDatasync);
+
+      return 0;
+   }
+
+   public int release(String path, Object fh, int flags) throws FuseException
+   {
+      if (fh instanceof OpenFile)
       {
-         ((FileNode) rr.node).release(flags);
-         return;
+         OpenFile openFile = (OpenFile) fh;
+         if (openFile.node instanceof MountpointNode)
+            return ((MountpointNode) openFile.node).getFilesystem().release(openFile.path, openFile.fh, flags);
+
+         ((FileNode) openFile.node).release(openFile.fh, flags);
+         return 0;
+      }
+
+      Node node = resolvePath(path, 0, false);
+
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().release(getSubPath(path, false, node), fh, flags);
+
+      if (node instanceof FileNode)
+      {
+         ((FileNode) node).release(fh, flags);
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
    }
 
-   public void rename(String from, String to) throws FuseException
+   public int rename(String from, String to) throws FuseException
    {
-      ResolveResult fromRr = resolvePath(from);
-      ResolveResult toRr = resolveParentPath(to);
+      Node fromNode = resolvePath(from, 0, false);
+      Node toNode = resolvePath(to, 0, true);
 
-      boolean fromIsMount = fromRr.node instanceof MountpointNode;
-      boolean toIsMount = toRr.node instanceof MountpointNode;
+      boolean fromIsMount = fromNode instanceof MountpointNode;
+      boolean toIsMount = toNode instanceof MountpointNode;
 
       if (fromIsMount || toIsMount)
       {
-         if (fromIsMount && toIsMount && fromRr.node == toRr.node)
-         {
-            ((MountpointNode) fromRr.node).getFilesystem().rename(fromRr.path, toRr.path);
-         }
-         else
-         {
-            throw new FuseException("Cross Device Rename not possible").initErrno(FuseException.EXDEV);
-         }
-      }
-      else
-      {
-         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+         if (fromIsMount && toIsMount && fromNode == toNode)
+            return ((MountpointNode) fromNode).getFilesystem().rename(getSubPath(from, false, fromNode), getSubPath(to, true, toNode));
+
+         throw new FuseException("Cross Device Rename not possible").initErrno(FuseException.EXDEV);
       }
+
+      throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void rmdir(String path) throws FuseException
+   public int rmdir(String path) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().rmdir(rr.path);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().rmdir(getSubPath(path, false, node));
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public FuseStatfs statfs() throws FuseException
+   public int statfs(FuseStatfsSetter statfsSetter) throws FuseException
    {
-      return statfs;
+      statfsSetter.set(statfs.blockSize, statfs.blocks, statfs.blocksFree, statfs.blocksAvail, statfs.files, statfs.filesFree, statfs.namelen);
+
+      return 0;
    }
 
-   public void symlink(String from, String to) throws FuseException
+   public int symlink(String from, String to) throws FuseException
    {
-      ResolveResult rr = resolveParentPath(to);
+      Node node = resolvePath(to, 0, true);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().symlink(from, rr.path);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().symlink(from, getSubPath(to, true, node));
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void truncate(String path, long size) throws FuseException
+   public int truncate(String path, long size) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().truncate(rr.path, size);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().truncate(getSubPath(path, false, node), size);
 
-      if (rr.node instanceof FileNode)
+      if (node instanceof FileNode)
       {
-         ((FileNode) rr.node).truncate(size);
-         return;
+         ((FileNode) node).truncate(size);
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
    }
 
-   public void unlink(String path) throws FuseException
+   public int unlink(String path) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().unlink(rr.path);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().unlink(getSubPath(path, false, node));
 
       throw new FuseException("Read Only").initErrno(FuseException.EROFS);
    }
 
-   public void utime(String path, int atime, int mtime) throws FuseException
+   public int utime(String path, int atime, int mtime) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
+      Node node = resolvePath(path, 0, false);
 
-      if (rr.node instanceof MountpointNode)
-      {
-         ((MountpointNode) rr.node).getFilesystem().utime(rr.path, atime, mtime);
-         return;
-      }
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().utime(getSubPath(path, false, node), atime, mtime);
 
-      if (rr.node instanceof FileNode)
+      if (node instanceof FileNode)
       {
-         ((FileNode) rr.node).utime(atime, mtime);
-         return;
+         ((FileNode) node).utime(atime, mtime);
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
    }
 
-   public void write(String path, ByteBuffer buf, long offset) throws FuseException
+   public int write(String path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException
    {
-      ResolveResult rr = resolvePath(path);
-
-      if (rr.node instanceof MountpointNode)
+      if (fh instanceof OpenFile)
       {
-         ((MountpointNode) rr.node).getFilesystem().write(rr.path, buf, offset);
-         return;
+         OpenFile openFile = (OpenFile) fh;
+         if (openFile.node instanceof MountpointNode)
+            return ((MountpointNode) openFile.node).getFilesystem().write(openFile.path, openFile.fh, isWritepage, buf, offset);
+
+         ((FileNode) openFile.node).write(buf, offset);
+         return 0;
       }
 
-      if (rr.node instanceof FileNode)
+      Node node = resolvePath(path, 0, false);
+
+      if (node instanceof MountpointNode)
+         return ((MountpointNode) node).getFilesystem().write(getSubPath(path, false, node), fh, isWritepage, buf, offset);
+
+      if (node instanceof FileNode)
       {
-         ((FileNode) rr.node).read(buf, offset);
-         return;
+         ((FileNode) node).write(buf, offset);
+         return 0;
       }
 
       throw new FuseException("Not a File").initErrno(FuseException.EINVAL);
@@ -366,82 +478,201 @@ public class StaticFilesystem implements Filesystem1
    //
    // private methods
 
-   private ResolveResult resolveParentPath(String path) throws FuseException
+   /**
+    * Walks <code>path</code> from <code>start</code>, which is 0 or where it continues below a
+    * mountpoint of a filesystem this one is mounted on
+    *
+    * @param resolveParent whether to stop at the parent of the last component
+    * @return the node of the path or the MountpointNode on the way to it
+    */
+   private Node resolvePath(String path, int start, boolean resolveParent) throws FuseException
    {
-      return resolvePath(path, true);
-   }
+      Node node = rootNode;
+      int i = start;
 
-   private ResolveResult resolvePath(String path) throws FuseException
-   {
-      return resolvePath(path, false);
+      while (!(node instanceof MountpointNode))
+      {
+         int nameStart = skipSlashes(path, i);
+         int nameEnd = getNameEnd(path, nameStart);
+         // are we at the end or resolving the parent node & at the last component of path?
+         if (nameStart >= path.length() || (resolveParent && nameEnd >= path.length()))
+            break;
+
+         node = getNextNode(node, path, nameStart, nameEnd);
+         i = nameEnd;
+      }
+
+      return node;
    }
 
-   private ResolveResult resolvePath(String path, boolean resolveParent) throws FuseException
+   /**
+    * Walks <code>path</code> again like resolvePath() to where it leads into <code>mountpoint</code>.
+    * Only delegated requests need to know, so resolvePath() doesn't keep track of it for every request.
+    *
+    * @return the start of the part of <code>path</code> below <code>mountpoint</code>, either the end
+    *         of the path or a slash
+    */
+   private int getSubPathStart(String path, int start, boolean resolveParent, Node mountpoint) throws FuseException
    {
       Node node = rootNode;
-      int i = 0;
-      int subPathStart = 0;
+      int i = start;
 
-      while (i < path.length() && !(node instanceof MountpointNode))
+      while (!(node instanceof MountpointNode))
       {
-         while (i < path.length() && path.charAt(i) == '/')
-         {
-            subPathStart = i;
-            i++;
-         }
+         int nameStart = skipSlashes(path, i);
+         int nameEnd = getNameEnd(path, nameStart);
+         if (nameStart >= path.length() || (resolveParent && nameEnd >= path.length()))
+            break;
 
-         if (i >= path.length()) break;
+         node = getNextNode(node, path, nameStart, nameEnd);
+         i = nameEnd;
+      }
 
-         int nameStart = i;
+      // the tree may have changed since
+      if (node != mountpoint)
+         throw new FuseException("No such node").initErrno(FuseException.ENOENT);
 
-         while (i < path.length() && path.charAt(i) != '/')
-            i++;
+      return i;
+   }
 
-         // are we resolving parent node & have just parsed the last component of path?
-         if (resolveParent && i >= path.length()) break;
+   /**
+    * @return the part of <code>path</code> below <code>mountpoint</code>, for the requests that aren't
+    *         passed as a resolved path and a start
+    */
+   private String getSubPath(String path, boolean resolveParent, Node mountpoint) throws FuseException
+   {
+      return getSubPath(path, getSubPathStart(path, 0, resolveParent, mountpoint));
+   }
 
-         String name = path.substring(nameStart, i);
+   private static String getSubPath(String path, int start)
+   {
+      return start >= path.length()? "/" : path.substring(start);
+   }
 
-         if (name.equals("."))
-         {
-            // same node
-         }
-         else if (name.equals(".."))
-         {
-            // parent node
-            Node parentNode = node.getParent();
-            if (parentNode != null)
-               node = parentNode;
-         }
-         else
-         {
-            // child node
-            Node childNode = null;
-            if (node instanceof DirectoryNode && (childNode = ((DirectoryNode) node).getChild(name)) != null)
-               node = childNode;
-            else
-               throw new FuseException("No such node").initErrno(FuseException.ENOENT);
-         }
+   private static int skipSlashes(String path, int i)
+   {
+      while (i < path.length() && path.charAt(i) == '/')
+         i++;
+
+      return i;
+   }
+
+   private static int getNameEnd(String path, int i)
+   {
+      while (i < path.length() && path.charAt(i) != '/')
+         i++;
+
+      return i;
+   }
+
+   /**
+    * @return the node the name <code>nameStart</code> to <code>nameEnd</code> of <code>path</code> leads to from <code>node</code>
+    */
+   private static Node getNextNode(Node node, String path, int nameStart, int nameEnd) throws FuseException
+   {
+      int nameLength = nameEnd - nameStart;
 
-         subPathStart = i;
+      if (nameLength == 1 && path.charAt(nameStart) == '.')
+      {
+         // same node
+         return node;
       }
 
-      String subPath = path.substring(subPathStart);
-      if (subPath.length() == 0 && node instanceof MountpointNode)
-         subPath = "/";
+      if (nameLength == 2 && path.charAt(nameStart) == '.' && path.charAt(nameStart + 1) == '.')
+      {
+         // parent node
+         Node parentNode = node.getParent();
+         return parentNode != null? parentNode : node;
+      }
 
-      return new ResolveResult(subPath, node);
+      // child node
+      Node childNode = null;
+      if (node instanceof DirectoryNode && (childNode = ((DirectoryNode) node).getChild(path, nameStart, nameEnd)) != null)
+         return childNode;
+
+      throw new FuseException("No such node").initErrno(FuseException.ENOENT);
    }
 
-   static class ResolveResult
+
+   /**
+    * The file handle of a file opened through this filesystem: the node it was resolved to (and the
+    * path below a MountpointNode) and the handle its filesystem or FileNode returned, so that requests
+    * on the open file don't resolve the path again. Stays valid if the node is removed from the tree.
+    */
+   private static class OpenFile implements FuseOpenSetter
    {
-      String path;
-      Node node;
+      final Node node;
+      final String path;
+      Object fh;
+
+      // only used while opening
+      private FuseOpenSetter openSetter;
 
-      ResolveResult(String path, Node node)
+      OpenFile(Node node, String path, FuseOpenSetter openSetter)
       {
-         this.path = path;
          this.node = node;
+         this.path = path;
+         this.openSetter = openSetter;
+      }
+
+      void publish()
+      {
+         if (openSetter != null)
+            openSetter.setFh(this);
+         openSetter = null;
+      }
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return openSetter != null && openSetter.isDirectIO();
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         if (openSetter != null)
+            openSetter.setDirectIO(directIO);
+      }
+
+      public boolean isKeepCache()
+      {
+         return openSetter != null && openSetter.isKeepCache();
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         if (openSetter != null)
+            openSetter.setKeepCache(keepCache);
+      }
+   }
+
+
+   //
+   // Java entry point
+
+   public static void main(String[] args)
+   {
+      if (args.length < 1)
+      {
+         System.out.println("Must specify image file");
+         System.exit(-1);
+      }
+
+      String fuseArgs[] = new String[args.length - 1];
+      System.arraycopy(args, 0, fuseArgs, 0, fuseArgs.length);
+      File imageFile = new File(args[args.length - 1]);
+
+      try
+      {
+         FuseMount.mount(fuseArgs, new StaticFilesystem(imageFile), log);
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
       }
    }
 }
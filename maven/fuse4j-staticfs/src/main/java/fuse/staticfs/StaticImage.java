@@ -0,0 +1,277 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseFtype;
+import fuse.compat.FuseStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+
+/**
+ * A tree of nodes stored in one file (written by StaticImageBuilder) that is memory-mapped and
+ * turned into nodes only as far as it is browsed: a directory creates its children the first time
+ * they are needed, files serve their content straight from the mapping (see MappedFileNode). Opening
+ * an image takes the same time whatever the size of the tree. The nodes may be changed like any other,
+ * the image file itself is never written.
+ * <p/>
+ * Layout (little endian):
+ * <pre>
+ *   header  (HEADER_SIZE bytes)    magic, version, node count, names offset/length, data offset,
+ *                                  file/directory counts
+ *   nodes   (NODE_SIZE bytes each) mode, uid, gid, atime, mtime, ctime, name offset/length and
+ *                                  directories: first child, child count
+ *                                  files: content offset, size
+ *                                  symbolic links: target offset/length (in the names)
+ *   names                          UTF-8 encoded node names and symbolic link targets
+ *   data                           file contents, each at a multiple of DATA_ALIGNMENT
+ * </pre>
+ * Node 0 is the root directory. The children of each directory are consecutive nodes sorted by
+ * name (as String.compareTo).
+ */
+public class StaticImage
+{
+   static final long MAGIC = 0x31474d49534a3446L; // "F4JSIMG1"
+   static final int VERSION = 1;
+
+   static final int HEADER_SIZE = 64;
+   static final int H_MAGIC = 0;
+   static final int H_VERSION = 8;
+   static final int H_NODE_COUNT = 12;
+   static final int H_NAMES_OFFSET = 16;
+   static final int H_NAMES_LENGTH = 24;
+   static final int H_DATA_OFFSET = 32;
+   static final int H_FILES = 40;
+   static final int H_DIRECTORIES = 48;
+
+   static final int NODE_SIZE = 48;
+   static final int N_MODE = 0;
+   static final int N_UID = 4;
+   static final int N_GID = 8;
+   static final int N_ATIME = 12;
+   static final int N_MTIME = 16;
+   static final int N_CTIME = 20;
+   static final int N_NAME_OFFSET = 24;
+   static final int N_NAME_LENGTH = 28;
+   static final int N_FIRST = 32;
+   static final int N_SECOND = 40;
+
+   static final int DATA_ALIGNMENT = 8;
+
+   static final Charset UTF8 = Charset.forName("UTF-8");
+
+   // header, nodes and names
+   private final ByteBuffer meta;
+   // the whole file
+   private final MappedByteBuffer[] chunks;
+   private final int namesOffset;
+
+
+   private StaticImage(ByteBuffer meta, MappedByteBuffer[] chunks)
+   {
+      this.meta = meta;
+      this.chunks = chunks;
+      namesOffset = (int)meta.getLong(H_NAMES_OFFSET);
+   }
+
+   /**
+    * Maps an image file
+    *
+    * @return the root directory of the tree
+    */
+   public static DirectoryNode open(File imageFile) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(imageFile, "r");
+      try
+      {
+         FileChannel channel = raf.getChannel();
+         long size = channel.size();
+         if (size < HEADER_SIZE)
+            throw new IOException("not a staticfs image: " + imageFile);
+
+         ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+         while (header.hasRemaining())
+         {
+            if (channel.read(header, header.position()) < 0)
+               throw new IOException("not a staticfs image: " + imageFile);
+         }
+         if (header.getLong(H_MAGIC) != MAGIC || header.getInt(H_VERSION) != VERSION)
+            throw new IOException("not a staticfs image: " + imageFile);
+
+         int nodeCount = header.getInt(H_NODE_COUNT);
+         long namesOffset = header.getLong(H_NAMES_OFFSET);
+         long namesLength = header.getLong(H_NAMES_LENGTH);
+         long dataOffset = header.getLong(H_DATA_OFFSET);
+         if (nodeCount < 1 || namesOffset != HEADER_SIZE + (long)nodeCount * NODE_SIZE || namesLength < 0
+             || namesOffset + namesLength > dataOffset || dataOffset > Math.min(size, Integer.MAX_VALUE))
+            throw new IOException("corrupt staticfs image: " + imageFile);
+
+         ByteBuffer meta = channel.map(FileChannel.MapMode.READ_ONLY, 0, dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+         int node = checkNodes(meta, nodeCount, namesLength, dataOffset, size);
+         if (node >= 0)
+            throw new IOException("corrupt staticfs image: " + imageFile + ", node " + node);
+
+         StaticImage image = new StaticImage(meta, MappedFileNode.map(channel, size));
+
+         return (DirectoryNode)image.createNode(0);
+      }
+      finally
+      {
+         // the mappings stay valid
+         raf.close();
+      }
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * Checks every node of a mapped image so that a corrupt one can't send reads outside the names, the
+    * nodes or the file: names and link targets lie in the names, file contents in the data, and the child
+    * ranges of the directories follow each other from node 1 to the last node in the order of their
+    * directories (as StaticImageBuilder writes them), so every node but the root is the child of exactly
+    * one directory that comes before it.
+    *
+    * @return the first corrupt node, -1 if there is none
+    */
+   private static int checkNodes(ByteBuffer meta, int nodeCount, long namesLength, long dataOffset, long size)
+   {
+      long nextChild = 1L;
+
+      for (int node = 0; node < nodeCount; node++)
+      {
+         int pos = HEADER_SIZE + node * NODE_SIZE;
+         int type = meta.getInt(pos + N_MODE) & FuseFtype.TYPE_MASK;
+         long nameOffset = meta.getInt(pos + N_NAME_OFFSET);
+         long nameLength = meta.getInt(pos + N_NAME_LENGTH);
+         long first = meta.getLong(pos + N_FIRST);
+         long second = meta.getLong(pos + N_SECOND);
+
+         boolean valid = nameOffset >= 0 && nameLength >= 0 && nameOffset + nameLength <= namesLength && second >= 0;
+         switch (type)
+         {
+            case FuseFtype.TYPE_DIR:
+               if (second > 0)
+               {
+                  valid &= first == nextChild && first > node && first + second <= nodeCount;
+                  nextChild = first + second;
+               }
+               break;
+            case FuseFtype.TYPE_SYMLINK:
+               valid &= first >= 0 && second <= namesLength - first;
+               break;
+            default:
+               valid &= first >= dataOffset && second <= size - first;
+               break;
+         }
+
+         if (!valid)
+            return node;
+      }
+
+      // the root is a directory, and no node is left out
+      if ((meta.getInt(HEADER_SIZE + N_MODE) & FuseFtype.TYPE_MASK) != FuseFtype.TYPE_DIR || nextChild != nodeCount)
+         return 0;
+
+      return -1;
+   }
+
+   private Node createNode(int node)
+   {
+      int pos = HEADER_SIZE + node * NODE_SIZE;
+      int mode = meta.getInt(pos + N_MODE);
+      String name = getString(meta.getInt(pos + N_NAME_OFFSET), meta.getInt(pos + N_NAME_LENGTH));
+
+      Node result;
+      long size = 0L;
+      switch (mode & FuseFtype.TYPE_MASK)
+      {
+         case FuseFtype.TYPE_DIR:
+            result = new ImageDirectoryNode(name, this, node);
+            break;
+         case FuseFtype.TYPE_SYMLINK:
+            result = new ReadOnlySymlinkNode(name, getString((int)meta.getLong(pos + N_FIRST), (int)meta.getLong(pos + N_SECOND)));
+            break;
+         default:
+            size = meta.getLong(pos + N_SECOND);
+            result = new MappedFileNode(name, chunks, meta.getLong(pos + N_FIRST), size);
+            break;
+      }
+
+      FuseStat stat = new FuseStat();
+      stat.mode = mode;
+      stat.uid = meta.getInt(pos + N_UID);
+      stat.gid = meta.getInt(pos + N_GID);
+      stat.atime = meta.getInt(pos + N_ATIME);
+      stat.mtime = meta.getInt(pos + N_MTIME);
+      stat.ctime = meta.getInt(pos + N_CTIME);
+      stat.size = size;
+      stat.blocks = (int)Math.min((size + 511L) / 512L, Integer.MAX_VALUE);
+      result.setStat(stat);
+
+      return result;
+   }
+
+   private Node[] createChildren(int node)
+   {
+      int pos = HEADER_SIZE + node * NODE_SIZE;
+      int first = (int)meta.getLong(pos + N_FIRST);
+      Node[] children = new Node[(int)meta.getLong(pos + N_SECOND)];
+      for (int i = 0; i < children.length; i++)
+         children[i] = createNode(first + i);
+
+      return children;
+   }
+
+   private String getString(int offset, int length)
+   {
+      byte[] bytes = new byte[length];
+      ByteBuffer bb = meta.duplicate();
+      bb.position(namesOffset + offset);
+      bb.get(bytes);
+
+      return new String(bytes, UTF8);
+   }
+
+
+   /**
+    * A directory of the image
+    */
+   private static class ImageDirectoryNode extends DirectoryNode
+   {
+      private StaticImage image;
+      private int node;
+
+      ImageDirectoryNode(String name, StaticImage image, int node)
+      {
+         super(name, true);
+
+         this.image = image;
+         this.node = node;
+      }
+
+      Node[] createChildren()
+      {
+         Node[] children = image.createChildren(node);
+         // not needed any more
+         image = null;
+
+         return children;
+      }
+   }
+}
@@ -0,0 +1,382 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+import fuse.FuseFS;
+import fuse.FuseFtype;
+import fuse.compat.FuseStat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Writes a tree of nodes to a StaticImage. Directories, symbolic links and the content of any FileNode
+ * are stored; MountpointNodes can't be. Run as a program it writes the image of a local directory:
+ * <pre>
+ *   java fuse.staticfs.StaticImageBuilder &lt;directory&gt; &lt;image file&gt;
+ * </pre>
+ */
+public class StaticImageBuilder
+{
+   private static final int TRANSFER_SIZE = 128 * 1024;
+
+   private static final Comparator<Node> BY_NAME = new Comparator<Node>()
+   {
+      public int compare(Node a, Node b)
+      {
+         return a.getName().compareTo(b.getName());
+      }
+   };
+
+
+   /**
+    * Writes the tree below <code>root</code> to <code>imageFile</code>, atomically replacing an existing one
+    */
+   public static void write(DirectoryNode root, File imageFile) throws IOException
+   {
+      // breadth first, so that the children of every directory are consecutive
+      List<Node> nodes = new ArrayList<Node>();
+      nodes.add(root);
+      long[] first = new long[1024];
+      long[] second = new long[1024];
+      int[] nameOffsets = new int[1024];
+      int[] nameLengths = new int[1024];
+      ByteArrayOutputStream names = new ByteArrayOutputStream();
+      long files = 0;
+      long directories = 0;
+
+      for (int i = 0; i < nodes.size(); i++)
+      {
+         Node node = nodes.get(i);
+         if (i == first.length)
+         {
+            first = Arrays.copyOf(first, i * 2);
+            second = Arrays.copyOf(second, i * 2);
+            nameOffsets = Arrays.copyOf(nameOffsets, i * 2);
+            nameLengths = Arrays.copyOf(nameLengths, i * 2);
+         }
+
+         byte[] name = i == 0? new byte[0] : node.getName().getBytes(StaticImage.UTF8);
+         nameOffsets[i] = names.size();
+         nameLengths[i] = name.length;
+         names.write(name);
+
+         if (node instanceof DirectoryNode)
+         {
+            Node[] children = ((DirectoryNode)node).getChildren();
+            Arrays.sort(children, BY_NAME);
+            first[i] = nodes.size();
+            second[i] = children.length;
+            nodes.addAll(Arrays.asList(children));
+            directories++;
+         }
+         else if (node instanceof SymlinkNode)
+         {
+            byte[] target = ((SymlinkNode)node).getTarget().getBytes(StaticImage.UTF8);
+            first[i] = names.size();
+            second[i] = target.length;
+            names.write(target);
+         }
+         else if (node instanceof FileNode)
+         {
+            // the content offsets are known once the names are
+            second[i] = node.getStat().size;
+            files++;
+         }
+         else
+            throw new IOException("can't write " + node.getClass().getName() + " " + node.getName() + " to an image");
+      }
+
+      int nodeCount = nodes.size();
+      long namesOffset = StaticImage.HEADER_SIZE + (long)nodeCount * StaticImage.NODE_SIZE;
+      long dataOffset = align(namesOffset + names.size());
+      if (dataOffset > Integer.MAX_VALUE)
+         throw new IOException("too many nodes for an image: " + nodeCount);
+
+      long position = dataOffset;
+      ByteBuffer meta = ByteBuffer.allocate((int)namesOffset).order(ByteOrder.LITTLE_ENDIAN);
+      meta.putLong(StaticImage.H_MAGIC, StaticImage.MAGIC);
+      meta.putInt(StaticImage.H_VERSION, StaticImage.VERSION);
+      meta.putInt(StaticImage.H_NODE_COUNT, nodeCount);
+      meta.putLong(StaticImage.H_NAMES_OFFSET, namesOffset);
+      meta.putLong(StaticImage.H_NAMES_LENGTH, names.size());
+      meta.putLong(StaticImage.H_DATA_OFFSET, dataOffset);
+      meta.putLong(StaticImage.H_FILES, files);
+      meta.putLong(StaticImage.H_DIRECTORIES, directories);
+
+      for (int i = 0; i < nodeCount; i++)
+      {
+         Node node = nodes.get(i);
+         FuseStat stat = node.getStat();
+         int pos = StaticImage.HEADER_SIZE + i * StaticImage.NODE_SIZE;
+
+         if (node instanceof FileNode)
+         {
+            first[i] = position;
+            position = align(position + second[i]);
+         }
+
+         meta.putInt(pos + StaticImage.N_MODE, stat.mode);
+         meta.putInt(pos + StaticImage.N_UID, stat.uid);
+         meta.putInt(pos + StaticImage.N_GID, stat.gid);
+         meta.putInt(pos + StaticImage.N_ATIME, stat.atime);
+         meta.putInt(pos + StaticImage.N_MTIME, stat.mtime);
+         meta.putInt(pos + StaticImage.N_CTIME, stat.ctime);
+         meta.putInt(pos + StaticImage.N_NAME_OFFSET, nameOffsets[i]);
+         meta.putInt(pos + StaticImage.N_NAME_LENGTH, nameLengths[i]);
+         meta.putLong(pos + StaticImage.N_FIRST, first[i]);
+         meta.putLong(pos + StaticImage.N_SECOND, second[i]);
+      }
+
+      File tmpFile = File.createTempFile(imageFile.getName(), ".tmp", imageFile.getAbsoluteFile().getParentFile());
+      try
+      {
+         RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+         try
+         {
+            FileChannel channel = raf.getChannel();
+            writeFully(channel, meta, 0L);
+            writeFully(channel, ByteBuffer.wrap(names.toByteArray()), namesOffset);
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_SIZE);
+            for (int i = 0; i < nodeCount; i++)
+            {
+               if (nodes.get(i) instanceof FileNode)
+                  writeContent(channel, (FileNode)nodes.get(i), first[i], second[i], buffer);
+            }
+            raf.setLength(position);
+         }
+         finally
+         {
+            raf.close();
+         }
+
+         if (!tmpFile.renameTo(imageFile))
+            throw new IOException("can't rename " + tmpFile + " to " + imageFile);
+      }
+      finally
+      {
+         tmpFile.delete();
+      }
+   }
+
+   /**
+    * @return a tree of the files, directories and symbolic links below <code>directory</code>, whose
+    *         files are read when they are written to an image
+    */
+   public static DirectoryNode createTree(File directory) throws IOException
+   {
+      DirectoryNode node = new DirectoryNode(directory.getName());
+      setTimes(node, directory.lastModified());
+
+      File[] files = directory.listFiles();
+      if (files == null)
+         throw new IOException("can't list " + directory);
+
+      for (int i = 0; i < files.length; i++)
+      {
+         File file = files[i];
+         Node child;
+         if (Files.isSymbolicLink(file.toPath()))
+            child = new ReadOnlySymlinkNode(file.getName(), Files.readSymbolicLink(file.toPath()).toString());
+         else if (file.isDirectory())
+            child = createTree(file);
+         else if (file.isFile())
+            child = new LocalFileNode(file);
+         else
+            continue;
+
+         setTimes(child, file.lastModified());
+         node.addChild(child);
+      }
+
+      return node;
+   }
+
+
+   //
+   // private methods
+
+   private static long align(long position)
+   {
+      return (position + StaticImage.DATA_ALIGNMENT - 1) & -StaticImage.DATA_ALIGNMENT;
+   }
+
+   private static void writeFully(FileChannel channel, ByteBuffer bb, long position) throws IOException
+   {
+      bb.rewind();
+      while (bb.hasRemaining())
+         channel.write(bb, position + bb.position());
+   }
+
+   private static void writeContent(FileChannel channel, FileNode node, long position, long size, ByteBuffer buffer) throws IOException
+   {
+      try
+      {
+         node.open(FuseFS.O_RDONLY);
+         try
+         {
+            long offset = 0L;
+            while (offset < size)
+            {
+               buffer.clear();
+               if (buffer.remaining() > size - offset)
+                  buffer.limit((int)(size - offset));
+               node.read(buffer, offset);
+               if (buffer.position() == 0)
+                  break;
+
+               buffer.flip();
+               while (buffer.hasRemaining())
+                  channel.write(buffer, position + offset + buffer.position());
+               offset += buffer.limit();
+            }
+         }
+         finally
+         {
+            node.release(FuseFS.O_RDONLY);
+         }
+      }
+      catch (FuseException e)
+      {
+         IOException ioe = new IOException("can't read " + node.getName());
+         ioe.initCause(e);
+         throw ioe;
+      }
+   }
+
+   private static void setTimes(Node node, long time)
+   {
+      FuseStat stat = (FuseStat) node.getStat().clone();
+      stat.atime = stat.mtime = stat.ctime = (int)(time / 1000L);
+      node.setStat(stat);
+   }
+
+
+   /**
+    * A file of the local filesystem, read with positional reads
+    */
+   private static class LocalFileNode extends FileNode
+   {
+      private File file;
+      private RandomAccessFile raf;
+
+      LocalFileNode(File file)
+      {
+         super(file.getName());
+
+         this.file = file;
+         FuseStat stat = (FuseStat) getStat().clone();
+         stat.mode = FuseFtype.TYPE_FILE | (file.canExecute()? 0555 : 0444);
+         stat.size = file.length();
+         stat.blocks = (int)Math.min((stat.size + 511L) / 512L, Integer.MAX_VALUE);
+         setStat(stat);
+      }
+
+      protected FuseStat createStat()
+      {
+         FuseStat stat = new FuseStat();
+         stat.mode = FuseFtype.TYPE_FILE | 0444;
+
+         return stat;
+      }
+
+      public void open(int flags) throws FuseException
+      {
+         try
+         {
+            raf = new RandomAccessFile(file, "r");
+         }
+         catch (IOException e)
+         {
+            throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+         }
+      }
+
+      public void release(int flags) throws FuseException
+      {
+         try
+         {
+            raf.close();
+         }
+         catch (IOException e)
+         {
+            throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+         }
+      }
+
+      public void read(ByteBuffer buff, long offset) throws FuseException
+      {
+         try
+         {
+            int start = buff.position();
+            while (buff.hasRemaining())
+            {
+               if (raf.getChannel().read(buff, offset + buff.position() - start) < 0)
+                  break;
+            }
+         }
+         catch (IOException e)
+         {
+            throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+         }
+      }
+
+      public void write(ByteBuffer buff, long offset) throws FuseException
+      {
+         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+      }
+
+      public void truncate(long size) throws FuseException
+      {
+         throw new FuseException("Read Only").initErrno(FuseException.EROFS);
+      }
+
+      public void utime(int atime, int mtime) throws FuseException
+      {
+         // noop
+      }
+   }
+
+
+   //
+   // Java entry point
+
+   public static void main(String[] args)
+   {
+      if (args.length != 2)
+      {
+         System.out.println("Must specify directory and image file");
+         System.exit(-1);
+      }
+
+      try
+      {
+         write(createTree(new File(args[0])), new File(args[1]));
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+         System.exit(1);
+      }
+   }
+}
@@ -0,0 +1,37 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.Filesystem3;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+
+import java.nio.CharBuffer;
+
+
+/**
+ * A filesystem mounted on a MountpointNode that takes its paths as the part of the path StaticFilesystem
+ * resolved from <code>start</code> on, which is empty (the root) or starts with a slash. StaticFilesystem
+ * passes the lookups this way instead of cutting the sub path out of every path. The requests on the
+ * file handles returned by open(String, int, int, FuseOpenSetter) get no path (null), and the other
+ * requests get the sub path as a String of its own.
+ */
+public interface SubPathFilesystem extends Filesystem3
+{
+   public int getattr(String path, int start, FuseGetattrSetter getattrSetter) throws FuseException;
+
+   public int readlink(String path, int start, CharBuffer link) throws FuseException;
+
+   public int getdir(String path, int start, FuseDirFiller dirFiller) throws FuseException;
+
+   public int open(String path, int start, int flags, FuseOpenSetter openSetter) throws FuseException;
+}
@@ -0,0 +1,244 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+import fuse.FuseFS;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Opens and reads a GeneratedFileNode through a StaticFilesystem: every handle reads the rendering
+ * it was opened with, opens within the freshness window share one rendering, invalidate() ends the
+ * window and getattr reports the size of the last rendering.
+ */
+public class GeneratedFileNodeTest extends TestCase
+{
+   private static final String PATH = "/gen";
+
+   private Counter counter;
+
+
+   protected void setUp() throws Exception
+   {
+      counter = new Counter();
+   }
+
+   public void testRenderingPerHandle() throws FuseException
+   {
+      StaticFilesystem fs = mount(new GeneratedFileNode("gen", counter));
+
+      OpenSetter first = open(fs);
+      assertTrue(first.directIO);
+      OpenSetter second = open(fs);
+      assertEquals(2, counter.count);
+
+      // each handle keeps its own rendering, also the shorter one
+      assertEquals(Counter.render(1), read(fs, first.fh, 0L));
+      assertEquals(Counter.render(2), read(fs, second.fh, 0L));
+      assertEquals(Counter.render(1).substring(3), read(fs, first.fh, 3L));
+      assertEquals("", read(fs, first.fh, 1000L));
+
+      release(fs, first.fh);
+      release(fs, second.fh);
+      assertEquals(2, counter.count);
+   }
+
+   public void testFreshnessWindow() throws FuseException
+   {
+      GeneratedFileNode node = new GeneratedFileNode("gen", counter, 60000L);
+      StaticFilesystem fs = mount(node);
+
+      OpenSetter first = open(fs);
+      OpenSetter second = open(fs);
+      assertEquals(1, counter.count);
+      assertEquals(Counter.render(1), read(fs, second.fh, 0L));
+
+      // ends the window, the open handles keep their rendering
+      node.invalidate();
+      OpenSetter third = open(fs);
+      assertEquals(2, counter.count);
+      assertEquals(Counter.render(2), read(fs, third.fh, 0L));
+      assertEquals(Counter.render(1), read(fs, first.fh, 0L));
+
+      // and the new rendering is shared again
+      assertEquals(Counter.render(2), read(fs, open(fs).fh, 0L));
+      assertEquals(2, counter.count);
+   }
+
+   public void testWindowExpires() throws Exception
+   {
+      StaticFilesystem fs = mount(new GeneratedFileNode("gen", counter, 20L));
+
+      open(fs);
+      Thread.sleep(50L);
+      open(fs);
+      assertEquals(2, counter.count);
+   }
+
+   public void testGetattrSize() throws FuseException
+   {
+      GeneratedFileNode node = new GeneratedFileNode("gen", counter);
+      StaticFilesystem fs = mount(node);
+
+      // nothing rendered yet, and reads without a handle don't render
+      assertEquals(0L, getattrSize(fs));
+      assertEquals("", read(fs, null, 0L));
+      assertEquals(0, counter.count);
+
+      open(fs);
+      assertEquals(Counter.render(1).length(), getattrSize(fs));
+      OpenSetter second = open(fs);
+      assertEquals(Counter.render(2).length(), getattrSize(fs));
+      assertTrue(Counter.render(2).length() > Counter.render(1).length());
+
+      // a read without a handle gets the last rendering
+      assertEquals(Counter.render(2), read(fs, null, 0L));
+      assertEquals(Counter.render(2), read(fs, second.fh, 0L));
+      assertEquals(2, counter.count);
+   }
+
+   public void testReadOnly() throws FuseException
+   {
+      StaticFilesystem fs = mount(new GeneratedFileNode("gen", counter));
+      try
+      {
+         fs.open(PATH, FuseFS.O_WRONLY, new OpenSetter());
+         fail("opened for writing");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(FuseException.EROFS, e.getErrno());
+      }
+      assertEquals(0, counter.count);
+   }
+
+
+   //
+   // private methods
+
+   private static StaticFilesystem mount(GeneratedFileNode node)
+   {
+      DirectoryNode root = new DirectoryNode("root");
+      root.addChild(node);
+
+      return new StaticFilesystem(root);
+   }
+
+   private static OpenSetter open(StaticFilesystem fs) throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(0, fs.open(PATH, FuseFS.O_RDONLY, openSetter));
+
+      return openSetter;
+   }
+
+   private static void release(StaticFilesystem fs, Object fh) throws FuseException
+   {
+      assertEquals(0, fs.release(PATH, fh, FuseFS.O_RDONLY));
+   }
+
+   private static String read(StaticFilesystem fs, Object fh, long offset) throws FuseException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(1000);
+      assertEquals(0, fs.read(PATH, fh, bb, offset));
+
+      try
+      {
+         return new String(bb.array(), 0, bb.position(), "UTF-8");
+      }
+      catch (UnsupportedEncodingException e)
+      {
+         throw new RuntimeException(e);
+      }
+   }
+
+   private static long getattrSize(StaticFilesystem fs) throws FuseException
+   {
+      final long[] size = new long[1];
+      assertEquals(0, fs.getattr(PATH, new FuseGetattrSetter()
+      {
+         public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long s, long blocks, int atime, int mtime, int ctime)
+         {
+            size[0] = s;
+         }
+      }));
+
+      return size[0];
+   }
+
+
+   /**
+    * Renders the number of times it was called, longer every time
+    */
+   private static class Counter implements GeneratedFileNode.Generator
+   {
+      int count;
+
+      static String render(int count)
+      {
+         StringBuilder sb = new StringBuilder("rendering " + count + "\n");
+         for (int i = 0; i < count; i++)
+            sb.append("line ").append(i).append('\n');
+
+         return sb.toString();
+      }
+
+      public synchronized byte[] generate() throws FuseException
+      {
+         try
+         {
+            return render(++count).getBytes("UTF-8");
+         }
+         catch (UnsupportedEncodingException e)
+         {
+            throw new RuntimeException(e);
+         }
+      }
+   }
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+      boolean directIO;
+      boolean keepCache;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return directIO;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         this.directIO = directIO;
+      }
+
+      public boolean isKeepCache()
+      {
+         return keepCache;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         this.keepCache = keepCache;
+      }
+   }
+}
@@ -0,0 +1,184 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+import fuse.FuseFS;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads a sparse file of a little more than 1 GiB, mapped in two chunks, across the chunk boundary
+ * and past its end: as a whole through the file constructor, and as regions of the mapping the way
+ * StaticImage creates its files.
+ */
+public class MappedFileNodeTest extends TestCase
+{
+   // the size of the mapped chunks in MappedFileNode
+   private static final long CHUNK_SIZE = 1L << 30;
+   private static final int TAIL = 65536;
+
+   private File file;
+   private long size;
+   // the content from CHUNK_SIZE - TAIL to the end of the file, the rest is a hole
+   private byte[] around;
+
+
+   protected void setUp() throws Exception
+   {
+      size = CHUNK_SIZE + TAIL;
+      around = new byte[2 * TAIL];
+      new Random(13L).nextBytes(around);
+
+      file = File.createTempFile("mapped", ".bin");
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         raf.setLength(size);
+         raf.seek(CHUNK_SIZE - TAIL);
+         raf.write(around);
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   protected void tearDown() throws Exception
+   {
+      file.delete();
+   }
+
+   public void testFile() throws IOException, FuseException
+   {
+      MappedFileNode node = new MappedFileNode("f", file);
+      assertEquals(size, node.getSize());
+      assertEquals(size, node.getStat().size);
+      assertEquals((int)(file.lastModified() / 1000L), node.getStat().mtime);
+
+      node.open(FuseFS.O_RDONLY);
+      try
+      {
+         // across the boundary, up to it and from it
+         assertRead(node, CHUNK_SIZE - 1000, 2000, CHUNK_SIZE - 1000);
+         assertRead(node, CHUNK_SIZE - 1000, 1000, CHUNK_SIZE - 1000);
+         assertRead(node, CHUNK_SIZE, 1000, CHUNK_SIZE);
+         assertRead(node, CHUNK_SIZE - TAIL, 2 * TAIL, CHUNK_SIZE - TAIL);
+
+         // the hole at the start
+         ByteBuffer bb = ByteBuffer.allocate(100);
+         node.read(bb, 0L);
+         assertEquals(100, bb.position());
+         assertTrue(Arrays.equals(new byte[100], bb.array()));
+
+         // cut at the end, nothing past it
+         assertRead(node, size - 10, 10, size - 10);
+         assertReadLength(node, size - 10, 1000, 10);
+         assertReadLength(node, size, 1000, 0);
+         assertReadLength(node, size + 5000, 1000, 0);
+      }
+      finally
+      {
+         node.release(FuseFS.O_RDONLY);
+      }
+
+      try
+      {
+         node.open(FuseFS.O_RDWR);
+         fail("opened for writing");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(FuseException.EROFS, e.getErrno());
+      }
+   }
+
+   public void testRegion() throws IOException, FuseException
+   {
+      MappedByteBuffer[] chunks;
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try
+      {
+         chunks = MappedFileNode.map(raf.getChannel(), size);
+      }
+      finally
+      {
+         raf.close();
+      }
+      assertEquals(2, chunks.length);
+
+      // a region across the boundary
+      long start = CHUNK_SIZE - 3000;
+      MappedFileNode node = new MappedFileNode("r", chunks, start, 6000);
+      assertEquals(6000, node.getSize());
+      assertRead(node, 0L, 6000, start);
+      assertRead(node, 2990L, 20, start + 2990);
+      assertRead(node, 3000L, 100, CHUNK_SIZE);
+      assertReadLength(node, 5990L, 100, 10);
+      assertReadLength(node, 6000L, 100, 0);
+
+      // regions ending at the boundary and at the end of the file
+      node = new MappedFileNode("a", chunks, CHUNK_SIZE - 500, 500);
+      assertRead(node, 0L, 500, CHUNK_SIZE - 500);
+      assertReadLength(node, 400L, 1000, 100);
+
+      node = new MappedFileNode("b", chunks, size - 500, 500);
+      assertRead(node, 100L, 400, size - 400);
+      assertReadLength(node, 100L, 1000, 400);
+   }
+
+   public void testEmpty() throws IOException, FuseException
+   {
+      File empty = File.createTempFile("mapped", ".bin");
+      try
+      {
+         MappedFileNode node = new MappedFileNode("e", empty);
+         assertEquals(0L, node.getSize());
+         assertReadLength(node, 0L, 100, 0);
+      }
+      finally
+      {
+         empty.delete();
+      }
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * Reads <code>len</code> bytes from <code>offset</code> and compares them with the file from <code>position</code>
+    */
+   private void assertRead(MappedFileNode node, long offset, int len, long position) throws FuseException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(len);
+      node.read(bb, offset);
+      assertEquals(len, bb.position());
+
+      int from = (int)(position - (CHUNK_SIZE - TAIL));
+      assertTrue("at " + offset, Arrays.equals(Arrays.copyOfRange(around, from, from + len), bb.array()));
+   }
+
+   private static void assertReadLength(MappedFileNode node, long offset, int len, int expected) throws FuseException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(len);
+      node.read(bb, offset);
+      assertEquals("at " + offset, expected, bb.position());
+   }
+}
@@ -0,0 +1,178 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads an OffHeapFileNode, and replaces its content while other threads read it: every read must
+ * see either the old or the new content, never a mix.
+ */
+public class OffHeapFileNodeTest extends TestCase
+{
+   private static final int THREADS = 4;
+   private static final int REPLACEMENTS = 2000;
+
+   public void testRead() throws FuseException
+   {
+      byte[] content = new byte[10000];
+      new Random(17L).nextBytes(content);
+      OffHeapFileNode node = new OffHeapFileNode("f", content);
+      assertEquals(content.length, node.getStat().size);
+
+      ByteBuffer bb = ByteBuffer.allocate(300);
+      node.read(bb, 1234L);
+      assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1234, 1534), bb.array()));
+
+      bb.clear();
+      node.read(bb, content.length - 100);
+      assertEquals(100, bb.position());
+      bb.clear();
+      node.read(bb, content.length);
+      assertEquals(0, bb.position());
+      node.read(bb, Integer.MAX_VALUE + 10L);
+      assertEquals(0, bb.position());
+
+      try
+      {
+         node.getContent().put(0, (byte)0);
+         fail("content writable");
+      }
+      catch (ReadOnlyBufferException e)
+      {
+         // expected
+      }
+   }
+
+   public void testBufferContent() throws FuseException
+   {
+      // from the position to the limit, not copied
+      ByteBuffer content = ByteBuffer.allocateDirect(100);
+      for (int i = 0; i < 100; i++)
+         content.put(i, (byte)i);
+      content.position(10).limit(60);
+
+      OffHeapFileNode node = new OffHeapFileNode("f", content);
+      assertEquals(50, node.getStat().size);
+
+      ByteBuffer bb = ByteBuffer.allocate(100);
+      node.read(bb, 5L);
+      assertEquals(45, bb.position());
+      assertEquals(15, bb.get(0));
+      assertEquals(10, content.position());
+   }
+
+   public void testSetContentDuringReads() throws Exception
+   {
+      final byte[] a = filled('a', 1000);
+      final byte[] b = filled('b', 3000);
+      final OffHeapFileNode node = new OffHeapFileNode("f", a);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+      Thread[] readers = new Thread[THREADS];
+      final AtomicBoolean done = new AtomicBoolean();
+      for (int t = 0; t < THREADS; t++)
+      {
+         final Random random = new Random(t);
+         readers[t] = new Thread()
+         {
+            public void run()
+            {
+               try
+               {
+                  ByteBuffer bb = ByteBuffer.allocate(4000);
+                  while (!done.get())
+                  {
+                     int offset = random.nextInt(3000);
+                     bb.clear();
+                     bb.limit(1 + random.nextInt(4000));
+                     node.read(bb, offset);
+                     assertConsistent(bb, offset);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  failure.compareAndSet(null, e);
+               }
+            }
+         };
+         readers[t].start();
+      }
+
+      try
+      {
+         for (int i = 0; i < REPLACEMENTS && failure.get() == null; i++)
+         {
+            byte[] content = (i % 2 == 0)? b : a;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+            buffer.put(content);
+            buffer.flip();
+            node.setContent(buffer);
+            assertEquals(content.length, node.getStat().size);
+            Thread.yield();
+         }
+      }
+      finally
+      {
+         done.set(true);
+         for (int t = 0; t < THREADS; t++)
+            readers[t].join();
+      }
+
+      if (failure.get() != null)
+         throw new AssertionError(failure.get());
+      assertEquals(a.length, node.getStat().size);
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * Checks that the bytes read are all of one content and as many as that content has from <code>offset</code>
+    */
+   private static void assertConsistent(ByteBuffer bb, int offset)
+   {
+      int len = bb.position();
+      if (len == 0)
+      {
+         // only the short content ends before the offset
+         assertTrue("nothing read at " + offset, offset >= 1000);
+         return;
+      }
+
+      byte c = bb.get(0);
+      int size = c == 'a'? 1000 : 3000;
+      assertEquals("at " + offset, Math.min(bb.limit(), size - offset), len);
+      for (int i = 1; i < len; i++)
+      {
+         if (bb.get(i) != c)
+            fail("mixed content at " + (offset + i));
+      }
+   }
+
+   private static byte[] filled(char c, int len)
+   {
+      byte[] b = new byte[len];
+      Arrays.fill(b, (byte)c);
+
+      return b;
+   }
+}
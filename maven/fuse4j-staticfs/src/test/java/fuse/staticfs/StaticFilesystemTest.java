@@ -0,0 +1,368 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.Filesystem3;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseFS;
+import fuse.FuseGetattr;
+import fuse.FuseOpenSetter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Resolves paths to filesystems mounted on MountpointNodes: a Filesystem3 must get the part of each
+ * path below the mountpoint, also for the requests that take two paths, and a SubPathFilesystem the
+ * whole path and the start of that part for its lookups. Also pages through and bulk fills
+ * DirectoryNodes, and lists mountpoints with the root attributes they cache.
+ */
+public class StaticFilesystemTest extends TestCase
+{
+   private List<String> calls;
+   // what the recorders return for getattr, an Integer errno or a FuseException to throw
+   private Object getattrFailure;
+   private StaticFilesystem fs;
+
+
+   protected void setUp() throws Exception
+   {
+      calls = new ArrayList<String>();
+
+      DirectoryNode root = new DirectoryNode("root");
+      DirectoryNode dir = new DirectoryNode("dir");
+      dir.addChild(new MountpointNode("m", (Filesystem3)createRecorder(Filesystem3.class)));
+      dir.addChild(new MountpointNode("s", (SubPathFilesystem)createRecorder(SubPathFilesystem.class)));
+      root.addChild(dir);
+      root.addChild(new DirectoryNode("other"));
+      fs = new StaticFilesystem(root);
+   }
+
+   public void testSubPath() throws FuseException
+   {
+      fs.getattr("/dir/m", null);
+      fs.getattr("/dir/m/", null);
+      fs.getattr("/dir/m/a/b", null);
+      fs.getattr("/other/../dir/./m/a", null);
+      fs.unlink("/dir/m/a");
+      fs.mkdir("/dir/m/new", 0755);
+      fs.symlink("target", "/dir/m/link");
+
+      assertCalls(new String[] {
+         "getattr /", "getattr /", "getattr /a/b", "getattr /a", "unlink /a", "mkdir /new", "symlink target /link"
+      });
+   }
+
+   public void testTwoPaths() throws FuseException
+   {
+      fs.rename("/dir/m/a", "/dir/m/b/c");
+      fs.link("/dir/./m/a", "/dir/m/d");
+
+      assertCalls(new String[] { "rename /a /b/c", "link /a /d" });
+   }
+
+   public void testCrossDevice()
+   {
+      try
+      {
+         fs.rename("/dir/m/a", "/other/b");
+         fail("renamed out of the mounted filesystem");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(FuseException.EXDEV, e.getErrno());
+      }
+      assertCalls(new String[0]);
+   }
+
+   public void testSubPathFilesystem() throws FuseException
+   {
+      fs.getattr("/dir/s", null);
+      fs.getattr("/other/../dir/s/a/b", null);
+      fs.getdir("/dir//s/", null);
+      fs.readlink("/dir/s/l", null);
+      OpenSetter openSetter = new OpenSetter();
+      fs.open("/dir/./s/a", FuseFS.O_RDONLY, openSetter);
+      fs.unlink("/dir/s/a");
+
+      // the handle goes to the filesystem, without a path
+      fs.read("/dir/s/a", openSetter.fh, null, 0L);
+      fs.release("/dir/s/a", openSetter.fh, FuseFS.O_RDONLY);
+
+      assertCalls(new String[] {
+         "getattr@/dir/s:", "getattr@/other/../dir/s/a/b:/a/b", "getdir@/dir//s/:/", "readlink@/dir/s/l:/l",
+         "open@/dir/./s/a:/a", "unlink /a", "read", "release"
+      });
+   }
+
+   public void testNestedStaticFilesystem() throws FuseException
+   {
+      DirectoryNode innerRoot = new DirectoryNode("inner");
+      DirectoryNode sub = new DirectoryNode("sub");
+      sub.addChild(new OffHeapFileNode("f", "content".getBytes()));
+      sub.addChild(new ReadOnlySymlinkNode("l", "f"));
+      innerRoot.addChild(sub);
+      fs.getRootNode().addChild(new MountpointNode("inner", new StaticFilesystem(innerRoot)));
+
+      CharBuffer link = CharBuffer.allocate(10);
+      assertEquals(0, fs.readlink("/inner/sub/l", link));
+      link.flip();
+      assertEquals("f", link.toString());
+
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(0, fs.open("/inner/./sub/f", FuseFS.O_RDONLY, openSetter));
+      ByteBuffer bb = ByteBuffer.allocate(100);
+      assertEquals(0, fs.read("/inner/sub/f", openSetter.fh, bb, 0L));
+      assertEquals("content", new String(bb.array(), 0, bb.position()));
+      assertEquals(0, fs.release("/inner/sub/f", openSetter.fh, FuseFS.O_RDONLY));
+
+      try
+      {
+         fs.getattr("/inner/sub/none", null);
+         fail("resolved a missing node");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(FuseException.ENOENT, e.getErrno());
+      }
+   }
+
+   public void testNoSuchNode()
+   {
+      try
+      {
+         fs.getattr("/dir/x/m", null);
+         fail("resolved a missing node");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(FuseException.ENOENT, e.getErrno());
+      }
+   }
+
+   public void testPaging()
+   {
+      DirectoryNode dir = new DirectoryNode("paged");
+      Node[] nodes = new Node[25];
+      for (int i = 0; i < nodes.length; i++)
+         nodes[nodes.length - 1 - i] = new DirectoryNode((i < 10? "c0" : "c") + i);
+      assertEquals(0, dir.addChildren(nodes).length);
+
+      assertNames(new String[] { "c00", "c01", "c02", "c03", "c04", "c05", "c06", "c07", "c08", "c09" }, dir.getChildren(null, 10));
+      assertNames(new String[] { "c10", "c11", "c12", "c13", "c14", "c15", "c16", "c17", "c18", "c19" }, dir.getChildren("c09", 10));
+      assertNames(new String[] { "c20", "c21", "c22", "c23", "c24" }, dir.getChildren("c19", 10));
+      assertNames(new String[0], dir.getChildren("c24", 10));
+      assertNames(new String[0], dir.getChildren(null, 0));
+
+      // the last name of a page stays a position when it is removed and others are added
+      dir.removeChild("c09");
+      dir.addChild(new DirectoryNode("c095"));
+      assertNames(new String[] { "c095", "c10", "c11" }, dir.getChildren("c09", 3));
+      assertNames(new String[] { "c11", "c12" }, dir.getChildren("c105", 2));
+      assertNames(new String[0], dir.getChildren("d", 10));
+   }
+
+   public void testAddChildren()
+   {
+      DirectoryNode dir = new DirectoryNode("merged");
+      Node a = new DirectoryNode("a");
+      Node c = new DirectoryNode("c");
+      dir.addChild(a);
+      dir.addChild(c);
+
+      Node b1 = new DirectoryNode("b");
+      Node b2 = new DirectoryNode("b");
+      Node c2 = new DirectoryNode("c");
+      Node d = new DirectoryNode("d");
+      Node[] replaced = dir.addChildren(d, b1, c2, b2);
+
+      // the last of the same name wins, the earlier one and the current child are replaced
+      assertEquals(2, replaced.length);
+      assertTrue(Arrays.asList(replaced).contains(b1));
+      assertTrue(Arrays.asList(replaced).contains(c));
+      assertNames(new String[] { "a", "b", "c", "d" }, dir.getChildren());
+      assertSame(a, dir.getChild("a"));
+      assertSame(b2, dir.getChild("b"));
+      assertSame(c2, dir.getChild("c"));
+      assertEquals(4, dir.getChildCount());
+
+      assertSame(dir, a.getParent());
+      assertSame(dir, b2.getParent());
+      assertSame(dir, c2.getParent());
+      assertSame(dir, d.getParent());
+      assertNull(b1.getParent());
+      assertNull(c.getParent());
+
+      // adding a child again doesn't detach it
+      replaced = dir.addChildren(a);
+      assertEquals(1, replaced.length);
+      assertSame(a, replaced[0]);
+      assertSame(dir, a.getParent());
+      assertEquals(0, dir.addChildren().length);
+   }
+
+   public void testRootAttributes() throws FuseException
+   {
+      assertEquals(Arrays.asList("m", "s"), list("/dir"));
+      assertEquals(Arrays.asList("m", "s"), list("/dir"));
+      assertCalls(new String[] { "getattr /", "getattr /" });
+
+      MountpointNode m = (MountpointNode)((DirectoryNode)fs.getRootNode().getChild("dir")).getChild("m");
+      FuseGetattr attributes = m.getRootAttributes();
+      assertNotNull(attributes);
+      assertSame(attributes, m.getRootAttributes());
+      assertEquals(2, calls.size());
+
+      // asked again after it has been invalidated, the other mountpoint keeps its attributes
+      m.invalidateRootAttributes();
+      assertEquals(Arrays.asList("m", "s"), list("/dir"));
+      assertCalls(new String[] { "getattr /", "getattr /", "getattr /" });
+      assertNotSame(attributes, m.getRootAttributes());
+   }
+
+   public void testRootAttributesFailure() throws FuseException
+   {
+      // a filesystem that fails to stat its root isn't listed, and asked again on the next listing
+      getattrFailure = Integer.valueOf(FuseException.EIO);
+      assertEquals(new ArrayList<String>(), list("/dir"));
+      assertEquals(new ArrayList<String>(), list("/dir"));
+      assertEquals(4, calls.size());
+
+      getattrFailure = new FuseException("failed").initErrno(FuseException.EIO);
+      assertEquals(new ArrayList<String>(), list("/dir"));
+      assertEquals(6, calls.size());
+
+      // until it succeeds
+      getattrFailure = null;
+      assertEquals(Arrays.asList("m", "s"), list("/dir"));
+      assertEquals(Arrays.asList("m", "s"), list("/dir"));
+      assertEquals(8, calls.size());
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * @return a filesystem recording the requests as the name and the String arguments, or the name,
+    *         the path and the part of it from the start for the lookups of a SubPathFilesystem
+    */
+   private Object createRecorder(Class<?> type)
+   {
+      return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] { type }, new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+         {
+            StringBuilder call = new StringBuilder(method.getName());
+            if (method.getDeclaringClass() == SubPathFilesystem.class)
+            {
+               String path = (String)args[0];
+               call.append('@').append(path).append(':').append(path.substring(((Integer)args[1]).intValue()));
+            }
+            else
+            {
+               for (int i = 0; args != null && i < args.length; i++)
+               {
+                  if (args[i] instanceof String)
+                     call.append(' ').append(args[i]);
+               }
+            }
+            calls.add(call.toString());
+
+            if (args != null && args[args.length - 1] instanceof FuseOpenSetter)
+               ((FuseOpenSetter)args[args.length - 1]).setFh(new Object());
+
+            if (getattrFailure != null && method.getName().equals("getattr"))
+            {
+               if (getattrFailure instanceof FuseException)
+                  throw (FuseException)getattrFailure;
+               return getattrFailure;
+            }
+
+            return method.getReturnType() == int.class? Integer.valueOf(0) : null;
+         }
+      });
+   }
+
+   private void assertCalls(String[] expected)
+   {
+      List<String> list = new ArrayList<String>();
+      for (int i = 0; i < expected.length; i++)
+         list.add(expected[i]);
+
+      assertEquals(list, calls);
+   }
+
+   private static void assertNames(String[] expected, Node[] nodes)
+   {
+      List<String> names = new ArrayList<String>();
+      for (int i = 0; i < nodes.length; i++)
+         names.add(nodes[i].getName());
+
+      assertEquals(Arrays.asList(expected), names);
+   }
+
+   private List<String> list(String path) throws FuseException
+   {
+      final List<String> names = new ArrayList<String>();
+      assertEquals(0, fs.getdir(path, new FuseDirFiller()
+      {
+         public void add(String name, long inode, int mode)
+         {
+            names.add(name);
+         }
+      }));
+
+      return names;
+   }
+
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+      boolean directIO;
+      boolean keepCache;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return directIO;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         this.directIO = directIO;
+      }
+
+      public boolean isKeepCache()
+      {
+         return keepCache;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         this.keepCache = keepCache;
+      }
+   }
+}
@@ -0,0 +1,246 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.staticfs;
+
+import fuse.FuseException;
+import fuse.FuseFS;
+import fuse.FuseFtype;
+import fuse.compat.FuseStat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Writes a tree with StaticImageBuilder and opens the image again: the tree must come back the same,
+ * and an image with any node pointing outside the names, the nodes or the file must be rejected.
+ */
+public class StaticImageTest extends TestCase
+{
+   // the nodes of the image, breadth first with the children sorted by name
+   private static final int ROOT = 0;
+   private static final int A_TXT = 1;
+   private static final int B = 2;
+   private static final int E = 3;
+   private static final int LINK = 4;
+   private static final int C_BIN = 6;
+
+   private byte[] small;
+   private byte[] big;
+   private File imageFile;
+
+
+   protected void setUp() throws Exception
+   {
+      small = "hello".getBytes("UTF-8");
+      big = new byte[100000];
+      new Random(3L).nextBytes(big);
+
+      DirectoryNode root = new DirectoryNode("root");
+      DirectoryNode b = new DirectoryNode("b");
+      b.addChild(setTime(new OffHeapFileNode("c.bin", big), 1000));
+      root.addChild(setTime(new OffHeapFileNode("a.txt", small), 2000));
+      root.addChild(b);
+      root.addChild(new DirectoryNode("e"));
+      root.addChild(new ReadOnlySymlinkNode("l", "b/c.bin"));
+      root.addChild(new OffHeapFileNode("äöü.txt", new byte[0]));
+
+      imageFile = File.createTempFile("static", ".img");
+      StaticImageBuilder.write(root, imageFile);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      imageFile.delete();
+   }
+
+   public void testRoundTrip() throws IOException, FuseException
+   {
+      DirectoryNode root = StaticImage.open(imageFile);
+
+      Node[] children = root.getChildren();
+      String[] names = new String[children.length];
+      for (int i = 0; i < children.length; i++)
+         names[i] = children[i].getName();
+      assertEquals(Arrays.asList("a.txt", "b", "e", "l", "äöü.txt"), Arrays.asList(names));
+
+      assertContent(small, root.getChild("a.txt"));
+      assertEquals(2000, root.getChild("a.txt").getStat().mtime);
+      assertEquals(FuseFtype.TYPE_FILE, root.getChild("a.txt").getStat().mode & FuseFtype.TYPE_MASK);
+      assertContent(new byte[0], root.getChild("äöü.txt"));
+
+      DirectoryNode b = (DirectoryNode)root.getChild("b");
+      assertEquals(1, b.getChildCount());
+      assertContent(big, b.getChild("c.bin"));
+      assertEquals(1000, b.getChild("c.bin").getStat().mtime);
+
+      assertEquals(0, ((DirectoryNode)root.getChild("e")).getChildCount());
+      assertEquals("b/c.bin", ((SymlinkNode)root.getChild("l")).getTarget());
+   }
+
+   public void testChildCountPastEnd() throws IOException
+   {
+      putLong(B, StaticImage.N_SECOND, 2);
+      assertRejected("child count");
+   }
+
+   public void testChildBeforeParent() throws IOException
+   {
+      // the children of /b would include the root's children
+      putLong(B, StaticImage.N_FIRST, 1);
+      assertRejected("first child");
+   }
+
+   public void testNodeLeftOut() throws IOException
+   {
+      putLong(ROOT, StaticImage.N_SECOND, 4);
+      assertRejected("child ranges");
+   }
+
+   public void testRootNotDirectory() throws IOException
+   {
+      putInt(ROOT, StaticImage.N_MODE, FuseFtype.TYPE_FILE | 0644);
+      assertRejected("root");
+   }
+
+   public void testNameOutOfRange() throws IOException
+   {
+      putInt(A_TXT, StaticImage.N_NAME_OFFSET, Integer.MAX_VALUE - 10);
+      assertRejected("name offset");
+
+      putInt(A_TXT, StaticImage.N_NAME_OFFSET, 0);
+      putInt(A_TXT, StaticImage.N_NAME_LENGTH, -1);
+      assertRejected("name length");
+   }
+
+   public void testLinkTargetOutOfRange() throws IOException
+   {
+      putLong(LINK, StaticImage.N_SECOND, 1L << 40);
+      assertRejected("link target");
+   }
+
+   public void testContentOutsideFile() throws IOException
+   {
+      putLong(C_BIN, StaticImage.N_SECOND, big.length + 1000);
+      assertRejected("size");
+
+      putLong(C_BIN, StaticImage.N_SECOND, big.length);
+      putLong(C_BIN, StaticImage.N_FIRST, 0);
+      assertRejected("content offset");
+   }
+
+   public void testEmptyDirectoryIgnoresFirst() throws IOException
+   {
+      // no children, nothing is read from the first child
+      putLong(E, StaticImage.N_FIRST, Long.MAX_VALUE);
+      StaticImage.open(imageFile);
+   }
+
+   public void testTruncated() throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(imageFile, "rw");
+      try
+      {
+         raf.setLength(raf.length() - 1);
+      }
+      finally
+      {
+         raf.close();
+      }
+      assertRejected("truncated");
+   }
+
+
+   //
+   // private methods
+
+   private static Node setTime(Node node, int time)
+   {
+      FuseStat stat = (FuseStat)node.getStat().clone();
+      stat.mtime = time;
+      node.setStat(stat);
+
+      return node;
+   }
+
+   private static void assertContent(byte[] expected, Node node) throws FuseException
+   {
+      FileNode file = (FileNode)node;
+      assertEquals(node.getName(), expected.length, file.getStat().size);
+
+      ByteBuffer bb = ByteBuffer.allocate(expected.length + 10);
+      file.open(FuseFS.O_RDONLY);
+      try
+      {
+         // in two reads, the second from an offset
+         bb.limit(expected.length / 2);
+         file.read(bb, 0L);
+         bb.limit(bb.capacity());
+         file.read(bb, bb.position());
+      }
+      finally
+      {
+         file.release(FuseFS.O_RDONLY);
+      }
+
+      assertEquals(node.getName(), expected.length, bb.position());
+      bb.flip();
+      byte[] content = new byte[bb.remaining()];
+      bb.get(content);
+      assertTrue(node.getName(), Arrays.equals(expected, content));
+   }
+
+   private void putInt(int node, int field, int value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      bb.putInt(0, value);
+      write(node, field, bb);
+   }
+
+   private void putLong(int node, int field, long value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      bb.putLong(0, value);
+      write(node, field, bb);
+   }
+
+   private void write(int node, int field, ByteBuffer bb) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(imageFile, "rw");
+      try
+      {
+         raf.getChannel().write(bb, StaticImage.HEADER_SIZE + node * StaticImage.NODE_SIZE + field);
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   private void assertRejected(String name)
+   {
+      try
+      {
+         StaticImage.open(imageFile);
+         fail(name + ": accepted");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+   }
+}
@@ -0,0 +1,34 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import java.io.IOException;
+
+
+/**
+ * Sequential reads of the (uncompressed) tar stream of a TarArchive from any position
+ */
+public interface StreamReader
+{
+   /**
+    * Positions the reader so that the next read returns the byte at <code>position</code>
+    */
+   public void seek(long position) throws IOException;
+
+   /**
+    * @return the number of bytes read or -1 at the end of the stream
+    */
+   public int read(byte[] b, int off, int len) throws IOException;
+
+   /**
+    * Releases the resources of the reader, it must not be used afterwards
+    */
+   public void close();
+}
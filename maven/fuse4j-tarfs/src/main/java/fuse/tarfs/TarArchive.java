@@ -0,0 +1,305 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import fuse.zipfs.util.InflateIndex;
+import fuse.zipfs.util.RandomAccessInflater;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * A tar file, optionally gzip or zstd compressed, read with positional reads. The (uncompressed) tar
+ * stream is read through StreamReaders, which resume at the checkpoints recorded while scanning
+ * instead of decompressing from the start: the InflateIndex of a gzip stream or the ZstdFrameIndex
+ * of a zstd stream.
+ */
+public class TarArchive
+{
+   public static final int NONE = 0;
+   public static final int GZIP = 1;
+   public static final int ZSTD = 2;
+
+   /**
+    * The interval of the gzip checkpoints, by default the larger of 1 MiB and a 1024th of the file
+    */
+   private static final long INDEX_INTERVAL = Long.getLong("fuse4j.tarfs.indexInterval", 0L).longValue();
+
+   // gzip header flags
+   private static final int FHCRC = 2;
+   private static final int FEXTRA = 4;
+   private static final int FNAME = 8;
+   private static final int FCOMMENT = 16;
+
+   private File file;
+   private RandomAccessFile raf;
+   private FileChannel channel;
+   private long length;
+   private int compression;
+
+   // gzip: the deflate stream
+   private long deflateOffset;
+   private long deflateLength;
+
+   private InflateIndex inflateIndex;
+   private ZstdFrameIndex frameIndex;
+
+
+   public TarArchive(File file) throws IOException
+   {
+      this.file = file;
+      raf = new RandomAccessFile(file, "r");
+      try
+      {
+         channel = raf.getChannel();
+         length = channel.size();
+
+         ByteBuffer magic = read(0L, (int)Math.min(4L, length));
+         if (magic.limit() >= 2 && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b)
+         {
+            compression = GZIP;
+            deflateOffset = readGzipHeader();
+            // the stream is followed by CRC32 and ISIZE
+            deflateLength = length - deflateOffset - 8L;
+            if (deflateLength < 0)
+               throw new EOFException("truncated gzip file");
+
+            long interval = INDEX_INTERVAL > 0? INDEX_INTERVAL : Math.max(1L << 20, length / 1024L);
+            inflateIndex = new InflateIndex(interval);
+         }
+         else if (magic.limit() == 4 && ZstdFrameIndex.isFrame(magic.order(ByteOrder.LITTLE_ENDIAN).getInt(0)))
+         {
+            compression = ZSTD;
+            frameIndex = new ZstdFrameIndex();
+         }
+         else
+            compression = NONE;
+      }
+      catch (IOException e)
+      {
+         raf.close();
+         throw e;
+      }
+   }
+
+   public File getFile()
+   {
+      return file;
+   }
+
+   public FileChannel getChannel()
+   {
+      return channel;
+   }
+
+   /**
+    * @return NONE, GZIP or ZSTD
+    */
+   public int getCompression()
+   {
+      return compression;
+   }
+
+   public long getDeflateOffset()
+   {
+      return deflateOffset;
+   }
+
+   public long getDeflateLength()
+   {
+      return deflateLength;
+   }
+
+   /**
+    * @return the checkpoints of a gzip stream, null otherwise
+    */
+   public InflateIndex getInflateIndex()
+   {
+      return inflateIndex;
+   }
+
+   /**
+    * @return the frames of a zstd stream, null otherwise
+    */
+   public ZstdFrameIndex getFrameIndex()
+   {
+      return frameIndex;
+   }
+
+   /**
+    * @return a new reader of the tar stream, positioned at its start. Readers are not thread safe.
+    */
+   public StreamReader openStreamReader()
+   {
+      switch (compression)
+      {
+         case GZIP:
+            final RandomAccessInflater inflater = new RandomAccessInflater(channel, deflateOffset, deflateLength, inflateIndex);
+            return new StreamReader()
+            {
+               public void seek(long position) throws IOException
+               {
+                  inflater.seek(position);
+               }
+
+               public int read(byte[] b, int off, int len) throws IOException
+               {
+                  return inflater.read(b, off, len);
+               }
+
+               public void close()
+               {
+                  inflater.end();
+               }
+            };
+
+         case ZSTD:
+            return new ZstdStreamReader(channel, length, frameIndex);
+
+         default:
+            return new StreamReader()
+            {
+               private long position;
+
+               public void seek(long position)
+               {
+                  this.position = position;
+               }
+
+               public int read(byte[] b, int off, int len) throws IOException
+               {
+                  int n = TarArchive.this.read(position, ByteBuffer.wrap(b, off, (int)Math.max(0L, Math.min(len, length - position))));
+                  if (n <= 0)
+                     return -1;
+
+                  position += n;
+                  return n;
+               }
+
+               public void close()
+               {
+               }
+            };
+      }
+   }
+
+   /**
+    * Reads up to the remaining bytes of <code>bb</code> from an uncompressed tar file
+    *
+    * @return the number of bytes read, less at the end of the file
+    */
+   public int read(long position, ByteBuffer bb) throws IOException
+   {
+      int start = bb.position();
+      while (bb.hasRemaining())
+      {
+         if (channel.read(bb, position + bb.position() - start) < 0)
+            break;
+      }
+
+      return bb.position() - start;
+   }
+
+   /**
+    * @return the CRC32 of the last (up to) 64 KiB of the file, to tell a rewritten archive of the
+    *         same size and modification time from the indexed one
+    */
+   public long getTailChecksum() throws IOException
+   {
+      int len = (int)Math.min(length, 65536L);
+      ByteBuffer tail = read(length - len, len);
+      CRC32 crc = new CRC32();
+      crc.update(tail.array(), 0, tail.limit());
+
+      return crc.getValue();
+   }
+
+   public void close() throws IOException
+   {
+      raf.close();
+   }
+
+
+   //
+   // package private: the checkpoints of an index file
+
+   void setInflateIndex(InflateIndex inflateIndex)
+   {
+      this.inflateIndex = inflateIndex;
+   }
+
+   void setFrameIndex(ZstdFrameIndex frameIndex)
+   {
+      this.frameIndex = frameIndex;
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * @return the offset of the deflate stream following the gzip header (RFC 1952)
+    */
+   private long readGzipHeader() throws IOException
+   {
+      ByteBuffer header = read(0L, (int)Math.min(10L, length)).order(ByteOrder.LITTLE_ENDIAN);
+      if (header.limit() < 10 || header.get(2) != 8)
+         throw new IOException("not a deflate compressed gzip file");
+
+      int flags = header.get(3) & 0xff;
+      long pos = 10L;
+
+      if ((flags & FEXTRA) != 0)
+         pos += 2 + (read(pos, 2).order(ByteOrder.LITTLE_ENDIAN).getShort(0) & 0xffff);
+      if ((flags & FNAME) != 0)
+         pos = skipZeroTerminated(pos);
+      if ((flags & FCOMMENT) != 0)
+         pos = skipZeroTerminated(pos);
+      if ((flags & FHCRC) != 0)
+         pos += 2;
+
+      return pos;
+   }
+
+   private long skipZeroTerminated(long pos) throws IOException
+   {
+      while (true)
+      {
+         ByteBuffer bb = read(pos, (int)Math.min(256L, length - pos));
+         if (!bb.hasRemaining())
+            throw new EOFException("truncated gzip header");
+
+         while (bb.hasRemaining())
+         {
+            pos++;
+            if (bb.get() == 0)
+               return pos;
+         }
+      }
+   }
+
+   private ByteBuffer read(long position, int size) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(size);
+      read(position, bb);
+      if (bb.hasRemaining())
+         throw new EOFException("unexpected end of " + file);
+      bb.flip();
+
+      return bb;
+   }
+}
@@ -0,0 +1,193 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import fuse.FuseException;
+import fuse.zipfs.BlockCache;
+import fuse.zipfs.InflateReadAhead;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The state of one open file handle of a tar member. Members of an uncompressed tar are read with
+ * positional reads and no locking. Members of a compressed one are read through the BlockCache,
+ * whose blocks are blocks of the decompressed tar stream shared by all members, and only decompressed
+ * under the monitor of the handle.
+ */
+public class TarEntryReader
+{
+   private TarArchive archive;
+   private long dataOffset;
+   private long size;
+   private long streamSize;
+   private BlockCache blockCache;
+   // of the block looked up in the BlockCache, reused by every read of the handle
+   private BlockCache.Key key = new BlockCache.Key();
+   // gzip only, may be null
+   private InflateReadAhead readAhead;
+
+   private StreamReader streamReader;
+   private byte[] blockBuff;
+   private long lastBlock;
+
+
+   TarEntryReader(TarArchive archive, long dataOffset, long size, long streamSize, BlockCache blockCache, InflateReadAhead readAhead)
+   {
+      this.archive = archive;
+      this.dataOffset = dataOffset;
+      this.size = size;
+      this.streamSize = streamSize;
+      this.blockCache = blockCache;
+      this.readAhead = readAhead;
+      lastBlock = dataOffset / BlockCache.BLOCK_SIZE - 1;
+   }
+
+   public void read(ByteBuffer bb, long offset) throws FuseException
+   {
+      if (offset >= size)
+         return;
+
+      // don't read past the member
+      int limit = bb.limit();
+      bb.limit(bb.position() + (int)Math.min(bb.remaining(), size - offset));
+      try
+      {
+         if (archive.getCompression() == TarArchive.NONE)
+            archive.read(dataOffset + offset, bb);
+         else if (blockCache != null)
+            readCached(bb, dataOffset + offset);
+         else
+            readDirect(bb, dataOffset + offset);
+      }
+      catch (IOException e)
+      {
+         throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+      }
+      finally
+      {
+         bb.limit(limit);
+      }
+   }
+
+   /**
+    * Releases the decompressor, the reader must not be used afterwards
+    */
+   public synchronized void close()
+   {
+      if (streamReader != null)
+      {
+         streamReader.close();
+         streamReader = null;
+      }
+      blockBuff = null;
+   }
+
+
+   //
+   // private methods
+
+   private synchronized void readCached(ByteBuffer bb, long pos) throws IOException
+   {
+      while (bb.hasRemaining())
+      {
+         long block = pos / BlockCache.BLOCK_SIZE;
+         long blockStart = block * BlockCache.BLOCK_SIZE;
+
+         if (readAhead != null && block == lastBlock + 1)
+            readAhead.readAhead(blockStart);
+         lastBlock = block;
+
+         int p = (int)(pos - blockStart);
+         key.set(archive, 0, block);
+         int n = blockCache.read(key, p, bb);
+         if (n < 0 && readAhead != null)
+         {
+            readAhead.await(blockStart);
+            n = blockCache.read(key, p, bb);
+         }
+         if (n < 0)
+            n = decompressBlock(block, blockStart, p, bb);
+
+         // premature end of the tar stream
+         if (n == 0)
+            return;
+
+         pos += n;
+      }
+   }
+
+   /**
+    * Decompresses a block into the cache and copies it from <code>p</code> into <code>bb</code>
+    *
+    * @return the number of bytes copied
+    */
+   private synchronized int decompressBlock(long block, long blockStart, int p, ByteBuffer bb) throws IOException
+   {
+      if (blockBuff == null)
+         blockBuff = new byte[BlockCache.BLOCK_SIZE];
+
+      int n = readAt(blockBuff, (int)Math.min(BlockCache.BLOCK_SIZE, streamSize - blockStart), blockStart);
+
+      blockCache.put(archive, 0, block, ByteBuffer.wrap(blockBuff, 0, n));
+
+      int count = Math.max(0, Math.min(n - p, bb.remaining()));
+      bb.put(blockBuff, p, count);
+
+      return count;
+   }
+
+   private synchronized void readDirect(ByteBuffer bb, long pos) throws IOException
+   {
+      if (blockBuff == null)
+         blockBuff = new byte[BlockCache.BLOCK_SIZE];
+
+      // through the block buffer, one block at a time, the stream continues where the last one ended
+      while (bb.hasRemaining())
+      {
+         int len = Math.min(blockBuff.length, bb.remaining());
+         int n = readAt(blockBuff, len, pos);
+
+         bb.put(blockBuff, 0, n);
+         pos += n;
+         if (n < len)
+            return;
+      }
+   }
+
+   private int readAt(byte[] buff, int len, long pos) throws IOException
+   {
+      if (streamReader == null)
+         streamReader = archive.openStreamReader();
+
+      int nread = 0;
+      try
+      {
+         streamReader.seek(pos);
+         while (nread < len)
+         {
+            int n = streamReader.read(buff, nread, len - nread);
+            if (n < 0)
+               break;
+            nread += n;
+         }
+      }
+      catch (IOException e)
+      {
+         // the decompressor state is undefined, start over next time
+         streamReader.close();
+         streamReader = null;
+         throw e;
+      }
+
+      return nread;
+   }
+}
@@ -0,0 +1,317 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import fuse.*;
+import fuse.zipfs.BlockCache;
+import fuse.zipfs.InflateReadAhead;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A read-only view of a tar, tar.gz or tar.zst file. The archive is scanned once and the index,
+ * including the decompression checkpoints, is kept in an index file in the user's cache directory
+ * like the zipfs indexes (see TarIndex and ZipIndex.open), so later mounts start right away and
+ * reads decompress from the nearest checkpoint. Shares the BlockCache and the read-ahead of zipfs.
+ */
+public class TarFilesystem implements Filesystem3
+{
+   private static final Log log = LogFactory.getLog(TarFilesystem.class);
+
+   private static final int blockSize = 512;
+
+
+   private TarArchive tarArchive;
+   private TarIndex tarIndex;
+   private FuseStatfs statfs;
+
+   private BlockCache blockCache;
+   private InflateReadAhead readAhead;
+
+
+   public TarFilesystem(File file) throws IOException
+   {
+      this(file, BlockCache.getSharedCache());
+   }
+
+   /**
+    * @param blockCache the cache of decompressed blocks, may be null
+    */
+   public TarFilesystem(File file, BlockCache blockCache) throws IOException
+   {
+      tarArchive = new TarArchive(file);
+      try
+      {
+         tarIndex = TarIndex.open(tarArchive);
+      }
+      catch (IOException e)
+      {
+         tarArchive.close();
+         throw e;
+      }
+
+      this.blockCache = blockCache != null && blockCache.isEnabled()? blockCache : null;
+      if (this.blockCache != null && tarArchive.getCompression() == TarArchive.GZIP && InflateReadAhead.isEnabled())
+         readAhead = new InflateReadAhead(tarArchive, 0, tarArchive.getChannel(), tarArchive.getDeflateOffset(), tarArchive.getDeflateLength(),
+                                          tarIndex.getStreamSize(), tarArchive.getInflateIndex(), this.blockCache);
+
+      long files = tarIndex.getFileCount();
+      long dirs = tarIndex.getDirectoryCount();
+      long blocks = tarIndex.getBlockCount();
+
+      statfs = new FuseStatfs();
+      statfs.blocks = (int)Math.min(blocks, Integer.MAX_VALUE);
+      statfs.blockSize = blockSize;
+      statfs.blocksFree = 0;
+      statfs.files = (int)Math.min(files + dirs, Integer.MAX_VALUE);
+      statfs.filesFree = 0;
+      statfs.namelen = 2048;
+
+      log.info("tar file structure extracted: " + files + " files, " + dirs + " directories, " + blocks + " blocks (" + blockSize + " byte/block).");
+   }
+
+   /**
+    * Drops the cached blocks of the archive and closes it. Handles that are still open can't be read
+    * any more.
+    */
+   public void close() throws IOException
+   {
+      if (blockCache != null)
+      {
+         log.info("closing " + tarArchive.getFile() + ", " + blockCache);
+         blockCache.invalidate(tarArchive);
+      }
+
+      tarArchive.close();
+   }
+
+
+   public int chmod(String path, int mode) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int chown(String path, int uid, int gid) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int getattr(String path, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      int node = tarIndex.lookup(path);
+      if (node < 0)
+         return Errno.ENOENT;
+
+      long size = tarIndex.getSize(node);
+      int time = (int) tarIndex.getTime(node);
+      getattrSetter.set(
+         node,
+         getMode(node),
+         1,
+         0,
+         0,
+         0,
+         size,
+         (size + 511L) / 512L,
+         time, time, time
+      );
+
+      return 0;
+   }
+
+   public int getdir(String path, FuseDirFiller dirFiller) throws FuseException
+   {
+      int node = tarIndex.lookup(path);
+      if (node < 0)
+         return Errno.ENOENT;
+
+      if (tarIndex.getType(node) != TarIndex.DIRECTORY)
+         return Errno.ENOTDIR;
+
+      int first = tarIndex.getFirstChild(node);
+      int last = first + tarIndex.getChildCount(node);
+      for (int child = first; child < last; child++)
+         dirFiller.add(tarIndex.getName(child), child, getMode(child));
+
+      return 0;
+   }
+
+   public int link(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int mkdir(String path, int mode) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int mknod(String path, int mode, int rdev) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      int node = tarIndex.lookup(path);
+      if (node < 0)
+         return Errno.ENOENT;
+
+      if (tarIndex.getType(node) != TarIndex.FILE)
+         return Errno.EISDIR;
+
+      if (flags == O_WRONLY || flags == O_RDWR)
+         return Errno.EROFS;
+
+      // the archive doesn't change under us
+      openSetter.setKeepCache(true);
+      openSetter.setFh(new TarEntryReader(tarArchive, tarIndex.getDataOffset(node), tarIndex.getSize(node), tarIndex.getStreamSize(), blockCache, readAhead));
+
+      return 0;
+   }
+
+   public int rename(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int rmdir(String path) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int statfs(FuseStatfsSetter statfsSetter) throws FuseException
+   {
+      statfsSetter.set(statfs.blockSize, statfs.blocks, statfs.blocksFree, statfs.blocksAvail, statfs.files, statfs.filesFree, statfs.namelen);
+
+      return 0;
+   }
+
+   public int symlink(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int truncate(String path, long size) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int unlink(String path) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int utime(String path, int atime, int mtime) throws FuseException
+   {
+      // noop
+      return 0;
+   }
+
+   public int readlink(String path, CharBuffer link) throws FuseException
+   {
+      int node = tarIndex.lookup(path);
+      if (node < 0)
+         return Errno.ENOENT;
+
+      if (tarIndex.getType(node) != TarIndex.SYMLINK)
+         return Errno.EINVAL;
+
+      String target = tarIndex.getLink(node);
+      if (target.length() > link.remaining())
+         return Errno.ENAMETOOLONG;
+
+      link.append(target);
+
+      return 0;
+   }
+
+   public int write(String path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException
+   {
+      ((TarEntryReader)fh).read(buf, offset);
+
+      return 0;
+   }
+
+   public int flush(String path, Object fh) throws FuseException
+   {
+      return 0;
+   }
+
+   public int fsync(String path, Object fh, boolean isDatasync) throws FuseException
+   {
+      return 0;
+   }
+
+   public int release(String path, Object fh, int flags) throws FuseException
+   {
+      ((TarEntryReader)fh).close();
+
+      return 0;
+   }
+
+
+   //
+   // private methods
+
+   private int getMode(int node)
+   {
+      int mode = tarIndex.getMode(node) & 0755;
+
+      switch (tarIndex.getType(node))
+      {
+         case TarIndex.DIRECTORY:
+            return FuseFtype.TYPE_DIR | mode | 0555;
+         case TarIndex.SYMLINK:
+            return FuseFtype.TYPE_SYMLINK | 0777;
+         default:
+            return FuseFtype.TYPE_FILE | mode | 0444;
+      }
+   }
+
+
+
+   //
+   // Java entry point
+
+   public static void main(String[] args)
+   {
+      if (args.length < 1)
+      {
+         System.out.println("Must specify tar file");
+         System.exit(-1);
+      }
+
+      String fuseArgs[] = new String[args.length - 1];
+      System.arraycopy(args, 0, fuseArgs, 0, fuseArgs.length);
+      File tarFile = new File(args[args.length - 1]);
+
+      try
+      {
+         FuseMount.mount(fuseArgs, new TarFilesystem(tarFile), log);
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+      }
+   }
+}
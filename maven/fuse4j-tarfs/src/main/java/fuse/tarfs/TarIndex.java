@@ -0,0 +1,765 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import fuse.zipfs.ZipIndex;
+import fuse.zipfs.util.InflateIndex;
+import fuse.zipfs.util.PathTrie;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * The members of a tar file in a PathTrie, found by scanning the tar stream once. The index is
+ * written to a file together with the decompression checkpoints recorded during the scan, so the
+ * next mount neither scans nor decompresses the archive.
+ * <p/>
+ * Understands ustar, GNU (long names and links) and pax (path, linkpath, size, mtime) headers. Hard
+ * links are resolved to the data of their target, devices, fifos and sparse files are left out.
+ */
+public class TarIndex
+{
+   private static final Log log = LogFactory.getLog(TarIndex.class);
+
+   public static final int FILE = 0;
+   public static final int DIRECTORY = 1;
+   public static final int SYMLINK = 2;
+   // resolved to FILE when the index is built
+   private static final int HARDLINK = 3;
+
+   private static final long MAGIC = 0x46344a5449445831L; // "F4JTIDX1"
+   private static final int VERSION = 1;
+   private static final int BLOCK_SIZE = 512;
+   // limit of the data of GNU long name and pax header records
+   private static final int MAX_HEADER_DATA = 1 << 20;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private long archiveSize;
+   private long archiveTime;
+   private long archiveChecksum;
+   private int compression;
+   // end of the tar stream
+   private long streamSize;
+
+   private PathTrie trie;
+   private MemberTable members;
+
+   // checkpoints of the compressed stream
+   private InflateIndex inflateIndex;
+   private ZstdFrameIndex frameIndex;
+
+   private long files;
+   private long directories;
+   private long blocks;
+
+
+   private TarIndex(long archiveSize, long archiveTime, long archiveChecksum, int compression, long streamSize, PathTrie trie, MemberTable members,
+                    InflateIndex inflateIndex, ZstdFrameIndex frameIndex)
+   {
+      this.archiveSize = archiveSize;
+      this.archiveTime = archiveTime;
+      this.archiveChecksum = archiveChecksum;
+      this.compression = compression;
+      this.streamSize = streamSize;
+      this.trie = trie;
+      this.members = members;
+      this.inflateIndex = inflateIndex;
+      this.frameIndex = frameIndex;
+
+      for (int node = 0; node < trie.size(); node++)
+      {
+         if (getType(node) == DIRECTORY)
+            directories++;
+         else
+         {
+            files++;
+            blocks += (getSize(node) + BLOCK_SIZE - 1) / BLOCK_SIZE;
+         }
+      }
+   }
+
+   /**
+    * Loads the index file of the archive (see {@link ZipIndex#getIndexFile(File)}) if it is up to
+    * date and hands its checkpoints to the archive, otherwise scans the archive and tries to write
+    * the index file for the next time. As with zip indexes, only an index file the user owns and
+    * nobody else can write is used (see {@link ZipIndex#openIndexFile(File)}).
+    */
+   public static TarIndex open(TarArchive archive) throws IOException
+   {
+      File file = archive.getFile();
+      long size = file.length();
+      long time = file.lastModified();
+      long checksum = archive.getTailChecksum();
+
+      File indexFile = ZipIndex.getIndexFile(file);
+      if (indexFile != null && indexFile.exists())
+      {
+         try
+         {
+            TarIndex index = load(indexFile);
+            if (index.isIndexOf(size, time, checksum, archive.getCompression()))
+            {
+               archive.setInflateIndex(index.inflateIndex);
+               archive.setFrameIndex(index.frameIndex);
+               log.info("using index file " + indexFile + ": " + index.getMemberCount() + " members");
+               return index;
+            }
+            log.info("index file " + indexFile + " is out of date");
+         }
+         catch (IOException e)
+         {
+            log.warn("can't use index file " + indexFile + ": " + e);
+         }
+      }
+
+      log.info("scanning " + file + "...");
+      TarIndex index = build(archive, size, time, checksum);
+      log.info("scanned " + file + ": " + index.getMemberCount() + " members, " + index.getStreamSize() + " bytes");
+
+      if (indexFile != null)
+      {
+         try
+         {
+            index.write(indexFile);
+         }
+         catch (IOException e)
+         {
+            log.warn("can't write index file " + indexFile + ": " + e);
+         }
+      }
+
+      return index;
+   }
+
+   /**
+    * Scans the tar stream, recording the checkpoints of a compressed stream into the archive
+    */
+   public static TarIndex build(TarArchive archive, long size, long time, long checksum) throws IOException
+   {
+      PathTrie.Builder builder = new PathTrie.Builder();
+      MemberTable members = new MemberTable();
+      StreamReader reader = archive.openStreamReader();
+      long pos = 0L;
+
+      try
+      {
+         byte[] header = new byte[BLOCK_SIZE];
+         String longName = null;
+         String longLink = null;
+         Map<String, String> pax = null;
+
+         while (true)
+         {
+            reader.seek(pos);
+            if (readFully(reader, header, BLOCK_SIZE) < BLOCK_SIZE)
+            {
+               log.warn("unexpected end of tar stream at " + pos);
+               break;
+            }
+
+            // end of archive
+            if (isZero(header))
+            {
+               pos += BLOCK_SIZE;
+               break;
+            }
+
+            if (!isValidHeader(header))
+               throw new IOException("invalid tar header at " + pos);
+
+            int typeflag = header[156];
+            long dataSize = pax != null && pax.containsKey("size")? parseDecimal(pax.get("size")) : parseNumber(header, 124, 12);
+            long dataStart = pos + BLOCK_SIZE;
+
+            switch (typeflag)
+            {
+               case 'L':
+                  longName = parseString(readData(reader, dataSize), 0, (int)dataSize);
+                  break;
+
+               case 'K':
+                  longLink = parseString(readData(reader, dataSize), 0, (int)dataSize);
+                  break;
+
+               case 'x':
+                  pax = parsePax(readData(reader, dataSize));
+                  break;
+
+               case 'g':
+                  // global pax headers: nothing we use
+                  break;
+
+               default:
+                  String name = longName != null? longName : pax != null && pax.containsKey("path")? pax.get("path") : parseName(header);
+                  String link = longLink != null? longLink : pax != null && pax.containsKey("linkpath")? pax.get("linkpath") : parseString(header, 157, 100);
+                  long mtime = pax != null && pax.containsKey("mtime")? parseDecimal(pax.get("mtime")) : parseNumber(header, 136, 12);
+                  int type = getMemberType(typeflag, name);
+
+                  if (type >= 0)
+                     builder.add(name, members.add(type, (int)parseNumber(header, 100, 8), mtime, type == DIRECTORY? 0L : dataSize, dataStart, type == SYMLINK || type == HARDLINK? link : null));
+                  else
+                     log.debug("skipping " + name + " of type '" + (char)typeflag + "'");
+
+                  longName = null;
+                  longLink = null;
+                  pax = null;
+            }
+
+            pos = dataStart + (dataSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+
+      PathTrie trie = builder.build();
+      members.resolveHardLinks(trie);
+
+      return new TarIndex(size, time, checksum, archive.getCompression(), pos, trie, members, archive.getInflateIndex(), archive.getFrameIndex());
+   }
+
+   /**
+    * Reads an index file, checking every offset and range in it so that a corrupt index can't send
+    * reads outside the tar stream or the archive
+    */
+   public static TarIndex load(File indexFile) throws IOException
+   {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ZipIndex.openIndexFile(indexFile).getChannel()), 65536));
+      try
+      {
+         if (in.readLong() != MAGIC || in.readInt() != VERSION)
+            throw new IOException("not an index file");
+
+         long archiveSize = in.readLong();
+         long archiveTime = in.readLong();
+         long archiveChecksum = in.readLong();
+         int compression = in.readInt();
+         long streamSize = in.readLong();
+         if (archiveSize < 0 || streamSize < 0 || compression < TarArchive.NONE || compression > TarArchive.ZSTD
+             || (compression == TarArchive.NONE && streamSize > archiveSize))
+            throw new IOException("corrupt index file");
+
+         MemberTable members = MemberTable.read(in);
+         for (int i = 0; i < members.count; i++)
+         {
+            if (members.offset[i] > streamSize - members.size[i])
+               throw new IOException("corrupt index file");
+         }
+
+         PathTrie trie = PathTrie.read(in);
+         for (int node = 0; node < trie.size(); node++)
+         {
+            if (trie.getValue(node) < -1 || trie.getValue(node) >= members.count)
+               throw new IOException("corrupt index file");
+         }
+
+         InflateIndex inflateIndex = null;
+         ZstdFrameIndex frameIndex = null;
+         if (compression == TarArchive.GZIP)
+            inflateIndex = InflateIndex.read(in, archiveSize);
+         else if (compression == TarArchive.ZSTD)
+            frameIndex = ZstdFrameIndex.read(in, archiveSize);
+
+         return new TarIndex(archiveSize, archiveTime, archiveChecksum, compression, streamSize, trie, members, inflateIndex, frameIndex);
+      }
+      catch (EOFException e)
+      {
+         throw new IOException("truncated index file");
+      }
+      finally
+      {
+         in.close();
+      }
+   }
+
+   /**
+    * Writes the index to a file, atomically replacing an existing one
+    */
+   public void write(File indexFile) throws IOException
+   {
+      File tmpFile = ZipIndex.createTempIndexFile(indexFile);
+      try
+      {
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 65536));
+         try
+         {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(archiveSize);
+            out.writeLong(archiveTime);
+            out.writeLong(archiveChecksum);
+            out.writeInt(compression);
+            out.writeLong(streamSize);
+
+            members.write(out);
+            trie.write(out);
+            if (inflateIndex != null)
+               inflateIndex.write(out);
+            if (frameIndex != null)
+               frameIndex.write(out);
+         }
+         finally
+         {
+            out.close();
+         }
+
+         if (!tmpFile.renameTo(indexFile))
+            throw new IOException("can't rename " + tmpFile + " to " + indexFile);
+      }
+      finally
+      {
+         tmpFile.delete();
+      }
+   }
+
+   public boolean isIndexOf(long size, long time, long checksum, int compression)
+   {
+      return archiveSize == size && archiveTime == time && archiveChecksum == checksum && this.compression == compression;
+   }
+
+   /**
+    * @return the node of the path or -1 if there is none
+    */
+   public int lookup(CharSequence path)
+   {
+      return trie.lookup(path);
+   }
+
+   public int getNodeCount()
+   {
+      return trie.size();
+   }
+
+   public int getMemberCount()
+   {
+      return members.count;
+   }
+
+   public String getName(int node)
+   {
+      return trie.getName(node);
+   }
+
+   public int getParent(int node)
+   {
+      return trie.getParent(node);
+   }
+
+   public int getFirstChild(int node)
+   {
+      return trie.getFirstChild(node);
+   }
+
+   public int getChildCount(int node)
+   {
+      return trie.getChildCount(node);
+   }
+
+   /**
+    * @return FILE, DIRECTORY or SYMLINK; nodes without a member of their own are directories
+    */
+   public int getType(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? DIRECTORY : members.type[member];
+   }
+
+   /**
+    * @return the permission bits
+    */
+   public int getMode(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? 0755 : members.mode[member] & 07777;
+   }
+
+   /**
+    * @return the modification time in seconds
+    */
+   public long getTime(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? archiveTime / 1000L : members.time[member];
+   }
+
+   public long getSize(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? 0L : members.size[member];
+   }
+
+   /**
+    * @return the position of the data in the tar stream
+    */
+   public long getDataOffset(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? 0L : members.offset[member];
+   }
+
+   /**
+    * @return the target of a symbolic link
+    */
+   public String getLink(int node)
+   {
+      int member = trie.getValue(node);
+
+      return member < 0? null : members.link[member];
+   }
+
+   /**
+    * @return the length of the tar stream
+    */
+   public long getStreamSize()
+   {
+      return streamSize;
+   }
+
+   public long getFileCount()
+   {
+      return files;
+   }
+
+   public long getDirectoryCount()
+   {
+      return directories;
+   }
+
+   /**
+    * @return the number of 512 byte blocks occupied by the files
+    */
+   public long getBlockCount()
+   {
+      return blocks;
+   }
+
+
+   //
+   // private methods
+
+   private static int getMemberType(int typeflag, String name)
+   {
+      switch (typeflag)
+      {
+         case '0':
+         case 0:
+         case '7':
+            // pre-POSIX archives mark directories by a trailing slash only
+            return name.endsWith("/")? DIRECTORY : FILE;
+         case '1':
+            return HARDLINK;
+         case '2':
+            return SYMLINK;
+         case '5':
+         case 'D':
+            return DIRECTORY;
+         default:
+            return -1;
+      }
+   }
+
+   private static int readFully(StreamReader reader, byte[] b, int len) throws IOException
+   {
+      int nread = 0;
+      while (nread < len)
+      {
+         int n = reader.read(b, nread, len - nread);
+         if (n < 0)
+            break;
+         nread += n;
+      }
+
+      return nread;
+   }
+
+   private static byte[] readData(StreamReader reader, long size) throws IOException
+   {
+      if (size < 0 || size > MAX_HEADER_DATA)
+         throw new IOException("tar header data too long: " + size);
+
+      byte[] data = new byte[(int)size];
+      if (readFully(reader, data, data.length) < data.length)
+         throw new EOFException("unexpected end of tar stream");
+
+      return data;
+   }
+
+   private static boolean isZero(byte[] header)
+   {
+      for (int i = 0; i < header.length; i++)
+      {
+         if (header[i] != 0)
+            return false;
+      }
+
+      return true;
+   }
+
+   private static boolean isValidHeader(byte[] header)
+   {
+      long checksum = parseNumber(header, 148, 8);
+      long unsignedSum = 0;
+      long signedSum = 0;
+
+      for (int i = 0; i < header.length; i++)
+      {
+         // the checksum field itself counts as spaces
+         int b = i >= 148 && i < 156? ' ' : header[i];
+         unsignedSum += b & 0xff;
+         signedSum += b;
+      }
+
+      // some old tar implementations summed signed bytes
+      return checksum == unsignedSum || checksum == signedSum;
+   }
+
+   private static String parseName(byte[] header)
+   {
+      String name = parseString(header, 0, 100);
+
+      // POSIX ustar (not GNU) splits long names into prefix and name
+      if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[262] == 0)
+      {
+         String prefix = parseString(header, 345, 155);
+         if (prefix.length() > 0)
+            return prefix + "/" + name;
+      }
+
+      return name;
+   }
+
+   /**
+    * @return the bytes up to the first NUL, UTF-8 decoded
+    */
+   private static String parseString(byte[] b, int off, int len)
+   {
+      int end = off;
+      while (end < off + len && b[end] != 0)
+         end++;
+
+      return new String(b, off, end - off, UTF8);
+   }
+
+   /**
+    * Parses an octal number, or a base-256 one (GNU, for large sizes) if the high bit of the first byte is set
+    */
+   private static long parseNumber(byte[] b, int off, int len)
+   {
+      long value = 0;
+
+      if ((b[off] & 0x80) != 0)
+      {
+         value = b[off] & 0x7f;
+         for (int i = off + 1; i < off + len; i++)
+            value = (value << 8) | (b[i] & 0xff);
+         return value;
+      }
+
+      int i = off;
+      while (i < off + len && (b[i] == ' ' || b[i] == 0))
+         i++;
+      while (i < off + len && b[i] >= '0' && b[i] <= '7')
+         value = (value << 3) + (b[i++] - '0');
+
+      return value;
+   }
+
+   /**
+    * Parses the integer part of a decimal number (pax times have fractions)
+    */
+   private static long parseDecimal(String s) throws IOException
+   {
+      int end = s.indexOf('.');
+      try
+      {
+         return Long.parseLong(end < 0? s : s.substring(0, end));
+      }
+      catch (NumberFormatException e)
+      {
+         throw new IOException("invalid number in pax header: " + s);
+      }
+   }
+
+   /**
+    * Parses the "length key=value\n" records of a pax extended header
+    */
+   private static Map<String, String> parsePax(byte[] data) throws IOException
+   {
+      Map<String, String> records = new HashMap<String, String>();
+      int pos = 0;
+
+      while (pos < data.length && data[pos] != 0)
+      {
+         int len = 0;
+         int i = pos;
+         while (i < data.length && data[i] >= '0' && data[i] <= '9')
+            len = len * 10 + (data[i++] - '0');
+         if (i >= data.length || data[i] != ' ' || len <= i - pos || pos + len > data.length)
+            throw new IOException("invalid pax header record");
+
+         int end = pos + len - 1;
+         int separator = i + 1;
+         while (separator < end && data[separator] != '=')
+            separator++;
+         if (separator >= end)
+            throw new IOException("invalid pax header record");
+
+         records.put(new String(data, i + 1, separator - i - 1, UTF8), new String(data, separator + 1, end - separator - 1, UTF8));
+         pos += len;
+      }
+
+      return records;
+   }
+
+
+   /**
+    * Attributes of the members, in the order they were found
+    */
+   private static final class MemberTable
+   {
+      int count;
+      byte[] type = new byte[1024];
+      int[] mode = new int[1024];
+      long[] time = new long[1024];
+      long[] size = new long[1024];
+      long[] offset = new long[1024];
+      String[] link = new String[1024];
+
+      int add(int type, int mode, long time, long size, long offset, String link)
+      {
+         if (count == this.type.length)
+         {
+            int capacity = count * 2;
+            this.type = Arrays.copyOf(this.type, capacity);
+            this.mode = Arrays.copyOf(this.mode, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.size = Arrays.copyOf(this.size, capacity);
+            this.offset = Arrays.copyOf(this.offset, capacity);
+            this.link = Arrays.copyOf(this.link, capacity);
+         }
+
+         this.type[count] = (byte)type;
+         this.mode[count] = mode;
+         this.time[count] = time;
+         this.size[count] = size;
+         this.offset[count] = offset;
+         this.link[count] = link;
+
+         return count++;
+      }
+
+      /**
+       * Turns the hard links into files sharing the data of their targets, which precede them in the archive
+       */
+      void resolveHardLinks(PathTrie trie)
+      {
+         for (int i = 0; i < count; i++)
+         {
+            if (type[i] != HARDLINK)
+               continue;
+
+            int node = trie.lookup(link[i]);
+            int target = node < 0? -1 : trie.getValue(node);
+            if (target >= 0 && type[target] == FILE)
+            {
+               size[i] = size[target];
+               offset[i] = offset[target];
+            }
+            else
+            {
+               log.debug("hard link target " + link[i] + " not found");
+               size[i] = 0L;
+            }
+
+            type[i] = FILE;
+            link[i] = null;
+         }
+      }
+
+      void write(DataOutputStream out) throws IOException
+      {
+         out.writeInt(count);
+         for (int i = 0; i < count; i++)
+         {
+            out.writeByte(type[i]);
+            out.writeInt(mode[i]);
+            out.writeLong(time[i]);
+            out.writeLong(size[i]);
+            out.writeLong(offset[i]);
+
+            if (link[i] == null)
+               out.writeInt(-1);
+            else
+            {
+               byte[] bytes = link[i].getBytes(UTF8);
+               out.writeInt(bytes.length);
+               out.write(bytes);
+            }
+         }
+      }
+
+      static MemberTable read(DataInputStream in) throws IOException
+      {
+         MemberTable members = new MemberTable();
+         int count = in.readInt();
+         if (count < 0)
+            throw new IOException("corrupt index file");
+
+         for (int i = 0; i < count; i++)
+         {
+            int type = in.readByte();
+            int mode = in.readInt();
+            long time = in.readLong();
+            long size = in.readLong();
+            long offset = in.readLong();
+            int linkLength = in.readInt();
+
+            String link = null;
+            if (linkLength >= 0)
+            {
+               if (linkLength > MAX_HEADER_DATA)
+                  throw new IOException("corrupt index file");
+               byte[] bytes = new byte[linkLength];
+               in.readFully(bytes);
+               link = new String(bytes, UTF8);
+            }
+
+            if (type < FILE || type > SYMLINK || size < 0 || offset < 0)
+               throw new IOException("corrupt index file");
+
+            members.add(type, mode, time, size, offset, link);
+         }
+
+         return members;
+      }
+   }
+}
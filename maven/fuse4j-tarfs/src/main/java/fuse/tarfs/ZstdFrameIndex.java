@@ -0,0 +1,205 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+
+/**
+ * The start positions of the frames of a zstd stream (RFC 8878), in the compressed and the
+ * uncompressed data. Frames are decompressed independently, so they are the checkpoints of a zstd
+ * stream. Recorded by ZstdStreamReader and shared by all readers of a stream.
+ * <p/>
+ * A stream written as a single frame (the default of the zstd tool, even with -T) can only be read
+ * from its start; multi-frame streams (pzstd, zstd --seekable) can be read from every frame.
+ */
+public class ZstdFrameIndex
+{
+   private static final int MAGIC = 0xfd2fb528;
+   private static final int SKIPPABLE_MAGIC = 0x184d2a50;
+   private static final int SKIPPABLE_MASK = 0xfffffff0;
+
+   private long[] out = new long[16];
+   private long[] in = new long[16];
+   private int size;
+
+
+   /**
+    * @return true if <code>magic</code> (little endian) starts a zstd frame or a skippable frame
+    */
+   public static boolean isFrame(int magic)
+   {
+      return magic == MAGIC || (magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC;
+   }
+
+   /**
+    * @return true if the frame at <code>position</code> is a skippable frame (which contains no data)
+    */
+   static boolean isSkippableFrame(FileChannel channel, long position) throws IOException
+   {
+      return (read(channel, position, 4).getInt(0) & SKIPPABLE_MASK) == SKIPPABLE_MAGIC;
+   }
+
+   /**
+    * Walks the block headers of the frame at <code>position</code>
+    *
+    * @return the length of the compressed frame
+    */
+   static long getFrameLength(FileChannel channel, long position) throws IOException
+   {
+      ByteBuffer header = read(channel, position, 8);
+      int magic = header.getInt(0);
+      if ((magic & SKIPPABLE_MASK) == SKIPPABLE_MAGIC)
+         return 8L + (header.getInt(4) & 0xffffffffL);
+      if (magic != MAGIC)
+         throw new IOException("not a zstd frame at " + position);
+
+      int descriptor = header.get(4) & 0xff;
+      int contentSizeFlag = descriptor >>> 6;
+      boolean singleSegment = (descriptor & 0x20) != 0;
+      boolean checksum = (descriptor & 0x04) != 0;
+      int dictionaryIdFlag = descriptor & 0x03;
+
+      long pos = position + 5;
+      if (!singleSegment)
+         pos++;
+      pos += dictionaryIdFlag == 3? 4 : dictionaryIdFlag;
+      pos += contentSizeFlag == 0? (singleSegment? 1 : 0) : 1 << contentSizeFlag;
+
+      while (true)
+      {
+         ByteBuffer block = read(channel, pos, 3);
+         int blockHeader = (block.get(0) & 0xff) | (block.get(1) & 0xff) << 8 | (block.get(2) & 0xff) << 16;
+         int type = (blockHeader >>> 1) & 3;
+         int blockSize = blockHeader >>> 3;
+
+         // raw and compressed blocks are followed by their data, RLE blocks by the repeated byte
+         if (type == 3)
+            throw new IOException("invalid zstd block at " + pos);
+         pos += 3 + (type == 1? 1 : blockSize);
+
+         if ((blockHeader & 1) != 0)
+            break;
+      }
+
+      if (checksum)
+         pos += 4;
+
+      return pos - position;
+   }
+
+   /**
+    * Records the start of a frame, unless a frame starting at the same or a later uncompressed
+    * position is already known
+    */
+   public synchronized void add(long uncompressedPosition, long compressedPosition)
+   {
+      if (size > 0 && uncompressedPosition <= out[size - 1])
+         return;
+
+      if (size == out.length)
+      {
+         out = Arrays.copyOf(out, size * 2);
+         in = Arrays.copyOf(in, size * 2);
+      }
+      out[size] = uncompressedPosition;
+      in[size] = compressedPosition;
+      size++;
+   }
+
+   /**
+    * @return {uncompressed, compressed} position of the last frame starting at or before the given
+    *         uncompressed position, {0, 0} if there is none
+    */
+   public synchronized long[] floor(long uncompressedPosition)
+   {
+      int lo = 0;
+      int hi = size - 1;
+      int result = -1;
+
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         if (out[mid] <= uncompressedPosition)
+         {
+            result = mid;
+            lo = mid + 1;
+         }
+         else
+            hi = mid - 1;
+      }
+
+      return result < 0? new long[] { 0L, 0L } : new long[] { out[result], in[result] };
+   }
+
+   public synchronized int size()
+   {
+      return size;
+   }
+
+   public synchronized void write(DataOutput output) throws IOException
+   {
+      output.writeInt(size);
+      for (int i = 0; i < size; i++)
+      {
+         output.writeLong(out[i]);
+         output.writeLong(in[i]);
+      }
+   }
+
+   /**
+    * Reads frames written by {@link #write(DataOutput)}, checking that they are in order and start
+    * inside the compressed file
+    */
+   public static ZstdFrameIndex read(DataInput input, long compressedSize) throws IOException
+   {
+      int count = input.readInt();
+      if (count < 0)
+         throw new IOException("corrupt zstd frame index");
+
+      ZstdFrameIndex index = new ZstdFrameIndex();
+      for (int i = 0; i < count; i++)
+      {
+         long uncompressedPosition = input.readLong();
+         long compressedPosition = input.readLong();
+         if (uncompressedPosition < 0 || compressedPosition < 0 || compressedPosition >= compressedSize
+             || (i > 0 && (uncompressedPosition <= index.out[i - 1] || compressedPosition <= index.in[i - 1])))
+            throw new IOException("corrupt zstd frame index");
+
+         index.add(uncompressedPosition, compressedPosition);
+      }
+
+      return index;
+   }
+
+
+   //
+   // private methods
+
+   private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      while (bb.hasRemaining())
+      {
+         if (channel.read(bb, position + bb.position()) < 0)
+            throw new EOFException("truncated zstd frame at " + position);
+      }
+      bb.flip();
+
+      return bb;
+   }
+}
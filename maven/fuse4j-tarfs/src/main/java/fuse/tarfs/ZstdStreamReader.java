@@ -0,0 +1,160 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Decompresses a zstd stream frame by frame, recording the start of every frame into a
+ * ZstdFrameIndex and seeking to the nearest recorded frame.
+ */
+class ZstdStreamReader implements StreamReader
+{
+   private FileChannel channel;
+   private long length;
+   private ZstdFrameIndex frameIndex;
+
+   // compressed position of the current (or next) frame and end of the current frame
+   private long frameStart;
+   private long frameEnd;
+   private InputStream frame;
+
+   private long outPos;
+   private byte[] skipBuf;
+
+
+   ZstdStreamReader(FileChannel channel, long length, ZstdFrameIndex frameIndex)
+   {
+      this.channel = channel;
+      this.length = length;
+      this.frameIndex = frameIndex;
+   }
+
+   public void seek(long position) throws IOException
+   {
+      long[] checkpoint = frameIndex.floor(position);
+
+      if (position < outPos || checkpoint[0] > outPos)
+      {
+         closeFrame();
+         outPos = checkpoint[0];
+         frameStart = checkpoint[1];
+      }
+
+      if (skipBuf == null && position > outPos)
+         skipBuf = new byte[8192];
+
+      while (outPos < position)
+      {
+         if (read(skipBuf, 0, (int)Math.min(skipBuf.length, position - outPos)) < 0)
+            return;
+      }
+   }
+
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      while (true)
+      {
+         if (frame == null)
+         {
+            if (frameStart >= length)
+               return -1;
+
+            frameIndex.add(outPos, frameStart);
+            frameEnd = frameStart + ZstdFrameIndex.getFrameLength(channel, frameStart);
+            if (ZstdFrameIndex.isSkippableFrame(channel, frameStart))
+            {
+               frameStart = frameEnd;
+               continue;
+            }
+            frame = new ZstdInputStream(new ChannelInputStream(channel, frameStart, frameEnd));
+         }
+
+         int n = frame.read(b, off, len);
+         if (n < 0)
+         {
+            closeFrame();
+            frameStart = frameEnd;
+            continue;
+         }
+
+         outPos += n;
+         return n;
+      }
+   }
+
+   public void close()
+   {
+      closeFrame();
+   }
+
+
+   //
+   // private methods
+
+   private void closeFrame()
+   {
+      if (frame != null)
+      {
+         try
+         {
+            frame.close();
+         }
+         catch (IOException e)
+         {
+            // nothing to release
+         }
+         frame = null;
+      }
+   }
+
+
+   /**
+    * A region of a file, read with positional reads
+    */
+   private static class ChannelInputStream extends InputStream
+   {
+      private FileChannel channel;
+      private long position;
+      private long end;
+
+      ChannelInputStream(FileChannel channel, long position, long end)
+      {
+         this.channel = channel;
+         this.position = position;
+         this.end = end;
+      }
+
+      public int read() throws IOException
+      {
+         byte[] b = new byte[1];
+
+         return read(b, 0, 1) < 0? -1 : b[0] & 0xff;
+      }
+
+      public int read(byte[] b, int off, int len) throws IOException
+      {
+         if (position >= end)
+            return -1;
+
+         int n = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, end - position)), position);
+         if (n > 0)
+            position += n;
+
+         return n;
+      }
+   }
+}
@@ -0,0 +1,641 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import com.github.luben.zstd.Zstd;
+import fuse.Errno;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+import fuse.zipfs.BlockCache;
+import fuse.zipfs.ZipIndex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Writes the same tar stream as a plain .tar, a .tar.gz and a .tar.zst of two frames and reads them
+ * through TarFilesystem: the listing, GNU long names, pax and ustar prefixed names, links and reads
+ * from random offsets, then again from the index file written by the first scan. A tampered or
+ * corrupt index file must be rejected and the archive scanned again.
+ */
+public class TarFilesystemTest extends TestCase
+{
+   private static final int BLOCK_SIZE = 512;
+
+   private static final String GNU_NAME = "gnu/" + repeat('l', 150) + ".txt";
+   private static final String PAX_NAME = "pax/ünïcödé-" + repeat('p', 120) + ".txt";
+   private static final long PAX_TIME = 1234567890L;
+   private static final String USTAR_DIR = "ustar/" + repeat('u', 110);
+
+   // offsets into the index file, see TarIndex.write()
+   private static final int I_COMPRESSION = 36;
+   private static final int I_FIRST_SIZE = 65;
+   private static final int I_FIRST_OFFSET = 73;
+
+   private File dir;
+   private File indexDir;
+   private byte[] small;
+   private byte[] big;
+   private byte[] tar;
+
+
+   protected void setUp() throws Exception
+   {
+      dir = createDir("tar");
+      indexDir = createDir("index");
+      System.setProperty("fuse4j.zipfs.indexDir", indexDir.getPath());
+
+      small = "hello".getBytes("UTF-8");
+      big = createData(3 << 20);
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      writeMember(out, "dir/", '5', "", null, 1000L);
+      writeMember(out, "dir/small.txt", '0', "", small, 1000L);
+      writeMember(out, "dir/big.bin", '0', "", big, 2000L);
+      writeMember(out, "././@LongLink", 'L', "", (GNU_NAME + "\0").getBytes("UTF-8"), 0L);
+      writeMember(out, GNU_NAME.substring(0, 99), '0', "", "gnu".getBytes("UTF-8"), 1000L);
+      writeMember(out, "PaxHeaders/x", 'x', "", (paxRecord("path", PAX_NAME) + paxRecord("mtime", PAX_TIME + ".5")).getBytes("UTF-8"), 0L);
+      writeMember(out, "pax/header", '0', "", "pax".getBytes("UTF-8"), 1000L);
+      writeMember(out, "pax/short", '0', "", "short".getBytes("UTF-8"), 1000L);
+      writeMember(out, USTAR_DIR + "/file.txt", '0', "", "prefixed".getBytes("UTF-8"), 1000L);
+      writeMember(out, "link", '2', "dir/small.txt", null, 1000L);
+      writeMember(out, "hard", '1', "dir/big.bin", null, 1000L);
+      out.write(new byte[2 * BLOCK_SIZE]);
+      tar = out.toByteArray();
+   }
+
+   protected void tearDown() throws Exception
+   {
+      delete(dir);
+      delete(indexDir);
+      System.clearProperty("fuse4j.zipfs.indexDir");
+   }
+
+   public void testPlain() throws IOException, FuseException
+   {
+      assertArchive(writePlain(), TarArchive.NONE);
+   }
+
+   public void testGzip() throws IOException, FuseException
+   {
+      assertArchive(writeGzip(), TarArchive.GZIP);
+   }
+
+   public void testZstd() throws IOException, FuseException
+   {
+      assertArchive(writeZstd(), TarArchive.ZSTD);
+   }
+
+   public void testOutOfDateIndex() throws IOException, FuseException
+   {
+      File file = writeGzip();
+      new TarFilesystem(file, null).close();
+
+      assertTrue(file.setLastModified(file.lastModified() - 10000L));
+      assertFalse(isIndexOf(TarIndex.load(ZipIndex.getIndexFile(file)), file));
+
+      // scanned again and written for the new time
+      assertContent(file, null);
+      assertTrue(isIndexOf(TarIndex.load(ZipIndex.getIndexFile(file)), file));
+   }
+
+   public void testNotAnIndex() throws IOException, FuseException
+   {
+      File file = writeGzip();
+      File indexFile = indexOf(file);
+
+      putByte(indexFile, 0, 'X');
+      assertRejected(file, indexFile);
+   }
+
+   public void testTruncatedIndex() throws IOException, FuseException
+   {
+      File file = writeZstd();
+      File indexFile = indexOf(file);
+
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+      try
+      {
+         raf.setLength(raf.length() - 5);
+      }
+      finally
+      {
+         raf.close();
+      }
+      assertRejected(file, indexFile);
+   }
+
+   public void testInvalidCompression() throws IOException, FuseException
+   {
+      File file = writePlain();
+      File indexFile = indexOf(file);
+
+      putInt(indexFile, I_COMPRESSION, 7);
+      assertRejected(file, indexFile);
+   }
+
+   public void testMemberOutsideStream() throws IOException, FuseException
+   {
+      File file = writeGzip();
+      File indexFile = indexOf(file);
+
+      putLong(indexFile, I_FIRST_OFFSET, tar.length);
+      assertRejected(file, indexFile);
+
+      indexFile = indexOf(file);
+      putLong(indexFile, I_FIRST_SIZE, Long.MAX_VALUE);
+      assertRejected(file, indexFile);
+
+      indexFile = indexOf(file);
+      putLong(indexFile, I_FIRST_OFFSET, -BLOCK_SIZE);
+      assertRejected(file, indexFile);
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * Checks the archive scanned, then from its index file, without and with a block cache
+    */
+   private void assertArchive(File file, int compression) throws IOException, FuseException
+   {
+      File indexFile = ZipIndex.getIndexFile(file);
+      assertFalse(indexFile.exists());
+
+      assertContent(file, null);
+      assertTrue(indexFile.exists());
+      long modified = indexFile.lastModified();
+
+      TarIndex index = TarIndex.load(indexFile);
+      assertTrue(isIndexOf(index, file));
+      assertEquals(tar.length - BLOCK_SIZE, index.getStreamSize());
+
+      BlockCache blockCache = new BlockCache(1 << 20);
+      assertContent(file, blockCache);
+      assertContent(file, null);
+
+      // loaded, not written again
+      assertEquals(modified, indexFile.lastModified());
+
+      TarArchive archive = new TarArchive(file);
+      try
+      {
+         assertEquals(compression, archive.getCompression());
+      }
+      finally
+      {
+         archive.close();
+      }
+   }
+
+   private void assertContent(File file, BlockCache blockCache) throws IOException, FuseException
+   {
+      TarFilesystem fs = new TarFilesystem(file, blockCache);
+      try
+      {
+         assertEquals(Arrays.asList("dir", "gnu", "hard", "link", "pax", "ustar"), list(fs, "/"));
+         assertEquals(Arrays.asList("big.bin", "small.txt"), list(fs, "/dir"));
+         assertEquals(Arrays.asList(GNU_NAME.substring(4)), list(fs, "/gnu"));
+         assertEquals(Arrays.asList("short", PAX_NAME.substring(4)), list(fs, "/pax"));
+         assertEquals(Arrays.asList("file.txt"), list(fs, "/" + USTAR_DIR));
+         assertEquals(Errno.ENOTDIR, fs.getdir("/dir/small.txt", new Names()));
+         assertEquals(Errno.ENOENT, fs.getdir("/none", new Names()));
+
+         assertEquals(FuseFtype.TYPE_DIR, getattr(fs, "/dir").mode & FuseFtype.TYPE_MASK);
+         assertEquals(FuseFtype.TYPE_DIR, getattr(fs, "/gnu").mode & FuseFtype.TYPE_MASK);
+         assertEquals(FuseFtype.TYPE_SYMLINK, getattr(fs, "/link").mode & FuseFtype.TYPE_MASK);
+         assertEquals(big.length, getattr(fs, "/dir/big.bin").size);
+         assertEquals(2000, getattr(fs, "/dir/big.bin").mtime);
+         assertEquals(PAX_TIME, getattr(fs, "/" + PAX_NAME).mtime);
+         assertEquals(Errno.ENOENT, fs.getattr("/dir/none", new Attributes()));
+
+         CharBuffer link = CharBuffer.allocate(100);
+         assertEquals(0, fs.readlink("/link", link));
+         link.flip();
+         assertEquals("dir/small.txt", link.toString());
+         assertEquals(Errno.EINVAL, fs.readlink("/dir/small.txt", CharBuffer.allocate(100)));
+
+         assertEquals("hello", read(fs, "/dir/small.txt"));
+         assertEquals("gnu", read(fs, "/" + GNU_NAME));
+         assertEquals("pax", read(fs, "/" + PAX_NAME));
+         assertEquals("short", read(fs, "/pax/short"));
+         assertEquals("prefixed", read(fs, "/" + USTAR_DIR + "/file.txt"));
+         assertEquals(Errno.EISDIR, fs.open("/dir", 0, new OpenSetter()));
+
+         assertRandomReads(fs, "/dir/big.bin");
+         // the hard link shares the data of its target
+         assertEquals(big.length, getattr(fs, "/hard").size);
+         assertRandomReads(fs, "/hard");
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+   /**
+    * Reads from random offsets forwards and backwards through one handle, and past the end
+    */
+   private void assertRandomReads(TarFilesystem fs, String path) throws FuseException
+   {
+      Random random = new Random(7L);
+      Object fh = open(fs, path);
+      try
+      {
+         for (int i = 0; i < 50; i++)
+         {
+            int offset = random.nextInt(big.length);
+            ByteBuffer bb = ByteBuffer.allocate(1 + random.nextInt(200000));
+            assertEquals(0, fs.read(path, fh, bb, offset));
+
+            int len = Math.min(bb.capacity(), big.length - offset);
+            assertEquals(path + " at " + offset, len, bb.position());
+            for (int j = 0; j < len; j++)
+            {
+               if (bb.get(j) != big[offset + j])
+                  fail(path + " differs at " + (offset + j));
+            }
+         }
+
+         ByteBuffer bb = ByteBuffer.allocate(100);
+         assertEquals(0, fs.read(path, fh, bb, big.length));
+         assertEquals(0, bb.position());
+      }
+      finally
+      {
+         assertEquals(0, fs.release(path, fh, 0));
+      }
+   }
+
+   /**
+    * Expects the index file to be rejected, the archive to be scanned again and the index file to be
+    * replaced by a good one
+    */
+   private void assertRejected(File file, File indexFile) throws IOException, FuseException
+   {
+      try
+      {
+         TarIndex.load(indexFile);
+         fail("tampered index file accepted");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+
+      assertContent(file, null);
+      assertTrue(isIndexOf(TarIndex.load(indexFile), file));
+   }
+
+   private boolean isIndexOf(TarIndex index, File file) throws IOException
+   {
+      TarArchive archive = new TarArchive(file);
+      try
+      {
+         return index.isIndexOf(file.length(), file.lastModified(), archive.getTailChecksum(), archive.getCompression());
+      }
+      finally
+      {
+         archive.close();
+      }
+   }
+
+   /**
+    * @return the index file of the archive, written by a first scan
+    */
+   private static File indexOf(File file) throws IOException
+   {
+      new TarFilesystem(file, null).close();
+      File indexFile = ZipIndex.getIndexFile(file);
+      assertTrue(indexFile.exists());
+
+      return indexFile;
+   }
+
+   private File writePlain() throws IOException
+   {
+      File file = new File(dir, "archive.tar");
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+         out.write(tar);
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return file;
+   }
+
+   private File writeGzip() throws IOException
+   {
+      File file = new File(dir, "archive.tar.gz");
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+      try
+      {
+         out.write(tar);
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return file;
+   }
+
+   /**
+    * Writes two frames, split in the middle of the big member
+    */
+   private File writeZstd() throws IOException
+   {
+      int split = tar.length / 2 + 1234;
+
+      File file = new File(dir, "archive.tar.zst");
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+         out.write(Zstd.compress(Arrays.copyOfRange(tar, 0, split), 3));
+         out.write(Zstd.compress(Arrays.copyOfRange(tar, split, tar.length), 3));
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return file;
+   }
+
+   private static List<String> list(TarFilesystem fs, String path) throws FuseException
+   {
+      Names names = new Names();
+      assertEquals(path, 0, fs.getdir(path, names));
+      Collections.sort(names.names);
+
+      return names.names;
+   }
+
+   private static Attributes getattr(TarFilesystem fs, String path) throws FuseException
+   {
+      Attributes attributes = new Attributes();
+      assertEquals(path, 0, fs.getattr(path, attributes));
+
+      return attributes;
+   }
+
+   private static Object open(TarFilesystem fs, String path) throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(path, 0, fs.open(path, 0, openSetter));
+
+      return openSetter.fh;
+   }
+
+   private static String read(TarFilesystem fs, String path) throws IOException, FuseException
+   {
+      Object fh = open(fs, path);
+      try
+      {
+         ByteBuffer bb = ByteBuffer.allocate(100);
+         assertEquals(0, fs.read(path, fh, bb, 0L));
+
+         return new String(bb.array(), 0, bb.position(), "UTF-8");
+      }
+      finally
+      {
+         assertEquals(0, fs.release(path, fh, 0));
+      }
+   }
+
+   private static void writeMember(OutputStream out, String name, char typeflag, String link, byte[] data, long time) throws IOException
+   {
+      byte[] header = new byte[BLOCK_SIZE];
+      byte[] bytes = name.getBytes("UTF-8");
+
+      // names too long for the name field go into the ustar prefix
+      int slash = bytes.length > 100? name.lastIndexOf('/') : -1;
+      if (slash >= 0)
+      {
+         byte[] prefix = name.substring(0, slash).getBytes("UTF-8");
+         System.arraycopy(prefix, 0, header, 345, prefix.length);
+         bytes = name.substring(slash + 1).getBytes("UTF-8");
+      }
+      System.arraycopy(bytes, 0, header, 0, bytes.length);
+
+      int size = data == null? 0 : data.length;
+      putOctal(header, 100, 8, typeflag == '5'? 0755 : 0644);
+      putOctal(header, 108, 8, 0);
+      putOctal(header, 116, 8, 0);
+      putOctal(header, 124, 12, size);
+      putOctal(header, 136, 12, time);
+      header[156] = (byte)typeflag;
+      bytes = link.getBytes("UTF-8");
+      System.arraycopy(bytes, 0, header, 157, bytes.length);
+      System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+
+      Arrays.fill(header, 148, 156, (byte)' ');
+      long checksum = 0L;
+      for (int i = 0; i < BLOCK_SIZE; i++)
+         checksum += header[i] & 0xff;
+      putOctal(header, 148, 8, checksum);
+
+      out.write(header);
+      if (size > 0)
+      {
+         out.write(data);
+         out.write(new byte[(BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE]);
+      }
+   }
+
+   private static void putOctal(byte[] header, int off, int len, long value)
+   {
+      String octal = Long.toOctalString(value);
+      for (int i = 0; i < len - 1 - octal.length(); i++)
+         header[off + i] = '0';
+      for (int i = 0; i < octal.length(); i++)
+         header[off + len - 1 - octal.length() + i] = (byte)octal.charAt(i);
+      header[off + len - 1] = 0;
+   }
+
+   /**
+    * @return a "length key=value\n" record, the length counting itself
+    */
+   private static String paxRecord(String key, String value) throws IOException
+   {
+      int len = (" " + key + "=" + value + "\n").getBytes("UTF-8").length;
+      int digits = Integer.toString(len).length();
+      if (Integer.toString(len + digits).length() > digits)
+         digits++;
+
+      return (len + digits) + " " + key + "=" + value + "\n";
+   }
+
+   /**
+    * Text-like data with incompressible stretches, so that the compressed streams have checkpoints
+    */
+   private static byte[] createData(int len)
+   {
+      String[] words = { "fuse", "filesystem", "inode", "directory", "archive", "deflate", "checkpoint", "window", "\n" };
+      Random random = new Random(42L);
+      byte[] data = new byte[len];
+      int pos = 0;
+
+      while (pos < len)
+      {
+         if (random.nextInt(500) == 0)
+         {
+            int count = Math.min(len - pos, random.nextInt(4000));
+            for (int j = 0; j < count; j++)
+               data[pos++] = (byte)random.nextInt(256);
+         }
+         else
+         {
+            String word = words[random.nextInt(words.length)] + " ";
+            for (int j = 0; j < word.length() && pos < len; j++)
+               data[pos++] = (byte)word.charAt(j);
+         }
+      }
+
+      return data;
+   }
+
+   private static String repeat(char c, int count)
+   {
+      char[] chars = new char[count];
+      Arrays.fill(chars, c);
+
+      return new String(chars);
+   }
+
+   private static void putByte(File file, long pos, int value) throws IOException
+   {
+      write(file, pos, ByteBuffer.wrap(new byte[] { (byte)value }));
+   }
+
+   private static void putInt(File file, long pos, int value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(4);
+      bb.putInt(0, value);
+      write(file, pos, bb);
+   }
+
+   private static void putLong(File file, long pos, long value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(8);
+      bb.putLong(0, value);
+      write(file, pos, bb);
+   }
+
+   private static void write(File file, long pos, ByteBuffer bb) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try
+      {
+         raf.getChannel().write(bb, pos);
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   private static File createDir(String prefix) throws IOException
+   {
+      File dir = File.createTempFile(prefix, "");
+      dir.delete();
+      assertTrue(dir.mkdir());
+
+      return dir;
+   }
+
+   private static void delete(File dir)
+   {
+      File[] files = dir.listFiles();
+      for (int i = 0; files != null && i < files.length; i++)
+         files[i].delete();
+      dir.delete();
+   }
+
+
+   private static class Names implements FuseDirFiller
+   {
+      List<String> names = new ArrayList<String>();
+
+      public void add(String name, long inode, int mode)
+      {
+         names.add(name);
+      }
+   }
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+      boolean directIO;
+      boolean keepCache;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return directIO;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         this.directIO = directIO;
+      }
+
+      public boolean isKeepCache()
+      {
+         return keepCache;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         this.keepCache = keepCache;
+      }
+   }
+
+   private static class Attributes implements FuseGetattrSetter
+   {
+      int mode;
+      long size;
+      int mtime;
+
+      public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long size, long blocks, int atime, int mtime, int ctime)
+      {
+         this.mode = mode;
+         this.size = size;
+         this.mtime = mtime;
+      }
+   }
+}
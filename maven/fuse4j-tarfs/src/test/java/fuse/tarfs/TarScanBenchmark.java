@@ -0,0 +1,238 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.tarfs;
+
+import fuse.FuseException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Measures the throughput of a .tar.gz through java.util.zip.GZIPInputStream (native zlib, the whole
+ * stream once), the scan of TarIndex.build (recording the checkpoints) and uncached sequential reads
+ * of every member through TarEntryReaders, all in MB of the uncompressed tar stream per second:
+ * <pre>
+ *    java -cp target/classes:target/test-classes:../fuse4j-core/target/classes:../fuse4j-zipfs/target/classes:$COMMONS_LOGGING \
+ *       fuse.tarfs.TarScanBenchmark [MiB] [rounds]
+ * </pre>
+ */
+public class TarScanBenchmark
+{
+   private static final int BLOCK_SIZE = 512;
+   private static final int BUFFER_SIZE = 128 * 1024;
+
+   public static void main(String[] args) throws IOException, FuseException
+   {
+      int mib = (args.length > 0)? Integer.parseInt(args[0]) : 256;
+      int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 5;
+
+      File file = File.createTempFile("scan", ".tar.gz");
+      try
+      {
+         long size = write(file, (long)mib << 20);
+         System.out.println(mib + " MiB tar stream compressed to " + (file.length() >> 20) + " MiB");
+
+         for (int round = 0; round < rounds; round++)
+         {
+            long start = System.nanoTime();
+            long n = gunzip(file);
+            long nativeTime = System.nanoTime() - start;
+
+            // a new archive each round, so the scan starts without checkpoints
+            TarArchive archive = new TarArchive(file);
+            try
+            {
+               start = System.nanoTime();
+               TarIndex index = TarIndex.build(archive, file.length(), 0L, 0L);
+               long scanTime = System.nanoTime() - start;
+
+               start = System.nanoTime();
+               long m = readMembers(archive, index);
+               long readTime = System.nanoTime() - start;
+
+               // the scan stops at the first of the two zero blocks ending the archive
+               if (n != size || index.getStreamSize() != size - BLOCK_SIZE)
+                  throw new IllegalStateException("inflated " + n + " and scanned " + index.getStreamSize() + " of " + size + " bytes");
+
+               System.out.println("java.util.zip.GZIPInputStream " + mbPerSecond(size, nativeTime) + " MB/s, " +
+                                  "scan " + mbPerSecond(size, scanTime) + " MB/s, " +
+                                  "read " + mbPerSecond(m, readTime) + " MB/s");
+            }
+            finally
+            {
+               archive.close();
+            }
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+   }
+
+
+   //
+   // private methods
+
+   private static long gunzip(File file) throws IOException
+   {
+      InputStream in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file), 8192), 8192);
+      byte[] out = new byte[BUFFER_SIZE];
+      long total = 0L;
+
+      try
+      {
+         int n;
+         while ((n = in.read(out)) >= 0)
+            total += n;
+      }
+      finally
+      {
+         in.close();
+      }
+
+      return total;
+   }
+
+   /**
+    * Reads every member from start to end in kernel sized reads, each through its own handle
+    */
+   private static long readMembers(TarArchive archive, TarIndex index) throws FuseException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(BUFFER_SIZE);
+      long total = 0L;
+
+      for (int node = 0; node < index.getNodeCount(); node++)
+      {
+         if (index.getType(node) != TarIndex.FILE)
+            continue;
+
+         long size = index.getSize(node);
+         TarEntryReader reader = new TarEntryReader(archive, index.getDataOffset(node), size, index.getStreamSize(), null, null);
+         try
+         {
+            for (long offset = 0L; offset < size; offset += BUFFER_SIZE)
+            {
+               bb.clear();
+               reader.read(bb, offset);
+               total += bb.position();
+            }
+         }
+         finally
+         {
+            reader.close();
+         }
+      }
+
+      return total;
+   }
+
+   /**
+    * Writes a gzip compressed tar of text-like files of up to 4 MiB with some incompressible stretches
+    *
+    * @return the size of the tar stream
+    */
+   private static long write(File file, long size) throws IOException
+   {
+      String[] words = { "fuse", "filesystem", "inode", "directory", "archive", "deflate", "checkpoint", "window", "\n" };
+      Random random = new Random(42L);
+      byte[] header = new byte[BLOCK_SIZE];
+      byte[] data = new byte[4 << 20];
+      long written = 0L;
+
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(file), 65536);
+      try
+      {
+         for (int i = 0; written < size; i++)
+         {
+            int len = (int)Math.min(random.nextInt(data.length), Math.max(0L, size - written - 2 * BLOCK_SIZE));
+            int pos = 0;
+            while (pos < len)
+            {
+               if (random.nextInt(500) == 0)
+               {
+                  int count = Math.min(len - pos, random.nextInt(4000));
+                  for (int j = 0; j < count; j++)
+                     data[pos++] = (byte)random.nextInt(256);
+               }
+               else
+               {
+                  byte[] word = (words[random.nextInt(words.length)] + " ").getBytes();
+                  for (int j = 0; j < word.length && pos < len; j++)
+                     data[pos++] = word[j];
+               }
+            }
+
+            writeHeader(header, "dir" + (i % 10) + "/file" + i + ".txt", len);
+            out.write(header);
+            out.write(data, 0, len);
+            int padding = (BLOCK_SIZE - len % BLOCK_SIZE) % BLOCK_SIZE;
+            out.write(new byte[padding]);
+            written += BLOCK_SIZE + len + padding;
+         }
+
+         // end of archive
+         out.write(new byte[2 * BLOCK_SIZE]);
+         written += 2 * BLOCK_SIZE;
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return written;
+   }
+
+   private static void writeHeader(byte[] header, String name, long size) throws IOException
+   {
+      Arrays.fill(header, (byte)0);
+      byte[] bytes = name.getBytes("UTF-8");
+      System.arraycopy(bytes, 0, header, 0, bytes.length);
+      putOctal(header, 100, 8, 0644);
+      putOctal(header, 108, 8, 0);
+      putOctal(header, 116, 8, 0);
+      putOctal(header, 124, 12, size);
+      putOctal(header, 136, 12, 1000000000L);
+      header[156] = '0';
+      System.arraycopy("ustar\00000".getBytes("US-ASCII"), 0, header, 257, 8);
+
+      Arrays.fill(header, 148, 156, (byte)' ');
+      long checksum = 0L;
+      for (int i = 0; i < BLOCK_SIZE; i++)
+         checksum += header[i] & 0xff;
+      putOctal(header, 148, 8, checksum);
+   }
+
+   private static void putOctal(byte[] header, int off, int len, long value)
+   {
+      String octal = Long.toOctalString(value);
+      for (int i = 0; i < len - 1 - octal.length(); i++)
+         header[off + i] = '0';
+      for (int i = 0; i < octal.length(); i++)
+         header[off + len - 1 - octal.length() + i] = (byte)octal.charAt(i);
+      header[off + len - 1] = 0;
+   }
+
+   private static long mbPerSecond(long bytes, long nanos)
+   {
+      return (long)(bytes / 1e6 / (nanos / 1e9));
+   }
+}
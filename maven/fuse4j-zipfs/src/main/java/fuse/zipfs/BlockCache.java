@@ -0,0 +1,400 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Cache of inflated data shared by all handles of all mounted archives, in blocks of
+ * <code>BLOCK_SIZE</code> bytes keyed by (archive, entry number, block index) and held off-heap up
+ * to a global budget.
+ * <p/>
+ * Eviction is segmented LRU: new blocks enter a probation segment and are promoted to the
+ * protected segment (at most 80% of the budget) when hit again, so blocks read only once by
+ * a large sequential copy can't push out the hot ones.
+ * <p/>
+ * Every block takes a slot of BLOCK_SIZE bytes, carved from direct buffers of SLAB_SIZE bytes (like
+ * the chunks of fuse4j-memfs), and the slots of evicted blocks are reused, so a cache that runs full
+ * allocates no more direct memory. Readers copy out of a block outside of the cache lock; the block
+ * is pinned meanwhile and its slot is only reused when the last reader has finished. So the direct
+ * memory allocated may exceed the capacity by the blocks being read or put at the same time.
+ * <p/>
+ * The hits, misses and hit ratio are reported by {@link #toString()}, which the filesystems log when
+ * an archive is closed.
+ */
+public class BlockCache
+{
+   public static final int BLOCK_SIZE = 128 * 1024;
+
+   private static final int SLAB_SIZE = 8 * BLOCK_SIZE;
+
+   private static final BlockCache sharedCache = new BlockCache(Long.getLong("fuse4j.zipfs.cacheSize", 64L << 20).longValue());
+
+   private final long capacity;
+   private final long protectedCapacity;
+
+   // access ordered, eldest first
+   private final LinkedHashMap<Key, Block> probation = new LinkedHashMap<Key, Block>(16, 0.75f, true);
+   private final LinkedHashMap<Key, Block> protectd = new LinkedHashMap<Key, Block>(16, 0.75f, true);
+   private long probationSize;
+   private long protectedSize;
+
+   // the slots not holding a block, and the rest of the slab slots are carved from
+   private final ArrayDeque<ByteBuffer> freeSlots = new ArrayDeque<ByteBuffer>();
+   private ByteBuffer slab;
+   private long allocated;
+
+   private long hits;
+   private long misses;
+   private long evictions;
+
+
+   /**
+    * @return the cache shared by all zipfs mounts of this VM, sized by the fuse4j.zipfs.cacheSize
+    *         system property (default 64 MiB, 0 disables it)
+    */
+   public static BlockCache getSharedCache()
+   {
+      return sharedCache;
+   }
+
+   public BlockCache(long capacity)
+   {
+      if (capacity < 0)
+         throw new IllegalArgumentException("capacity must not be negative: " + capacity);
+
+      this.capacity = capacity;
+      protectedCapacity = capacity / 5 * 4;
+   }
+
+   public boolean isEnabled()
+   {
+      return capacity >= BLOCK_SIZE;
+   }
+
+   /**
+    * Copies the cached block from <code>offset</code> into <code>dst</code>, as much as fits
+    *
+    * @param key the block, only used for the lookup so that a reader can reuse its key
+    * @return the number of bytes copied (0 if the block ends before <code>offset</code>) or -1 if
+    *         the block is not cached
+    */
+   public int read(Key key, int offset, ByteBuffer dst)
+   {
+      Block cached;
+
+      synchronized (this)
+      {
+         cached = protectd.get(key);
+         if (cached == null)
+         {
+            cached = probation.remove(key);
+            if (cached != null)
+            {
+               probationSize -= BLOCK_SIZE;
+               protectd.put(cached.key, cached);
+               protectedSize += BLOCK_SIZE;
+               // demote the least recently used protected blocks
+               for (Iterator<Map.Entry<Key, Block>> i = protectd.entrySet().iterator(); protectedSize > protectedCapacity && i.hasNext();)
+               {
+                  Map.Entry<Key, Block> eldest = i.next();
+                  i.remove();
+                  protectedSize -= BLOCK_SIZE;
+                  probation.put(eldest.getKey(), eldest.getValue());
+                  probationSize += BLOCK_SIZE;
+               }
+            }
+         }
+
+         if (cached == null)
+         {
+            misses++;
+            return -1;
+         }
+         hits++;
+         cached.pins++;
+      }
+
+      try
+      {
+         if (offset >= cached.length)
+            return 0;
+
+         ByteBuffer data = cached.slot.duplicate();
+         data.limit(Math.min(cached.length, offset + dst.remaining())).position(offset);
+         int n = data.remaining();
+         dst.put(data);
+
+         return n;
+      }
+      finally
+      {
+         synchronized (this)
+         {
+            if (--cached.pins == 0 && cached.evicted)
+               freeSlots.add(cached.slot);
+         }
+      }
+   }
+
+   /**
+    * @return true if the block is cached, without counting as an access
+    */
+   public synchronized boolean contains(Object archive, int entry, long block)
+   {
+      Key key = new Key(archive, entry, block);
+
+      return protectd.containsKey(key) || probation.containsKey(key);
+   }
+
+   /**
+    * Caches a copy of the remaining bytes of <code>data</code> (at most BLOCK_SIZE), unless the block
+    * is cached already or the cache is disabled
+    */
+   public void put(Object archive, int entry, long block, ByteBuffer data)
+   {
+      if (!isEnabled())
+         return;
+
+      Key key = new Key(archive, entry, block);
+      ByteBuffer slot;
+      synchronized (this)
+      {
+         if (protectd.containsKey(key) || probation.containsKey(key))
+            return;
+
+         // make room first, so that a full cache reuses the slot of its eldest block
+         probationSize += BLOCK_SIZE;
+         evict();
+         probationSize -= BLOCK_SIZE;
+         slot = allocateSlot();
+      }
+
+      Block cached = new Block(key, slot, Math.min(data.remaining(), BLOCK_SIZE));
+      ByteBuffer src = data.duplicate();
+      src.limit(src.position() + cached.length);
+      ByteBuffer dst = slot.duplicate();
+      dst.clear();
+      dst.put(src);
+
+      synchronized (this)
+      {
+         // another thread may have cached the block meanwhile
+         if (protectd.containsKey(key) || probation.containsKey(key))
+         {
+            freeSlots.add(slot);
+            return;
+         }
+
+         probation.put(key, cached);
+         probationSize += BLOCK_SIZE;
+         evict();
+      }
+   }
+
+   /**
+    * Drops all blocks of an archive
+    */
+   public synchronized void invalidate(Object archive)
+   {
+      probationSize -= invalidate(probation, archive);
+      protectedSize -= invalidate(protectd, archive);
+   }
+
+   public synchronized long getHits()
+   {
+      return hits;
+   }
+
+   public synchronized long getMisses()
+   {
+      return misses;
+   }
+
+   public synchronized long getEvictions()
+   {
+      return evictions;
+   }
+
+   /**
+    * @return hits / (hits + misses) or 0 if nothing has been looked up yet
+    */
+   public synchronized double getHitRatio()
+   {
+      long lookups = hits + misses;
+
+      return lookups == 0? 0.0 : (double) hits / lookups;
+   }
+
+   /**
+    * @return the bytes taken by the cached blocks, in slots of BLOCK_SIZE
+    */
+   public synchronized long getSize()
+   {
+      return probationSize + protectedSize;
+   }
+
+   /**
+    * @return the direct memory taken by the slabs, which are never given back
+    */
+   public synchronized long getAllocated()
+   {
+      return allocated;
+   }
+
+   public long getCapacity()
+   {
+      return capacity;
+   }
+
+   public synchronized String toString()
+   {
+      return "BlockCache[size=" + getSize() + "/" + capacity + ", allocated=" + allocated + ", blocks=" + (probation.size() + protectd.size()) +
+             ", hits=" + hits + ", misses=" + misses + ", hitRatio=" + getHitRatio() + ", evictions=" + evictions + "]";
+   }
+
+
+   //
+   // private methods
+
+   private ByteBuffer allocateSlot()
+   {
+      ByteBuffer slot = freeSlots.poll();
+      if (slot != null)
+         return slot;
+
+      if (slab == null || !slab.hasRemaining())
+      {
+         slab = ByteBuffer.allocateDirect((int)Math.min(SLAB_SIZE, Math.max(capacity / BLOCK_SIZE, 1L) * BLOCK_SIZE));
+         allocated += slab.capacity();
+      }
+
+      slab.limit(slab.position() + BLOCK_SIZE);
+      slot = slab.slice();
+      slab.position(slab.limit());
+      slab.limit(slab.capacity());
+
+      return slot;
+   }
+
+   private void evict()
+   {
+      while (probationSize + protectedSize > capacity)
+      {
+         boolean fromProbation = !probation.isEmpty();
+         Iterator<Block> i = (fromProbation? probation : protectd).values().iterator();
+         Block eldest = i.next();
+         i.remove();
+         free(eldest);
+
+         if (fromProbation)
+            probationSize -= BLOCK_SIZE;
+         else
+            protectedSize -= BLOCK_SIZE;
+         evictions++;
+      }
+   }
+
+   private long invalidate(Map<Key, Block> segment, Object archive)
+   {
+      long removed = 0;
+      for (Iterator<Map.Entry<Key, Block>> i = segment.entrySet().iterator(); i.hasNext();)
+      {
+         Map.Entry<Key, Block> entry = i.next();
+         if (entry.getKey().archive == archive)
+         {
+            removed += BLOCK_SIZE;
+            free(entry.getValue());
+            i.remove();
+         }
+      }
+
+      return removed;
+   }
+
+   /**
+    * Gives the slot of a block that has been removed back, once no reader is copying from it
+    */
+   private void free(Block block)
+   {
+      block.evicted = true;
+      if (block.pins == 0)
+         freeSlots.add(block.slot);
+   }
+
+
+   /**
+    * A cached block, guarded by the cache's monitor apart from its immutable fields
+    */
+   private static final class Block
+   {
+      // the key it's cached with, the keys passed to read() may change afterwards
+      final Key key;
+      final ByteBuffer slot;
+      final int length;
+      int pins;
+      boolean evicted;
+
+      Block(Key key, ByteBuffer slot, int length)
+      {
+         this.key = key;
+         this.slot = slot;
+         this.length = length;
+      }
+   }
+
+   /**
+    * A block of an entry of an archive. The keys the cache holds are never changed, a reader may reuse
+    * one of its own for its lookups.
+    */
+   public static final class Key
+   {
+      private Object archive;
+      private int entry;
+      private long block;
+
+      public Key()
+      {
+      }
+
+      public Key(Object archive, int entry, long block)
+      {
+         set(archive, entry, block);
+      }
+
+      public Key set(Object archive, int entry, long block)
+      {
+         this.archive = archive;
+         this.entry = entry;
+         this.block = block;
+
+         return this;
+      }
+
+      public boolean equals(Object o)
+      {
+         if (!(o instanceof Key))
+            return false;
+
+         Key key = (Key) o;
+         return archive == key.archive && block == key.block && entry == key.entry;
+      }
+
+      public int hashCode()
+      {
+         return (System.identityHashCode(archive) * 31 + entry) * 31 + (int)(block ^ (block >>> 32));
+      }
+   }
+}
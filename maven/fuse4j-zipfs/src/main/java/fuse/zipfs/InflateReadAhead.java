@@ -0,0 +1,321 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.zipfs.util.InflateIndex;
+import fuse.zipfs.util.RandomAccessInflater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Inflates the segments between the checkpoints of an entry's InflateIndex ahead of a sequential
+ * reader, each segment on its own thread, and puts the blocks into the BlockCache. Deflate data can
+ * only be decoded in parallel from known checkpoints. On the first pass there are none ahead of the
+ * reader, so one task scans ahead of it instead, inflating the blocks into the BlockCache and recording
+ * the checkpoints on its way; the segments between them are inflated in parallel on the next passes.
+ * <p/>
+ * A segment task covers the blocks that start within its segment and may run a little past its end
+ * to finish the last one. Shared by all handles of the entry, so every segment is inflated once.
+ */
+public class InflateReadAhead
+{
+   private static final Log log = LogFactory.getLog(InflateReadAhead.class);
+
+   /**
+    * The number of threads inflating ahead, shared by all archives
+    */
+   public static final int THREADS = Integer.getInteger("fuse4j.zipfs.readAheadThreads", Runtime.getRuntime().availableProcessors()).intValue();
+
+   /**
+    * The number of checkpoint segments inflated ahead of a reader, 0 disables read-ahead (the default
+    * on a single processor, where it can only slow the reader down)
+    */
+   public static final int SEGMENTS = Integer.getInteger("fuse4j.zipfs.readAheadSegments", THREADS > 1? 2 * THREADS : 0).intValue();
+
+   private static ForkJoinPool pool;
+
+   // the pool has a fixed number of threads, each keeps its decoder and buffer
+   private static final ThreadLocal<RandomAccessInflater> inflaters = new ThreadLocal<RandomAccessInflater>();
+   private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>();
+
+   private Object archive;
+   private int entry;
+   private FileChannel channel;
+   private long dataOffset;
+   private long compressedSize;
+   private long size;
+   private InflateIndex inflateIndex;
+   private BlockCache blockCache;
+   private int segments;
+
+   // by the start of their segment
+   private ConcurrentMap<Long, ForkJoinTask<?>> pending = new ConcurrentHashMap<Long, ForkJoinTask<?>>();
+
+   // the scan recording the checkpoints ahead of the readers: from and up to where, set when it's started
+   private AtomicBoolean scanning = new AtomicBoolean();
+   private volatile ForkJoinTask<?> scan;
+   private volatile long scanFrom;
+   private volatile long scanLimit;
+   // reached the end of the entry, all checkpoints are known
+   private volatile boolean scanned;
+
+
+   /**
+    * @param archive the archive in the keys of the BlockCache
+    * @param entry the entry in the keys of the BlockCache
+    * @param channel the file containing the deflate stream
+    * @param dataOffset position of the deflate stream in the file
+    * @param compressedSize length of the deflate stream
+    * @param size length of the inflated data
+    */
+   public InflateReadAhead(Object archive, int entry, FileChannel channel, long dataOffset, long compressedSize, long size, InflateIndex inflateIndex, BlockCache blockCache)
+   {
+      this(archive, entry, channel, dataOffset, compressedSize, size, inflateIndex, blockCache, SEGMENTS);
+   }
+
+   /**
+    * @param segments the number of checkpoint segments inflated ahead of a reader
+    */
+   InflateReadAhead(Object archive, int entry, FileChannel channel, long dataOffset, long compressedSize, long size, InflateIndex inflateIndex, BlockCache blockCache,
+                    int segments)
+   {
+      this.archive = archive;
+      this.entry = entry;
+      this.channel = channel;
+      this.dataOffset = dataOffset;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.inflateIndex = inflateIndex;
+      this.blockCache = blockCache;
+
+      // don't inflate so far ahead that the blocks are evicted before they are read
+      this.segments = (int)Math.min(segments, blockCache.getCapacity() / 2 / inflateIndex.getInterval());
+   }
+
+   public InflateIndex getInflateIndex()
+   {
+      return inflateIndex;
+   }
+
+   public static boolean isEnabled()
+   {
+      return SEGMENTS > 0 && THREADS > 0;
+   }
+
+   /**
+    * Schedules the segments following the one containing <code>offset</code> that aren't cached yet, or
+    * the scan recording their checkpoints if they aren't known yet
+    */
+   public void readAhead(long offset)
+   {
+      long limit = Math.min(size, inflateIndex.floorPosition(offset) + (segments + 1) * inflateIndex.getInterval());
+      if (segments > 0 && !scanned && inflateIndex.getNextCheckpointPosition() < limit)
+         scan(offset, limit);
+
+      long start = inflateIndex.higherPosition(offset);
+
+      for (int i = 0; i < segments && start >= 0; i++)
+      {
+         long end = inflateIndex.higherPosition(start);
+         // the end of the last segment isn't known before the reader has passed it
+         if (end < 0)
+            break;
+
+         schedule(start, end);
+         start = end;
+      }
+   }
+
+   /**
+    * Waits for the segment task inflating the block starting at <code>blockStart</code>, if there is one
+    */
+   public void await(long blockStart)
+   {
+      ForkJoinTask<?> task = pending.get(Long.valueOf(inflateIndex.floorPosition(blockStart)));
+      if (task == null && scanning.get() && blockStart >= scanFrom && blockStart < scanLimit)
+         task = scan;
+      if (task != null)
+      {
+         try
+         {
+            task.join();
+         }
+         catch (RuntimeException e)
+         {
+            // the reader inflates the block itself
+         }
+      }
+   }
+
+
+   //
+   // private methods
+
+   private void schedule(final long start, final long end)
+   {
+      final long firstBlock = (start + BlockCache.BLOCK_SIZE - 1) / BlockCache.BLOCK_SIZE;
+      final long lastBlock = (Math.min(end, size) - 1) / BlockCache.BLOCK_SIZE;
+      if (firstBlock > lastBlock || blockCache.contains(archive, entry, lastBlock))
+         return;
+
+      final Long key = Long.valueOf(start);
+      ForkJoinTask<?> task = ForkJoinTask.adapt(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               inflateBlocks(firstBlock, lastBlock);
+            }
+            catch (IOException e)
+            {
+               log.debug("read-ahead of entry " + entry + " failed", e);
+            }
+            finally
+            {
+               pending.remove(key);
+            }
+         }
+      });
+
+      if (pending.putIfAbsent(key, task) == null)
+         getPool().execute(task);
+   }
+
+   private void scan(long offset, long limit)
+   {
+      if (limit > scanLimit)
+         scanLimit = limit;
+      if (!scanning.compareAndSet(false, true))
+         return;
+
+      // from the block after the reader's, or the last checkpoint if that's further
+      final long firstBlock = Math.max(inflateIndex.floorPosition(Long.MAX_VALUE), offset + BlockCache.BLOCK_SIZE) / BlockCache.BLOCK_SIZE;
+      scanFrom = firstBlock * BlockCache.BLOCK_SIZE;
+      ForkJoinTask<?> task = ForkJoinTask.adapt(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               scanBlocks(firstBlock);
+            }
+            catch (IOException e)
+            {
+               log.debug("scan of entry " + entry + " failed", e);
+            }
+            finally
+            {
+               scanning.set(false);
+            }
+         }
+      });
+
+      scan = task;
+      getPool().execute(task);
+   }
+
+   private void scanBlocks(long block) throws IOException
+   {
+      RandomAccessInflater inflater = getInflater();
+      byte[] buff = getBuffer();
+
+      // the readers may raise the limit while the scan runs
+      for (; block * BlockCache.BLOCK_SIZE < size; block++)
+      {
+         if (block * BlockCache.BLOCK_SIZE >= scanLimit)
+            return;
+
+         // seeking past cached blocks still records their checkpoints
+         if (!blockCache.contains(archive, entry, block))
+            inflateBlock(inflater, buff, block);
+      }
+
+      scanned = true;
+   }
+
+   private void inflateBlocks(long firstBlock, long lastBlock) throws IOException
+   {
+      RandomAccessInflater inflater = getInflater();
+      byte[] buff = getBuffer();
+
+      for (long block = firstBlock; block <= lastBlock; block++)
+      {
+         if (!blockCache.contains(archive, entry, block))
+            inflateBlock(inflater, buff, block);
+      }
+   }
+
+   private void inflateBlock(RandomAccessInflater inflater, byte[] buff, long block) throws IOException
+   {
+      long blockStart = block * BlockCache.BLOCK_SIZE;
+      int len = (int)Math.min(BlockCache.BLOCK_SIZE, size - blockStart);
+      int nread = 0;
+
+      inflater.seek(blockStart);
+      while (nread < len)
+      {
+         int n = inflater.read(buff, nread, len - nread);
+         if (n < 0)
+            break;
+         nread += n;
+      }
+
+      blockCache.put(archive, entry, block, ByteBuffer.wrap(buff, 0, nread));
+   }
+
+   /**
+    * @return the decoder of the pool thread, positioned at the start of this entry
+    */
+   private RandomAccessInflater getInflater()
+   {
+      RandomAccessInflater inflater = inflaters.get();
+      if (inflater == null)
+      {
+         inflater = new RandomAccessInflater(channel, dataOffset, compressedSize, inflateIndex);
+         inflaters.set(inflater);
+      }
+      else
+         inflater.reset(channel, dataOffset, compressedSize, inflateIndex);
+
+      return inflater;
+   }
+
+   private static byte[] getBuffer()
+   {
+      byte[] buff = buffers.get();
+      if (buff == null)
+      {
+         buff = new byte[BlockCache.BLOCK_SIZE];
+         buffers.set(buff);
+      }
+
+      return buff;
+   }
+
+   private static synchronized ForkJoinPool getPool()
+   {
+      if (pool == null)
+         pool = new ForkJoinPool(THREADS);
+
+      return pool;
+   }
+}
@@ -0,0 +1,354 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.*;
+import fuse.staticfs.SubPathFilesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * A ZipFilesystem that opens its archive on first access and may have it closed again by a
+ * ZipFilesystemPool while no file handles are open. The attributes of the root directory are
+ * answered from the archive file itself, so listing a directory of many unopened archives doesn't
+ * open any of them.
+ */
+public class LazyZipFilesystem implements SubPathFilesystem
+{
+   private static final Log log = LogFactory.getLog(LazyZipFilesystem.class);
+
+   private File file;
+   private ZipFilesystemPool pool;
+
+   // guarded by this, read without the lock only while pinned by an open file handle
+   private volatile ZipFilesystem filesystem;
+   private int users;
+   private boolean removed;
+   // System.nanoTime() of the last request, for the pool's LRU order
+   private volatile long lastUsed;
+
+
+   public LazyZipFilesystem(File file, ZipFilesystemPool pool)
+   {
+      this.file = file;
+      this.pool = pool;
+   }
+
+   public File getFile()
+   {
+      return file;
+   }
+
+   public boolean isOpen()
+   {
+      return filesystem != null;
+   }
+
+   /**
+    * @return System.nanoTime() of the last request that needed the archive
+    */
+   public long getLastUsed()
+   {
+      return lastUsed;
+   }
+
+   /**
+    * Closes the archive for good, afterwards every request fails with ENOENT and the file handles
+    * that are still open with EBADF
+    */
+   public void remove()
+   {
+      synchronized (this)
+      {
+         removed = true;
+         close();
+      }
+
+      pool.closed(this);
+   }
+
+
+   //
+   // Filesystem3 implementation
+
+   public int chmod(String path, int mode) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int chown(String path, int uid, int gid) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int getattr(String path, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      return getattr(path, 0, getattrSetter);
+   }
+
+   public int getattr(String path, int start, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      if (filesystem == null && isRoot(path, start))
+      {
+         int time = (int) (file.lastModified() / 1000L);
+         getattrSetter.set(0, FuseFtype.TYPE_DIR | 0755, 1, 0, 0, 0, 0, 0, time, time, time);
+         return 0;
+      }
+
+      ZipFilesystem fs = acquire();
+      try
+      {
+         return fs.getattr(path, start, getattrSetter);
+      }
+      finally
+      {
+         release();
+      }
+   }
+
+   public int getdir(String path, FuseDirFiller dirFiller) throws FuseException
+   {
+      return getdir(path, 0, dirFiller);
+   }
+
+   public int getdir(String path, int start, FuseDirFiller dirFiller) throws FuseException
+   {
+      ZipFilesystem fs = acquire();
+      try
+      {
+         return fs.getdir(path, start, dirFiller);
+      }
+      finally
+      {
+         release();
+      }
+   }
+
+   public int link(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int mkdir(String path, int mode) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int mknod(String path, int mode, int rdev) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      return open(path, 0, flags, openSetter);
+   }
+
+   public int open(String path, int start, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      ZipFilesystem fs = acquire();
+      boolean opened = false;
+      try
+      {
+         int result = fs.open(path, start, flags, openSetter);
+         // the handle keeps the archive open until it is released
+         opened = result == 0;
+         return result;
+      }
+      finally
+      {
+         if (!opened)
+            release();
+      }
+   }
+
+   public int rename(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int rmdir(String path) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int statfs(FuseStatfsSetter statfsSetter) throws FuseException
+   {
+      ZipFilesystem fs = acquire();
+      try
+      {
+         return fs.statfs(statfsSetter);
+      }
+      finally
+      {
+         release();
+      }
+   }
+
+   public int symlink(String from, String to) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int truncate(String path, long size) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int unlink(String path) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int utime(String path, int atime, int mtime) throws FuseException
+   {
+      // noop
+      return 0;
+   }
+
+   public int readlink(String path, CharBuffer link) throws FuseException
+   {
+      return Errno.ENOENT;
+   }
+
+   public int readlink(String path, int start, CharBuffer link) throws FuseException
+   {
+      return Errno.ENOENT;
+   }
+
+   public int write(String path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException
+   {
+      return Errno.EROFS;
+   }
+
+   public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException
+   {
+      ZipFilesystem fs = filesystem;
+      if (fs == null)
+         return Errno.EBADF;
+
+      return fs.read(path, fh, buf, offset);
+   }
+
+   public int flush(String path, Object fh) throws FuseException
+   {
+      return 0;
+   }
+
+   public int fsync(String path, Object fh, boolean isDatasync) throws FuseException
+   {
+      return 0;
+   }
+
+   public int release(String path, Object fh, int flags) throws FuseException
+   {
+      try
+      {
+         ZipFilesystem fs = filesystem;
+         return fs != null? fs.release(path, fh, flags) : 0;
+      }
+      finally
+      {
+         release();
+      }
+   }
+
+
+   //
+   // called by ZipFilesystemPool while holding its monitor
+
+   synchronized boolean closeIfIdle()
+   {
+      if (users > 0)
+         return false;
+
+      close();
+
+      return true;
+   }
+
+
+   //
+   // private methods
+
+   private synchronized void close()
+   {
+      if (filesystem != null)
+      {
+         log.debug("closing " + file);
+         try
+         {
+            filesystem.close();
+         }
+         catch (IOException e)
+         {
+            log.warn("can't close " + file, e);
+         }
+         filesystem = null;
+      }
+   }
+
+   private ZipFilesystem acquire() throws FuseException
+   {
+      ZipFilesystem fs;
+      boolean opened = false;
+      synchronized (this)
+      {
+         if (removed)
+            throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
+
+         if (filesystem == null)
+         {
+            try
+            {
+               filesystem = new ZipFilesystem(file);
+            }
+            catch (IOException e)
+            {
+               throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+            }
+            opened = true;
+         }
+
+         users++;
+         fs = filesystem;
+      }
+      lastUsed = System.nanoTime();
+
+      // only opening an archive may close others
+      if (opened)
+         pool.opened(this);
+
+      return fs;
+   }
+
+   private synchronized void release()
+   {
+      users--;
+   }
+
+   private static boolean isRoot(String path, int start)
+   {
+      for (int i = start; i < path.length(); i++)
+      {
+         if (path.charAt(i) != '/')
+            return false;
+      }
+
+      return true;
+   }
+}
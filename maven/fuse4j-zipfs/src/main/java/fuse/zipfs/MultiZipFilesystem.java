@@ -12,24 +12,98 @@ package fuse.zipfs;
 import fuse.FuseMount;
 import fuse.staticfs.DirectoryNode;
 import fuse.staticfs.MountpointNode;
+import fuse.staticfs.Node;
 import fuse.staticfs.StaticFilesystem;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
+
+/**
+ * Mounts many zip files side by side, each in a directory named after the file. The archives are
+ * opened on first access and closed again by a ZipFilesystemPool when too many are open, and they
+ * can be added and removed while the filesystem is mounted.
+ */
 public class MultiZipFilesystem extends StaticFilesystem
 {
+   private static final Log log = LogFactory.getLog(MultiZipFilesystem.class);
+
+   private ZipFilesystemPool pool;
+
    public MultiZipFilesystem(String args[], int offset) throws IOException
+   {
+      this(args, offset, new ZipFilesystemPool());
+   }
+
+   public MultiZipFilesystem(String args[], int offset, ZipFilesystemPool pool) throws IOException
    {
       super(new DirectoryNode("$ROOT"));
 
-      DirectoryNode rootNode = getRootNode();
-      for (int i = offset; i < args.length; i++)
-      {
-         File zipFile = new File(args[i]);
-         rootNode.addChild(new MountpointNode(zipFile.getName(), new ZipFilesystem(zipFile)));
-      }
+      this.pool = pool;
+
+      // added in one go, addChild() would copy the root directory once per zip file
+      Node[] nodes = new Node[Math.max(0, args.length - offset)];
+      for (int i = 0; i < nodes.length; i++)
+         nodes[i] = createMountpoint(new File(args[offset + i]));
+      for (Node node : getRootNode().addChildren(nodes))
+         removeFilesystem(node);
+   }
+
+   public ZipFilesystemPool getPool()
+   {
+      return pool;
+   }
+
+   /**
+    * Mounts a zip file in the root directory, replacing the one with the same name if there is one
+    *
+    * @return the name of the directory
+    */
+   public String addZipFile(File zipFile) throws IOException
+   {
+      Node node = createMountpoint(zipFile);
+      removeFilesystem(getRootNode().addChild(node));
+
+      return node.getName();
+   }
+
+   /**
+    * Unmounts the zip file of a directory in the root directory and closes it, including the files
+    * that are still open.
+    *
+    * @return false if there is no such zip file
+    */
+   public boolean removeZipFile(String name)
+   {
+      Node node = getRootNode().removeChild(name);
+      if (node == null)
+         return false;
+
+      removeFilesystem(node);
+
+      return true;
+   }
+
+
+   //
+   // private methods
+
+   private MountpointNode createMountpoint(File zipFile) throws IOException
+   {
+      if (!zipFile.isFile())
+         throw new FileNotFoundException(zipFile.getPath());
+
+      return new MountpointNode(zipFile.getName(), new LazyZipFilesystem(zipFile, pool));
+   }
+
+   private static void removeFilesystem(Node node)
+   {
+      if (node instanceof MountpointNode && ((MountpointNode) node).getFilesystem() instanceof LazyZipFilesystem)
+         ((LazyZipFilesystem) ((MountpointNode) node).getFilesystem()).remove();
    }
 
 
@@ -45,7 +119,7 @@ public class MultiZipFilesystem extends StaticFilesystem
 
       try
       {
-         FuseMount.mount(fuseArgs, new MultiZipFilesystem(args, 1));
+         FuseMount.mount(fuseArgs, new MultiZipFilesystem(args, 1), log);
       }
       catch (Exception e)
       {
@@ -0,0 +1,352 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+
+/**
+ * Raw access to a zip file through a FileChannel. Positional reads on the channel don't move
+ * a shared file pointer, so any number of threads may read through it concurrently.
+ * <p/>
+ * Entries are addressed by the offset of their local header, as found in the central directory.
+ * The offset of their data is looked up once per handle (see {@link #getDataOffset(long)}).
+ */
+public class ZipArchive
+{
+   public static final int STORED = 0;
+   public static final int DEFLATED = 8;
+
+   // general purpose bit flag: the entry data is encrypted
+   public static final int ENCRYPTED = 1;
+
+   private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+   private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+   private static final int END_SIGNATURE = 0x06054b50;
+   private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+   private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+   private static final int LOCAL_HEADER_SIZE = 30;
+   private static final int CENTRAL_HEADER_SIZE = 46;
+   private static final int END_SIZE = 22;
+   private static final int ZIP64_LOCATOR_SIZE = 20;
+   private static final int ZIP64_END_SIZE = 56;
+   private static final int MAX_COMMENT_SIZE = 0xffff;
+
+   private static final int ZIP64_EXTRA_ID = 0x0001;
+   private static final int EXTENDED_TIMESTAMP_EXTRA_ID = 0x5455;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   /**
+    * Receives the entries of the central directory
+    */
+   public interface EntryVisitor
+   {
+      /**
+       * @param name the entry name as stored in the archive (directories end with '/')
+       * @param flags the general purpose bit flags of the entry (see ENCRYPTED)
+       * @param method STORED, DEFLATED or another compression method
+       * @param time modification time in milliseconds since the epoch
+       */
+      public void visit(String name, int flags, int method, long time, long size, long compressedSize, long localHeaderOffset) throws IOException;
+   }
+
+   private final File file;
+   private final RandomAccessFile raf;
+   private final FileChannel channel;
+
+
+   public ZipArchive(File file) throws IOException
+   {
+      this.file = file;
+      raf = new RandomAccessFile(file, "r");
+      channel = raf.getChannel();
+   }
+
+   /**
+    * An archive that isn't a file of its own, such as a zip entry read through a ZipEntryChannel.
+    * The channel is closed with the archive.
+    */
+   public ZipArchive(FileChannel channel)
+   {
+      file = null;
+      raf = null;
+      this.channel = channel;
+   }
+
+   /**
+    * @return the file of the archive, null if it is read from another channel
+    */
+   public File getFile()
+   {
+      return file;
+   }
+
+   public FileChannel getChannel()
+   {
+      return channel;
+   }
+
+   /**
+    * Reads the local header of an entry, so the result should be kept by the caller
+    *
+    * @return the position of the (possibly compressed) data of the entry in the file
+    */
+   public long getDataOffset(long localHeaderOffset) throws IOException
+   {
+      // the extra field of the local header may differ from the one in the central directory
+      ByteBuffer header = read(localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+         throw new ZipException("invalid local header at " + localHeaderOffset);
+
+      return localHeaderOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+   }
+
+   /**
+    * Reads the data of a STORED entry straight into <code>bb</code> (a single copy from the page cache
+    * if it is a direct buffer). Safe to call concurrently, also for the same entry.
+    *
+    * @param dataOffset the position of the data of the entry, see {@link #getDataOffset(long)}
+    * @return the number of bytes read, less than requested only at the end of the entry
+    */
+   public int readStored(long dataOffset, long size, ByteBuffer bb, long offset) throws IOException
+   {
+      long left = size - offset;
+      if (left <= 0)
+         return 0;
+
+      long position = dataOffset + offset;
+      int limit = bb.limit();
+      if (bb.remaining() > left)
+         bb.limit(bb.position() + (int)left);
+
+      int nread = 0;
+      try
+      {
+         while (bb.hasRemaining())
+         {
+            int n = channel.read(bb, position + nread);
+            if (n < 0)
+               throw new ZipException("unexpected end of zip file");
+            nread += n;
+         }
+      }
+      finally
+      {
+         bb.limit(limit);
+      }
+
+      return nread;
+   }
+
+   /**
+    * @return CRC32 of the end of the file (the end of central directory record and what precedes it,
+    *         up to 64 KiB), which changes whenever entries are added, removed or rewritten
+    */
+   public long getTailChecksum() throws IOException
+   {
+      long size = channel.size();
+      int tailSize = (int)Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+      ByteBuffer tail = read(size - tailSize, tailSize);
+
+      CRC32 crc = new CRC32();
+      crc.update(tail.array(), 0, tailSize);
+
+      return crc.getValue();
+   }
+
+   /**
+    * Passes all entries of the central directory to <code>visitor</code>, in the order they are stored.
+    * Every length and offset is checked against the central directory and the end record, so a truncated
+    * or corrupt archive fails with a ZipException. Encrypted entries are passed on with the ENCRYPTED
+    * flag, their data can't be read.
+    */
+   public void readCentralDirectory(EntryVisitor visitor) throws IOException
+   {
+      long size = channel.size();
+
+      // the end record is followed by a comment of up to 64 KiB
+      int tailSize = (int)Math.min(size, END_SIZE + MAX_COMMENT_SIZE);
+      ByteBuffer tail = read(size - tailSize, tailSize);
+      int end = tailSize - END_SIZE;
+      while (end >= 0 && tail.getInt(end) != END_SIGNATURE)
+         end--;
+      if (end < 0)
+         throw new ZipException("end of central directory not found");
+
+      long entries = tail.getShort(end + 10) & 0xffff;
+      long cdSize = tail.getInt(end + 12) & 0xffffffffL;
+      long cdOffset = tail.getInt(end + 16) & 0xffffffffL;
+
+      // the central directory ends where the (zip64) end record starts
+      long endOffset = size - tailSize + end;
+      if ((entries == 0xffff || cdSize == 0xffffffffL || cdOffset == 0xffffffffL) && endOffset >= ZIP64_LOCATOR_SIZE)
+      {
+         ByteBuffer locator = read(endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+         if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE)
+         {
+            long zip64EndOffset = locator.getLong(8);
+            if (zip64EndOffset < 0 || zip64EndOffset > endOffset - ZIP64_LOCATOR_SIZE - ZIP64_END_SIZE)
+               throw new ZipException("invalid zip64 end of central directory offset: " + zip64EndOffset);
+
+            ByteBuffer zip64End = read(zip64EndOffset, ZIP64_END_SIZE);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE)
+               throw new ZipException("invalid zip64 end of central directory");
+
+            cdSize = zip64End.getLong(40);
+            cdOffset = zip64End.getLong(48);
+            endOffset = zip64EndOffset;
+         }
+      }
+
+      if (cdSize > Integer.MAX_VALUE)
+         throw new ZipException("central directory too large: " + cdSize);
+      if (cdSize < 0 || cdOffset < 0 || cdOffset > endOffset - cdSize)
+         throw new ZipException("central directory (" + cdSize + " bytes at " + cdOffset + ") not before the end record at " + endOffset);
+
+      // only files can be mapped
+      ByteBuffer cd = file != null? channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize).order(ByteOrder.LITTLE_ENDIAN) : read(cdOffset, (int)cdSize);
+      Calendar calendar = Calendar.getInstance();
+      byte[] nameBytes = new byte[256];
+
+      int pos = 0;
+      while (pos + CENTRAL_HEADER_SIZE <= cd.limit() && cd.getInt(pos) == CENTRAL_HEADER_SIGNATURE)
+      {
+         int flags = cd.getShort(pos + 8) & 0xffff;
+         int method = cd.getShort(pos + 10) & 0xffff;
+         long dosTime = cd.getInt(pos + 12) & 0xffffffffL;
+         long compressedSize = cd.getInt(pos + 20) & 0xffffffffL;
+         long uncompressedSize = cd.getInt(pos + 24) & 0xffffffffL;
+         int nameLen = cd.getShort(pos + 28) & 0xffff;
+         int extraLen = cd.getShort(pos + 30) & 0xffff;
+         int commentLen = cd.getShort(pos + 32) & 0xffff;
+         long localHeaderOffset = cd.getInt(pos + 42) & 0xffffffffL;
+
+         int headerEnd = pos + CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+         if (headerEnd > cd.limit())
+            throw new ZipException("truncated central directory header at " + (cdOffset + pos));
+
+         if (nameBytes.length < nameLen)
+            nameBytes = new byte[nameLen];
+         cd.position(pos + CENTRAL_HEADER_SIZE);
+         cd.get(nameBytes, 0, nameLen);
+
+         long time = -1L;
+         int extra = pos + CENTRAL_HEADER_SIZE + nameLen;
+         int extraEnd = extra + extraLen;
+         while (extra + 4 <= extraEnd)
+         {
+            int id = cd.getShort(extra) & 0xffff;
+            int len = cd.getShort(extra + 2) & 0xffff;
+            int field = extra + 4;
+            int fieldEnd = field + len;
+            if (fieldEnd > extraEnd)
+               throw new ZipException("invalid extra field at " + (cdOffset + extra));
+
+            if (id == ZIP64_EXTRA_ID)
+            {
+               // the 64 bit values of the saturated fields, in this order
+               if (uncompressedSize == 0xffffffffL)
+               {
+                  uncompressedSize = getZip64Value(cd, field, fieldEnd);
+                  field += 8;
+               }
+               if (compressedSize == 0xffffffffL)
+               {
+                  compressedSize = getZip64Value(cd, field, fieldEnd);
+                  field += 8;
+               }
+               if (localHeaderOffset == 0xffffffffL)
+                  localHeaderOffset = getZip64Value(cd, field, fieldEnd);
+            }
+            else if (id == EXTENDED_TIMESTAMP_EXTRA_ID && len >= 5 && (cd.get(field) & 1) != 0)
+            {
+               // modification time in seconds since the epoch
+               time = (cd.getInt(field + 1) & 0xffffffffL) * 1000L;
+            }
+
+            extra += 4 + len;
+         }
+
+         String name = new String(nameBytes, 0, nameLen, UTF8);
+         // the data of an entry lies before the central directory
+         if (localHeaderOffset > cdOffset || compressedSize > cdOffset - localHeaderOffset)
+            throw new ZipException("invalid offset or size of entry: " + name);
+
+         if (time < 0)
+            time = dosToJavaTime(calendar, dosTime);
+
+         visitor.visit(name, flags, method, time, uncompressedSize, compressedSize, localHeaderOffset);
+         pos = headerEnd;
+      }
+   }
+
+   public void close() throws IOException
+   {
+      if (raf != null)
+         raf.close();
+      else
+         channel.close();
+   }
+
+
+   //
+   // private methods
+
+   private static long getZip64Value(ByteBuffer cd, int field, int fieldEnd) throws ZipException
+   {
+      if (field + 8 > fieldEnd)
+         throw new ZipException("invalid zip64 extra field");
+
+      long value = cd.getLong(field);
+      if (value < 0)
+         throw new ZipException("invalid zip64 value: " + value);
+
+      return value;
+   }
+
+   private static long dosToJavaTime(Calendar calendar, long dosTime)
+   {
+      calendar.clear();
+      calendar.set(
+         (int)((dosTime >> 25) & 0x7f) + 1980,
+         (int)((dosTime >> 21) & 0x0f) - 1,
+         (int)((dosTime >> 16) & 0x1f),
+         (int)((dosTime >> 11) & 0x1f),
+         (int)((dosTime >> 5) & 0x3f),
+         (int)((dosTime << 1) & 0x3e)
+      );
+
+      return calendar.getTimeInMillis();
+   }
+
+   private ByteBuffer read(long position, int size) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      while (bb.hasRemaining())
+      {
+         if (channel.read(bb, position + bb.position()) < 0)
+            throw new ZipException("unexpected end of zip file");
+      }
+      bb.flip();
+
+      return bb;
+   }
+}
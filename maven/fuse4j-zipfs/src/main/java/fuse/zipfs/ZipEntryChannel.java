@@ -0,0 +1,178 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * The (uncompressed) data of a zip entry as a read-only FileChannel, so that a zip archive stored in
+ * another one can be opened as a ZipArchive. Reads go through a ZipEntryDataReader of the outer
+ * archive and so through its BlockCache and InflateIndex: random access into the inner archive only
+ * inflates the blocks of the outer entry that aren't cached yet, from the nearest checkpoint.
+ * <p/>
+ * Positional reads may be issued concurrently, like on a FileChannel. Mapping and locking are not
+ * supported.
+ */
+class ZipEntryChannel extends FileChannel
+{
+   private ZipEntryDataReader reader;
+   private long size;
+   private long position;
+
+
+   ZipEntryChannel(ZipEntryDataReader reader)
+   {
+      this.reader = reader;
+      size = reader.getSize();
+   }
+
+   public int read(ByteBuffer dst, long position) throws IOException
+   {
+      if (position < 0)
+         throw new IllegalArgumentException("negative position");
+      if (!isOpen())
+         throw new IOException("channel closed");
+      if (position >= size)
+         return -1;
+
+      int start = dst.position();
+      reader.readData(dst, position);
+      int n = dst.position() - start;
+
+      // premature end of the entry data
+      return n == 0 && dst.hasRemaining()? -1 : n;
+   }
+
+   public synchronized int read(ByteBuffer dst) throws IOException
+   {
+      int n = read(dst, position);
+      if (n > 0)
+         position += n;
+
+      return n;
+   }
+
+   public synchronized long read(ByteBuffer[] dsts, int offset, int length) throws IOException
+   {
+      long nread = 0;
+      for (int i = offset; i < offset + length; i++)
+      {
+         if (!dsts[i].hasRemaining())
+            continue;
+
+         int n = read(dsts[i]);
+         if (n < 0)
+            return nread == 0? -1 : nread;
+         nread += n;
+         if (dsts[i].hasRemaining())
+            break;
+      }
+
+      return nread;
+   }
+
+   public synchronized long position()
+   {
+      return position;
+   }
+
+   public synchronized FileChannel position(long newPosition)
+   {
+      if (newPosition < 0)
+         throw new IllegalArgumentException("negative position");
+      position = newPosition;
+
+      return this;
+   }
+
+   public long size()
+   {
+      return size;
+   }
+
+   public long transferTo(long position, long count, WritableByteChannel target) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate((int)Math.min(count, 8192));
+      long transferred = 0;
+      while (transferred < count)
+      {
+         bb.clear();
+         if (bb.remaining() > count - transferred)
+            bb.limit((int)(count - transferred));
+         int n = read(bb, position + transferred);
+         if (n <= 0)
+            break;
+         bb.flip();
+         while (bb.hasRemaining())
+            transferred += target.write(bb);
+      }
+
+      return transferred;
+   }
+
+   public int write(ByteBuffer src)
+   {
+      throw new NonWritableChannelException();
+   }
+
+   public long write(ByteBuffer[] srcs, int offset, int length)
+   {
+      throw new NonWritableChannelException();
+   }
+
+   public int write(ByteBuffer src, long position)
+   {
+      throw new NonWritableChannelException();
+   }
+
+   public FileChannel truncate(long size)
+   {
+      throw new NonWritableChannelException();
+   }
+
+   public long transferFrom(ReadableByteChannel src, long position, long count)
+   {
+      throw new NonWritableChannelException();
+   }
+
+   public void force(boolean metaData)
+   {
+      // nothing to write
+   }
+
+   public MappedByteBuffer map(MapMode mode, long position, long size)
+   {
+      throw new UnsupportedOperationException("zip entries can't be mapped");
+   }
+
+   public FileLock lock(long position, long size, boolean shared)
+   {
+      throw new UnsupportedOperationException("zip entries can't be locked");
+   }
+
+   public FileLock tryLock(long position, long size, boolean shared)
+   {
+      throw new UnsupportedOperationException("zip entries can't be locked");
+   }
+
+
+   protected void implCloseChannel()
+   {
+      reader.close();
+   }
+}
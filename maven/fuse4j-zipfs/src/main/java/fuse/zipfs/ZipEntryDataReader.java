@@ -10,125 +10,405 @@
 package fuse.zipfs;
 
 import fuse.FuseException;
+import fuse.zipfs.util.InflateIndex;
+import fuse.zipfs.util.RandomAccessInflater;
 
-import java.io.BufferedInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
 
+/**
+ * The state of one open file handle of a zip entry. Each handle reads sequentially on its own,
+ * so concurrent readers of the same entry don't disturb each other. STORED entries are read
+ * without any locking, deflated ones under the monitor of the handle only and through the
+ * BlockCache if it is enabled. Small deflated entries are inflated completely when they are opened
+ * (see ZipFileDataReader.MATERIALIZE_SIZE) and read with a plain copy.
+ */
 public class ZipEntryDataReader
 {
    private static final Log log = LogFactory.getLog(ZipEntryDataReader.class);
 
-   private static final int bufferSize = 8192;
+   private ZipFileDataReader zipFileDataReader;
+   private ZipArchive zipArchive;
+   private BlockCache blockCache;
+   // of the block looked up in the BlockCache, reused by every read of the handle
+   private BlockCache.Key key = new BlockCache.Key();
+   // pooled, holds inflated data on its way to the BlockCache or the caller
+   private byte[] transferBuff;
+
+   // the entry: its node in the ZipIndex and attributes
+   private int entry;
+   private int method;
+   private long size;
+   private long compressedSize;
+   // of the (possibly compressed) data in the archive
+   private long dataOffset;
+
+   // the whole entry, if materialized
+   private volatile ByteBuffer materialized;
 
-   private ZipFile zipFile;
-   private ZipEntry zipEntry;
-   private BufferedInputStream zipStream;
+   // deflated entries with an InflateIndex: read from the checkpoints, recording them on the first pass
+   private InflateIndex inflateIndex;
+   private RandomAccessInflater randomAccessInflater;
+   // with the BlockCache: inflates ahead of sequential reads in parallel, may be null
+   private InflateReadAhead readAhead;
+   private long lastBlock = -1L;
+
+   // deflated entries without an InflateIndex: inflated from the start, skipping forward
+   private Inflater inflater;
+   private byte[] input;
+   private long inputPos;
+   private boolean inputPadded;
    private long zipPos;
-   private long zipMarkPos;
 
-   public ZipEntryDataReader(ZipFile zipFile, ZipEntry zipEntry)
+   ZipEntryDataReader(ZipFileDataReader zipFileDataReader, ZipArchive zipArchive, int entry, int method, long size, long compressedSize, long dataOffset,
+                      InflateIndex inflateIndex, InflateReadAhead readAhead, BlockCache blockCache)
    {
-      this.zipFile = zipFile;
-      this.zipEntry = zipEntry;
+      this.zipFileDataReader = zipFileDataReader;
+      this.zipArchive = zipArchive;
+      this.entry = entry;
+      this.method = method;
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.dataOffset = dataOffset;
+      this.inflateIndex = inflateIndex;
+      this.readAhead = readAhead;
+      this.blockCache = blockCache;
    }
 
-   public synchronized void read(ByteBuffer bb, long offset) throws FuseException
+   /**
+    * @return the node of the entry in the ZipIndex
+    */
+   public int getEntry()
    {
-      BufferedInputStream in = getZipStream(offset, bb.capacity());
+      return entry;
+   }
 
-      // EOF?
-      if (in == null)
-         return;
+   public long getSize()
+   {
+      return size;
+   }
 
-      byte[] buff = new byte[bb.capacity()];
-      int nread;
+   public void read(ByteBuffer bb, long offset) throws FuseException
+   {
       try
       {
-         nread = in.read(buff);
+         readData(bb, offset);
       }
       catch (IOException e)
       {
          throw new FuseException("IO error", e).initErrno(FuseException.EIO);
       }
 
-      if (nread > 0)
+      if (log.isDebugEnabled())
+         log.debug("read " + bb.position() + "/" + bb.capacity() + " requested bytes");
+   }
+
+   /**
+    * Reads the entry at <code>offset</code> into <code>bb</code>, up to its remaining bytes or the end of the entry
+    */
+   void readData(ByteBuffer bb, long offset) throws IOException
+   {
+      ByteBuffer data = materialized;
+      if (data != null)
+      {
+         if (offset < size)
+         {
+            // a view of its own, the handle may be read concurrently
+            data = data.duplicate();
+            data.position((int)offset);
+            if (data.remaining() > bb.remaining())
+               data.limit((int)offset + bb.remaining());
+            bb.put(data);
+         }
+      }
+      else if (method == ZipArchive.STORED)
+         zipArchive.readStored(dataOffset, size, bb, offset);
+      else if (method != ZipArchive.DEFLATED)
+         throw new ZipException("unsupported compression method: " + method);
+      else if (blockCache != null)
+         readCached(bb, offset);
+      else
+         readDeflated(bb, offset);
+   }
+
+   /**
+    * Returns the pooled resources, the reader must not be used afterwards
+    */
+   public synchronized void close()
+   {
+      if (materialized != null)
       {
-         zipPos += nread;
-         bb.put(buff, 0, nread);
+         ZipFileDataReader.releaseMaterializeBuffer(materialized);
+         materialized = null;
       }
+      releaseInflater();
+      releaseRandomAccessInflater();
+      releaseTransferBuffer();
+   }
 
-      if (log.isDebugEnabled())
-         log.debug("read " + bb.position() + "/" + bb.capacity() + " requested bytes");
+   /**
+    * Reads the whole entry into a pooled buffer, if there is one left in the budget, so that all further
+    * reads are served from memory. The entry must not be larger than ZipFileDataReader.MATERIALIZE_SIZE.
+    */
+   synchronized void materialize() throws IOException
+   {
+      ByteBuffer buffer = ZipFileDataReader.acquireMaterializeBuffer();
+      if (buffer == null)
+         return;
+
+      try
+      {
+         buffer.limit((int)size);
+         readData(buffer, 0L);
+         if (buffer.hasRemaining())
+            throw new EOFException("Unexpected end of zip entry");
+      }
+      catch (IOException e)
+      {
+         ZipFileDataReader.releaseMaterializeBuffer(buffer);
+         throw e;
+      }
+      finally
+      {
+         // not needed any more
+         releaseInflater();
+         releaseTransferBuffer();
+      }
+
+      buffer.flip();
+      materialized = buffer;
+   }
+
+
+   //
+   // private methods
+
+   private void releaseInflater()
+   {
+      if (inflater != null)
+      {
+         zipFileDataReader.releaseInflater(inflater, input);
+         inflater = null;
+         input = null;
+      }
+   }
+
+   private void releaseRandomAccessInflater()
+   {
+      if (randomAccessInflater != null)
+      {
+         zipFileDataReader.releaseRandomAccessInflater(randomAccessInflater);
+         randomAccessInflater = null;
+      }
+   }
+
+   private void releaseTransferBuffer()
+   {
+      if (transferBuff != null)
+      {
+         zipFileDataReader.releaseTransferBuffer(transferBuff);
+         transferBuff = null;
+      }
+   }
+
+   private byte[] getTransferBuffer()
+   {
+      if (transferBuff == null)
+         transferBuff = zipFileDataReader.acquireTransferBuffer();
+
+      return transferBuff;
+   }
+
+   private synchronized void readCached(ByteBuffer bb, long offset) throws IOException
+   {
+      while (bb.hasRemaining() && offset < size)
+      {
+         long block = offset / BlockCache.BLOCK_SIZE;
+         long blockStart = block * BlockCache.BLOCK_SIZE;
+
+         if (readAhead != null && block == lastBlock + 1)
+            readAhead.readAhead(blockStart);
+         lastBlock = block;
+
+         int pos = (int)(offset - blockStart);
+         key.set(zipArchive, entry, block);
+         int n = blockCache.read(key, pos, bb);
+         if (n < 0 && readAhead != null)
+         {
+            readAhead.await(blockStart);
+            n = blockCache.read(key, pos, bb);
+         }
+         if (n < 0)
+            n = inflateBlock(block, blockStart, (int)Math.min(BlockCache.BLOCK_SIZE, size - blockStart), pos, bb);
+
+         // premature end of the entry data
+         if (n == 0)
+            return;
+
+         offset += n;
+      }
+   }
+
+   /**
+    * Inflates a block into the cache and copies it from <code>pos</code> into <code>bb</code>
+    *
+    * @return the number of bytes copied
+    */
+   private synchronized int inflateBlock(long block, long blockStart, int len, int pos, ByteBuffer bb) throws IOException
+   {
+      byte[] buff = getTransferBuffer();
+      int n = inflateAt(buff, len, blockStart);
+
+      blockCache.put(zipArchive, entry, block, ByteBuffer.wrap(buff, 0, n));
+
+      int count = Math.max(0, Math.min(n - pos, bb.remaining()));
+      bb.put(buff, pos, count);
+
+      return count;
    }
 
+   private synchronized void readDeflated(ByteBuffer bb, long offset) throws IOException
+   {
+      // java.util.zip can't inflate into a ByteBuffer before Java 11, so one copy through the transfer buffer
+      byte[] buff = getTransferBuffer();
+      while (bb.hasRemaining())
+      {
+         int len = Math.min(bb.remaining(), buff.length);
+         int n = inflateAt(buff, len, offset);
+         bb.put(buff, 0, n);
+         offset += n;
+         if (n < len)
+            break;
+      }
+   }
 
-   private BufferedInputStream getZipStream(long offset, int length) throws FuseException
+   /**
+    * Inflates up to <code>len</code> bytes of the entry at <code>offset</code> into <code>buff</code>
+    */
+   private int inflateAt(byte[] buff, int len, long offset) throws IOException
    {
+      int nread = 0;
       try
       {
-         while (true)
+         if (inflateIndex != null)
          {
-            if (zipStream == null)
+            if (randomAccessInflater == null)
+               randomAccessInflater = zipFileDataReader.acquireRandomAccessInflater(dataOffset, compressedSize, inflateIndex);
+
+            randomAccessInflater.seek(offset);
+            while (nread < len)
             {
-               zipStream = new BufferedInputStream(zipFile.getInputStream(zipEntry), bufferSize);
-               zipPos = 0;
-               zipStream.mark(bufferSize);
-               zipMarkPos = 0;
+               int n = randomAccessInflater.read(buff, nread, len - nread);
+               if (n < 0)
+                  break;
+               nread += n;
             }
-
-            if (offset == zipPos)
+         }
+         else
+         {
+            seek(offset);
+            while (nread < len)
             {
-               zipStream.mark(bufferSize);
-               zipMarkPos = zipPos;
-
-               return zipStream;
+               int n = inflate(buff, nread, len - nread);
+               if (n < 0)
+                  break;
+               nread += n;
             }
+         }
+      }
+      catch (IOException e)
+      {
+         // the decoder state is undefined, start over next time
+         releaseRandomAccessInflater();
+         zipPos = -1L;
+         throw e;
+      }
 
-            while (offset > zipPos)
-            {
-               zipStream.mark(bufferSize);
-               zipMarkPos = zipPos;
+      return nread;
+   }
+
+   private void seek(long offset) throws IOException
+   {
+      if (inflater == null)
+      {
+         inflater = zipFileDataReader.acquireInflater();
+         input = zipFileDataReader.acquireInputBuffer();
+         zipPos = -1L;
+      }
+
+      // can't go back - start over
+      if (offset < zipPos || zipPos < 0)
+      {
+         inflater.reset();
+         inputPos = 0L;
+         inputPadded = false;
+         zipPos = 0L;
+      }
 
-               long nSkiped = zipStream.skip(offset - zipPos);
-               if (nSkiped == 0)
-                  return null; // premature EOF
+      byte[] skipBuff = null;
+      while (zipPos < offset)
+      {
+         if (skipBuff == null)
+            skipBuff = getTransferBuffer();
+         if (inflate(skipBuff, 0, (int)Math.min(offset - zipPos, skipBuff.length)) < 0)
+            return;
+      }
+   }
 
-               zipPos += nSkiped;
+   private int inflate(byte[] b, int off, int len) throws IOException
+   {
+      try
+      {
+         while (true)
+         {
+            int n = inflater.inflate(b, off, len);
+            if (n > 0)
+            {
+               zipPos += n;
+               return n;
             }
 
-            if (offset == zipPos)
-               return zipStream;
+            if (inflater.finished() || inflater.needsDictionary())
+               return -1;
 
-            if (offset >= zipMarkPos)
+            if (inflater.needsInput())
             {
-               try
+               int count = (int)Math.min(input.length, compressedSize - inputPos);
+               if (count > 0)
                {
-                  zipStream.reset();
-                  zipPos = zipMarkPos;
-                  continue;
+                  ByteBuffer in = ByteBuffer.wrap(input, 0, count);
+                  while (in.hasRemaining())
+                  {
+                     if (zipArchive.getChannel().read(in, dataOffset + inputPos + in.position()) < 0)
+                        throw new EOFException("Unexpected end of zip file");
+                  }
+                  inputPos += count;
+                  inflater.setInput(input, 0, count);
                }
-               catch (IOException e)
+               else if (!inputPadded)
                {
-                  // mark has been invalidated - can't go back
+                  // a raw Inflater may need an extra dummy byte to finish (as in ZipFile)
+                  inputPadded = true;
+                  input[0] = 0;
+                  inflater.setInput(input, 0, 1);
                }
+               else
+                  throw new EOFException("Unexpected end of ZLIB input stream");
             }
-
-            // can't go back so much - reopen stream
-            zipStream.close();
-            zipStream = null;
          }
       }
-      catch (IOException e)
+      catch (DataFormatException e)
       {
-         throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+         String message = e.getMessage();
+         throw new ZipException(message != null? message : "Invalid ZLIB data format");
       }
    }
 }
-
@@ -9,39 +9,313 @@
 
 package fuse.zipfs;
 
-import java.util.HashMap;
+import fuse.zipfs.util.InflateIndex;
+import fuse.zipfs.util.RandomAccessInflater;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
 
 
+/**
+ * Creates the per-handle ZipEntryDataReaders of a zip file and holds what they share: the inflate
+ * indexes and read-ahead of the entries, the BlockCache and pools of the decoders and buffers a handle
+ * needs while it is open (Inflaters with their input buffers, RandomAccessInflaters and block sized
+ * transfer buffers), so that opening and reading allocate nothing once the pools are warm. Nothing
+ * here takes a lock that is held across I/O.
+ */
 public class ZipFileDataReader
 {
-   private ZipFile zipFile;
-   private Map zipEntry2dataReader;
+   /**
+    * Deflated entries larger than this are read through an InflateIndex with a checkpoint every this many
+    * bytes, or every 1024th of the entry if that is more
+    */
+   public static final long INDEX_INTERVAL = Long.getLong("fuse4j.zipfs.indexInterval", 1L << 20).longValue();
+
+   /**
+    * The memory of the checkpoint windows of the InflateIndexes of an archive, beyond it the least recently
+    * opened indexes are dropped (the handles that use them keep them until they are closed)
+    */
+   public static final long INDEX_BUDGET = Long.getLong("fuse4j.zipfs.indexBudget", 32L << 20).longValue();
+
+   /**
+    * Deflated entries up to this size are inflated completely when they are opened, into a buffer of the handle
+    */
+   public static final int MATERIALIZE_SIZE = Integer.getInteger("fuse4j.zipfs.materializeSize", 64 << 10).intValue();
+
+   /**
+    * The memory of all the buffers of materialized entries (0 disables materializing)
+    */
+   public static final long MATERIALIZE_BUDGET = Long.getLong("fuse4j.zipfs.materializeBudget", 64L << 20).longValue();
 
-   public ZipFileDataReader(ZipFile zipFile)
+   private static final int MAX_POOLED_INFLATERS = 64;
+   private static final int INPUT_BUFFER_SIZE = 8192;
+
+   private ZipArchive zipArchive;
+   private ZipIndex zipIndex;
+   private BlockCache blockCache;
+   private int readAheadSegments;
+   // survive the readers, so only the first pass over an entry has to inflate from the start, in access order
+   private LinkedHashMap<Integer, InflateIndex> zipEntry2inflateIndex;
+   private ConcurrentMap<Integer, InflateReadAhead> zipEntry2readAhead;
+
+   private Queue<Inflater> inflaterPool = new ConcurrentLinkedQueue<Inflater>();
+   private Queue<byte[]> inputBufferPool = new ConcurrentLinkedQueue<byte[]>();
+   private AtomicInteger pooledInflaters = new AtomicInteger();
+   private Queue<RandomAccessInflater> randomAccessInflaterPool = new ConcurrentLinkedQueue<RandomAccessInflater>();
+   private AtomicInteger pooledRandomAccessInflaters = new AtomicInteger();
+   private Queue<byte[]> transferBufferPool = new ConcurrentLinkedQueue<byte[]>();
+   private AtomicInteger pooledTransferBuffers = new AtomicInteger();
+
+   // shared by all archives, buffers are allocated up to the budget and then only reused
+   private static final Queue<ByteBuffer> materializeBufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+   private static final AtomicLong materializeBufferMemory = new AtomicLong();
+
+   public ZipFileDataReader(ZipArchive zipArchive, ZipIndex zipIndex)
    {
-      this.zipFile = zipFile;
-      zipEntry2dataReader = new HashMap();
+      this(zipArchive, zipIndex, BlockCache.getSharedCache());
+   }
+
+   /**
+    * @param blockCache the cache of inflated blocks, may be null
+    */
+   public ZipFileDataReader(ZipArchive zipArchive, ZipIndex zipIndex, BlockCache blockCache)
+   {
+      this(zipArchive, zipIndex, blockCache, InflateReadAhead.isEnabled()? InflateReadAhead.SEGMENTS : 0);
+   }
+
+   /**
+    * @param blockCache the cache of inflated blocks, may be null
+    * @param readAheadSegments the number of checkpoint segments inflated ahead of sequential readers, 0 for none
+    */
+   ZipFileDataReader(ZipArchive zipArchive, ZipIndex zipIndex, BlockCache blockCache, int readAheadSegments)
+   {
+      this.zipArchive = zipArchive;
+      this.zipIndex = zipIndex;
+      this.blockCache = blockCache != null && blockCache.isEnabled()? blockCache : null;
+      this.readAheadSegments = readAheadSegments;
+      zipEntry2inflateIndex = new LinkedHashMap<Integer, InflateIndex>(16, 0.75f, true);
+      zipEntry2readAhead = new ConcurrentHashMap<Integer, InflateReadAhead>();
    }
 
 
-   public synchronized ZipEntryDataReader getZipEntryDataReader(ZipEntry zipEntry, long offset, int size)
+   /**
+    * @param entry a (non directory) node of the ZipIndex
+    */
+   public ZipEntryDataReader openZipEntryDataReader(int entry) throws IOException
    {
-      ZipEntryDataReader entryReader = (ZipEntryDataReader)zipEntry2dataReader.get(zipEntry.getName());
+      if (zipIndex.isEncrypted(entry))
+         throw new ZipException("encrypted entry: " + zipIndex.getName(entry));
 
-      if (entryReader == null)
+      InflateIndex inflateIndex = null;
+      InflateReadAhead readAhead = null;
+      // the handle keeps it, so the local header is read once per open
+      long dataOffset = zipArchive.getDataOffset(zipIndex.getLocalHeaderOffset(entry));
+
+      if (zipIndex.getMethod(entry) == ZipArchive.DEFLATED && zipIndex.getSize(entry) > INDEX_INTERVAL)
       {
-         entryReader = new ZipEntryDataReader(zipFile, zipEntry);
-         zipEntry2dataReader.put(zipEntry.getName(), entryReader);
+         Integer key = Integer.valueOf(entry);
+         inflateIndex = getInflateIndex(key, Math.max(INDEX_INTERVAL, zipIndex.getSize(entry) / 1024L));
+
+         if (blockCache != null && readAheadSegments > 0)
+         {
+            readAhead = zipEntry2readAhead.get(key);
+            if (readAhead == null)
+            {
+               InflateReadAhead newReadAhead = new InflateReadAhead(zipArchive, entry, zipArchive.getChannel(), dataOffset,
+                                                                    zipIndex.getCompressedSize(entry), zipIndex.getSize(entry), inflateIndex, blockCache,
+                                                                    readAheadSegments);
+               readAhead = zipEntry2readAhead.putIfAbsent(key, newReadAhead);
+               if (readAhead == null)
+                  readAhead = newReadAhead;
+            }
+            // left over from an index dropped by getInflateIndex(), the next handle gets a new one
+            if (readAhead.getInflateIndex() != inflateIndex)
+            {
+               zipEntry2readAhead.remove(key, readAhead);
+               readAhead = null;
+            }
+         }
       }
 
-      return entryReader;
+      ZipEntryDataReader reader = new ZipEntryDataReader(this, zipArchive, entry, zipIndex.getMethod(entry), zipIndex.getSize(entry),
+                                                         zipIndex.getCompressedSize(entry), dataOffset, inflateIndex, readAhead, blockCache);
+
+      if (zipIndex.getMethod(entry) == ZipArchive.DEFLATED && zipIndex.getSize(entry) > 0 && zipIndex.getSize(entry) <= MATERIALIZE_SIZE)
+         reader.materialize();
+
+      return reader;
+   }
+
+
+   public BlockCache getBlockCache()
+   {
+      return blockCache;
    }
 
-   public synchronized void releaseZipEntryDataReader(ZipEntry zipEntry)
+   /**
+    * @return the memory of the checkpoint windows of the InflateIndexes kept for the entries
+    */
+   public synchronized long getIndexMemoryUsage()
    {
-      zipEntry2dataReader.remove(zipEntry.getName());
+      long memoryUsage = 0L;
+      for (InflateIndex inflateIndex : zipEntry2inflateIndex.values())
+         memoryUsage += inflateIndex.getMemoryUsage();
+
+      return memoryUsage;
+   }
+
+
+   //
+   // pooled resources of ZipEntryDataReader
+
+   Inflater acquireInflater()
+   {
+      Inflater inflater = inflaterPool.poll();
+      if (inflater == null)
+         return new Inflater(true);
+
+      pooledInflaters.decrementAndGet();
+      return inflater;
+   }
+
+   byte[] acquireInputBuffer()
+   {
+      byte[] input = inputBufferPool.poll();
+
+      return input != null? input : new byte[INPUT_BUFFER_SIZE];
+   }
+
+   /**
+    * @return a direct buffer of MATERIALIZE_SIZE bytes, null if the budget is used up
+    */
+   static ByteBuffer acquireMaterializeBuffer()
+   {
+      ByteBuffer buffer = materializeBufferPool.poll();
+      if (buffer != null)
+         return buffer;
+
+      if (materializeBufferMemory.addAndGet(MATERIALIZE_SIZE) > MATERIALIZE_BUDGET)
+      {
+         materializeBufferMemory.addAndGet(-MATERIALIZE_SIZE);
+         return null;
+      }
+
+      return ByteBuffer.allocateDirect(MATERIALIZE_SIZE);
+   }
+
+   static void releaseMaterializeBuffer(ByteBuffer buffer)
+   {
+      buffer.clear();
+      materializeBufferPool.offer(buffer);
+   }
+
+   void releaseInflater(Inflater inflater, byte[] input)
+   {
+      if (pooledInflaters.incrementAndGet() > MAX_POOLED_INFLATERS)
+      {
+         pooledInflaters.decrementAndGet();
+         inflater.end();
+         return;
+      }
+
+      inflater.reset();
+      inflaterPool.offer(inflater);
+      inputBufferPool.offer(input);
+   }
+
+   /**
+    * @return a decoder positioned at the start of the deflated data of the entry
+    */
+   RandomAccessInflater acquireRandomAccessInflater(long dataOffset, long compressedSize, InflateIndex inflateIndex)
+   {
+      RandomAccessInflater inflater = randomAccessInflaterPool.poll();
+      if (inflater == null)
+         return new RandomAccessInflater(zipArchive.getChannel(), dataOffset, compressedSize, inflateIndex);
+
+      pooledRandomAccessInflaters.decrementAndGet();
+      inflater.reset(zipArchive.getChannel(), dataOffset, compressedSize, inflateIndex);
+      return inflater;
+   }
+
+   void releaseRandomAccessInflater(RandomAccessInflater inflater)
+   {
+      if (pooledRandomAccessInflaters.incrementAndGet() > MAX_POOLED_INFLATERS)
+      {
+         pooledRandomAccessInflaters.decrementAndGet();
+         inflater.end();
+         return;
+      }
+
+      // drop the references to the entry
+      inflater.reset(null, 0L, 0L, null);
+      randomAccessInflaterPool.offer(inflater);
+   }
+
+   /**
+    * @return a buffer of BlockCache.BLOCK_SIZE bytes
+    */
+   byte[] acquireTransferBuffer()
+   {
+      byte[] buffer = transferBufferPool.poll();
+      if (buffer == null)
+         return new byte[BlockCache.BLOCK_SIZE];
+
+      pooledTransferBuffers.decrementAndGet();
+      return buffer;
+   }
+
+   void releaseTransferBuffer(byte[] buffer)
+   {
+      if (pooledTransferBuffers.incrementAndGet() > MAX_POOLED_INFLATERS)
+      {
+         pooledTransferBuffers.decrementAndGet();
+         return;
+      }
+
+      transferBufferPool.offer(buffer);
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * @return the InflateIndex of an entry, a new one if there is none, after dropping the least recently
+    *         used ones (and their read-ahead) while the indexes need more than INDEX_BUDGET
+    */
+   private synchronized InflateIndex getInflateIndex(Integer key, long interval)
+   {
+      InflateIndex inflateIndex = zipEntry2inflateIndex.get(key);
+      if (inflateIndex == null)
+      {
+         inflateIndex = new InflateIndex(interval);
+         zipEntry2inflateIndex.put(key, inflateIndex);
+      }
+
+      long memoryUsage = getIndexMemoryUsage();
+      Iterator<Map.Entry<Integer, InflateIndex>> i = zipEntry2inflateIndex.entrySet().iterator();
+      while (memoryUsage > INDEX_BUDGET && i.hasNext())
+      {
+         Map.Entry<Integer, InflateIndex> eldest = i.next();
+         if (eldest.getValue() == inflateIndex)
+            break;
+
+         memoryUsage -= eldest.getValue().getMemoryUsage();
+         zipEntry2readAhead.remove(eldest.getKey());
+         i.remove();
+      }
+
+      return inflateIndex;
    }
 }
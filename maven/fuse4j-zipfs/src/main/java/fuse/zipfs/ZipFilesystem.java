@@ -10,257 +10,700 @@
 package fuse.zipfs;
 
 import fuse.*;
-import fuse.compat.Filesystem1;
-import fuse.compat.FuseDirEnt;
-import fuse.compat.FuseStat;
-import fuse.zipfs.util.Node;
-import fuse.zipfs.util.Tree;
+import fuse.staticfs.SubPathFilesystem;
+import fuse.zipfs.util.PathTrie;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Collection;
-import java.util.Enumeration;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
 
 
-public class ZipFilesystem implements Filesystem1
+/**
+ * A read-only view of a zip file.
+ * <p/>
+ * With the fuse4j.zipfs.nested system property set to true, entries whose names end with one of the
+ * comma separated suffixes of fuse4j.zipfs.nestedSuffixes (.zip, .jar, .war and .ear by default) are
+ * shown as directories with the contents of the archive they hold, to any depth. The central directory
+ * of a nested archive is only read when a path leads into it, through a ZipEntryChannel, so its blocks
+ * are inflated once into the BlockCache and are shared by the index and all readers of its entries.
+ * At most fuse4j.zipfs.maxNestedArchives (64 by default) nested archives are kept indexed; an evicted
+ * one is closed as soon as no request is using it and its last file handle has been released.
+ * Each nested archive gets its own range of inode numbers the first time it is opened, which it keeps
+ * when it is indexed again after an eviction.
+ */
+public class ZipFilesystem implements SubPathFilesystem
 {
    private static final Log log = LogFactory.getLog(ZipFilesystem.class);
 
    private static final int blockSize = 512;
 
+   public static final boolean NESTED = Boolean.getBoolean("fuse4j.zipfs.nested");
+
+   private static final String[] NESTED_SUFFIXES = System.getProperty("fuse4j.zipfs.nestedSuffixes", ".zip,.jar,.war,.ear").toLowerCase().split(",");
+   private static final int MAX_NESTED = Integer.getInteger("fuse4j.zipfs.maxNestedArchives", 64).intValue();
+
 
-   private ZipFile zipFile;
-   private long zipFileTime;
-   private ZipEntry rootEntry;
-   private Tree tree;
+   private ZipArchive zipArchive;
+   private ZipIndex zipIndex;
    private FuseStatfs statfs;
 
    private ZipFileDataReader zipFileDataReader;
 
+   // the number of nested archives kept indexed, 0 if they are shown as files
+   private int maxNested;
+   // node -> nested archive, least recently used first; also guards the users of the nested archives
+   private Map<Integer, NestedArchive> nestedArchives;
+
+   // the inode numbers of the nodes, and the next free one, shared with all nested archives
+   private InodeRange inodes;
+   private AtomicLong nextInode;
+
 
    public ZipFilesystem(File file) throws IOException
    {
-      log.info("extracting zip file structure...");
-      zipFile = new ZipFile(file, ZipFile.OPEN_READ);
-      zipFileTime = file.lastModified();
-      rootEntry = new ZipEntry("")
-      {
-         public boolean isDirectory()
-         {
-            return true;
-         }
-      };
-      rootEntry.setTime(zipFileTime);
-      rootEntry.setSize(0);
-
-      zipFileDataReader = new ZipFileDataReader(zipFile);
+      this(new ZipArchive(file));
+   }
 
-      tree = new Tree();
-      tree.addNode(rootEntry.getName(), rootEntry);
+   /**
+    * @param zipArchive closed if it can't be indexed
+    */
+   public ZipFilesystem(ZipArchive zipArchive) throws IOException
+   {
+      this(zipArchive, NESTED? MAX_NESTED : 0);
+   }
 
-      int files = 0;
-      int dirs = 0;
-      int blocks = 0;
+   /**
+    * @param maxNested the number of nested archives kept indexed, 0 to show them as files
+    */
+   ZipFilesystem(ZipArchive zipArchive, int maxNested) throws IOException
+   {
+      this(zipArchive, null, -1, maxNested);
+   }
 
-      for (Enumeration e = zipFile.entries(); e.hasMoreElements();)
+   /**
+    * @param parent the filesystem holding the archive at <code>node</code>, null if it isn't nested
+    */
+   private ZipFilesystem(ZipArchive zipArchive, ZipFilesystem parent, int node, int maxNested) throws IOException
+   {
+      log.info("extracting zip file structure...");
+      this.zipArchive = zipArchive;
+      try
       {
-         ZipEntry entry = (ZipEntry) e.nextElement();
-         tree.addNode(entry.getName(), entry);
-
-         if (entry.isDirectory())
-            dirs++;
-         else
-            files++;
-
-         blocks += (entry.getSize() + blockSize - 1) / blockSize;
+         zipIndex = ZipIndex.open(zipArchive);
+      }
+      catch (IOException e)
+      {
+         zipArchive.close();
+         throw e;
       }
+      zipFileDataReader = new ZipFileDataReader(zipArchive, zipIndex);
+
+      long files = zipIndex.getFileCount();
+      long dirs = zipIndex.getDirectoryCount();
+      long blocks = zipIndex.getBlockCount();
 
       statfs = new FuseStatfs();
-      statfs.blocks = blocks;
+      statfs.blocks = (int)Math.min(blocks, Integer.MAX_VALUE);
       statfs.blockSize = blockSize;
       statfs.blocksFree = 0;
-      statfs.files = files + dirs;
+      statfs.files = (int)Math.min(files + dirs, Integer.MAX_VALUE);
       statfs.filesFree = 0;
       statfs.namelen = 2048;
 
       log.info("zip file structure extracted: " + files + " files, " + dirs + " directories, " + blocks + " blocks (" + blockSize + " byte/block).");
+
+      if (parent == null)
+      {
+         inodes = new InodeRange(0L);
+         nextInode = new AtomicLong(zipIndex.getNodeCount());
+      }
+      else
+      {
+         nextInode = parent.nextInode;
+         inodes = parent.inodes.getNested(node, zipIndex.getNodeCount(), nextInode);
+      }
+
+      this.maxNested = maxNested;
+      if (maxNested > 0)
+      {
+         nestedArchives = new LinkedHashMap<Integer, NestedArchive>(16, 0.75f, true);
+      }
    }
 
 
-   public void chmod(String path, int mode) throws FuseException
+   /**
+    * Drops the cached blocks of the archive and closes it. Handles that are still open can't be read
+    * any more.
+    */
+   public void close() throws IOException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      if (nestedArchives != null)
+      {
+         List<NestedArchive> nested;
+         synchronized (nestedArchives)
+         {
+            nested = new ArrayList<NestedArchive>(nestedArchives.values());
+            nestedArchives.clear();
+         }
+         for (NestedArchive nestedArchive : nested)
+            nestedArchive.close();
+      }
+
+      BlockCache blockCache = zipFileDataReader.getBlockCache();
+      if (blockCache != null)
+      {
+         // nested archives are closed whenever they are evicted, only the mounted archive reports
+         if (zipArchive.getFile() != null)
+            log.info("closing " + zipArchive.getFile() + ", " + blockCache);
+         blockCache.invalidate(zipArchive);
+      }
+
+      zipArchive.close();
    }
 
-   public void chown(String path, int uid, int gid) throws FuseException
+
+   public int chmod(String path, int mode) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public FuseStat getattr(String path) throws FuseException
+   public int chown(String path, int uid, int gid) throws FuseException
    {
-      Node node = tree.lookupNode(path);
-      ZipEntry entry = null;
-      if (node == null || (entry = (ZipEntry)node.getValue()) == null)
-         throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
-
-      FuseStat stat = new FuseStat();
-
-      stat.mode = entry.isDirectory() ? FuseFtype.TYPE_DIR | 0755 : FuseFtype.TYPE_FILE | 0644;
-      stat.nlink = 1;
-      stat.uid = 0;
-      stat.gid = 0;
-      stat.size = entry.getSize();
-      stat.atime = stat.mtime = stat.ctime = (int) (entry.getTime() / 1000L);
-      stat.blocks = (int) ((stat.size + 511L) / 512L);
+      return Errno.EROFS;
+   }
 
-      return stat;
+   public int getattr(String path, FuseGetattrSetter getattrSetter) throws FuseException
+   {
+      return getattr(path, 0, getattrSetter);
    }
 
-   public FuseDirEnt[] getdir(String path) throws FuseException
+   public int getattr(String path, int start, FuseGetattrSetter getattrSetter) throws FuseException
    {
-      Node node = tree.lookupNode(path);
-      ZipEntry entry = null;
-      if (node == null || (entry = (ZipEntry)node.getValue()) == null)
-         throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
+      int node = zipIndex.lookup(path, start);
+      if (node < 0)
+      {
+         long nested = getNestedPrefix(path, start);
+         if (nested < 0)
+            return Errno.ENOENT;
 
-      if (!entry.isDirectory())
-         throw new FuseException("Not A Directory").initErrno(FuseException.ENOTDIR);
+         NestedArchive nestedArchive = acquireNestedArchive((int)(nested >>> 32));
+         try
+         {
+            return nestedArchive.getFilesystem().getattr(path, (int)nested, getattrSetter);
+         }
+         finally
+         {
+            releaseNestedArchive(nestedArchive);
+         }
+      }
 
-      Collection children = node.getChildren();
-      FuseDirEnt[] dirEntries = new FuseDirEnt[children.size()];
+      boolean directory = zipIndex.isDirectory(node) || isNestedArchive(node);
+      long size = directory? 0L : zipIndex.getSize(node);
+      int time = (int) (zipIndex.getTime(node) / 1000L);
+      getattrSetter.set(
+         inodes.base + node,
+         directory ? FuseFtype.TYPE_DIR | 0755 : FuseFtype.TYPE_FILE | 0644,
+         1,
+         0,
+         0,
+         0,
+         size,
+         (size + 511L) / 512L,
+         time, time, time
+      );
+
+      return 0;
+   }
+
+   public int getdir(String path, FuseDirFiller dirFiller) throws FuseException
+   {
+      return getdir(path, 0, dirFiller);
+   }
 
-      int i = 0;
-      for (Iterator iter = children.iterator(); iter.hasNext(); i++)
+   public int getdir(String path, int start, FuseDirFiller dirFiller) throws FuseException
+   {
+      int node = zipIndex.lookup(path, start);
+      if (node < 0)
       {
-         Node childNode = (Node)iter.next();
-         ZipEntry zipEntry = (ZipEntry)childNode.getValue();
-         FuseDirEnt dirEntry = new FuseDirEnt();
-         dirEntries[i] = dirEntry;
-         dirEntry.name = childNode.getName();
-         dirEntry.mode = zipEntry.isDirectory()? FuseFtype.TYPE_DIR : FuseFtype.TYPE_FILE;
+         long nested = getNestedPrefix(path, start);
+         if (nested < 0)
+            return Errno.ENOENT;
+
+         return getNestedDir(acquireNestedArchive((int)(nested >>> 32)), path, (int)nested, dirFiller);
       }
 
-      return dirEntries;
+      // the root of the nested archive, nothing of the path is left
+      if (isNestedArchive(node))
+         return getNestedDir(acquireNestedArchive(node), path, path.length(), dirFiller);
+
+      if (!zipIndex.isDirectory(node))
+         return Errno.ENOTDIR;
+
+      int first = zipIndex.getFirstChild(node);
+      int last = first + zipIndex.getChildCount(node);
+      for (int child = first; child < last; child++)
+         dirFiller.add(zipIndex.getName(child), inodes.base + child, zipIndex.isDirectory(child) || isNestedArchive(child)? FuseFtype.TYPE_DIR : FuseFtype.TYPE_FILE);
+
+      return 0;
    }
 
-   public void link(String from, String to) throws FuseException
+   public int link(String from, String to) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void mkdir(String path, int mode) throws FuseException
+   public int mkdir(String path, int mode) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void mknod(String path, int mode, int rdev) throws FuseException
+   public int mknod(String path, int mode, int rdev) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void open(String path, int flags) throws FuseException
+   public int open(String path, int flags, FuseOpenSetter openSetter) throws FuseException
    {
-      ZipEntry entry = getFileZipEntry(path);
+      return open(path, 0, flags, openSetter);
+   }
+
+   public int open(String path, int start, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      if (zipIndex.lookup(path, start) < 0)
+      {
+         long nested = getNestedPrefix(path, start);
+         if (nested >= 0)
+            return openNested(acquireNestedArchive((int)(nested >>> 32)), path, (int)nested, flags, openSetter);
+      }
+
+      int entry = getFileNode(path, start);
 
       if (flags == O_WRONLY || flags == O_RDWR)
-         throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+         return Errno.EROFS;
+      // there's no password to decrypt it with
+      if (zipIndex.isEncrypted(entry))
+         return Errno.EACCES;
+
+      // the archive doesn't change under us
+      openSetter.setKeepCache(true);
+      try
+      {
+         openSetter.setFh(zipFileDataReader.openZipEntryDataReader(entry));
+      }
+      catch (IOException e)
+      {
+         throw new FuseException("IO error", e).initErrno(FuseException.EIO);
+      }
+
+      return 0;
    }
 
-   public void rename(String from, String to) throws FuseException
+   public int rename(String from, String to) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void rmdir(String path) throws FuseException
+   public int rmdir(String path) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public FuseStatfs statfs() throws FuseException
+   public int statfs(FuseStatfsSetter statfsSetter) throws FuseException
    {
-      return statfs;
+      statfsSetter.set(statfs.blockSize, statfs.blocks, statfs.blocksFree, statfs.blocksAvail, statfs.files, statfs.filesFree, statfs.namelen);
+
+      return 0;
    }
 
-   public void symlink(String from, String to) throws FuseException
+   public int symlink(String from, String to) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void truncate(String path, long size) throws FuseException
+   public int truncate(String path, long size) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void unlink(String path) throws FuseException
+   public int unlink(String path) throws FuseException
    {
-      throw new FuseException("Read Only").initErrno(FuseException.EACCES);
+      return Errno.EROFS;
    }
 
-   public void utime(String path, int atime, int mtime) throws FuseException
+   public int utime(String path, int atime, int mtime) throws FuseException
    {
       // noop
+      return 0;
    }
 
-   public String readlink(String path) throws FuseException
+   public int readlink(String path, CharBuffer link) throws FuseException
    {
-      throw new FuseException("Not a link").initErrno(FuseException.ENOENT);
+      return Errno.ENOENT;
    }
 
-   public void write(String path, ByteBuffer buf, long offset) throws FuseException
+   public int readlink(String path, int start, CharBuffer link) throws FuseException
    {
-      // noop
+      return Errno.ENOENT;
    }
 
-   public void read(String path, ByteBuffer buf, long offset) throws FuseException
+   public int write(String path, Object fh, boolean isWritepage, ByteBuffer buf, long offset) throws FuseException
    {
-      ZipEntry zipEntry = getFileZipEntry(path);
-      ZipEntryDataReader reader = zipFileDataReader.getZipEntryDataReader(zipEntry, offset, buf.capacity());
+      return Errno.EROFS;
+   }
 
-      reader.read(buf, offset);
+   public int read(String path, Object fh, ByteBuffer buf, long offset) throws FuseException
+   {
+      if (fh instanceof NestedFile)
+         return ((NestedFile)fh).read(buf, offset);
+
+      ((ZipEntryDataReader)fh).read(buf, offset);
+
+      return 0;
    }
 
-   public void release(String path, int flags) throws FuseException
+   public int flush(String path, Object fh) throws FuseException
    {
-      ZipEntry zipEntry = getFileZipEntry(path);
-      zipFileDataReader.releaseZipEntryDataReader(zipEntry);
+      return 0;
+   }
+
+   public int fsync(String path, Object fh, boolean isDatasync) throws FuseException
+   {
+      return 0;
+   }
+
+   public int release(String path, Object fh, int flags) throws FuseException
+   {
+      if (fh instanceof NestedFile)
+         return ((NestedFile)fh).release(flags);
+
+      ((ZipEntryDataReader)fh).close();
+
+      return 0;
    }
 
 
    //
    // private methods
 
-   private ZipEntry getFileZipEntry(String path) throws FuseException
+   private int getFileNode(String path, int start) throws FuseException
    {
-      Node node = tree.lookupNode(path);
-      ZipEntry entry;
-      if (node == null || (entry = (ZipEntry)node.getValue()) == null)
+      int node = zipIndex.lookup(path, start);
+      if (node < 0)
          throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
 
-      if (entry.isDirectory())
+      if (zipIndex.isDirectory(node) || isNestedArchive(node))
          throw new FuseException("Not A File").initErrno(FuseException.ENOENT);
 
-      return entry;
+      return node;
    }
 
-   private ZipEntry getDirectoryZipEntry(String path) throws FuseException
+   private boolean isNestedArchive(int node)
    {
-      Node node = tree.lookupNode(path);
-      ZipEntry entry;
-      if (node == null || (entry = (ZipEntry)node.getValue()) == null)
-         throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
+      if (nestedArchives == null || zipIndex.isDirectory(node) || zipIndex.isEncrypted(node))
+         return false;
+
+      int method = zipIndex.getMethod(node);
+      if (method != ZipArchive.STORED && method != ZipArchive.DEFLATED)
+         return false;
+
+      String name = zipIndex.getName(node).toLowerCase();
+      for (int i = 0; i < NESTED_SUFFIXES.length; i++)
+      {
+         if (NESTED_SUFFIXES[i].length() > 0 && name.endsWith(NESTED_SUFFIXES[i]))
+            return true;
+      }
+
+      return false;
+   }
+
+   /**
+    * Walks the components of <code>path</code> once, down to the first one that isn't a directory
+    *
+    * @param path a path whose part from <code>start</code> on is not in the index
+    * @return the node of the nested archive the leading part of <code>path</code> names in the high 32 bits
+    *         and the length of that part in the low 32 bits, -1 if no part names a nested archive
+    */
+   private long getNestedPrefix(String path, int start)
+   {
+      if (nestedArchives == null)
+         return -1;
+
+      int node = PathTrie.ROOT;
+      int nameStart = start + 1;
+      for (int slash = path.indexOf('/', nameStart); slash >= 0; slash = path.indexOf('/', nameStart))
+      {
+         node = PathTrie.findChild(zipIndex, node, path, nameStart, slash);
+         if (node < 0)
+            return -1;
+         if (isNestedArchive(node))
+            return (long)node << 32 | slash;
+         if (!zipIndex.isDirectory(node))
+            return -1;
+         nameStart = slash + 1;
+      }
+
+      return -1;
+   }
+
+   /**
+    * @return the nested archive of <code>node</code>, which stays open until releaseNestedArchive()
+    */
+   private NestedArchive acquireNestedArchive(int node)
+   {
+      NestedArchive nestedArchive;
+      NestedArchive evicted = null;
+      synchronized (nestedArchives)
+      {
+         Integer key = Integer.valueOf(node);
+         nestedArchive = nestedArchives.get(key);
+         if (nestedArchive == null)
+         {
+            nestedArchive = new NestedArchive(node);
+            nestedArchives.put(key, nestedArchive);
+
+            if (nestedArchives.size() > maxNested)
+            {
+               Iterator<NestedArchive> eldest = nestedArchives.values().iterator();
+               evicted = eldest.next();
+               eldest.remove();
+               evicted.evicted = true;
+               // closed by the last releaseNestedArchive() if it is still in use
+               if (evicted.users > 0)
+                  evicted = null;
+            }
+         }
+         nestedArchive.users++;
+      }
+
+      if (evicted != null)
+         evicted.close();
+
+      return nestedArchive;
+   }
 
-      if (!entry.isDirectory())
-         throw new FuseException("Not A Directory").initErrno(FuseException.ENOENT);
+   private void releaseNestedArchive(NestedArchive nestedArchive)
+   {
+      boolean idle;
+      synchronized (nestedArchives)
+      {
+         idle = --nestedArchive.users == 0 && nestedArchive.evicted;
+      }
+
+      if (idle)
+         nestedArchive.close();
+   }
+
+   private int getNestedDir(NestedArchive nestedArchive, String path, int start, FuseDirFiller dirFiller) throws FuseException
+   {
+      try
+      {
+         return nestedArchive.getFilesystem().getdir(path, start, dirFiller);
+      }
+      finally
+      {
+         releaseNestedArchive(nestedArchive);
+      }
+   }
 
-      return entry;
+   private int openNested(NestedArchive nestedArchive, String path, int start, int flags, FuseOpenSetter openSetter) throws FuseException
+   {
+      NestedFile nestedFile = new NestedFile(nestedArchive, openSetter);
+      boolean opened = false;
+      try
+      {
+         int result = nestedArchive.getFilesystem().open(path, start, flags, nestedFile);
+         // the handle keeps the nested archive open until it is released
+         opened = result == 0;
+         if (opened)
+            nestedFile.publish();
+         return result;
+      }
+      finally
+      {
+         if (!opened)
+            releaseNestedArchive(nestedArchive);
+      }
+   }
+
+
+   /**
+    * The inode numbers of the nodes of an archive, from <code>base</code> on. The ranges of the nested
+    * archives are kept when they are evicted, so a path keeps its inode as long as the filesystem is mounted.
+    */
+   private static class InodeRange
+   {
+      final long base;
+      // node -> the range of the nested archive it holds
+      private Map<Integer, InodeRange> nested;
+
+      InodeRange(long base)
+      {
+         this.base = base;
+      }
+
+      synchronized InodeRange getNested(int node, int nodeCount, AtomicLong nextInode)
+      {
+         if (nested == null)
+            nested = new HashMap<Integer, InodeRange>();
+
+         Integer key = Integer.valueOf(node);
+         InodeRange range = nested.get(key);
+         if (range == null)
+         {
+            range = new InodeRange(nextInode.getAndAdd(nodeCount));
+            nested.put(key, range);
+         }
+         return range;
+      }
+   }
+
+   /**
+    * A zip entry holding an archive, indexed on first use. Only the threads that need the same nested
+    * archive wait for it to be indexed.
+    */
+   private class NestedArchive
+   {
+      private int node;
+      // read without the lock while pinned by a user
+      private volatile ZipFilesystem filesystem;
+      private IOException failure;
+      private boolean closed;
+
+      // guarded by nestedArchives: the requests and file handles using it, and whether it is still cached
+      int users;
+      boolean evicted;
+
+      NestedArchive(int node)
+      {
+         this.node = node;
+      }
+
+      synchronized ZipFilesystem getFilesystem() throws FuseException
+      {
+         if (closed)
+            throw new FuseException("No Such Entry").initErrno(FuseException.ENOENT);
+
+         if (filesystem == null && failure == null)
+         {
+            try
+            {
+               ZipEntryDataReader reader = zipFileDataReader.openZipEntryDataReader(node);
+               filesystem = new ZipFilesystem(new ZipArchive(new ZipEntryChannel(reader)), ZipFilesystem.this, node, maxNested);
+            }
+            catch (IOException e)
+            {
+               log.warn("can't open nested archive " + zipIndex.getName(node) + ": " + e);
+               // not retried while the nested archive stays cached
+               failure = e;
+            }
+         }
+
+         if (failure != null)
+            throw new FuseException("IO error", failure).initErrno(FuseException.EIO);
+
+         return filesystem;
+      }
+
+      synchronized void close()
+      {
+         closed = true;
+         if (filesystem != null)
+         {
+            try
+            {
+               filesystem.close();
+            }
+            catch (IOException e)
+            {
+               log.warn("can't close nested archive " + zipIndex.getName(node), e);
+            }
+            filesystem = null;
+         }
+      }
+   }
+
+   /**
+    * The file handle of an entry of a nested archive, which keeps the archive open until it is released
+    */
+   private class NestedFile implements FuseOpenSetter
+   {
+      private final NestedArchive nestedArchive;
+      private Object fh;
+
+      // only used while opening
+      private FuseOpenSetter openSetter;
+
+      NestedFile(NestedArchive nestedArchive, FuseOpenSetter openSetter)
+      {
+         this.nestedArchive = nestedArchive;
+         this.openSetter = openSetter;
+      }
+
+      void publish()
+      {
+         openSetter.setFh(this);
+         openSetter = null;
+      }
+
+      int read(ByteBuffer buf, long offset) throws FuseException
+      {
+         ZipFilesystem fs = nestedArchive.filesystem;
+         if (fs == null)
+            return Errno.EBADF;
+
+         return fs.read(null, fh, buf, offset);
+      }
+
+      int release(int flags) throws FuseException
+      {
+         try
+         {
+            ZipFilesystem fs = nestedArchive.filesystem;
+            return fs != null? fs.release(null, fh, flags) : 0;
+         }
+         finally
+         {
+            releaseNestedArchive(nestedArchive);
+         }
+      }
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return openSetter != null && openSetter.isDirectIO();
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         if (openSetter != null)
+            openSetter.setDirectIO(directIO);
+      }
+
+      public boolean isKeepCache()
+      {
+         return openSetter != null && openSetter.isKeepCache();
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         if (openSetter != null)
+            openSetter.setKeepCache(keepCache);
+      }
    }
 
 
@@ -282,7 +725,7 @@ public class ZipFilesystem implements Filesystem1
 
       try
       {
-         FuseMount.mount(fuseArgs, new ZipFilesystem(zipFile));
+         FuseMount.mount(fuseArgs, new ZipFilesystem(zipFile), log);
       }
       catch (Exception e)
       {
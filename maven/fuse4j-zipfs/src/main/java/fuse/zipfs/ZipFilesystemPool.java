@@ -0,0 +1,123 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * Bounds the number of LazyZipFilesystems that have their archive open at the same time. When an
+ * archive is opened and there are more than <code>maxOpen</code>, the least recently used ones
+ * without open file handles are closed. Archives in use are never closed, so the limit may be
+ * exceeded while they are (until the next archive is opened).
+ * <p/>
+ * The pool is only involved when an archive is opened or closed. The requests to an open archive
+ * just stamp its last use (see {@link LazyZipFilesystem#getLastUsed()}), so they don't contend
+ * for a lock shared by all archives.
+ */
+public class ZipFilesystemPool
+{
+   private static final Log log = LogFactory.getLog(ZipFilesystemPool.class);
+
+   /**
+    * The default maximum number of open archives
+    */
+   public static final int MAX_OPEN = Integer.getInteger("fuse4j.zipfs.maxOpenArchives", 256).intValue();
+
+   private int maxOpen;
+   // the filesystems that have their archive open
+   private Set<LazyZipFilesystem> open = new HashSet<LazyZipFilesystem>();
+
+   public ZipFilesystemPool()
+   {
+      this(MAX_OPEN);
+   }
+
+   public ZipFilesystemPool(int maxOpen)
+   {
+      if (maxOpen < 1)
+         throw new IllegalArgumentException("maxOpen: " + maxOpen);
+
+      this.maxOpen = maxOpen;
+   }
+
+   public int getMaxOpen()
+   {
+      return maxOpen;
+   }
+
+   /**
+    * @return the number of archives that are currently open
+    */
+   public synchronized int getOpenCount()
+   {
+      return open.size();
+   }
+
+
+   //
+   // called by LazyZipFilesystem, never while holding its monitor
+
+   synchronized void opened(LazyZipFilesystem filesystem)
+   {
+      open.add(filesystem);
+      if (open.size() > maxOpen)
+         evictIdle();
+   }
+
+   synchronized void closed(LazyZipFilesystem filesystem)
+   {
+      open.remove(filesystem);
+   }
+
+
+   //
+   // private methods
+
+   private void evictIdle()
+   {
+      // the last use times keep changing while sorting, so sort a snapshot of them
+      List<LazyZipFilesystem> candidates = new ArrayList<LazyZipFilesystem>(open);
+      final long[] lastUsed = new long[candidates.size()];
+      List<Integer> order = new ArrayList<Integer>(candidates.size());
+      for (int i = 0; i < lastUsed.length; i++)
+      {
+         lastUsed[i] = candidates.get(i).getLastUsed();
+         order.add(Integer.valueOf(i));
+      }
+      Collections.sort(order, new Comparator<Integer>()
+      {
+         public int compare(Integer a, Integer b)
+         {
+            // nanoTime values are compared by their difference
+            long diff = lastUsed[a.intValue()] - lastUsed[b.intValue()];
+            return diff < 0? -1 : diff > 0? 1 : 0;
+         }
+      });
+
+      for (int i = 0; i < order.size() && open.size() > maxOpen; i++)
+      {
+         LazyZipFilesystem filesystem = candidates.get(order.get(i).intValue());
+         if (filesystem.closeIfIdle())
+            open.remove(filesystem);
+      }
+
+      if (open.size() > maxOpen && log.isDebugEnabled())
+         log.debug(open.size() + " archives in use, more than the " + maxOpen + " allowed");
+   }
+}
@@ -0,0 +1,613 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.zipfs.util.PathTree;
+import fuse.zipfs.util.PathTrie;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Arrays;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+
+/**
+ * The directory structure and entry attributes of a zip file in one flat buffer, so that it can be
+ * written to a file and memory-mapped on the next mount instead of being rebuilt from the central
+ * directory.
+ * <p/>
+ * Layout (little endian):
+ * <pre>
+ *   header  (HEADER_SIZE bytes)   magic, version, node count, archive size/mtime/tail checksum,
+ *                                 name arena offset/length, file/directory/block counts
+ *   nodes   (NODE_SIZE bytes each) name offset/length, flags, parent, first child, child count,
+ *                                 method, time, size, compressed size, local header offset
+ *   names                         UTF-8 encoded node names
+ * </pre>
+ * Node 0 is the root directory. The children of each node are consecutive nodes sorted by the
+ * bytes of their names, so a path component is looked up with a binary search.
+ */
+public class ZipIndex implements PathTree
+{
+   private static final Log log = LogFactory.getLog(ZipIndex.class);
+
+   public static final String INDEX_SUFFIX = ".fuse4j-index";
+
+   public static final int ROOT = 0;
+
+   // node flags
+   public static final int DIRECTORY = 1;
+   // the node has an entry in the archive (and isn't just a parent of entries)
+   public static final int EXPLICIT = 2;
+   // the data of the entry is encrypted and can't be read
+   public static final int ENCRYPTED = 4;
+
+   private static final long MAGIC = 0x315844495a4a3446L; // "F4JZIDX1"
+   private static final int VERSION = 1;
+   private static final int BLOCK_SIZE = 512;
+
+   static final int HEADER_SIZE = 96;
+   static final int NODE_SIZE = 56;
+
+   // header fields
+   private static final int H_MAGIC = 0;
+   private static final int H_VERSION = 8;
+   private static final int H_NODE_COUNT = 12;
+   private static final int H_ARCHIVE_SIZE = 16;
+   private static final int H_ARCHIVE_TIME = 24;
+   private static final int H_ARCHIVE_CHECKSUM = 32;
+   private static final int H_NAMES_OFFSET = 40;
+   private static final int H_NAMES_LENGTH = 44;
+   private static final int H_FILES = 48;
+   private static final int H_DIRECTORIES = 56;
+   private static final int H_BLOCKS = 64;
+
+   // node fields
+   private static final int N_NAME_OFFSET = 0;
+   private static final int N_NAME_LENGTH = 4;
+   private static final int N_FLAGS = 6;
+   private static final int N_PARENT = 8;
+   private static final int N_FIRST_CHILD = 12;
+   private static final int N_CHILD_COUNT = 16;
+   private static final int N_METHOD = 20;
+   private static final int N_TIME = 24;
+   private static final int N_SIZE = 32;
+   private static final int N_COMPRESSED_SIZE = 40;
+   private static final int N_LOCAL_HEADER_OFFSET = 48;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final ByteBuffer buffer;
+   private final int nodeCount;
+   private final int namesOffset;
+
+
+   private ZipIndex(ByteBuffer buffer)
+   {
+      this.buffer = buffer;
+      nodeCount = buffer.getInt(H_NODE_COUNT);
+      namesOffset = buffer.getInt(H_NAMES_OFFSET);
+   }
+
+   /**
+    * Maps the index file of the archive if it is up to date, otherwise builds the index from the
+    * central directory and tries to write it for the next time.
+    * <p/>
+    * The index file is written to the directory given by the fuse4j.zipfs.indexDir system property
+    * (an empty value disables index files), by default to fuse4j in the user's cache directory
+    * ($XDG_CACHE_HOME or ~/.cache). Only with the fuse4j.zipfs.indexNextToArchive system property set
+    * to true is it written next to the archive, if that directory is writable. Archives that aren't
+    * files of their own (nested archives) are always indexed in memory.
+    * <p/>
+    * The index decides which bytes of the archive are read for a file, so an index file is only used
+    * if it is owned by the user and not writable by anybody else (see {@link #openIndexFile(File)}).
+    */
+   public static ZipIndex open(ZipArchive archive) throws IOException
+   {
+      File file = archive.getFile();
+      if (file == null)
+         return build(archive, archive.getChannel().size(), 0L, 0L);
+
+      long size = file.length();
+      long time = file.lastModified();
+      long checksum = archive.getTailChecksum();
+
+      File indexFile = getIndexFile(file);
+      if (indexFile != null && indexFile.exists())
+      {
+         try
+         {
+            ZipIndex index = load(indexFile);
+            if (index.isIndexOf(size, time, checksum))
+            {
+               log.info("using index file " + indexFile + ": " + index.getNodeCount() + " nodes");
+               return index;
+            }
+            log.info("index file " + indexFile + " is out of date");
+         }
+         catch (IOException e)
+         {
+            log.warn("can't use index file " + indexFile + ": " + e);
+         }
+      }
+
+      ZipIndex index = build(archive, size, time, checksum);
+
+      if (indexFile != null)
+      {
+         try
+         {
+            index.write(indexFile);
+         }
+         catch (IOException e)
+         {
+            log.warn("can't write index file " + indexFile + ": " + e);
+         }
+      }
+
+      return index;
+   }
+
+   /**
+    * Builds the index in memory from the central directory of the archive
+    */
+   public static ZipIndex build(ZipArchive archive, long size, long time, long checksum) throws IOException
+   {
+      final PathTrie.Builder builder = new PathTrie.Builder();
+      final EntryTable entries = new EntryTable();
+      archive.readCentralDirectory(new ZipArchive.EntryVisitor()
+      {
+         public void visit(String name, int flags, int method, long time, long size, long compressedSize, long localHeaderOffset)
+         {
+            int nodeFlags = name.endsWith("/")? DIRECTORY | EXPLICIT : EXPLICIT;
+            if ((flags & ZipArchive.ENCRYPTED) != 0)
+               nodeFlags |= ENCRYPTED;
+            builder.add(name, entries.add(nodeFlags, method, time, size, compressedSize, localHeaderOffset));
+         }
+      });
+      PathTrie trie = builder.build();
+
+      int nodeCount = trie.size();
+      ByteBuffer trieNames = trie.getNames();
+      int namesLength = trieNames.capacity();
+      long bufferSize = HEADER_SIZE + (long)nodeCount * NODE_SIZE + namesLength;
+      if (bufferSize > Integer.MAX_VALUE)
+         throw new IOException("too many entries to index: " + nodeCount);
+
+      ByteBuffer buffer = ByteBuffer.allocate((int)bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+      int namesOffset = HEADER_SIZE + nodeCount * NODE_SIZE;
+      long files = 0;
+      long directories = 0;
+      long blocks = 0;
+
+      for (int node = 0; node < nodeCount; node++)
+      {
+         int entry = trie.getValue(node);
+         int pos = HEADER_SIZE + node * NODE_SIZE;
+
+         int flags;
+         if (entry < 0)
+         {
+            // root or parent directory without an entry of its own
+            flags = DIRECTORY;
+            buffer.putLong(pos + N_TIME, time);
+         }
+         else
+         {
+            flags = entries.flags[entry];
+            buffer.putShort(pos + N_METHOD, (short)entries.method[entry]);
+            buffer.putLong(pos + N_TIME, entries.time[entry]);
+            buffer.putLong(pos + N_SIZE, entries.size[entry]);
+            buffer.putLong(pos + N_COMPRESSED_SIZE, entries.compressedSize[entry]);
+            buffer.putLong(pos + N_LOCAL_HEADER_OFFSET, entries.localHeaderOffset[entry]);
+            blocks += (entries.size[entry] + BLOCK_SIZE - 1) / BLOCK_SIZE;
+         }
+         if (trie.getChildCount(node) > 0)
+            flags |= DIRECTORY;
+
+         if ((flags & DIRECTORY) != 0)
+            directories++;
+         else
+            files++;
+
+         buffer.putInt(pos + N_NAME_OFFSET, trie.getNameOffset(node));
+         buffer.putShort(pos + N_NAME_LENGTH, (short)trie.getNameLength(node));
+         buffer.putShort(pos + N_FLAGS, (short)flags);
+         buffer.putInt(pos + N_PARENT, trie.getParent(node));
+         buffer.putInt(pos + N_FIRST_CHILD, trie.getFirstChild(node));
+         buffer.putInt(pos + N_CHILD_COUNT, trie.getChildCount(node));
+      }
+      buffer.position(namesOffset);
+      buffer.put(trieNames);
+      buffer.position(0);
+
+      buffer.putLong(H_MAGIC, MAGIC);
+      buffer.putInt(H_VERSION, VERSION);
+      buffer.putInt(H_NODE_COUNT, nodeCount);
+      buffer.putLong(H_ARCHIVE_SIZE, size);
+      buffer.putLong(H_ARCHIVE_TIME, time);
+      buffer.putLong(H_ARCHIVE_CHECKSUM, checksum);
+      buffer.putInt(H_NAMES_OFFSET, namesOffset);
+      buffer.putInt(H_NAMES_LENGTH, namesLength);
+      buffer.putLong(H_FILES, files);
+      buffer.putLong(H_DIRECTORIES, directories);
+      buffer.putLong(H_BLOCKS, blocks);
+
+      return new ZipIndex(buffer);
+   }
+
+   /**
+    * Maps an index file, checking every offset and range in it so that a corrupt index can't send
+    * lookups or reads outside the index or the archive
+    */
+   public static ZipIndex load(File indexFile) throws IOException
+   {
+      RandomAccessFile raf = openIndexFile(indexFile);
+      try
+      {
+         long size = raf.length();
+         if (size < HEADER_SIZE || size > Integer.MAX_VALUE)
+            throw new IOException("invalid index file size: " + size);
+
+         ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+         if (buffer.getLong(H_MAGIC) != MAGIC || buffer.getInt(H_VERSION) != VERSION)
+            throw new IOException("not an index file");
+
+         int nodeCount = buffer.getInt(H_NODE_COUNT);
+         int namesOffset = buffer.getInt(H_NAMES_OFFSET);
+         int namesLength = buffer.getInt(H_NAMES_LENGTH);
+         long archiveSize = buffer.getLong(H_ARCHIVE_SIZE);
+         if (nodeCount < 1 || namesOffset != HEADER_SIZE + (long)nodeCount * NODE_SIZE || namesLength < 0 || namesOffset + (long)namesLength != size || archiveSize < 0)
+            throw new IOException("corrupt index file");
+
+         ZipIndex index = new ZipIndex(buffer);
+         for (int node = 0; node < nodeCount; node++)
+         {
+            int pos = HEADER_SIZE + node * NODE_SIZE;
+            int nameOffset = buffer.getInt(pos + N_NAME_OFFSET);
+            int nameLength = buffer.getShort(pos + N_NAME_LENGTH) & 0xffff;
+            long compressedSize = buffer.getLong(pos + N_COMPRESSED_SIZE);
+            long localHeaderOffset = buffer.getLong(pos + N_LOCAL_HEADER_OFFSET);
+
+            if (nameOffset < 0 || (long)nameOffset + nameLength > namesLength || buffer.getLong(pos + N_SIZE) < 0
+                || compressedSize < 0 || localHeaderOffset < 0 || localHeaderOffset + compressedSize > archiveSize)
+               throw new IOException("corrupt index node " + node);
+         }
+         PathTrie.checkTree(index, nodeCount);
+
+         return index;
+      }
+      finally
+      {
+         // the mapping stays valid
+         raf.close();
+      }
+   }
+
+   /**
+    * Writes the index to a file, atomically replacing an existing one
+    */
+   public void write(File indexFile) throws IOException
+   {
+      File tmpFile = createTempIndexFile(indexFile);
+      try
+      {
+         RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw");
+         try
+         {
+            ByteBuffer bb = buffer.duplicate();
+            bb.clear();
+            while (bb.hasRemaining())
+               raf.getChannel().write(bb);
+         }
+         finally
+         {
+            raf.close();
+         }
+
+         if (!tmpFile.renameTo(indexFile))
+            throw new IOException("can't rename " + tmpFile + " to " + indexFile);
+      }
+      finally
+      {
+         tmpFile.delete();
+      }
+   }
+
+   public boolean isIndexOf(long archiveSize, long archiveTime, long archiveChecksum)
+   {
+      return buffer.getLong(H_ARCHIVE_SIZE) == archiveSize &&
+             buffer.getLong(H_ARCHIVE_TIME) == archiveTime &&
+             buffer.getLong(H_ARCHIVE_CHECKSUM) == archiveChecksum;
+   }
+
+
+   //
+   // lookup
+
+   /**
+    * @return the node of the path ("/" separated, relative to the root of the archive) or -1 if there is none
+    */
+   public int lookup(CharSequence path)
+   {
+      return PathTrie.lookup(this, path, 0);
+   }
+
+   /**
+    * @return the node of the part of <code>path</code> from <code>start</code> on or -1 if there is none
+    */
+   public int lookup(CharSequence path, int start)
+   {
+      return PathTrie.lookup(this, path, start);
+   }
+
+   public int compareName(int node, CharSequence path, int start, int end)
+   {
+      int pos = HEADER_SIZE + node * NODE_SIZE;
+
+      return PathTrie.compareName(buffer, namesOffset + buffer.getInt(pos + N_NAME_OFFSET), buffer.getShort(pos + N_NAME_LENGTH) & 0xffff, path, start, end);
+   }
+
+
+   //
+   // node attributes
+
+   public int getNodeCount()
+   {
+      return nodeCount;
+   }
+
+   public String getName(int node)
+   {
+      int pos = HEADER_SIZE + node * NODE_SIZE;
+      byte[] name = new byte[buffer.getShort(pos + N_NAME_LENGTH) & 0xffff];
+      ByteBuffer bb = buffer.duplicate();
+      bb.position(namesOffset + buffer.getInt(pos + N_NAME_OFFSET));
+      bb.get(name);
+
+      return new String(name, UTF8);
+   }
+
+   public boolean isDirectory(int node)
+   {
+      return (buffer.getShort(HEADER_SIZE + node * NODE_SIZE + N_FLAGS) & DIRECTORY) != 0;
+   }
+
+   public int getParent(int node)
+   {
+      return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + N_PARENT);
+   }
+
+   public int getFirstChild(int node)
+   {
+      return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + N_FIRST_CHILD);
+   }
+
+   public int getChildCount(int node)
+   {
+      return buffer.getInt(HEADER_SIZE + node * NODE_SIZE + N_CHILD_COUNT);
+   }
+
+   public boolean isEncrypted(int node)
+   {
+      return (buffer.getShort(HEADER_SIZE + node * NODE_SIZE + N_FLAGS) & ENCRYPTED) != 0;
+   }
+
+   public int getMethod(int node)
+   {
+      return buffer.getShort(HEADER_SIZE + node * NODE_SIZE + N_METHOD) & 0xffff;
+   }
+
+   /**
+    * @return modification time in milliseconds since the epoch
+    */
+   public long getTime(int node)
+   {
+      return buffer.getLong(HEADER_SIZE + node * NODE_SIZE + N_TIME);
+   }
+
+   public long getSize(int node)
+   {
+      return buffer.getLong(HEADER_SIZE + node * NODE_SIZE + N_SIZE);
+   }
+
+   public long getCompressedSize(int node)
+   {
+      return buffer.getLong(HEADER_SIZE + node * NODE_SIZE + N_COMPRESSED_SIZE);
+   }
+
+   public long getLocalHeaderOffset(int node)
+   {
+      return buffer.getLong(HEADER_SIZE + node * NODE_SIZE + N_LOCAL_HEADER_OFFSET);
+   }
+
+   public long getFileCount()
+   {
+      return buffer.getLong(H_FILES);
+   }
+
+   public long getDirectoryCount()
+   {
+      return buffer.getLong(H_DIRECTORIES);
+   }
+
+   /**
+    * @return the sum of the entry sizes in 512 byte blocks
+    */
+   public long getBlockCount()
+   {
+      return buffer.getLong(H_BLOCKS);
+   }
+
+
+   /**
+    * @return where the index file of an archive is kept (see {@link #open(ZipArchive)}) or null if
+    *         index files are disabled
+    */
+   public static File getIndexFile(File archive)
+   {
+      String name = archive.getName() + INDEX_SUFFIX;
+      String hashedName = Integer.toHexString(archive.getAbsolutePath().hashCode()) + "-" + name;
+
+      String indexDir = System.getProperty("fuse4j.zipfs.indexDir");
+      if (indexDir != null)
+         return indexDir.length() == 0? null : new File(indexDir, hashedName);
+
+      if (Boolean.getBoolean("fuse4j.zipfs.indexNextToArchive"))
+      {
+         File dir = archive.getAbsoluteFile().getParentFile();
+         if (dir != null && dir.canWrite())
+            return new File(dir, name);
+      }
+
+      return new File(getCacheDir(), hashedName);
+   }
+
+   /**
+    * @return fuse4j in $XDG_CACHE_HOME, or in ~/.cache if that isn't set to an absolute path
+    */
+   static File getCacheDir()
+   {
+      String cacheHome = System.getenv("XDG_CACHE_HOME");
+      File dir = cacheHome != null && new File(cacheHome).isAbsolute()? new File(cacheHome) : new File(System.getProperty("user.home"), ".cache");
+
+      return new File(dir, "fuse4j");
+   }
+
+   /**
+    * Opens an index file for reading if it can be trusted: a regular file (not a symlink) owned by
+    * the user that nobody else can write. The attributes are read again after opening, so a file
+    * swapped in between isn't used either.
+    */
+   public static RandomAccessFile openIndexFile(File indexFile) throws IOException
+   {
+      Path path = indexFile.toPath();
+      Object fileKey = checkIndexFile(path);
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+      try
+      {
+         Object openedKey = checkIndexFile(path);
+         if (fileKey == null? openedKey != null : !fileKey.equals(openedKey))
+            throw new IOException("index file was replaced");
+
+         RandomAccessFile result = raf;
+         raf = null;
+         return result;
+      }
+      finally
+      {
+         if (raf != null)
+            raf.close();
+      }
+   }
+
+   /**
+    * @return the file key of the index file
+    */
+   private static Object checkIndexFile(Path path) throws IOException
+   {
+      BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+      if (!attributes.isRegularFile())
+         throw new IOException("not a regular file");
+
+      UserPrincipal owner;
+      PosixFileAttributeView posixView = Files.getFileAttributeView(path, PosixFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+      if (posixView != null)
+      {
+         PosixFileAttributes posixAttributes = posixView.readAttributes();
+         Set<PosixFilePermission> permissions = posixAttributes.permissions();
+         if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE))
+            throw new IOException("writable by others: " + PosixFilePermissions.toString(permissions));
+         owner = posixAttributes.owner();
+      }
+      else
+         owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+
+      UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+      if (!owner.equals(user))
+         throw new IOException("owned by " + owner.getName());
+
+      return attributes.fileKey();
+   }
+
+   /**
+    * Creates the temporary file an index file is written to before it is renamed, readable by the
+    * user only. The cache directory is created (private to the user) if it doesn't exist yet.
+    */
+   public static File createTempIndexFile(File indexFile) throws IOException
+   {
+      Path dir = indexFile.getAbsoluteFile().getParentFile().toPath();
+      if (!Files.isDirectory(dir) && dir.equals(getCacheDir().getAbsoluteFile().toPath()))
+      {
+         if (dir.getFileSystem().supportedFileAttributeViews().contains("posix"))
+            Files.createDirectories(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+         else
+            Files.createDirectories(dir);
+      }
+
+      // created with mode 0600 on POSIX filesystems
+      return Files.createTempFile(dir, indexFile.getName(), ".tmp").toFile();
+   }
+
+
+   /**
+    * Attributes of the central directory entries, in the order they were added
+    */
+   private static final class EntryTable
+   {
+      int count;
+      int[] flags = new int[1024];
+      int[] method = new int[1024];
+      long[] time = new long[1024];
+      long[] size = new long[1024];
+      long[] compressedSize = new long[1024];
+      long[] localHeaderOffset = new long[1024];
+
+      int add(int flags, int method, long time, long size, long compressedSize, long localHeaderOffset)
+      {
+         if (count == this.flags.length)
+         {
+            int capacity = count * 2;
+            this.flags = Arrays.copyOf(this.flags, capacity);
+            this.method = Arrays.copyOf(this.method, capacity);
+            this.time = Arrays.copyOf(this.time, capacity);
+            this.size = Arrays.copyOf(this.size, capacity);
+            this.compressedSize = Arrays.copyOf(this.compressedSize, capacity);
+            this.localHeaderOffset = Arrays.copyOf(this.localHeaderOffset, capacity);
+         }
+
+         this.flags[count] = flags;
+         this.method[count] = method;
+         this.time[count] = time;
+         this.size[count] = size;
+         this.compressedSize[count] = compressedSize;
+         this.localHeaderOffset[count] = localHeaderOffset;
+
+         return count++;
+      }
+   }
+}
@@ -0,0 +1,198 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Checkpoints into a deflate stream recorded by {@link RandomAccessInflater}, ordered by their position
+ * in the uncompressed data and at least <code>interval</code> bytes apart. Shared by all readers of an entry.
+ */
+public class InflateIndex
+{
+   public static class Checkpoint
+   {
+      // position in the uncompressed data
+      final long out;
+      // position in the compressed data, in bits
+      final long bitPos;
+      // the preceding (up to) 32 KiB of uncompressed data, deflated
+      final byte[] window;
+
+      Checkpoint(long out, long bitPos, byte[] window)
+      {
+         this.out = out;
+         this.bitPos = bitPos;
+         this.window = window;
+      }
+   }
+
+   private final long interval;
+   private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+   private long memoryUsage;
+
+   public InflateIndex(long interval)
+   {
+      this.interval = interval;
+   }
+
+   public long getInterval()
+   {
+      return interval;
+   }
+
+   /**
+    * @return the uncompressed position from which on the next checkpoint is wanted
+    */
+   public synchronized long getNextCheckpointPosition()
+   {
+      return checkpoints.isEmpty()? interval : checkpoints.get(checkpoints.size() - 1).out + interval;
+   }
+
+   synchronized void add(Checkpoint checkpoint)
+   {
+      // another reader of the same entry may have been faster
+      if (checkpoint.out >= getNextCheckpointPosition())
+      {
+         checkpoints.add(checkpoint);
+         memoryUsage += checkpoint.window.length;
+      }
+   }
+
+   /**
+    * @return the last checkpoint at or before the given uncompressed position or null if there is none
+    */
+   synchronized Checkpoint floor(long position)
+   {
+      int lo = 0;
+      int hi = checkpoints.size() - 1;
+      Checkpoint result = null;
+
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         Checkpoint checkpoint = checkpoints.get(mid);
+
+         if (checkpoint.out <= position)
+         {
+            result = checkpoint;
+            lo = mid + 1;
+         }
+         else
+            hi = mid - 1;
+      }
+
+      return result;
+   }
+
+   /**
+    * @return the position of the last checkpoint at or before the given uncompressed position, 0 (the
+    *         start of the stream) if there is none
+    */
+   public synchronized long floorPosition(long position)
+   {
+      Checkpoint checkpoint = floor(position);
+
+      return checkpoint == null? 0L : checkpoint.out;
+   }
+
+   /**
+    * @return the position of the first checkpoint after the given uncompressed position or -1 if
+    *         there is none yet
+    */
+   public synchronized long higherPosition(long position)
+   {
+      int lo = 0;
+      int hi = checkpoints.size() - 1;
+      long result = -1L;
+
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         long out = checkpoints.get(mid).out;
+
+         if (out > position)
+         {
+            result = out;
+            hi = mid - 1;
+         }
+         else
+            lo = mid + 1;
+      }
+
+      return result;
+   }
+
+   /**
+    * Writes the interval and the checkpoints in the format read by {@link #read(DataInput)}
+    */
+   public synchronized void write(DataOutput out) throws IOException
+   {
+      out.writeLong(interval);
+      out.writeInt(checkpoints.size());
+      for (Checkpoint checkpoint : checkpoints)
+      {
+         out.writeLong(checkpoint.out);
+         out.writeLong(checkpoint.bitPos);
+         out.writeInt(checkpoint.window.length);
+         out.write(checkpoint.window);
+      }
+   }
+
+   /**
+    * Reads checkpoints written by {@link #write(DataOutput)}, checking that they are in order and
+    * inside the compressed data
+    *
+    * @param compressedSize size of the compressed data (or an upper bound of it) in bytes
+    */
+   public static InflateIndex read(DataInput in, long compressedSize) throws IOException
+   {
+      long interval = in.readLong();
+      int count = in.readInt();
+      if (interval < 1 || count < 0)
+         throw new IOException("corrupt inflate index");
+
+      InflateIndex index = new InflateIndex(interval);
+      long lastBitPos = 0L;
+      for (int i = 0; i < count; i++)
+      {
+         long out = in.readLong();
+         long bitPos = in.readLong();
+         int len = in.readInt();
+         if (out < index.getNextCheckpointPosition() || bitPos <= lastBitPos || bitPos / 8 > compressedSize || len < 0 || len > 65536)
+            throw new IOException("corrupt inflate index");
+         lastBitPos = bitPos;
+
+         byte[] window = new byte[len];
+         in.readFully(window);
+         index.add(new Checkpoint(out, bitPos, window));
+      }
+
+      return index;
+   }
+
+   public synchronized int size()
+   {
+      return checkpoints.size();
+   }
+
+   /**
+    * @return bytes held by the saved windows
+    */
+   public synchronized long getMemoryUsage()
+   {
+      return memoryUsage;
+   }
+}
@@ -0,0 +1,31 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+
+/**
+ * A tree of names laid out like a PathTrie: node 0 is the root and its own parent, and the children
+ * of every node are consecutive nodes sorted by the UTF-8 bytes of their names. Looked up with
+ * {@link PathTrie#lookup(PathTree, CharSequence)}.
+ */
+public interface PathTree
+{
+   int getParent(int node);
+
+   int getFirstChild(int node);
+
+   int getChildCount(int node);
+
+   /**
+    * @return the order of the name of <code>node</code> and the chars <code>start</code> to
+    *         <code>end</code> of <code>path</code>, as {@link PathTrie#compareName}
+    */
+   int compareName(int node, CharSequence path, int start, int end);
+}
@@ -0,0 +1,601 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * An immutable tree of "/" separated paths packed into a few int arrays and a byte arena of
+ * UTF-8 encoded names. Nodes are numbered breadth first, so the children of every node are
+ * consecutive and sorted by the bytes of their names and a path component is looked up with a
+ * binary search. Lookups allocate nothing.
+ * <p/>
+ * Every node carries an int value (-1 if none was added for its path, e.g. for parents of added paths).
+ * <p/>
+ * Other trees laid out the same way (like the memory-mapped ZipIndex) implement {@link PathTree}
+ * to share the lookup.
+ */
+public final class PathTrie implements PathTree
+{
+   public static final int ROOT = 0;
+
+   private static final Charset UTF8 = Charset.forName("UTF-8");
+
+   private final int size;
+   private final int[] parent;
+   private final int[] firstChild;
+   private final int[] childCount;
+   private final int[] nameOffset;
+   private final int[] nameLength;
+   private final int[] value;
+   private final ByteBuffer names;
+
+
+   private PathTrie(int size, int[] parent, int[] firstChild, int[] childCount, int[] nameOffset, int[] nameLength, int[] value, byte[] names, int namesLength)
+   {
+      this.size = size;
+      this.parent = parent;
+      this.firstChild = firstChild;
+      this.childCount = childCount;
+      this.nameOffset = nameOffset;
+      this.nameLength = nameLength;
+      this.value = value;
+      this.names = ByteBuffer.wrap(names, 0, namesLength).slice();
+   }
+
+   /**
+    * @return the number of nodes, including the root
+    */
+   public int size()
+   {
+      return size;
+   }
+
+   /**
+    * @return the node of the path or -1 if there is none. Empty components and "." are skipped,
+    *         ".." goes to the parent (the root is its own parent).
+    */
+   public int lookup(CharSequence path)
+   {
+      return lookup(this, path);
+   }
+
+   /**
+    * The lookup of {@link #lookup(CharSequence)} in any tree with the layout of a PathTrie
+    */
+   public static int lookup(PathTree tree, CharSequence path)
+   {
+      return lookup(tree, path, 0);
+   }
+
+   /**
+    * The lookup of the part of <code>path</code> from <code>from</code> on
+    */
+   public static int lookup(PathTree tree, CharSequence path, int from)
+   {
+      int node = ROOT;
+      int len = path.length();
+      int i = from;
+
+      while (i < len)
+      {
+         while (i < len && path.charAt(i) == '/')
+            i++;
+         if (i >= len)
+            break;
+
+         int start = i;
+         while (i < len && path.charAt(i) != '/')
+            i++;
+
+         if (i - start == 1 && path.charAt(start) == '.')
+         {
+            // the same node
+         }
+         else if (i - start == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.')
+            node = tree.getParent(node);
+         else
+         {
+            node = findChild(tree, node, path, start, i);
+            if (node < 0)
+               return -1;
+         }
+      }
+
+      return node;
+   }
+
+   /**
+    * Binary search of the children of <code>node</code> for the name <code>start</code> to <code>end</code>
+    * of <code>path</code>
+    *
+    * @return the child or -1 if there is none
+    */
+   public static int findChild(PathTree tree, int node, CharSequence path, int start, int end)
+   {
+      int lo = tree.getFirstChild(node);
+      int hi = lo + tree.getChildCount(node) - 1;
+
+      while (lo <= hi)
+      {
+         int mid = (lo + hi) >>> 1;
+         int cmp = tree.compareName(mid, path, start, end);
+
+         if (cmp < 0)
+            lo = mid + 1;
+         else if (cmp > 0)
+            hi = mid - 1;
+         else
+            return mid;
+      }
+
+      return -1;
+   }
+
+   public int getParent(int node)
+   {
+      return parent[node];
+   }
+
+   public int getFirstChild(int node)
+   {
+      return firstChild[node];
+   }
+
+   public int getChildCount(int node)
+   {
+      return childCount[node];
+   }
+
+   public int getValue(int node)
+   {
+      return value[node];
+   }
+
+   public String getName(int node)
+   {
+      byte[] name = new byte[nameLength[node]];
+      ByteBuffer bb = names.duplicate();
+      bb.position(nameOffset[node]);
+      bb.get(name);
+
+      return new String(name, UTF8);
+   }
+
+   /**
+    * @return offset of the UTF-8 encoded name of the node in <code>getNames()</code>
+    */
+   public int getNameOffset(int node)
+   {
+      return nameOffset[node];
+   }
+
+   public int getNameLength(int node)
+   {
+      return nameLength[node];
+   }
+
+   public int compareName(int node, CharSequence path, int start, int end)
+   {
+      return compareName(names, nameOffset[node], nameLength[node], path, start, end);
+   }
+
+   /**
+    * @return a read-only view of the name arena
+    */
+   public ByteBuffer getNames()
+   {
+      return names.asReadOnlyBuffer();
+   }
+
+   /**
+    * Writes the trie in the format read by {@link #read(DataInput)}
+    */
+   public void write(DataOutput out) throws IOException
+   {
+      out.writeInt(size);
+      for (int node = 0; node < size; node++)
+      {
+         out.writeInt(parent[node]);
+         out.writeInt(firstChild[node]);
+         out.writeInt(childCount[node]);
+         out.writeInt(nameOffset[node]);
+         out.writeInt(nameLength[node]);
+         out.writeInt(value[node]);
+      }
+
+      out.writeInt(names.capacity());
+      out.write(names.array(), names.arrayOffset(), names.capacity());
+   }
+
+   public static PathTrie read(DataInput in) throws IOException
+   {
+      int size = in.readInt();
+      if (size < 1)
+         throw new IOException("invalid trie size: " + size);
+
+      int[] parent = new int[size];
+      int[] firstChild = new int[size];
+      int[] childCount = new int[size];
+      int[] nameOffset = new int[size];
+      int[] nameLength = new int[size];
+      int[] value = new int[size];
+      for (int node = 0; node < size; node++)
+      {
+         parent[node] = in.readInt();
+         firstChild[node] = in.readInt();
+         childCount[node] = in.readInt();
+         nameOffset[node] = in.readInt();
+         nameLength[node] = in.readInt();
+         value[node] = in.readInt();
+      }
+
+      int namesLength = in.readInt();
+      if (namesLength < 0)
+         throw new IOException("invalid name arena length: " + namesLength);
+      byte[] names = new byte[namesLength];
+      in.readFully(names);
+
+      for (int node = 0; node < size; node++)
+      {
+         if (parent[node] < 0 || parent[node] >= size || firstChild[node] < 0 || childCount[node] < 0 || (long)firstChild[node] + childCount[node] > size
+             || nameOffset[node] < 0 || nameLength[node] < 0 || (long)nameOffset[node] + nameLength[node] > namesLength)
+            throw new IOException("corrupt trie node " + node);
+      }
+
+      PathTrie trie = new PathTrie(size, parent, firstChild, childCount, nameOffset, nameLength, value, names, namesLength);
+      checkTree(trie, size);
+
+      return trie;
+   }
+
+   /**
+    * Checks the links of a tree read from a file: the root is its own parent, every other node comes
+    * after its parent and lies in the parent's child range, and every child range comes after its node
+    * and ends inside the tree. So lookups and walks up to the root stay in bounds and always end.
+    */
+   public static void checkTree(PathTree tree, int size) throws IOException
+   {
+      for (int node = 0; node < size; node++)
+      {
+         int parent = tree.getParent(node);
+         int firstChild = tree.getFirstChild(node);
+         int childCount = tree.getChildCount(node);
+
+         boolean valid;
+         if (node == ROOT)
+            valid = parent == ROOT;
+         else
+            valid = parent >= 0 && parent < node && node >= tree.getFirstChild(parent) && node - tree.getFirstChild(parent) < tree.getChildCount(parent);
+         if (childCount != 0)
+            valid &= childCount > 0 && firstChild > node && (long)firstChild + childCount <= size;
+
+         if (!valid)
+            throw new IOException("corrupt tree node " + node);
+      }
+   }
+
+   /**
+    * @return approximate heap usage in bytes
+    */
+   public long getMemoryUsage()
+   {
+      return 6L * 4L * parent.length + names.capacity();
+   }
+
+
+   /**
+    * Compares a UTF-8 encoded name with a range of chars as if the chars were UTF-8 encoded
+    * (unsigned byte order), without encoding them.
+    *
+    * @return a negative number, 0 or a positive number if the name sorts before, equal or after the chars
+    */
+   public static int compareName(ByteBuffer names, int offset, int length, CharSequence chars, int start, int end)
+   {
+      int i = offset;
+      int nameEnd = offset + length;
+      int j = start;
+
+      while (j < end)
+      {
+         int c = chars.charAt(j++);
+         if (c < 0x80)
+         {
+            if (i >= nameEnd)
+               return -1;
+
+            int cmp = (names.get(i++) & 0xff) - c;
+            if (cmp != 0)
+               return cmp;
+            continue;
+         }
+
+         if (c >= Character.MIN_HIGH_SURROGATE && c <= Character.MAX_HIGH_SURROGATE && j < end && Character.isLowSurrogate(chars.charAt(j)))
+            c = Character.toCodePoint((char)c, chars.charAt(j++));
+         else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE)
+            c = '?'; // unpaired surrogate, replaced like String.getBytes() does
+
+         int n;
+         int bytes;
+         if (c < 0x80)
+         {
+            n = 1;
+            bytes = c;
+         }
+         else if (c < 0x800)
+         {
+            n = 2;
+            bytes = (0xc0 | (c >> 6)) << 8 | (0x80 | (c & 0x3f));
+         }
+         else if (c < 0x10000)
+         {
+            n = 3;
+            bytes = (0xe0 | (c >> 12)) << 16 | (0x80 | ((c >> 6) & 0x3f)) << 8 | (0x80 | (c & 0x3f));
+         }
+         else
+         {
+            n = 4;
+            bytes = (0xf0 | (c >> 18)) << 24 | (0x80 | ((c >> 12) & 0x3f)) << 16 | (0x80 | ((c >> 6) & 0x3f)) << 8 | (0x80 | (c & 0x3f));
+         }
+
+         for (int k = n - 1; k >= 0; k--)
+         {
+            if (i >= nameEnd)
+               return -1;
+
+            int cmp = (names.get(i++) & 0xff) - ((bytes >>> (k * 8)) & 0xff);
+            if (cmp != 0)
+               return cmp;
+         }
+      }
+
+      return i < nameEnd? 1 : 0;
+   }
+
+
+   /**
+    * Collects paths and builds a PathTrie by sorting them, without a node object per path.
+    */
+   public static final class Builder
+   {
+      private byte[][] paths = new byte[1024][];
+      private int[] values = new int[1024];
+      private int count;
+      private int rootValue = -1;
+
+      /**
+       * Adds a path; if a path is added more than once, the last value wins
+       */
+      public Builder add(String path, int value)
+      {
+         byte[] normalized = normalize(path);
+         if (normalized.length == 0)
+         {
+            rootValue = value;
+            return this;
+         }
+
+         if (count == paths.length)
+         {
+            paths = Arrays.copyOf(paths, count * 2);
+            values = Arrays.copyOf(values, count * 2);
+         }
+         paths[count] = normalized;
+         values[count] = value;
+         count++;
+
+         return this;
+      }
+
+      public PathTrie build()
+      {
+         // sorting with '/' below every other byte sorts the paths component by component,
+         // so every directory is followed by its subtree and siblings come in name order
+         Integer[] order = new Integer[count];
+         for (int i = 0; i < count; i++)
+            order[i] = Integer.valueOf(i);
+         Arrays.sort(order, new Comparator<Integer>()
+         {
+            public int compare(Integer a, Integer b)
+            {
+               int cmp = comparePaths(paths[a.intValue()], paths[b.intValue()]);
+               return cmp != 0? cmp : a.intValue() - b.intValue();
+            }
+         });
+
+         // depth first pass: create the nodes, linking each to its parent and previous sibling
+         int capacity = count + 1;
+         int[] parent = new int[capacity];
+         int[] firstChild = new int[capacity];
+         int[] lastChild = new int[capacity];
+         int[] nextSibling = new int[capacity];
+         int[] nameOffset = new int[capacity];
+         int[] nameLength = new int[capacity];
+         int[] value = new int[capacity];
+         byte[] names = new byte[Math.max(16, count * 8)];
+         int namesLength = 0;
+
+         firstChild[ROOT] = lastChild[ROOT] = nextSibling[ROOT] = -1;
+         value[ROOT] = rootValue;
+         int size = 1;
+
+         int[] stack = new int[16];
+         int stackSize = 1;
+         stack[0] = ROOT;
+
+         for (int e = 0; e < count; e++)
+         {
+            byte[] path = paths[order[e].intValue()];
+            int depth = 0;
+            int node = ROOT;
+            int pos = 0;
+
+            while (pos < path.length)
+            {
+               int end = pos;
+               while (end < path.length && path[end] != '/')
+                  end++;
+
+               int d = depth + 1;
+               if (d < stackSize && equalName(names, nameOffset[stack[d]], nameLength[stack[d]], path, pos, end))
+                  node = stack[d];
+               else
+               {
+                  if (size == parent.length)
+                  {
+                     int newCapacity = size * 2;
+                     parent = Arrays.copyOf(parent, newCapacity);
+                     firstChild = Arrays.copyOf(firstChild, newCapacity);
+                     lastChild = Arrays.copyOf(lastChild, newCapacity);
+                     nextSibling = Arrays.copyOf(nextSibling, newCapacity);
+                     nameOffset = Arrays.copyOf(nameOffset, newCapacity);
+                     nameLength = Arrays.copyOf(nameLength, newCapacity);
+                     value = Arrays.copyOf(value, newCapacity);
+                  }
+                  if (namesLength + (end - pos) > names.length)
+                     names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + (end - pos)));
+
+                  node = size++;
+                  int parentNode = stack[depth];
+                  parent[node] = parentNode;
+                  firstChild[node] = lastChild[node] = nextSibling[node] = -1;
+                  value[node] = -1;
+                  nameOffset[node] = namesLength;
+                  nameLength[node] = end - pos;
+                  System.arraycopy(path, pos, names, namesLength, end - pos);
+                  namesLength += end - pos;
+
+                  if (lastChild[parentNode] < 0)
+                     firstChild[parentNode] = node;
+                  else
+                     nextSibling[lastChild[parentNode]] = node;
+                  lastChild[parentNode] = node;
+
+                  if (d == stack.length)
+                     stack = Arrays.copyOf(stack, d * 2);
+                  stack[d] = node;
+                  stackSize = d + 1;
+               }
+
+               depth = d;
+               pos = end + 1;
+            }
+
+            value[node] = values[order[e].intValue()];
+         }
+         paths = null;
+         values = null;
+
+         // breadth first renumbering, so that the children of every node are consecutive
+         int[] bfs = new int[size];
+         int[] newId = new int[size];
+         int[] bfsParent = new int[size];
+         int[] bfsFirstChild = new int[size];
+         int[] bfsChildCount = new int[size];
+         int[] bfsNameOffset = new int[size];
+         int[] bfsNameLength = new int[size];
+         int[] bfsValue = new int[size];
+
+         int tail = 1;
+         for (int head = 0; head < tail; head++)
+         {
+            int node = bfs[head];
+            newId[node] = head;
+            bfsFirstChild[head] = tail;
+            for (int child = firstChild[node]; child >= 0; child = nextSibling[child])
+               bfs[tail++] = child;
+            bfsChildCount[head] = tail - bfsFirstChild[head];
+            bfsParent[head] = newId[parent[node]];
+            bfsNameOffset[head] = nameOffset[node];
+            bfsNameLength[head] = nameLength[node];
+            bfsValue[head] = value[node];
+         }
+
+         return new PathTrie(size, bfsParent, bfsFirstChild, bfsChildCount, bfsNameOffset, bfsNameLength, bfsValue, names, namesLength);
+      }
+
+      /**
+       * @return the UTF-8 bytes of the path without empty and "." components and with ".." resolved
+       */
+      private static byte[] normalize(String path)
+      {
+         byte[] bytes = path.getBytes(UTF8);
+         byte[] normalized = new byte[bytes.length];
+         int len = 0;
+         int i = 0;
+
+         while (i < bytes.length)
+         {
+            while (i < bytes.length && bytes[i] == '/')
+               i++;
+            if (i >= bytes.length)
+               break;
+
+            int start = i;
+            while (i < bytes.length && bytes[i] != '/')
+               i++;
+
+            if (i - start == 1 && bytes[start] == '.')
+               continue;
+
+            if (i - start == 2 && bytes[start] == '.' && bytes[start + 1] == '.')
+            {
+               while (len > 0 && normalized[len - 1] != '/')
+                  len--;
+               if (len > 0)
+                  len--;
+               continue;
+            }
+
+            if (len > 0)
+               normalized[len++] = '/';
+            System.arraycopy(bytes, start, normalized, len, i - start);
+            len += i - start;
+         }
+
+         return len == bytes.length? normalized : Arrays.copyOf(normalized, len);
+      }
+
+      private static int comparePaths(byte[] a, byte[] b)
+      {
+         int n = Math.min(a.length, b.length);
+         for (int i = 0; i < n; i++)
+         {
+            int x = a[i] == '/'? -1 : a[i] & 0xff;
+            int y = b[i] == '/'? -1 : b[i] & 0xff;
+            if (x != y)
+               return x - y;
+         }
+
+         return a.length - b.length;
+      }
+
+      private static boolean equalName(byte[] names, int offset, int length, byte[] path, int start, int end)
+      {
+         if (length != end - start)
+            return false;
+
+         for (int i = 0; i < length; i++)
+         {
+            if (names[offset + i] != path[start + i])
+               return false;
+         }
+
+         return true;
+      }
+   }
+}
@@ -0,0 +1,736 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+
+/**
+ * A raw deflate (RFC 1951) decoder over a region of a file that supports random access the way
+ * zlib's examples/zran.c does: while inflating it records checkpoints (bit offset of a block boundary
+ * plus the preceding 32 KiB of output) into an {@link InflateIndex} and {@link #seek(long)} resumes
+ * at the nearest one instead of inflating from the start of the stream.
+ * <p/>
+ * java.util.zip.Inflater can neither report block boundaries nor start at a bit offset, so the
+ * decoding is done here.
+ * <p/>
+ * An instance can be moved to another stream with {@link #reset}, so the buffers and tables (about
+ * 60 KiB) can be pooled. {@link #end()} releases the native (de)compressors of the checkpoint windows.
+ */
+public class RandomAccessInflater
+{
+   private static final int WINDOW_SIZE = 32768;
+   private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+   // codes up to this length are decoded by a single table lookup
+   private static final int FAST_BITS = 10;
+   private static final int FAST_MASK = (1 << FAST_BITS) - 1;
+
+   // decoder modes
+   private static final int HEADER = 0;
+   private static final int STORED = 1;
+   private static final int CODES = 2;
+   private static final int DONE = 3;
+
+   private static final short[] LENGTH_BASE = {
+      3, 4, 5, 6, 7, 8, 9, 10, 11, 13, 15, 17, 19, 23, 27, 31, 35, 43, 51, 59, 67, 83, 99, 115, 131, 163, 195, 227, 258
+   };
+   private static final short[] LENGTH_EXTRA = {
+      0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 4, 4, 5, 5, 5, 5, 0
+   };
+   private static final short[] DISTANCE_BASE = {
+      1, 2, 3, 4, 5, 7, 9, 13, 17, 25, 33, 49, 65, 97, 129, 193, 257, 385, 513, 769, 1025, 1537, 2049, 3073,
+      4097, 6145, 8193, 12289, 16385, 24577
+   };
+   private static final short[] DISTANCE_EXTRA = {
+      0, 0, 0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5, 6, 6, 7, 7, 8, 8, 9, 9, 10, 10, 11, 11, 12, 12, 13, 13
+   };
+   private static final byte[] CODE_LENGTH_ORDER = {
+      16, 17, 18, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15
+   };
+
+   private static final Huffman FIXED_LITERALS = new Huffman(288);
+   private static final Huffman FIXED_DISTANCES = new Huffman(30);
+
+   static
+   {
+      byte[] lengths = new byte[288];
+      Arrays.fill(lengths, 0, 144, (byte)8);
+      Arrays.fill(lengths, 144, 256, (byte)9);
+      Arrays.fill(lengths, 256, 280, (byte)7);
+      Arrays.fill(lengths, 280, 288, (byte)8);
+      try
+      {
+         FIXED_LITERALS.build(lengths, 0, 288);
+         Arrays.fill(lengths, 0, 30, (byte)5);
+         FIXED_DISTANCES.build(lengths, 0, 30);
+      }
+      catch (ZipException e)
+      {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+
+   private FileChannel channel;
+   // position and length of the compressed data in the file
+   private long start;
+   private long length;
+   private InflateIndex index;
+
+   // input
+   private final byte[] inBuf = new byte[16384];
+   private int inPos;
+   private int inLen;
+   // offset of the next byte to be read into inBuf, relative to start
+   private long inNext;
+   private long bitBuf;
+   private int bitCnt;
+
+   // output
+   private final byte[] window = new byte[WINDOW_SIZE];
+   private long outPos;
+
+   // decoder state
+   private int mode;
+   private boolean lastBlock;
+   private int storedLeft;
+   private Huffman literals;
+   private Huffman distances;
+   private int copyLength;
+   private int copyDistance;
+   private final Huffman dynamicLiterals = new Huffman(288);
+   private final Huffman dynamicDistances = new Huffman(30);
+   private final Huffman codeLengths = new Huffman(19);
+   private final byte[] lengths = new byte[288 + 30];
+
+   private byte[] skipBuf;
+
+   // compression of the checkpoint windows, created on first use
+   private byte[] windowData;
+   private Deflater windowDeflater;
+   private Inflater windowInflater;
+
+
+   /**
+    * @param channel the file containing the deflate stream
+    * @param start position of the compressed data in the file
+    * @param length length of the compressed data
+    * @param index the checkpoints of this stream, shared between all instances reading it
+    */
+   public RandomAccessInflater(FileChannel channel, long start, long length, InflateIndex index)
+   {
+      this.channel = channel;
+      this.start = start;
+      this.length = length;
+      this.index = index;
+   }
+
+   /**
+    * Positions the decoder at the start of another deflate stream, as if it had just been created
+    */
+   public void reset(FileChannel channel, long start, long length, InflateIndex index)
+   {
+      this.channel = channel;
+      this.start = start;
+      this.length = length;
+      this.index = index;
+      clear();
+   }
+
+   /**
+    * Releases the native resources, the decoder must not be used afterwards
+    */
+   public void end()
+   {
+      if (windowDeflater != null)
+      {
+         windowDeflater.end();
+         windowDeflater = null;
+      }
+      if (windowInflater != null)
+      {
+         windowInflater.end();
+         windowInflater = null;
+      }
+   }
+
+   /**
+    * @return the position in the uncompressed data of the next byte read
+    */
+   public long getPosition()
+   {
+      return outPos;
+   }
+
+   /**
+    * Positions the decoder so that the next read returns the uncompressed byte at <code>position</code>,
+    * continuing from the current position or restarting at the nearest checkpoint, whichever is closer.
+    * Seeking past the end positions at the end.
+    */
+   public void seek(long position) throws IOException
+   {
+      InflateIndex.Checkpoint checkpoint = index.floor(position);
+      long checkpointPos = checkpoint == null? 0L : checkpoint.out;
+
+      if (position < outPos || checkpointPos > outPos)
+         restore(checkpoint);
+
+      if (skipBuf == null && position > outPos)
+         skipBuf = new byte[8192];
+
+      while (outPos < position)
+      {
+         if (read(skipBuf, 0, (int)Math.min(skipBuf.length, position - outPos)) < 0)
+            return;
+      }
+   }
+
+   /**
+    * @return the number of bytes read or -1 at the end of the stream
+    */
+   public int read(byte[] b, int off, int len) throws IOException
+   {
+      int n = 0;
+
+      while (n < len)
+      {
+         if (copyLength > 0)
+         {
+            n = copy(b, off, n, len);
+            continue;
+         }
+
+         switch (mode)
+         {
+            case HEADER:
+               if (lastBlock)
+               {
+                  mode = DONE;
+                  break;
+               }
+               checkpoint();
+               readBlockHeader();
+               break;
+
+            case STORED:
+               if (storedLeft == 0)
+               {
+                  mode = HEADER;
+                  break;
+               }
+               n = readStored(b, off, n, len);
+               break;
+
+            case CODES:
+               n = inflateCodes(b, off, n, len);
+               break;
+
+            default:
+               return n == 0? -1 : n;
+         }
+      }
+
+      return n;
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * Decodes a Huffman coded block into <code>b</code> until it is full or the block ends, literals
+    * without going back to the mode switch
+    */
+   private int inflateCodes(byte[] b, int off, int n, int len) throws IOException
+   {
+      byte[] window = this.window;
+      Huffman literals = this.literals;
+
+      int[] fast = literals.fast;
+
+      while (n < len)
+      {
+         int symbol;
+         if (bitCnt < 15)
+            refill();
+         int entry = fast[(int)bitBuf & FAST_MASK];
+         if (entry != 0 && (entry & 15) <= bitCnt && (symbol = entry >>> 4) < 256)
+         {
+            // a run of literals: the bit buffer and position stay in locals
+            long bitBuf = this.bitBuf;
+            int bitCnt = this.bitCnt;
+            long outPos = this.outPos;
+            do
+            {
+               bitBuf >>>= entry & 15;
+               bitCnt -= entry & 15;
+               byte value = (byte)symbol;
+               window[(int)outPos++ & WINDOW_MASK] = value;
+               b[off + n++] = value;
+               if (n == len || bitCnt < 15)
+                  break;
+               entry = fast[(int)bitBuf & FAST_MASK];
+            }
+            while (entry != 0 && (entry & 15) <= bitCnt && (symbol = entry >>> 4) < 256);
+            this.bitBuf = bitBuf;
+            this.bitCnt = bitCnt;
+            this.outPos = outPos;
+            continue;
+         }
+
+         symbol = decode(literals);
+         if (symbol < 256)
+         {
+            byte value = (byte)symbol;
+            window[(int)outPos++ & WINDOW_MASK] = value;
+            b[off + n++] = value;
+            continue;
+         }
+         if (symbol == 256)
+         {
+            mode = HEADER;
+            break;
+         }
+
+         symbol -= 257;
+         if (symbol >= LENGTH_BASE.length)
+            throw new ZipException("invalid literal/length code");
+         copyLength = LENGTH_BASE[symbol] + bits(LENGTH_EXTRA[symbol]);
+
+         symbol = decode(distances);
+         if (symbol >= DISTANCE_BASE.length)
+            throw new ZipException("invalid distance code");
+         copyDistance = DISTANCE_BASE[symbol] + bits(DISTANCE_EXTRA[symbol]);
+         if (copyDistance > outPos)
+            throw new ZipException("invalid distance too far back");
+
+         n = copy(b, off, n, len);
+      }
+
+      return n;
+   }
+
+   /**
+    * Copies as much of the pending match as fits into <code>b</code>
+    */
+   private int copy(byte[] b, int off, int n, int len)
+   {
+      int count = Math.min(copyLength, len - n);
+      int wpos = (int)outPos & WINDOW_MASK;
+      int from = (wpos - copyDistance) & WINDOW_MASK;
+
+      if (copyDistance >= count && wpos + count <= WINDOW_SIZE && from + count <= WINDOW_SIZE)
+      {
+         // the source doesn't overlap the bytes being copied and neither wraps around the window
+         System.arraycopy(window, from, window, wpos, count);
+         System.arraycopy(window, wpos, b, off + n, count);
+      }
+      else
+      {
+         for (int i = 0; i < count; i++)
+         {
+            byte value = window[(wpos - copyDistance) & WINDOW_MASK];
+            window[wpos] = value;
+            wpos = (wpos + 1) & WINDOW_MASK;
+            b[off + n + i] = value;
+         }
+      }
+
+      copyLength -= count;
+      outPos += count;
+
+      return n + count;
+   }
+
+   /**
+    * Copies as much of a stored block as fits into <code>b</code>, straight from the input buffer
+    * once the bytes already taken into the bit buffer are used up
+    */
+   private int readStored(byte[] b, int off, int n, int len) throws IOException
+   {
+      int count = Math.min(storedLeft, len - n);
+      int end = n + count;
+
+      while (n < end && bitCnt > 0)
+         b[off + n++] = (byte)bits(8);
+
+      while (n < end)
+      {
+         if (inPos == inLen && !fill())
+            throw new EOFException("Unexpected end of deflate data");
+
+         int chunk = Math.min(end - n, inLen - inPos);
+         System.arraycopy(inBuf, inPos, b, off + n, chunk);
+         inPos += chunk;
+         n += chunk;
+      }
+
+      for (int i = end - count; i < end; i++)
+         window[(int)outPos++ & WINDOW_MASK] = b[off + i];
+      storedLeft -= count;
+
+      return n;
+   }
+
+   private void readBlockHeader() throws IOException
+   {
+      lastBlock = bits(1) == 1;
+
+      switch (bits(2))
+      {
+         case 0:
+            // stored blocks start at a byte boundary
+            bits(bitCnt & 7);
+            int len = bits(16);
+            int nlen = bits(16);
+            if (len != (~nlen & 0xffff))
+               throw new ZipException("invalid stored block lengths");
+            storedLeft = len;
+            mode = STORED;
+            break;
+
+         case 1:
+            literals = FIXED_LITERALS;
+            distances = FIXED_DISTANCES;
+            mode = CODES;
+            break;
+
+         case 2:
+            readDynamicTables();
+            literals = dynamicLiterals;
+            distances = dynamicDistances;
+            mode = CODES;
+            break;
+
+         default:
+            throw new ZipException("invalid block type");
+      }
+   }
+
+   private void readDynamicTables() throws IOException
+   {
+      int nlen = bits(5) + 257;
+      int ndist = bits(5) + 1;
+      int ncode = bits(4) + 4;
+      if (nlen > 286 || ndist > 30)
+         throw new ZipException("too many length or distance codes");
+
+      Arrays.fill(lengths, 0, 19, (byte)0);
+      for (int i = 0; i < ncode; i++)
+         lengths[CODE_LENGTH_ORDER[i]] = (byte)bits(3);
+      codeLengths.build(lengths, 0, 19);
+
+      int i = 0;
+      while (i < nlen + ndist)
+      {
+         int symbol = decode(codeLengths);
+         if (symbol < 16)
+         {
+            lengths[i++] = (byte)symbol;
+            continue;
+         }
+
+         byte value = 0;
+         int repeat;
+         if (symbol == 16)
+         {
+            if (i == 0)
+               throw new ZipException("invalid bit length repeat");
+            value = lengths[i - 1];
+            repeat = 3 + bits(2);
+         }
+         else if (symbol == 17)
+            repeat = 3 + bits(3);
+         else
+            repeat = 11 + bits(7);
+
+         if (i + repeat > nlen + ndist)
+            throw new ZipException("invalid bit length repeat");
+         Arrays.fill(lengths, i, i + repeat, value);
+         i += repeat;
+      }
+
+      if (lengths[256] == 0)
+         throw new ZipException("missing end-of-block code");
+
+      dynamicLiterals.build(lengths, 0, nlen);
+      dynamicDistances.build(lengths, nlen, ndist);
+   }
+
+   private int decode(Huffman huffman) throws IOException
+   {
+      if (bitCnt < 15)
+         refill();
+
+      int entry = huffman.fast[(int)bitBuf & FAST_MASK];
+      int len = entry & 15;
+      if (entry != 0 && len <= bitCnt)
+      {
+         bitBuf >>>= len;
+         bitCnt -= len;
+         return entry >>> 4;
+      }
+
+      // long code (or few bits left): decode bit by bit
+      int code = 0;
+      int first = 0;
+      int index = 0;
+      for (len = 1; len < 16; len++)
+      {
+         code |= bits(1);
+         int count = huffman.count[len];
+         if (code - count < first)
+            return huffman.symbol[index + (code - first)];
+         index += count;
+         first = (first + count) << 1;
+         code <<= 1;
+      }
+
+      throw new ZipException("invalid Huffman code");
+   }
+
+   private int bits(int n) throws IOException
+   {
+      while (bitCnt < n)
+      {
+         int b = nextByte();
+         if (b < 0)
+            throw new EOFException("Unexpected end of deflate data");
+         bitBuf |= (long)b << bitCnt;
+         bitCnt += 8;
+      }
+
+      int value = (int)(bitBuf & ((1L << n) - 1));
+      bitBuf >>>= n;
+      bitCnt -= n;
+
+      return value;
+   }
+
+   private void refill() throws IOException
+   {
+      if (inLen - inPos >= 8)
+      {
+         // enough input buffered: no need to check for its end byte by byte
+         byte[] inBuf = this.inBuf;
+         while (bitCnt <= 56)
+         {
+            bitBuf |= (long)(inBuf[inPos++] & 0xff) << bitCnt;
+            bitCnt += 8;
+         }
+         return;
+      }
+
+      while (bitCnt <= 56)
+      {
+         int b = nextByte();
+         if (b < 0)
+            return;
+         bitBuf |= (long)b << bitCnt;
+         bitCnt += 8;
+      }
+   }
+
+   private int nextByte() throws IOException
+   {
+      if (inPos == inLen && !fill())
+         return -1;
+
+      return inBuf[inPos++] & 0xff;
+   }
+
+   /**
+    * Reads the next chunk of compressed data into the (used up) input buffer
+    *
+    * @return false at the end of the compressed data
+    */
+   private boolean fill() throws IOException
+   {
+      inPos = inLen = 0;
+      int len = (int)Math.min(inBuf.length, length - inNext);
+      if (len <= 0)
+         return false;
+
+      ByteBuffer bb = ByteBuffer.wrap(inBuf, 0, len);
+      while (bb.hasRemaining())
+      {
+         if (channel.read(bb, start + inNext + bb.position()) < 0)
+            throw new EOFException("Unexpected end of file");
+      }
+      inNext += len;
+      inLen = len;
+
+      return true;
+   }
+
+   private void checkpoint()
+   {
+      if (outPos < index.getNextCheckpointPosition())
+         return;
+
+      // bits taken from the input but not yet consumed are still in bitBuf
+      long bitPos = (inNext - (inLen - inPos)) * 8L - bitCnt;
+
+      int n = (int)Math.min(outPos, WINDOW_SIZE);
+      byte[] data = getWindowData();
+      for (int i = 0; i < n; i++)
+         data[i] = window[(int)(outPos - n + i) & WINDOW_MASK];
+
+      if (windowDeflater == null)
+         windowDeflater = new Deflater(Deflater.BEST_SPEED, true);
+      Deflater deflater = windowDeflater;
+      deflater.reset();
+      deflater.setInput(data, 0, n);
+      deflater.finish();
+      byte[] buf = new byte[n + 64];
+      int len = 0;
+      while (!deflater.finished())
+      {
+         if (len == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+         len += deflater.deflate(buf, len, buf.length - len);
+      }
+
+      index.add(new InflateIndex.Checkpoint(outPos, bitPos, Arrays.copyOf(buf, len)));
+   }
+
+   private byte[] getWindowData()
+   {
+      if (windowData == null)
+         windowData = new byte[WINDOW_SIZE];
+
+      return windowData;
+   }
+
+   private void clear()
+   {
+      inPos = inLen = 0;
+      bitBuf = 0L;
+      bitCnt = 0;
+      mode = HEADER;
+      lastBlock = false;
+      storedLeft = 0;
+      copyLength = 0;
+      inNext = 0L;
+      outPos = 0L;
+   }
+
+   private void restore(InflateIndex.Checkpoint checkpoint) throws IOException
+   {
+      clear();
+      if (checkpoint == null)
+         return;
+
+      inNext = checkpoint.bitPos >>> 3;
+      bits((int)(checkpoint.bitPos & 7));
+      outPos = checkpoint.out;
+
+      int n = (int)Math.min(outPos, WINDOW_SIZE);
+      byte[] data = getWindowData();
+      if (windowInflater == null)
+         windowInflater = new Inflater(true);
+      Inflater inflater = windowInflater;
+      inflater.reset();
+      try
+      {
+         inflater.setInput(checkpoint.window);
+         int len = 0;
+         while (len < n)
+         {
+            int count = inflater.inflate(data, len, n - len);
+            if (count == 0 && (inflater.finished() || inflater.needsInput()))
+               break;
+            len += count;
+         }
+         if (len != n)
+            throw new ZipException("corrupt checkpoint window");
+      }
+      catch (DataFormatException e)
+      {
+         throw new ZipException("corrupt checkpoint window: " + e.getMessage());
+      }
+
+      for (int i = 0; i < n; i++)
+         window[(int)(outPos - n + i) & WINDOW_MASK] = data[i];
+   }
+
+
+   /**
+    * Canonical Huffman code: codes of up to FAST_BITS bits are resolved with a lookup table
+    * indexed by the (bit reversed) next input bits, longer ones bit by bit with count/symbol as in zlib's puff.c.
+    */
+   private static final class Huffman
+   {
+      final short[] count = new short[16];
+      final short[] symbol;
+      // (symbol << 4) | length, 0 if the code is longer than FAST_BITS
+      final int[] fast = new int[1 << FAST_BITS];
+
+      private final short[] offsets = new short[16];
+
+      Huffman(int maxSymbols)
+      {
+         symbol = new short[maxSymbols];
+      }
+
+      void build(byte[] lengths, int off, int n) throws ZipException
+      {
+         Arrays.fill(count, (short)0);
+         for (int i = 0; i < n; i++)
+            count[lengths[off + i]]++;
+
+         // incomplete codes are allowed (a single distance code), over-subscribed ones are not
+         int left = 1;
+         for (int len = 1; len < 16; len++)
+         {
+            left <<= 1;
+            left -= count[len];
+            if (left < 0)
+               throw new ZipException("over-subscribed Huffman code");
+         }
+
+         offsets[1] = 0;
+         for (int len = 1; len < 15; len++)
+            offsets[len + 1] = (short)(offsets[len] + count[len]);
+         for (int i = 0; i < n; i++)
+         {
+            if (lengths[off + i] != 0)
+               symbol[offsets[lengths[off + i]]++] = (short)i;
+         }
+
+         Arrays.fill(fast, 0);
+         int code = 0;
+         int k = 0;
+         for (int len = 1; len < 16; len++)
+         {
+            for (int i = 0; i < count[len]; i++, code++, k++)
+            {
+               if (len > FAST_BITS)
+                  continue;
+
+               int reversed = Integer.reverse(code) >>> (32 - len);
+               int entry = (symbol[k] << 4) | len;
+               for (int fill = reversed; fill < fast.length; fill += 1 << len)
+                  fast[fill] = entry;
+            }
+            code <<= 1;
+         }
+      }
+   }
+}
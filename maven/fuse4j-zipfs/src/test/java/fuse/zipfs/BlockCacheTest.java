@@ -0,0 +1,178 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Puts, reads and evicts blocks of a small BlockCache: the segmented LRU order, the statistics and
+ * 8 threads at once, each checking that no block it reads holds another block's data while slots
+ * are reused under it.
+ */
+public class BlockCacheTest extends TestCase
+{
+   private static final int THREADS = 8;
+   private static final int OPERATIONS = 5000;
+   private static final int BLOCKS = 32;
+
+   private Object archive = new Object();
+
+
+   public void testHitsAndMisses()
+   {
+      BlockCache cache = new BlockCache(4L * BlockCache.BLOCK_SIZE);
+      BlockCache.Key key = new BlockCache.Key();
+      ByteBuffer dst = ByteBuffer.allocate(BlockCache.BLOCK_SIZE);
+
+      assertEquals(-1, cache.read(key.set(archive, 1, 0L), 0, dst));
+      cache.put(archive, 1, 0L, block(1, 0L, 100));
+      assertEquals(100, cache.read(key, 0, dst));
+      assertContent(1, 0L, dst, 0, 100);
+
+      // past the end of the block, and part of it
+      dst.clear();
+      assertEquals(0, cache.read(key, 200, dst));
+      dst.limit(10);
+      assertEquals(10, cache.read(key, 50, dst));
+      assertContent(1, 0L, dst, 50, 10);
+
+      assertEquals(3, cache.getHits());
+      assertEquals(1, cache.getMisses());
+      assertEquals(0.75, cache.getHitRatio(), 0.0);
+      assertTrue(cache.toString(), cache.toString().indexOf("hitRatio=0.75") >= 0);
+   }
+
+   public void testProtectedBlocksSurviveScan()
+   {
+      BlockCache cache = new BlockCache(5L * BlockCache.BLOCK_SIZE);
+      ByteBuffer dst = ByteBuffer.allocate(BlockCache.BLOCK_SIZE);
+
+      // read twice, so promoted
+      cache.put(archive, 1, 0L, block(1, 0L, BlockCache.BLOCK_SIZE));
+      assertEquals(BlockCache.BLOCK_SIZE, cache.read(new BlockCache.Key(archive, 1, 0L), 0, dst));
+
+      // a large sequential copy only cycles through the probation segment
+      for (long block = 0; block < 20; block++)
+         cache.put(archive, 2, block, block(2, block, BlockCache.BLOCK_SIZE));
+
+      assertTrue(cache.contains(archive, 1, 0L));
+      assertFalse(cache.contains(archive, 2, 0L));
+      assertTrue(cache.contains(archive, 2, 19L));
+      assertEquals(5L * BlockCache.BLOCK_SIZE, cache.getSize());
+      assertEquals(16, cache.getEvictions());
+   }
+
+   public void testInvalidate()
+   {
+      BlockCache cache = new BlockCache(4L * BlockCache.BLOCK_SIZE);
+      Object other = new Object();
+      cache.put(archive, 1, 0L, block(1, 0L, 10));
+      cache.put(other, 1, 0L, block(1, 0L, 10));
+
+      cache.invalidate(archive);
+      assertFalse(cache.contains(archive, 1, 0L));
+      assertTrue(cache.contains(other, 1, 0L));
+      assertEquals(BlockCache.BLOCK_SIZE, cache.getSize());
+   }
+
+   public void testConcurrentReadersAndWriters() throws InterruptedException
+   {
+      // room for a quarter of the blocks, so slots are reused all the time
+      final BlockCache cache = new BlockCache(BLOCKS / 4 * BlockCache.BLOCK_SIZE);
+      final List<Throwable> failures = new ArrayList<Throwable>();
+      Thread[] threads = new Thread[THREADS];
+
+      for (int t = 0; t < THREADS; t++)
+      {
+         final long seed = t;
+         threads[t] = new Thread()
+         {
+            public void run()
+            {
+               Random random = new Random(seed);
+               BlockCache.Key key = new BlockCache.Key();
+               ByteBuffer dst = ByteBuffer.allocate(BlockCache.BLOCK_SIZE);
+               try
+               {
+                  for (int i = 0; i < OPERATIONS; i++)
+                  {
+                     int entry = random.nextInt(2);
+                     long block = random.nextInt(BLOCKS / 2);
+                     int offset = random.nextInt(BlockCache.BLOCK_SIZE);
+
+                     dst.clear();
+                     int n = cache.read(key.set(archive, entry, block), offset, dst);
+                     if (n < 0)
+                        cache.put(archive, entry, block, block(entry, block, BlockCache.BLOCK_SIZE));
+                     else
+                        assertContent(entry, block, dst, offset, n);
+                  }
+               }
+               catch (Throwable e)
+               {
+                  synchronized (failures)
+                  {
+                     failures.add(e);
+                  }
+               }
+            }
+         };
+         threads[t].start();
+      }
+      for (int t = 0; t < THREADS; t++)
+         threads[t].join();
+
+      if (!failures.isEmpty())
+         throw new AssertionError(failures.get(0));
+
+      assertEquals((long)THREADS * OPERATIONS, cache.getHits() + cache.getMisses());
+      assertTrue(cache.toString(), cache.getHits() > 0 && cache.getEvictions() > 0);
+      assertTrue(cache.getSize() <= cache.getCapacity());
+      // the cache full plus at most a slot per thread being read or put
+      assertTrue(cache.toString(), cache.getAllocated() <= cache.getCapacity() + 2L * THREADS * BlockCache.BLOCK_SIZE);
+   }
+
+
+   //
+   // private methods
+
+   private static ByteBuffer block(int entry, long block, int length)
+   {
+      ByteBuffer bb = ByteBuffer.allocate(length);
+      for (int i = 0; i < length; i++)
+         bb.put(i, value(entry, block, i));
+
+      return bb;
+   }
+
+   private static byte value(int entry, long block, int pos)
+   {
+      return (byte)(entry * 31 + block * 7 + pos);
+   }
+
+   /**
+    * Checks the <code>n</code> bytes before the position of <code>dst</code>, read from <code>offset</code>
+    */
+   private static void assertContent(int entry, long block, ByteBuffer dst, int offset, int n)
+   {
+      int start = dst.position() - n;
+      for (int i = 0; i < n; i++)
+      {
+         if (dst.get(start + i) != value(entry, block, offset + i))
+            fail("block " + entry + "/" + block + " differs at " + (offset + i));
+      }
+   }
+}
@@ -0,0 +1,372 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.Errno;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseFtype;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads a zip holding the same archive once stored and once deflated, each with a stored and a
+ * deflated entry and another archive inside: the nested archives are read through ZipEntryChannels,
+ * stay open while a handle uses them after they have been evicted, and keep their inode numbers
+ * when they are indexed again.
+ */
+public class NestedArchiveTest extends TestCase
+{
+   private File file;
+   private byte[] big;
+
+
+   protected void setUp() throws Exception
+   {
+      // no index files
+      System.setProperty("fuse4j.zipfs.indexDir", "");
+
+      big = createData(300000);
+
+      ByteArrayOutputStream deep = new ByteArrayOutputStream();
+      ZipOutputStream out = new ZipOutputStream(deep);
+      putEntry(out, "x.txt", "deep".getBytes("UTF-8"), ZipEntry.DEFLATED);
+      out.close();
+
+      ByteArrayOutputStream inner = new ByteArrayOutputStream();
+      out = new ZipOutputStream(inner);
+      putEntry(out, "a.txt", "hello".getBytes("UTF-8"), ZipEntry.STORED);
+      putEntry(out, "dir/big.bin", big, ZipEntry.DEFLATED);
+      putEntry(out, "deep.jar", deep.toByteArray(), ZipEntry.STORED);
+      out.close();
+
+      file = File.createTempFile("nested", ".zip");
+      out = new ZipOutputStream(new FileOutputStream(file));
+      try
+      {
+         putEntry(out, "plain.txt", "plain".getBytes("UTF-8"), ZipEntry.DEFLATED);
+         putEntry(out, "stored.zip", inner.toByteArray(), ZipEntry.STORED);
+         putEntry(out, "lib/deflated.zip", inner.toByteArray(), ZipEntry.DEFLATED);
+      }
+      finally
+      {
+         out.close();
+      }
+   }
+
+   protected void tearDown() throws Exception
+   {
+      file.delete();
+      System.clearProperty("fuse4j.zipfs.indexDir");
+   }
+
+   public void testListing() throws IOException, FuseException
+   {
+      ZipFilesystem fs = new ZipFilesystem(new ZipArchive(file), 4);
+      try
+      {
+         assertEquals(Arrays.asList("lib", "plain.txt", "stored.zip"), list(fs, "/"));
+         assertEquals(Arrays.asList("a.txt", "deep.jar", "dir"), list(fs, "/stored.zip"));
+         assertEquals(Arrays.asList("a.txt", "deep.jar", "dir"), list(fs, "/lib/deflated.zip"));
+         assertEquals(Arrays.asList("big.bin"), list(fs, "/lib/deflated.zip/dir"));
+         assertEquals(Arrays.asList("x.txt"), list(fs, "/stored.zip/deep.jar"));
+
+         assertEquals(FuseFtype.TYPE_DIR, getattr(fs, "/stored.zip").mode & FuseFtype.TYPE_MASK);
+         assertEquals(FuseFtype.TYPE_DIR, getattr(fs, "/lib/deflated.zip/deep.jar").mode & FuseFtype.TYPE_MASK);
+         assertEquals(big.length, getattr(fs, "/lib/deflated.zip/dir/big.bin").size);
+
+         assertEquals(Errno.ENOENT, fs.getattr("/stored.zip/none", new Attributes()));
+         assertEquals(Errno.ENOENT, fs.getattr("/plain.txt/a.txt", new Attributes()));
+         assertEquals(Errno.ENOENT, fs.getdir("/lib/none.zip/dir", new Names()));
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+   public void testReadStoredAndDeflated() throws IOException, FuseException
+   {
+      ZipFilesystem fs = new ZipFilesystem(new ZipArchive(file), 4);
+      try
+      {
+         String[] archives = { "/stored.zip", "/lib/deflated.zip" };
+         for (int i = 0; i < archives.length; i++)
+         {
+            assertEquals("hello", read(fs, archives[i] + "/a.txt"));
+            assertEquals("deep", read(fs, archives[i] + "/deep.jar/x.txt"));
+            assertRandomReads(fs, archives[i] + "/dir/big.bin");
+         }
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+   public void testInodes() throws IOException, FuseException
+   {
+      ZipFilesystem fs = new ZipFilesystem(new ZipArchive(file), 1);
+      try
+      {
+         long stored = getattr(fs, "/stored.zip/a.txt").inode;
+         long deflated = getattr(fs, "/lib/deflated.zip/a.txt").inode;
+         long deep = getattr(fs, "/stored.zip/deep.jar/x.txt").inode;
+         assertTrue(stored != deflated && stored != deep && deflated != deep);
+         assertTrue(stored != getattr(fs, "/plain.txt").inode);
+
+         // evicted by each other, indexed again with the same inodes
+         assertEquals(deflated, getattr(fs, "/lib/deflated.zip/a.txt").inode);
+         assertEquals(stored, getattr(fs, "/stored.zip/a.txt").inode);
+         assertEquals(deep, getattr(fs, "/stored.zip/deep.jar/x.txt").inode);
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+   public void testEvictedWhileOpen() throws IOException, FuseException
+   {
+      ZipFilesystem fs = new ZipFilesystem(new ZipArchive(file), 1);
+      try
+      {
+         String path = "/stored.zip/dir/big.bin";
+         Object fh = open(fs, path);
+
+         // evicts /stored.zip, which the handle keeps open
+         assertEquals(Arrays.asList("a.txt", "deep.jar", "dir"), list(fs, "/lib/deflated.zip"));
+         ByteBuffer bb = ByteBuffer.allocate(1000);
+         assertEquals(0, fs.read(path, fh, bb, 5000L));
+         assertEquals(1000, bb.position());
+         assertEquals(big[5000], bb.get(0));
+
+         // the last user closes it
+         assertEquals(0, fs.release(path, fh, 0));
+         assertEquals(Errno.EBADF, fs.read(path, fh, ByteBuffer.allocate(1000), 0L));
+
+         // and it is indexed again on the next use
+         assertRandomReads(fs, path);
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+   public void testNotNested() throws IOException, FuseException
+   {
+      ZipFilesystem fs = new ZipFilesystem(new ZipArchive(file), 0);
+      try
+      {
+         Attributes attributes = getattr(fs, "/stored.zip");
+         assertEquals(FuseFtype.TYPE_FILE, attributes.mode & FuseFtype.TYPE_MASK);
+         assertTrue(attributes.size > big.length / 10);
+         assertEquals(Errno.ENOENT, fs.getattr("/stored.zip/a.txt", new Attributes()));
+      }
+      finally
+      {
+         fs.close();
+      }
+   }
+
+
+   //
+   // private methods
+
+   private void assertRandomReads(ZipFilesystem fs, String path) throws FuseException
+   {
+      Random random = new Random(5L);
+      Object fh = open(fs, path);
+      try
+      {
+         for (int i = 0; i < 30; i++)
+         {
+            int offset = random.nextInt(big.length);
+            ByteBuffer bb = ByteBuffer.allocate(1 + random.nextInt(50000));
+            assertEquals(0, fs.read(path, fh, bb, offset));
+
+            int len = Math.min(bb.capacity(), big.length - offset);
+            assertEquals(path + " at " + offset, len, bb.position());
+            for (int j = 0; j < len; j++)
+            {
+               if (bb.get(j) != big[offset + j])
+                  fail(path + " differs at " + (offset + j));
+            }
+         }
+      }
+      finally
+      {
+         assertEquals(0, fs.release(path, fh, 0));
+      }
+   }
+
+   private static void putEntry(ZipOutputStream out, String name, byte[] data, int method) throws IOException
+   {
+      ZipEntry entry = new ZipEntry(name);
+      entry.setMethod(method);
+      if (method == ZipEntry.STORED)
+      {
+         CRC32 crc = new CRC32();
+         crc.update(data);
+         entry.setSize(data.length);
+         entry.setCompressedSize(data.length);
+         entry.setCrc(crc.getValue());
+      }
+      out.putNextEntry(entry);
+      out.write(data);
+      out.closeEntry();
+   }
+
+   /**
+    * Text-like data with incompressible stretches
+    */
+   private static byte[] createData(int len)
+   {
+      String[] words = { "fuse", "filesystem", "inode", "nested", "archive", "channel", "\n" };
+      Random random = new Random(11L);
+      byte[] data = new byte[len];
+      int pos = 0;
+
+      while (pos < len)
+      {
+         if (random.nextInt(200) == 0)
+         {
+            int count = Math.min(len - pos, random.nextInt(2000));
+            for (int j = 0; j < count; j++)
+               data[pos++] = (byte)random.nextInt(256);
+         }
+         else
+         {
+            String word = words[random.nextInt(words.length)] + " ";
+            for (int j = 0; j < word.length() && pos < len; j++)
+               data[pos++] = (byte)word.charAt(j);
+         }
+      }
+
+      return data;
+   }
+
+   private static List<String> list(ZipFilesystem fs, String path) throws FuseException
+   {
+      Names names = new Names();
+      assertEquals(path, 0, fs.getdir(path, names));
+      Collections.sort(names.names);
+
+      return names.names;
+   }
+
+   private static Attributes getattr(ZipFilesystem fs, String path) throws FuseException
+   {
+      Attributes attributes = new Attributes();
+      assertEquals(path, 0, fs.getattr(path, attributes));
+
+      return attributes;
+   }
+
+   private static Object open(ZipFilesystem fs, String path) throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(path, 0, fs.open(path, 0, openSetter));
+
+      return openSetter.fh;
+   }
+
+   private static String read(ZipFilesystem fs, String path) throws IOException, FuseException
+   {
+      Object fh = open(fs, path);
+      try
+      {
+         ByteBuffer bb = ByteBuffer.allocate(100);
+         assertEquals(0, fs.read(path, fh, bb, 0L));
+
+         return new String(bb.array(), 0, bb.position(), "UTF-8");
+      }
+      finally
+      {
+         assertEquals(0, fs.release(path, fh, 0));
+      }
+   }
+
+
+   private static class Names implements FuseDirFiller
+   {
+      List<String> names = new ArrayList<String>();
+
+      public void add(String name, long inode, int mode)
+      {
+         names.add(name);
+      }
+   }
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+      boolean directIO;
+      boolean keepCache;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return directIO;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+         this.directIO = directIO;
+      }
+
+      public boolean isKeepCache()
+      {
+         return keepCache;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+         this.keepCache = keepCache;
+      }
+   }
+
+   private static class Attributes implements FuseGetattrSetter
+   {
+      long inode;
+      int mode;
+      long size;
+
+      public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long size, long blocks, int atime, int mtime, int ctime)
+      {
+         this.inode = inode;
+         this.mode = mode;
+         this.size = size;
+      }
+   }
+}
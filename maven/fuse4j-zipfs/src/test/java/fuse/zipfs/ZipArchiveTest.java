@@ -0,0 +1,350 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.Errno;
+import fuse.FilesystemConstants;
+import fuse.FuseException;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads the central directory of an archive written by java.util.zip and of corrupted copies of it,
+ * which must fail with a ZipException (not with an unchecked exception or a fault of a mapping), and
+ * of a copy with an encrypted entry, which only that entry's open must fail.
+ */
+public class ZipArchiveTest extends TestCase
+{
+   private static final int END_SIZE = 22;
+   private static final int CENTRAL_HEADER_SIZE = 46;
+
+   private byte[] zip;
+   private int cdOffset;
+   private File file;
+
+
+   protected void setUp() throws Exception
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ZipOutputStream out = new ZipOutputStream(bytes);
+      try
+      {
+         out.putNextEntry(new ZipEntry("a.txt"));
+         out.write("hello".getBytes("UTF-8"));
+         out.putNextEntry(new ZipEntry("dir/"));
+         ZipEntry stored = new ZipEntry("dir/b.bin");
+         stored.setMethod(ZipEntry.STORED);
+         stored.setSize(3);
+         CRC32 crc = new CRC32();
+         crc.update(new byte[] { 1, 2, 3 });
+         stored.setCrc(crc.getValue());
+         out.putNextEntry(stored);
+         out.write(new byte[] { 1, 2, 3 });
+      }
+      finally
+      {
+         out.close();
+      }
+
+      zip = bytes.toByteArray();
+      cdOffset = le().getInt(zip.length - END_SIZE + 16);
+      file = File.createTempFile("archive", ".zip");
+   }
+
+   protected void tearDown() throws Exception
+   {
+      file.delete();
+   }
+
+   public void testValid() throws IOException
+   {
+      List<String> names = readNames(zip);
+      assertEquals(Arrays.asList("a.txt", "dir/", "dir/b.bin"), names);
+   }
+
+   public void testDataOffset() throws IOException
+   {
+      ZipArchive archive = open(zip);
+      try
+      {
+         final long[] stored = new long[2];
+         archive.readCentralDirectory(new ZipArchive.EntryVisitor()
+         {
+            public void visit(String name, int flags, int method, long time, long size, long compressedSize, long localHeaderOffset)
+            {
+               if (name.equals("dir/b.bin"))
+               {
+                  stored[0] = localHeaderOffset;
+                  stored[1] = size;
+               }
+            }
+         });
+
+         ByteBuffer bb = ByteBuffer.allocate(10);
+         assertEquals(3, archive.readStored(archive.getDataOffset(stored[0]), stored[1], bb, 0L));
+         assertEquals(1, bb.get(0));
+         assertEquals(3, bb.get(2));
+      }
+      finally
+      {
+         archive.close();
+      }
+   }
+
+   public void testTruncated() throws IOException
+   {
+      // the end record survives, the central directory doesn't
+      byte[] truncated = new byte[cdOffset + 10 + END_SIZE];
+      System.arraycopy(zip, 0, truncated, 0, cdOffset + 10);
+      System.arraycopy(zip, zip.length - END_SIZE, truncated, cdOffset + 10, END_SIZE);
+      assertRejected("truncated central directory", truncated);
+
+      assertRejected("no end record", Arrays.copyOf(zip, zip.length - 5));
+   }
+
+   public void testCentralDirectoryPastEnd() throws IOException
+   {
+      byte[] corrupt = zip.clone();
+      le(corrupt).putInt(corrupt.length - END_SIZE + 16, cdOffset + 1000);
+      assertRejected("offset", corrupt);
+
+      corrupt = zip.clone();
+      le(corrupt).putInt(corrupt.length - END_SIZE + 12, zip.length);
+      assertRejected("size", corrupt);
+   }
+
+   public void testNameTooLong() throws IOException
+   {
+      byte[] corrupt = zip.clone();
+      // the name of the last entry runs past the central directory
+      int last = lastHeader(corrupt);
+      le(corrupt).putShort(last + 28, (short)0x7fff);
+      assertRejected("name length", corrupt);
+   }
+
+   public void testExtraFieldTooLong() throws IOException
+   {
+      byte[] corrupt = withExtraField(new byte[] { 0x01, 0x00, 0x08, 0x00, 1, 2, 3 }, 0xffffffff);
+      assertRejected("extra field length", corrupt);
+   }
+
+   public void testShortZip64Field() throws IOException
+   {
+      // saturated size, but the zip64 field holds only 4 bytes
+      byte[] corrupt = withExtraField(new byte[] { 0x01, 0x00, 0x04, 0x00, 1, 2, 3, 4 }, 0xffffffff);
+      assertRejected("zip64 field", corrupt);
+   }
+
+   public void testEncrypted() throws IOException, FuseException
+   {
+      // a.txt is marked encrypted, the rest of the archive stays usable
+      byte[] encrypted = zip.clone();
+      ByteBuffer bb = le(encrypted);
+      bb.putShort(cdOffset + 8, (short)(bb.getShort(cdOffset + 8) | ZipArchive.ENCRYPTED));
+      assertEquals(Arrays.asList("a.txt", "dir/", "dir/b.bin"), readNames(encrypted));
+
+      ZipArchive archive = new ZipArchive(file);
+      try
+      {
+         ZipIndex index = ZipIndex.build(archive, file.length(), 0L, 0L);
+         assertTrue(index.isEncrypted(index.lookup("/a.txt")));
+         assertFalse(index.isEncrypted(index.lookup("/dir/b.bin")));
+         try
+         {
+            new ZipFileDataReader(archive, index, null).openZipEntryDataReader(index.lookup("/a.txt"));
+            fail("encrypted entry opened");
+         }
+         catch (ZipException e)
+         {
+            // expected
+         }
+      }
+      finally
+      {
+         archive.close();
+      }
+
+      // indexed in memory, as it isn't a file of its own
+      ZipFilesystem filesystem = new ZipFilesystem(new ZipArchive(new RandomAccessFile(file, "r").getChannel()));
+      try
+      {
+         final long[] size = new long[1];
+         assertEquals(0, filesystem.getattr("/a.txt", new FuseGetattrSetter()
+         {
+            public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long fileSize, long blocks, int atime, int mtime, int ctime)
+            {
+               size[0] = fileSize;
+            }
+         }));
+         assertEquals(5L, size[0]);
+         assertEquals(Errno.EACCES, filesystem.open("/a.txt", FilesystemConstants.O_RDONLY, new OpenSetter()));
+
+         OpenSetter openSetter = new OpenSetter();
+         assertEquals(0, filesystem.open("/dir/b.bin", FilesystemConstants.O_RDONLY, openSetter));
+         ByteBuffer buf = ByteBuffer.allocate(10);
+         assertEquals(0, filesystem.read("/dir/b.bin", openSetter.fh, buf, 0L));
+         assertEquals(3, buf.position());
+         assertEquals(0, filesystem.release("/dir/b.bin", openSetter.fh, FilesystemConstants.O_RDONLY));
+      }
+      finally
+      {
+         filesystem.close();
+      }
+   }
+
+
+   //
+   // private methods
+
+   /**
+    * @return a copy of the archive whose first entry has the given extra field and uncompressed size
+    */
+   private byte[] withExtraField(byte[] extra, int size)
+   {
+      ByteBuffer in = le(zip);
+      int nameLen = in.getShort(cdOffset + 28) & 0xffff;
+      int oldExtraLen = in.getShort(cdOffset + 30) & 0xffff;
+      int insert = cdOffset + CENTRAL_HEADER_SIZE + nameLen;
+
+      byte[] result = new byte[zip.length + extra.length];
+      System.arraycopy(zip, 0, result, 0, insert);
+      System.arraycopy(extra, 0, result, insert, extra.length);
+      System.arraycopy(zip, insert, result, insert + extra.length, zip.length - insert);
+
+      ByteBuffer out = le(result);
+      out.putShort(cdOffset + 30, (short)(oldExtraLen + extra.length));
+      out.putInt(cdOffset + 24, size);
+      int end = result.length - END_SIZE;
+      out.putInt(end + 12, out.getInt(end + 12) + extra.length);
+
+      return result;
+   }
+
+   private int lastHeader(byte[] data)
+   {
+      ByteBuffer bb = le(data);
+      int pos = cdOffset;
+      int last = pos;
+      while (bb.getInt(pos) == 0x02014b50)
+      {
+         last = pos;
+         pos += CENTRAL_HEADER_SIZE + (bb.getShort(pos + 28) & 0xffff) + (bb.getShort(pos + 30) & 0xffff) + (bb.getShort(pos + 32) & 0xffff);
+      }
+
+      return last;
+   }
+
+   private void assertRejected(String name, byte[] data) throws IOException
+   {
+      try
+      {
+         readNames(data);
+         fail(name + ": accepted");
+      }
+      catch (ZipException e)
+      {
+         // expected
+      }
+   }
+
+   private List<String> readNames(byte[] data) throws IOException
+   {
+      final List<String> names = new ArrayList<String>();
+      ZipArchive archive = open(data);
+      try
+      {
+         archive.readCentralDirectory(new ZipArchive.EntryVisitor()
+         {
+            public void visit(String name, int flags, int method, long time, long size, long compressedSize, long localHeaderOffset)
+            {
+               names.add(name);
+            }
+         });
+      }
+      finally
+      {
+         archive.close();
+      }
+
+      return names;
+   }
+
+   private ZipArchive open(byte[] data) throws IOException
+   {
+      FileOutputStream out = new FileOutputStream(file);
+      try
+      {
+         out.write(data);
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return new ZipArchive(file);
+   }
+
+   private ByteBuffer le()
+   {
+      return le(zip);
+   }
+
+   private static ByteBuffer le(byte[] data)
+   {
+      return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return false;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+      }
+
+      public boolean isKeepCache()
+      {
+         return false;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+      }
+   }
+}
@@ -0,0 +1,196 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Reads a deflated entry larger than the index interval through ZipEntryDataReaders, with and without
+ * a BlockCache, sequentially (recording the checkpoints), backwards and at random (from the
+ * checkpoints) and switching between the two, and ahead of a sequential reader on the pool.
+ */
+public class ZipFileDataReaderTest extends TestCase
+{
+   private static final int DATA_SIZE = (int)(3 * ZipFileDataReader.INDEX_INTERVAL + 12345);
+   private static final int SEEKS = 100;
+
+   private byte[] data;
+   private File file;
+   private ZipArchive archive;
+   private ZipIndex index;
+   private int entry;
+
+
+   protected void setUp() throws Exception
+   {
+      data = createData(new Random(7L));
+      file = File.createTempFile("reader", ".zip");
+
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+      try
+      {
+         out.putNextEntry(new ZipEntry("small.txt"));
+         out.write(data, 0, 1000);
+         out.putNextEntry(new ZipEntry("dir/big.txt"));
+         out.write(data);
+      }
+      finally
+      {
+         out.close();
+      }
+
+      archive = new ZipArchive(file);
+      index = ZipIndex.build(archive, file.length(), 0L, 0L);
+      entry = index.lookup("/dir/big.txt");
+      assertTrue(entry >= 0);
+      assertEquals(ZipArchive.DEFLATED, index.getMethod(entry));
+   }
+
+   protected void tearDown() throws Exception
+   {
+      archive.close();
+      file.delete();
+   }
+
+   public void testUncached() throws IOException
+   {
+      check(new ZipFileDataReader(archive, index, null));
+   }
+
+   public void testCached() throws IOException
+   {
+      check(new ZipFileDataReader(archive, index, new BlockCache(4L * BlockCache.BLOCK_SIZE)));
+   }
+
+   public void testIndexSharedByHandles() throws IOException
+   {
+      ZipFileDataReader zipFileDataReader = new ZipFileDataReader(archive, index, null);
+      ZipEntryDataReader first = zipFileDataReader.openZipEntryDataReader(entry);
+      try
+      {
+         // seeking forward records checkpoints
+         assertReads("first", first, data.length - 100, 100);
+         assertTrue(zipFileDataReader.getIndexMemoryUsage() > 0);
+      }
+      finally
+      {
+         first.close();
+      }
+
+      ZipEntryDataReader second = zipFileDataReader.openZipEntryDataReader(entry);
+      try
+      {
+         assertReads("second", second, data.length / 2, 70000);
+      }
+      finally
+      {
+         second.close();
+      }
+   }
+
+   public void testSequentialReadAhead() throws IOException, InterruptedException
+   {
+      BlockCache blockCache = new BlockCache(16L * ZipFileDataReader.INDEX_INTERVAL);
+      ZipFileDataReader zipFileDataReader = new ZipFileDataReader(archive, index, blockCache, 2);
+      ZipEntryDataReader reader = zipFileDataReader.openZipEntryDataReader(entry);
+      try
+      {
+         // the first read starts the scan, which inflates the blocks of the next segments on the pool
+         assertReads("first", reader, 0, 128 * 1024);
+         long block = (2L * ZipFileDataReader.INDEX_INTERVAL + 1) / BlockCache.BLOCK_SIZE;
+         long deadline = System.currentTimeMillis() + 10000L;
+         while (!blockCache.contains(archive, entry, block) && System.currentTimeMillis() < deadline)
+            Thread.sleep(10L);
+         assertTrue("block " + block + " not read ahead", blockCache.contains(archive, entry, block));
+         assertTrue(zipFileDataReader.getIndexMemoryUsage() > 0);
+
+         // and the reader finds them there
+         long hits = blockCache.getHits();
+         for (int pos = 128 * 1024; pos < data.length; pos += 128 * 1024)
+            assertReads("sequential", reader, pos, 128 * 1024);
+         assertTrue(blockCache.getHits() - hits >= block);
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+
+   //
+   // private methods
+
+   private void check(ZipFileDataReader zipFileDataReader) throws IOException
+   {
+      Random random = new Random(11L);
+      ZipEntryDataReader reader = zipFileDataReader.openZipEntryDataReader(entry);
+      try
+      {
+         // sequentially, in kernel sized reads
+         for (int pos = 0; pos < data.length; pos += 128 * 1024)
+            assertReads("sequential", reader, pos, 128 * 1024);
+
+         // backwards
+         for (int pos = data.length - 5000; pos > 0; pos -= 300000)
+            assertReads("backwards", reader, pos, 5000);
+
+         // at random, sometimes continuing sequentially
+         for (int i = 0; i < SEEKS; i++)
+         {
+            int pos = random.nextInt(data.length);
+            assertReads("seek " + i, reader, pos, 1 + random.nextInt(20000));
+            if (i % 3 == 0)
+               assertReads("after seek " + i, reader, pos + 20000, 50000);
+         }
+      }
+      finally
+      {
+         reader.close();
+      }
+   }
+
+   private void assertReads(String name, ZipEntryDataReader reader, long position, int len) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(len);
+      reader.readData(bb, position);
+
+      int expectedLen = (int)Math.max(0, Math.min(len, data.length - position));
+      assertEquals(name + ": length at " + position, expectedLen, bb.position());
+      for (int i = 0; i < expectedLen; i++)
+      {
+         if (bb.get(i) != data[(int)position + i])
+            fail(name + ": differs at " + (position + i));
+      }
+   }
+
+   private static byte[] createData(Random random)
+   {
+      String[] words = { "fuse", "filesystem", "inode", "directory", "archive", "deflate", "checkpoint", "window", "\n" };
+      byte[] data = new byte[DATA_SIZE];
+      int pos = 0;
+      while (pos < data.length)
+      {
+         byte[] word = (words[random.nextInt(words.length)] + " " + (random.nextInt(100) == 0? random.nextLong() : "")).getBytes();
+         for (int j = 0; j < word.length && pos < data.length; j++)
+            data[pos++] = word[j];
+      }
+
+      return data;
+   }
+}
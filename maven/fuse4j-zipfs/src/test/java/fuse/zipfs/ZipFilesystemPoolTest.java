@@ -0,0 +1,311 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import fuse.Errno;
+import fuse.FilesystemConstants;
+import fuse.FuseDirFiller;
+import fuse.FuseException;
+import fuse.FuseGetattrSetter;
+import fuse.FuseOpenSetter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Three archives behind a ZipFilesystemPool that keeps at most two of them open: the least recently
+ * used idle one is closed, one with an open file handle survives, and a MultiZipFilesystem adds and
+ * removes archives while it is in use.
+ */
+public class ZipFilesystemPoolTest extends TestCase
+{
+   private File dir;
+   private File[] files;
+   private ZipFilesystemPool pool;
+   private LazyZipFilesystem a;
+   private LazyZipFilesystem b;
+   private LazyZipFilesystem c;
+
+
+   protected void setUp() throws Exception
+   {
+      // no index files
+      System.setProperty("fuse4j.zipfs.indexDir", "");
+
+      dir = File.createTempFile("pool", "");
+      dir.delete();
+      dir.mkdir();
+      files = new File[] { createZip("a.zip", "a"), createZip("b.zip", "b"), createZip("c.zip", "c") };
+
+      pool = new ZipFilesystemPool(2);
+      a = new LazyZipFilesystem(files[0], pool);
+      b = new LazyZipFilesystem(files[1], pool);
+      c = new LazyZipFilesystem(files[2], pool);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      a.remove();
+      b.remove();
+      c.remove();
+      for (int i = 0; i < files.length; i++)
+         files[i].delete();
+      dir.delete();
+      System.clearProperty("fuse4j.zipfs.indexDir");
+   }
+
+   public void testOpenedOnFirstAccess() throws FuseException
+   {
+      // the root is answered from the file
+      assertEquals(0, a.getattr("/", new Attributes()));
+      assertFalse(a.isOpen());
+      assertEquals(0, pool.getOpenCount());
+
+      assertEquals(0, a.getattr("/x.txt", new Attributes()));
+      assertTrue(a.isOpen());
+      assertEquals(1, pool.getOpenCount());
+   }
+
+   public void testEvictsLeastRecentlyUsed() throws FuseException
+   {
+      touch(a);
+      touch(b);
+      touch(a);
+
+      // b was used last before a, so it goes
+      touch(c);
+      assertOpen(true, false, true);
+
+      touch(b);
+      assertOpen(false, true, true);
+      assertEquals(2, pool.getOpenCount());
+   }
+
+   public void testOpenHandleSurvives() throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(0, a.open("/x.txt", FilesystemConstants.O_RDONLY, openSetter));
+      touch(b);
+      touch(c);
+
+      // a is the least recently used, but in use
+      assertOpen(true, false, true);
+      touch(b);
+      assertOpen(true, true, false);
+      assertEquals("a", read(a, openSetter.fh));
+
+      // released, it's the next one to go
+      assertEquals(0, a.release("/x.txt", openSetter.fh, FilesystemConstants.O_RDONLY));
+      touch(c);
+      assertOpen(false, true, true);
+   }
+
+   public void testAboveLimitWhileInUse() throws FuseException
+   {
+      OpenSetter[] handles = new OpenSetter[3];
+      LazyZipFilesystem[] filesystems = { a, b, c };
+      for (int i = 0; i < 3; i++)
+      {
+         handles[i] = new OpenSetter();
+         assertEquals(0, filesystems[i].open("/x.txt", FilesystemConstants.O_RDONLY, handles[i]));
+      }
+      assertOpen(true, true, true);
+      assertEquals(3, pool.getOpenCount());
+
+      for (int i = 0; i < 3; i++)
+         assertEquals(0, filesystems[i].release("/x.txt", handles[i].fh, FilesystemConstants.O_RDONLY));
+
+      // back to the limit with the next archive opened
+      c.remove();
+      c = new LazyZipFilesystem(files[2], pool);
+      touch(c);
+      assertEquals(2, pool.getOpenCount());
+   }
+
+   public void testRemoved() throws FuseException
+   {
+      OpenSetter openSetter = new OpenSetter();
+      assertEquals(0, a.open("/x.txt", FilesystemConstants.O_RDONLY, openSetter));
+      a.remove();
+
+      assertEquals(0, pool.getOpenCount());
+      assertEquals(Errno.EBADF, a.read("/x.txt", openSetter.fh, ByteBuffer.allocate(10), 0L));
+      assertEquals(0, a.release("/x.txt", openSetter.fh, FilesystemConstants.O_RDONLY));
+      try
+      {
+         a.getattr("/x.txt", new Attributes());
+         fail("removed archive accessed");
+      }
+      catch (FuseException e)
+      {
+         assertEquals(Errno.ENOENT, e.getErrno());
+      }
+   }
+
+   public void testMultiZipAddRemove() throws IOException, FuseException
+   {
+      MultiZipFilesystem multi = new MultiZipFilesystem(new String[] { files[0].getPath(), files[1].getPath() }, 0, pool);
+      try
+      {
+         assertEquals(listOf("a.zip", "b.zip"), list(multi));
+
+         OpenSetter openSetter = new OpenSetter();
+         assertEquals(0, multi.open("/a.zip/x.txt", FilesystemConstants.O_RDONLY, openSetter));
+         ByteBuffer buf = ByteBuffer.allocate(10);
+         assertEquals(0, multi.read("/a.zip/x.txt", openSetter.fh, buf, 0L));
+         assertEquals(1, buf.position());
+
+         // added while a file is open
+         assertEquals("c.zip", multi.addZipFile(files[2]));
+         assertEquals(listOf("a.zip", "b.zip", "c.zip"), list(multi));
+         assertEquals(0, multi.getattr("/c.zip/x.txt", new Attributes()));
+
+         // removed under the open file, which can't be read any more
+         assertTrue(multi.removeZipFile("a.zip"));
+         assertFalse(multi.removeZipFile("a.zip"));
+         assertEquals(listOf("b.zip", "c.zip"), list(multi));
+         assertEquals(Errno.EBADF, multi.read("/a.zip/x.txt", openSetter.fh, ByteBuffer.allocate(10), 0L));
+         assertEquals(0, multi.release("/a.zip/x.txt", openSetter.fh, FilesystemConstants.O_RDONLY));
+         try
+         {
+            multi.getattr("/a.zip/x.txt", new Attributes());
+            fail("removed archive accessed");
+         }
+         catch (FuseException e)
+         {
+            assertEquals(Errno.ENOENT, e.getErrno());
+         }
+
+         // added again, replacing nothing; and replacing an archive closes the old one
+         assertEquals("a.zip", multi.addZipFile(files[0]));
+         assertEquals(0, multi.getattr("/a.zip/x.txt", new Attributes()));
+         assertEquals(2, pool.getOpenCount());
+         assertEquals("a.zip", multi.addZipFile(files[0]));
+         assertEquals(listOf("a.zip", "b.zip", "c.zip"), list(multi));
+         assertTrue(pool.getOpenCount() <= 2);
+      }
+      finally
+      {
+         multi.removeZipFile("a.zip");
+         multi.removeZipFile("b.zip");
+         multi.removeZipFile("c.zip");
+      }
+      assertEquals(0, pool.getOpenCount());
+   }
+
+
+   //
+   // private methods
+
+   private File createZip(String name, String content) throws IOException
+   {
+      File file = new File(dir, name);
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(file));
+      try
+      {
+         out.putNextEntry(new ZipEntry("x.txt"));
+         out.write(content.getBytes("UTF-8"));
+      }
+      finally
+      {
+         out.close();
+      }
+
+      return file;
+   }
+
+   private static void touch(LazyZipFilesystem filesystem) throws FuseException
+   {
+      assertEquals(0, filesystem.getattr("/x.txt", new Attributes()));
+   }
+
+   private void assertOpen(boolean aOpen, boolean bOpen, boolean cOpen)
+   {
+      assertEquals("a", aOpen, a.isOpen());
+      assertEquals("b", bOpen, b.isOpen());
+      assertEquals("c", cOpen, c.isOpen());
+   }
+
+   private static String read(LazyZipFilesystem filesystem, Object fh) throws FuseException
+   {
+      ByteBuffer buf = ByteBuffer.allocate(10);
+      assertEquals(0, filesystem.read("/x.txt", fh, buf, 0L));
+
+      return new String(buf.array(), 0, buf.position());
+   }
+
+   private static List<String> list(MultiZipFilesystem multi) throws FuseException
+   {
+      final List<String> names = new ArrayList<String>();
+      assertEquals(0, multi.getdir("/", new FuseDirFiller()
+      {
+         public void add(String name, long inode, int mode)
+         {
+            names.add(name);
+         }
+      }));
+
+      return names;
+   }
+
+   private static List<String> listOf(String... names)
+   {
+      List<String> list = new ArrayList<String>();
+      for (int i = 0; i < names.length; i++)
+         list.add(names[i]);
+
+      return list;
+   }
+
+
+   private static class Attributes implements FuseGetattrSetter
+   {
+      public void set(long inode, int mode, int nlink, int uid, int gid, int rdev, long size, long blocks, int atime, int mtime, int ctime)
+      {
+      }
+   }
+
+   private static class OpenSetter implements FuseOpenSetter
+   {
+      Object fh;
+
+      public void setFh(Object fh)
+      {
+         this.fh = fh;
+      }
+
+      public boolean isDirectIO()
+      {
+         return false;
+      }
+
+      public void setDirectIO(boolean directIO)
+      {
+      }
+
+      public boolean isKeepCache()
+      {
+         return false;
+      }
+
+      public void setKeepCache(boolean keepCache)
+      {
+      }
+   }
+}
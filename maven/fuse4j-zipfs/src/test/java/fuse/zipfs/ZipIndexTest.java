@@ -0,0 +1,287 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Writes the index of an archive to a file and loads it again: the loaded index must answer every
+ * lookup like the built one, and a corrupt or untrusted index file must be rejected.
+ */
+public class ZipIndexTest extends TestCase
+{
+   private static final String[] ENTRIES = {
+      "a.txt", "b/", "b/c.txt", "b/d/e.txt", "b/d/f.txt", "g/h/i.bin", "äöü.txt", "z/"
+   };
+   private static final String[] MISSES = { "/x", "/b/x", "/b/d/e.txt/x", "/g/h/i", "/a.txtx", "/g/hh" };
+
+   private File dir;
+   private File zipFile;
+   private File indexFile;
+   private ZipIndex built;
+
+
+   protected void setUp() throws Exception
+   {
+      dir = Files.createTempDirectory("zipindex").toFile();
+      zipFile = new File(dir, "test.zip");
+      indexFile = new File(dir, "test.zip" + ZipIndex.INDEX_SUFFIX);
+
+      ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+      try
+      {
+         for (int i = 0; i < ENTRIES.length; i++)
+         {
+            out.putNextEntry(new ZipEntry(ENTRIES[i]));
+            if (!ENTRIES[i].endsWith("/"))
+               out.write(new byte[i * 100]);
+         }
+      }
+      finally
+      {
+         out.close();
+      }
+
+      ZipArchive archive = new ZipArchive(zipFile);
+      try
+      {
+         built = ZipIndex.build(archive, zipFile.length(), zipFile.lastModified(), archive.getTailChecksum());
+      }
+      finally
+      {
+         archive.close();
+      }
+      built.write(indexFile);
+   }
+
+   protected void tearDown() throws Exception
+   {
+      File[] files = dir.listFiles();
+      for (int i = 0; files != null && i < files.length; i++)
+         files[i].delete();
+      dir.delete();
+   }
+
+   public void testRoundTrip() throws IOException
+   {
+      ZipIndex loaded = ZipIndex.load(indexFile);
+
+      assertEquals(built.getNodeCount(), loaded.getNodeCount());
+      assertEquals(built.getFileCount(), loaded.getFileCount());
+      assertEquals(built.getDirectoryCount(), loaded.getDirectoryCount());
+      assertEquals(built.getBlockCount(), loaded.getBlockCount());
+      assertTrue(loaded.isIndexOf(zipFile.length(), zipFile.lastModified(), getTailChecksum()));
+      assertFalse(loaded.isIndexOf(zipFile.length() + 1, zipFile.lastModified(), getTailChecksum()));
+
+      for (int i = 0; i < ENTRIES.length; i++)
+      {
+         String path = "/" + (ENTRIES[i].endsWith("/")? ENTRIES[i].substring(0, ENTRIES[i].length() - 1) : ENTRIES[i]);
+         int node = built.lookup(path);
+         assertTrue(path, node > 0);
+         assertEquals(path, node, loaded.lookup(path));
+      }
+      for (int i = 0; i < MISSES.length; i++)
+      {
+         assertEquals(MISSES[i], -1, built.lookup(MISSES[i]));
+         assertEquals(MISSES[i], -1, loaded.lookup(MISSES[i]));
+      }
+
+      for (int node = 0; node < built.getNodeCount(); node++)
+      {
+         assertEquals(built.getName(node), loaded.getName(node));
+         assertEquals(built.isDirectory(node), loaded.isDirectory(node));
+         assertEquals(built.getParent(node), loaded.getParent(node));
+         assertEquals(built.getFirstChild(node), loaded.getFirstChild(node));
+         assertEquals(built.getChildCount(node), loaded.getChildCount(node));
+         assertEquals(built.getMethod(node), loaded.getMethod(node));
+         assertEquals(built.getTime(node), loaded.getTime(node));
+         assertEquals(built.getSize(node), loaded.getSize(node));
+         assertEquals(built.getCompressedSize(node), loaded.getCompressedSize(node));
+         assertEquals(built.getLocalHeaderOffset(node), loaded.getLocalHeaderOffset(node));
+      }
+   }
+
+   public void testCorruptNodeRange() throws IOException
+   {
+      // the children of the root run past the last node
+      putInt(ZipIndex.HEADER_SIZE + 16, built.getNodeCount());
+      assertRejected("child count");
+   }
+
+   public void testChildBeforeParent() throws IOException
+   {
+      int node = built.lookup("/b");
+      // the children of /b would include /b itself
+      putInt(ZipIndex.HEADER_SIZE + node * ZipIndex.NODE_SIZE + 12, node);
+      assertRejected("first child");
+   }
+
+   public void testBadParent() throws IOException
+   {
+      int node = built.lookup("/b/d/e.txt");
+      // a parent whose child range doesn't contain the node
+      putInt(ZipIndex.HEADER_SIZE + node * ZipIndex.NODE_SIZE + 8, built.lookup("/g"));
+      assertRejected("parent");
+   }
+
+   public void testNameOutOfRange() throws IOException
+   {
+      putInt(ZipIndex.HEADER_SIZE + ZipIndex.NODE_SIZE, Integer.MAX_VALUE - 10);
+      assertRejected("name offset");
+   }
+
+   public void testEntryOutsideArchive() throws IOException
+   {
+      int node = built.lookup("/b/c.txt");
+      putLong(ZipIndex.HEADER_SIZE + node * ZipIndex.NODE_SIZE + 48, zipFile.length());
+      assertRejected("local header offset");
+   }
+
+   public void testTruncated() throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+      try
+      {
+         raf.setLength(raf.length() - 1);
+      }
+      finally
+      {
+         raf.close();
+      }
+      assertRejected("truncated");
+   }
+
+   public void testGroupWritable() throws IOException
+   {
+      Path path = indexFile.toPath();
+      if (!path.getFileSystem().supportedFileAttributeViews().contains("posix"))
+         return;
+
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-rw----"));
+      assertRejected("group writable");
+
+      Files.setPosixFilePermissions(path, PosixFilePermissions.fromString("rw-r--r--"));
+      ZipIndex.load(indexFile);
+   }
+
+   public void testForeignOwner() throws IOException
+   {
+      Path path = indexFile.toPath();
+      UserPrincipal nobody;
+      try
+      {
+         nobody = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName("nobody");
+         Files.setOwner(path, nobody);
+      }
+      catch (IOException e)
+      {
+         // not allowed to give files away (not root), nothing to test
+         return;
+      }
+      if (nobody.getName().equals(System.getProperty("user.name")))
+         return;
+
+      assertRejected("owned by nobody");
+   }
+
+   public void testSymlink() throws IOException
+   {
+      File link = new File(dir, "link" + ZipIndex.INDEX_SUFFIX);
+      try
+      {
+         Files.createSymbolicLink(link.toPath(), indexFile.toPath());
+      }
+      catch (UnsupportedOperationException e)
+      {
+         return;
+      }
+
+      try
+      {
+         ZipIndex.load(link);
+         fail("symlink: accepted");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+   }
+
+
+   //
+   // private methods
+
+   private long getTailChecksum() throws IOException
+   {
+      ZipArchive archive = new ZipArchive(zipFile);
+      try
+      {
+         return archive.getTailChecksum();
+      }
+      finally
+      {
+         archive.close();
+      }
+   }
+
+   private void putInt(int position, int value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      bb.putInt(0, value);
+      write(position, bb);
+   }
+
+   private void putLong(int position, long value) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      bb.putLong(0, value);
+      write(position, bb);
+   }
+
+   private void write(int position, ByteBuffer bb) throws IOException
+   {
+      RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+      try
+      {
+         raf.getChannel().write(bb, position);
+      }
+      finally
+      {
+         raf.close();
+      }
+   }
+
+   private void assertRejected(String name)
+   {
+      try
+      {
+         ZipIndex.load(indexFile);
+         fail(name + ": accepted");
+      }
+      catch (IOException e)
+      {
+         // expected
+      }
+   }
+}
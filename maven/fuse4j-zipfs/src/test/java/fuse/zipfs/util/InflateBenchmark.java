@@ -0,0 +1,207 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Measures the throughput of a sequential copy of a raw deflate stream through java.util.zip.Inflater
+ * (native zlib) and through RandomAccessInflater (recording checkpoints every megabyte, like
+ * ZipFileDataReader), both reading the compressed data from a FileChannel:
+ * <pre>
+ *    java -cp target/classes:target/test-classes fuse.zipfs.util.InflateBenchmark [MiB] [rounds]
+ * </pre>
+ */
+public class InflateBenchmark
+{
+   private static final int BUFFER_SIZE = 128 * 1024;
+   private static final int INPUT_SIZE = 8192;
+
+   public static void main(String[] args) throws IOException, DataFormatException
+   {
+      int mib = (args.length > 0)? Integer.parseInt(args[0]) : 256;
+      int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 5;
+
+      File file = File.createTempFile("inflate", ".deflate");
+      try
+      {
+         long size = (long)mib << 20;
+         long compressedSize = write(file, size);
+         System.out.println(mib + " MiB deflated to " + (compressedSize >> 20) + " MiB");
+
+         RandomAccessFile raf = new RandomAccessFile(file, "r");
+         try
+         {
+            FileChannel channel = raf.getChannel();
+            for (int round = 0; round < rounds; round++)
+            {
+               long start = System.nanoTime();
+               long n = inflateNative(channel, compressedSize);
+               long nativeTime = System.nanoTime() - start;
+
+               start = System.nanoTime();
+               long m = inflateRandomAccess(channel, compressedSize);
+               long randomAccessTime = System.nanoTime() - start;
+
+               if (n != size || m != size)
+                  throw new IllegalStateException("inflated " + n + " and " + m + " of " + size + " bytes");
+
+               System.out.println("java.util.zip.Inflater " + mbPerSecond(size, nativeTime) + " MB/s, " +
+                                  "RandomAccessInflater " + mbPerSecond(size, randomAccessTime) + " MB/s");
+            }
+         }
+         finally
+         {
+            raf.close();
+         }
+      }
+      finally
+      {
+         file.delete();
+      }
+   }
+
+
+   //
+   // private methods
+
+   private static long inflateNative(FileChannel channel, long compressedSize) throws IOException, DataFormatException
+   {
+      Inflater inflater = new Inflater(true);
+      byte[] input = new byte[INPUT_SIZE];
+      byte[] out = new byte[BUFFER_SIZE];
+      long inputPos = 0L;
+      long total = 0L;
+
+      try
+      {
+         while (!inflater.finished())
+         {
+            if (inflater.needsInput())
+            {
+               int count = (int)Math.min(input.length, compressedSize - inputPos);
+               ByteBuffer in = ByteBuffer.wrap(input, 0, Math.max(count, 1));
+               if (count > 0)
+               {
+                  while (in.hasRemaining())
+                     channel.read(in, inputPos + in.position());
+               }
+               else
+                  input[0] = 0;
+               inputPos += count;
+               inflater.setInput(input, 0, in.limit());
+            }
+            total += inflater.inflate(out);
+         }
+      }
+      finally
+      {
+         inflater.end();
+      }
+
+      return total;
+   }
+
+   private static long inflateRandomAccess(FileChannel channel, long compressedSize) throws IOException
+   {
+      RandomAccessInflater inflater = new RandomAccessInflater(channel, 0L, compressedSize, new InflateIndex(1L << 20));
+      byte[] out = new byte[BUFFER_SIZE];
+      long total = 0L;
+
+      try
+      {
+         int n;
+         while ((n = inflater.read(out, 0, out.length)) >= 0)
+            total += n;
+      }
+      finally
+      {
+         inflater.end();
+      }
+
+      return total;
+   }
+
+   /**
+    * Deflates <code>size</code> bytes of text-like data with some incompressible stretches
+    */
+   private static long write(File file, long size) throws IOException
+   {
+      String[] words = { "fuse", "filesystem", "inode", "directory", "archive", "deflate", "checkpoint", "window", "\n" };
+      Random random = new Random(42L);
+      Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      byte[] chunk = new byte[1 << 20];
+      byte[] buf = new byte[65536];
+      long compressed = 0L;
+
+      OutputStream out = new FileOutputStream(file);
+      try
+      {
+         for (long written = 0L; written < size; written += chunk.length)
+         {
+            int pos = 0;
+            while (pos < chunk.length)
+            {
+               if (random.nextInt(500) == 0)
+               {
+                  int len = Math.min(chunk.length - pos, random.nextInt(4000));
+                  for (int i = 0; i < len; i++)
+                     chunk[pos++] = (byte)random.nextInt(256);
+               }
+               else
+               {
+                  byte[] word = (words[random.nextInt(words.length)] + " ").getBytes();
+                  for (int j = 0; j < word.length && pos < chunk.length; j++)
+                     chunk[pos++] = word[j];
+               }
+            }
+
+            deflater.setInput(chunk);
+            while (!deflater.needsInput())
+            {
+               int n = deflater.deflate(buf);
+               out.write(buf, 0, n);
+               compressed += n;
+            }
+         }
+
+         deflater.finish();
+         while (!deflater.finished())
+         {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+            compressed += n;
+         }
+      }
+      finally
+      {
+         out.close();
+         deflater.end();
+      }
+
+      return compressed;
+   }
+
+   private static long mbPerSecond(long bytes, long nanos)
+   {
+      return (long)(bytes / 1e6 / (nanos / 1e9));
+   }
+}
@@ -0,0 +1,74 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+
+/**
+ * Measures build time, heap per entry and lookup throughput of PathTrie with synthetic archive
+ * like paths (dirN/subM/file-I.txt):
+ * <pre>
+ *    java -Xmx2g -cp target/classes:target/test-classes fuse.zipfs.util.PathTrieBenchmark [entries] [rounds]
+ * </pre>
+ */
+public class PathTrieBenchmark
+{
+   public static void main(String[] args)
+   {
+      int entries = (args.length > 0)? Integer.parseInt(args[0]) : 1000000;
+      int rounds = (args.length > 1)? Integer.parseInt(args[1]) : 5;
+
+      String[] paths = new String[entries];
+      String[] lookups = new String[entries];
+      for (int i = 0; i < entries; i++)
+         paths[i] = "dir" + (i % 1000) + "/sub" + ((i / 1000) % 100) + "/file-" + i + ".txt";
+      // a scattered access pattern
+      for (int i = 0; i < entries; i++)
+         lookups[i] = "/" + paths[(int)((long)i * 7919 % entries)];
+
+      Runtime runtime = Runtime.getRuntime();
+      for (int round = 0; round < rounds; round++)
+      {
+         gc();
+         long heap = runtime.totalMemory() - runtime.freeMemory();
+
+         long start = System.nanoTime();
+         PathTrie.Builder builder = new PathTrie.Builder();
+         for (int i = 0; i < entries; i++)
+            builder.add(paths[i], i);
+         PathTrie trie = builder.build();
+         long buildTime = System.nanoTime() - start;
+
+         gc();
+         long trieHeap = runtime.totalMemory() - runtime.freeMemory() - heap;
+
+         start = System.nanoTime();
+         int found = 0;
+         for (int i = 0; i < entries; i++)
+         {
+            if (trie.lookup(lookups[i]) >= 0)
+               found++;
+         }
+         long lookupTime = System.nanoTime() - start;
+
+         if (found != entries)
+            throw new IllegalStateException("found " + found + " of " + entries + " paths");
+
+         System.out.println(entries + " entries: build " + (buildTime / 1000000L) + " ms, " +
+                            (trieHeap / entries) + " bytes/entry, " +
+                            (long)(entries / (lookupTime / 1e9)) + " lookups/s");
+      }
+   }
+
+   private static void gc()
+   {
+      for (int i = 0; i < 3; i++)
+         System.gc();
+   }
+}
@@ -0,0 +1,266 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+package fuse.zipfs.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Checks RandomAccessInflater against streams written by java.util.zip.Deflater: every compression
+ * level that produces stored, fixed and dynamic Huffman blocks, read sequentially and at random
+ * positions, from the checkpoints the instance recorded itself and from ones recorded by another.
+ */
+public class RandomAccessInflaterTest extends TestCase
+{
+   private static final int DATA_SIZE = 600 * 1024;
+   // small, so that every stream has several checkpoints (they are only taken at block boundaries)
+   private static final long INTERVAL = 16 * 1024;
+   // the compressed data doesn't start at the beginning of the file, like a zip entry
+   private static final int START = 1234;
+   private static final int SEEKS = 300;
+
+   private byte[] data;
+   private File file;
+   private RandomAccessFile raf;
+
+
+   protected void setUp() throws Exception
+   {
+      data = createData(new Random(42L));
+      file = File.createTempFile("inflater", ".deflate");
+      raf = new RandomAccessFile(file, "rw");
+   }
+
+   protected void tearDown() throws Exception
+   {
+      raf.close();
+      file.delete();
+   }
+
+   public void testLevels() throws IOException
+   {
+      for (int level = 0; level <= 5; level++)
+         check("level " + level, level, Deflater.DEFAULT_STRATEGY);
+   }
+
+   public void testHuffmanOnly() throws IOException
+   {
+      check("huffman only", Deflater.DEFAULT_COMPRESSION, Deflater.HUFFMAN_ONLY);
+   }
+
+   public void testSeekPastEnd() throws IOException
+   {
+      long length = write(deflate(data, 6, Deflater.DEFAULT_STRATEGY));
+      RandomAccessInflater inflater = new RandomAccessInflater(raf.getChannel(), START, length, new InflateIndex(INTERVAL));
+      try
+      {
+         inflater.seek(data.length + 1000L);
+         assertEquals(data.length, inflater.getPosition());
+         assertEquals(-1, inflater.read(new byte[16], 0, 16));
+      }
+      finally
+      {
+         inflater.end();
+      }
+   }
+
+   public void testReset() throws IOException
+   {
+      byte[] other = Arrays.copyOf(data, DATA_SIZE / 3);
+      long length = write(deflate(data, 6, Deflater.DEFAULT_STRATEGY));
+      File otherFile = File.createTempFile("inflater", ".deflate");
+      RandomAccessFile otherRaf = new RandomAccessFile(otherFile, "rw");
+      try
+      {
+         byte[] otherCompressed = deflate(other, 1, Deflater.DEFAULT_STRATEGY);
+         otherRaf.write(otherCompressed);
+
+         RandomAccessInflater inflater = new RandomAccessInflater(raf.getChannel(), START, length, new InflateIndex(INTERVAL));
+         try
+         {
+            assertReads("first stream", inflater, data, 100000L, 5000);
+            inflater.reset(otherRaf.getChannel(), 0L, otherCompressed.length, new InflateIndex(INTERVAL));
+            assertEquals(0L, inflater.getPosition());
+            assertReads("second stream", inflater, other, 0L, other.length);
+            inflater.reset(raf.getChannel(), START, length, new InflateIndex(INTERVAL));
+            assertReads("first stream again", inflater, data, 0L, data.length);
+         }
+         finally
+         {
+            inflater.end();
+         }
+      }
+      finally
+      {
+         otherRaf.close();
+         otherFile.delete();
+      }
+   }
+
+
+   //
+   // private methods
+
+   private void check(String name, int level, int strategy) throws IOException
+   {
+      long length = write(deflate(data, level, strategy));
+      InflateIndex index = new InflateIndex(INTERVAL);
+      Random random = new Random(level * 31L + strategy);
+
+      RandomAccessInflater inflater = new RandomAccessInflater(raf.getChannel(), START, length, index);
+      try
+      {
+         // sequentially, in odd sized reads, recording the checkpoints
+         byte[] out = new byte[data.length];
+         int pos = 0;
+         while (true)
+         {
+            int n = inflater.read(out, pos, Math.min(1 + random.nextInt(7000), out.length - pos));
+            if (n <= 0)
+               break;
+            pos += n;
+         }
+         assertEquals(name + ": length", data.length, pos);
+         assertTrue(name + ": identical", Arrays.equals(data, out));
+         assertEquals(name + ": end", -1, inflater.read(out, 0, 1));
+         assertTrue(name + ": checkpoints", index.size() > 0);
+
+         seekRandomly(name, inflater, random);
+      }
+      finally
+      {
+         inflater.end();
+      }
+
+      // another instance only restores the checkpoints recorded by the first
+      inflater = new RandomAccessInflater(raf.getChannel(), START, length, index);
+      try
+      {
+         seekRandomly(name + " (shared index)", inflater, random);
+      }
+      finally
+      {
+         inflater.end();
+      }
+   }
+
+   private void seekRandomly(String name, RandomAccessInflater inflater, Random random) throws IOException
+   {
+      for (int i = 0; i < SEEKS; i++)
+      {
+         long position = random.nextInt(data.length);
+         int len = 1 + random.nextInt(i % 10 == 0? 70000 : 3000);
+         assertReads(name + ": seek " + i, inflater, data, position, len);
+      }
+   }
+
+   private static void assertReads(String name, RandomAccessInflater inflater, byte[] expected, long position, int len) throws IOException
+   {
+      inflater.seek(position);
+      assertEquals(name + ": position", position, inflater.getPosition());
+
+      int expectedLen = (int)Math.min(len, expected.length - position);
+      byte[] b = new byte[len];
+      int n = 0;
+      while (n < expectedLen)
+      {
+         int count = inflater.read(b, n, len - n);
+         assertTrue(name + ": premature end at " + (position + n), count > 0);
+         n += count;
+      }
+      assertEquals(name + ": length", expectedLen, n);
+
+      for (int i = 0; i < n; i++)
+      {
+         if (b[i] != expected[(int)position + i])
+            fail(name + ": differs at " + (position + i));
+      }
+   }
+
+   private long write(byte[] compressed) throws IOException
+   {
+      raf.setLength(0L);
+      raf.seek(START);
+      raf.write(compressed);
+      // garbage after the stream must not be read
+      raf.write(new byte[] { 0x55, 0x55, 0x55, 0x55 });
+
+      return compressed.length;
+   }
+
+   private static byte[] deflate(byte[] data, int level, int strategy)
+   {
+      Deflater deflater = new Deflater(level, true);
+      try
+      {
+         deflater.setStrategy(strategy);
+         deflater.setInput(data);
+         deflater.finish();
+
+         ByteBuffer out = ByteBuffer.allocate(data.length + data.length / 100 + 1024);
+         byte[] buf = new byte[65536];
+         while (!deflater.finished())
+         {
+            int n = deflater.deflate(buf);
+            out.put(buf, 0, n);
+         }
+
+         return Arrays.copyOf(out.array(), out.position());
+      }
+      finally
+      {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Text-like runs with long matches, mixed with incompressible stretches (which make the deflater
+    * emit stored blocks) and runs of a single byte (matches at distance 1)
+    */
+   private static byte[] createData(Random random)
+   {
+      String[] words = { "fuse", "filesystem", "inode", "directory", "archive", "deflate", "checkpoint", "window", "\n" };
+      byte[] data = new byte[DATA_SIZE];
+      int pos = 0;
+      while (pos < data.length)
+      {
+         int kind = random.nextInt(10);
+         int len = Math.min(data.length - pos, 1 + random.nextInt(kind < 7? 4000 : 40000));
+         if (kind < 7)
+         {
+            for (int i = 0; i < len; )
+            {
+               byte[] word = (words[random.nextInt(words.length)] + " ").getBytes();
+               for (int j = 0; j < word.length && i < len; j++)
+                  data[pos + i++] = word[j];
+            }
+         }
+         else if (kind < 9)
+         {
+            for (int i = 0; i < len; i++)
+               data[pos + i] = (byte)random.nextInt(256);
+         }
+         else
+            Arrays.fill(data, pos, pos + len, (byte)random.nextInt(256));
+         pos += len;
+      }
+
+      return data;
+   }
+}
@@ -0,0 +1,390 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+#define _GNU_SOURCE
+
+#include <stddef.h>
+#include <pthread.h>
+#include <sched.h>
+#include <semaphore.h>
+#include <signal.h>
+
+#include "dispatcher.h"
+#include "ring.h"
+
+#define DEFAULT_WORKER_THREADS 10
+#define MAX_WORKER_THREADS     1024
+#define MAX_WORKER_CPUS        1024
+#define DEFAULT_RING_CONSUMERS 2
+#define MAX_RING_SLOTS         65536
+
+
+typedef struct _jfuse_dispatcher_opts
+{
+   unsigned threads;
+   char *cpus;
+   unsigned ringSlots;
+   unsigned ringConsumers;
+
+} jfuse_dispatcher_opts;
+
+typedef struct _jfuse_worker
+{
+   int index;
+   int cpu;                    // -1 when not pinned
+   pthread_t thread;
+   struct fuse_session *se;
+   struct fuse_chan *ch;
+   char *buf;                  // per-thread request buffer
+   size_t bufsize;
+   int error;
+   sem_t *finished;
+
+} jfuse_worker;
+
+
+static const struct fuse_opt dispatcher_opts[] =
+{
+   { "max_threads=%u", offsetof(jfuse_dispatcher_opts, threads), 0 },
+   { "worker_cpus=%s", offsetof(jfuse_dispatcher_opts, cpus), 0 },
+   { "ring_slots=%u", offsetof(jfuse_dispatcher_opts, ringSlots), 0 },
+   { "ring_consumers=%u", offsetof(jfuse_dispatcher_opts, ringConsumers), 0 },
+   FUSE_OPT_END
+};
+
+
+/**
+ * Parse a CPU list like "0-3:8" into cpus[], returns the number of CPUs or -1 on syntax error
+ */
+static int parse_cpus(const char *list, int *cpus, int max)
+{
+   int n = 0;
+   const char *p = list;
+
+   while (*p)
+   {
+      char *end;
+      long lo = strtol(p, &end, 10);
+      long hi = lo;
+
+      if (end == p || lo < 0) return -1;
+      p = end;
+
+      if (*p == '-')
+      {
+         p++;
+         hi = strtol(p, &end, 10);
+         if (end == p || hi < lo) return -1;
+         p = end;
+      }
+
+      for (; lo <= hi && n < max; lo++)
+         cpus[n++] = (int)lo;
+
+      if (*p == ':') p++;
+      else if (*p) return -1;
+   }
+
+   return n;
+}
+
+
+static void detach_worker(void *data)
+{
+   (*vm)->DetachCurrentThread(vm);
+}
+
+
+static void * worker_main(void *data)
+{
+   jfuse_worker *w = (jfuse_worker *)data;
+   JavaVMAttachArgs args;
+   JNIEnv *env;
+   char name[32];
+
+   pthread_setcancelstate(PTHREAD_CANCEL_DISABLE, NULL);
+
+   snprintf(name, sizeof(name), "fuse4j-worker-%d", w->index);
+
+#ifdef __linux__
+   {
+      char shortName[16];
+
+      // native thread names are limited to 15 characters
+      snprintf(shortName, sizeof(shortName), "fuse4j-w%d", w->index);
+      pthread_setname_np(pthread_self(), shortName);
+
+      if (w->cpu >= 0)
+      {
+         cpu_set_t cpuset;
+
+         CPU_ZERO(&cpuset);
+         CPU_SET(w->cpu, &cpuset);
+         if (pthread_setaffinity_np(pthread_self(), sizeof(cpuset), &cpuset) != 0)
+            WARN("Can't pin %s to CPU %d", name, w->cpu);
+      }
+   }
+#endif
+
+   // attach once, as a named daemon thread, so that no request pays for the attach
+   args.version = JNI_VERSION_1_4;
+   args.name = name;
+   args.group = threadGroup;
+
+   if ((*vm)->AttachCurrentThreadAsDaemon(vm, (void**)&env, (void*)&args) != JNI_OK)
+   {
+      ERROR("Can't attach %s to the JVM", name);
+      w->error = 1;
+      fuse_session_exit(w->se);
+      sem_post(w->finished);
+      return NULL;
+   }
+
+   TRACE("%s attached to env: %p", name, env);
+
+   pthread_cleanup_push(detach_worker, w);
+
+   while (!fuse_session_exited(w->se))
+   {
+      struct fuse_chan *ch = w->ch;
+      struct fuse_buf fbuf;
+      int res;
+
+      memset(&fbuf, 0, sizeof(fbuf));
+      fbuf.mem = w->buf;
+      fbuf.size = w->bufsize;
+
+      // only allow to be cancelled while waiting for the next request
+      pthread_setcancelstate(PTHREAD_CANCEL_ENABLE, NULL);
+      res = fuse_session_receive_buf(w->se, &fbuf, &ch);
+      pthread_setcancelstate(PTHREAD_CANCEL_DISABLE, NULL);
+
+      if (res == -EINTR)
+         continue;
+
+      if (res <= 0)
+      {
+         if (res < 0)
+         {
+            fuse_session_exit(w->se);
+            w->error = 1;
+         }
+         break;
+      }
+
+      fuse_session_process_buf(w->se, &fbuf, ch);
+   }
+
+   pthread_cleanup_pop(1);
+
+   sem_post(w->finished);
+
+   return NULL;
+}
+
+
+static int javafs_loop_workers(struct fuse *fuse, jfuse_dispatcher_opts *opts)
+{
+   struct fuse_session *se = fuse_get_session(fuse);
+   struct fuse_chan *ch = fuse_session_next_chan(se, NULL);
+   int nthreads = (opts->threads > 0) ? (int)opts->threads : DEFAULT_WORKER_THREADS;
+   int cpus[MAX_WORKER_CPUS];
+   int ncpus = 0;
+   jfuse_worker *workers;
+   sigset_t sigs;
+   sigset_t oldsigs;
+   sem_t finished;
+   int started;
+   int error = 0;
+   int i;
+
+   if (nthreads > MAX_WORKER_THREADS)
+   {
+      ERROR("max_threads must not exceed %d", MAX_WORKER_THREADS);
+      return -1;
+   }
+
+   if (opts->cpus != NULL && (ncpus = parse_cpus(opts->cpus, cpus, MAX_WORKER_CPUS)) <= 0)
+   {
+      ERROR("Invalid worker_cpus: %s", opts->cpus);
+      return -1;
+   }
+
+   workers = (jfuse_worker *)calloc(nthreads, sizeof(jfuse_worker));
+   if (workers == NULL)
+   {
+      ERROR("Can't allocate %d workers", nthreads);
+      return -1;
+   }
+
+   sem_init(&finished, 0, 0);
+
+   // the signals handled by libfuse must be delivered to this thread only
+   sigemptyset(&sigs);
+   sigaddset(&sigs, SIGHUP);
+   sigaddset(&sigs, SIGINT);
+   sigaddset(&sigs, SIGTERM);
+   sigaddset(&sigs, SIGPIPE);
+   pthread_sigmask(SIG_BLOCK, &sigs, &oldsigs);
+
+   for (started = 0; started < nthreads; started++)
+   {
+      jfuse_worker *w = &workers[started];
+
+      w->index = started;
+      w->cpu = (ncpus > 0) ? cpus[started % ncpus] : -1;
+      w->se = se;
+      w->ch = ch;
+      w->bufsize = fuse_chan_bufsize(ch);
+      w->finished = &finished;
+
+      if ((w->buf = (char *)malloc(w->bufsize)) == NULL)
+      {
+         ERROR("Can't allocate request buffer for worker %d", started);
+         break;
+      }
+
+      if (pthread_create(&w->thread, NULL, worker_main, w) != 0)
+      {
+         ERROR("Can't start worker %d", started);
+         free(w->buf);
+         w->buf = NULL;
+         break;
+      }
+   }
+
+   pthread_sigmask(SIG_SETMASK, &oldsigs, NULL);
+
+   if (started < nthreads)
+   {
+      error = 1;
+      fuse_session_exit(se);
+   }
+
+   TRACE("started %d worker threads", started);
+
+   // wait until a signal, an unmount or an error ends the session
+   while (started > 0 && !fuse_session_exited(se))
+      sem_wait(&finished);
+
+   for (i = 0; i < started; i++)
+      pthread_cancel(workers[i].thread);
+
+   for (i = 0; i < started; i++)
+   {
+      pthread_join(workers[i].thread, NULL);
+      free(workers[i].buf);
+
+      if (workers[i].error)
+         error = 1;
+   }
+
+   sem_destroy(&finished);
+   free(workers);
+
+   fuse_session_reset(se);
+
+   return error ? -1 : 0;
+}
+
+
+static int javafs_start_ring(jfuse_dispatcher_opts *opts)
+{
+   int consumers = (opts->ringConsumers > 0) ? (int)opts->ringConsumers : DEFAULT_RING_CONSUMERS;
+   JNIEnv *env;
+   int ok;
+
+   if (opts->ringSlots > MAX_RING_SLOTS || consumers > MAX_WORKER_THREADS)
+   {
+      ERROR("ring_slots must not exceed %d and ring_consumers %d", MAX_RING_SLOTS, MAX_WORKER_THREADS);
+      return 0;
+   }
+
+   env = get_env();
+   ok = ring_start(env, (int)opts->ringSlots, consumers);
+   release_env(env);
+
+   if (!ok)
+      ERROR("Can't start the request ring");
+
+   return ok;
+}
+
+
+int javafs_main(int argc, char *argv[], const struct fuse_operations *op, jfuse_params *params)
+{
+   struct fuse_args args = FUSE_ARGS_INIT(argc, argv);
+   jfuse_dispatcher_opts opts;
+   struct fuse_chan *ch = NULL;
+   struct fuse *fuse = NULL;
+   char *mountpoint = NULL;
+   int multithreaded;
+   int foreground;
+   int res = 1;
+
+   memset(&opts, 0, sizeof(opts));
+
+   while (1)
+   {
+      // strip our own options before libfuse gets to see them
+      if (fuse_opt_parse(&args, &opts, dispatcher_opts, NULL) == -1) break;
+
+      if (fuse_parse_cmdline(&args, &mountpoint, &multithreaded, &foreground) == -1) break;
+
+      if (mountpoint == NULL)
+      {
+         ERROR("Missing mount point");
+         break;
+      }
+
+      if ((ch = fuse_mount(mountpoint, &args)) == NULL) break;
+
+      if ((fuse = fuse_new(ch, &args, op, sizeof(*op), params)) == NULL) break;
+
+      if (fuse_daemonize(foreground) == -1) break;
+
+      if (fuse_set_signal_handlers(fuse_get_session(fuse)) == -1) break;
+
+      // when called from the launcher start the JVM now, after forking into the background,
+      // so that the worker threads can be attached to it before the first request
+      if (params != NULL && vm == NULL && !init_java(params))
+      {
+         fuse_remove_signal_handlers(fuse_get_session(fuse));
+         break;
+      }
+
+      if (opts.ringSlots > 0 && !javafs_start_ring(&opts))
+      {
+         fuse_remove_signal_handlers(fuse_get_session(fuse));
+         break;
+      }
+
+      if (multithreaded)
+         res = (javafs_loop_workers(fuse, &opts) == 0) ? 0 : 1;
+      else
+         res = (fuse_loop(fuse) == 0) ? 0 : 1;
+
+      // no more requests can arrive, let the ring consumers go
+      ring_stop();
+
+      fuse_remove_signal_handlers(fuse_get_session(fuse));
+      break;
+   }
+
+   // cleanup
+
+   if (ch != NULL) fuse_unmount(mountpoint, ch);
+   if (fuse != NULL) fuse_destroy(fuse);
+
+   free(mountpoint);
+   free(opts.cpus);
+   fuse_opt_free_args(&args);
+
+   return res;
+}
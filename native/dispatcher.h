@@ -0,0 +1,19 @@
+#ifndef _DISPATCHER_H_
+#define _DISPATCHER_H_
+
+#include "javafs.h"
+#include "util.h"
+
+/**
+ * Replacement for fuse_main() that runs the session with a fixed pool of worker threads
+ * which are attached to the JVM once, with meaningful names and optionally pinned to CPUs.
+ *
+ * Understands the following options in addition to the libfuse ones:
+ *    -o max_threads=N          number of worker threads (default 10)
+ *    -o worker_cpus=LIST       pin workers round-robin to the CPUs in LIST, e.g. 0-3:8-11
+ *    -o ring_slots=N           dispatch getattr/fgetattr/readlink through a request ring with N slots
+ *    -o ring_consumers=N       number of Java threads draining the request ring (default 2)
+ */
+int javafs_main(int argc, char *argv[], const struct fuse_operations *op, jfuse_params *params);
+
+#endif
@@ -10,16 +10,43 @@
 #include "fuse_callback.h"
 #include "native_impl.h"
 #include "util.h"
+#include "ring.h"
+
+//
+// helpers
+
+static void copy_getattr(JNIEnv *env, jobject jGetattr, struct stat *stbuf)
+{
+   // inode support fix by Edwin Olson <eolson@mit.edu>
+   stbuf->st_ino =    (ino_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.inode));
+   stbuf->st_mode =   (mode_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.mode));
+   stbuf->st_nlink =  (nlink_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.nlink));
+   stbuf->st_uid =    (uid_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.uid));
+   stbuf->st_gid =    (gid_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.gid));
+   stbuf->st_rdev =   (dev_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.rdev));
+   stbuf->st_size =   (off_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.size));
+   stbuf->st_blocks = (blkcnt_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.blocks));
+   stbuf->st_atime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.atime));
+   stbuf->st_mtime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.mtime));
+   stbuf->st_ctime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.ctime));
+}
+
 
 //
 // javafs API functions
 
 static int javafs_getattr(const char *path, struct stat *stbuf)
 {
-   JNIEnv *env = get_env();
+   JNIEnv *env;
    jobject jPath = NULL;
    jobject jGetattr = NULL;
    jint jerrno = 0;
+   int res;
+
+   if ((res = ring_getattr(path, stbuf)) != RING_UNAVAILABLE)
+      return res;
+
+   env = get_env();
 
    while (1)
    {
@@ -32,18 +59,7 @@ static int javafs_getattr(const char *path, struct stat *stbuf)
       jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFS->method.getattr__Ljava_nio_ByteBuffer_Lfuse_FuseGetattrSetter_, jPath, jGetattr);
       if (exception_check_jerrno(env, &jerrno)) break;
 
-      // inode support fix by Edwin Olson <eolson@mit.edu>
-      stbuf->st_ino =    (ino_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.inode));
-      stbuf->st_mode =   (mode_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.mode));
-      stbuf->st_nlink =  (nlink_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.nlink));
-      stbuf->st_uid =    (uid_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.uid));
-      stbuf->st_gid =    (gid_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.gid));
-      stbuf->st_rdev =   (dev_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.rdev));
-      stbuf->st_size =   (off_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.size));
-      stbuf->st_blocks = (blkcnt_t)((*env)->GetLongField(env, jGetattr, FuseGetattr->field.blocks));
-      stbuf->st_atime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.atime));
-      stbuf->st_mtime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.mtime));
-      stbuf->st_ctime =  (time_t)((*env)->GetIntField(env, jGetattr, FuseGetattr->field.ctime));
+      copy_getattr(env, jGetattr, stbuf);
 
       break;
    }
@@ -61,11 +77,17 @@ static int javafs_getattr(const char *path, struct stat *stbuf)
 
 static int javafs_readlink(const char *path, char *buf, size_t size)
 {
-   JNIEnv *env = get_env();
+   JNIEnv *env;
    jobject jPath = NULL;
    jobject jLink = NULL;
    jint jLinkPosition;
    jint jerrno = 0;
+   int res;
+
+   if ((res = ring_readlink(path, buf, size)) != RING_UNAVAILABLE)
+      return res;
+
+   env = get_env();
 
    while (1)
    {
@@ -723,6 +745,138 @@ static int javafs_fsync(const char *path, int datasync, struct fuse_file_info *f
 }
 
 
+static int javafs_create(const char *path, mode_t mode, struct fuse_file_info *ffi)
+{
+   JNIEnv *env = get_env();
+   jobject jPath = NULL;
+   jobject jOpen = NULL;
+   jint jerrno = 0;
+
+   // the filehandle based operations are optional, the kernel falls back to mknod() + open()
+   if (!(*env)->IsInstanceOf(env, fuseFS, FuseFSFileHandleSupport->class))
+   {
+      release_env(env);
+      return -ENOSYS;
+   }
+
+   while (1)
+   {
+      jPath = (*env)->NewDirectByteBuffer(env, (void *)path, (jlong)strlen(path));
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      jOpen = (*env)->NewObject(env, FuseOpen->class, FuseOpen->constructor.new);
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      (*env)->SetBooleanField(env, jOpen, FuseOpen->field.directIO, ffi->direct_io ? JNI_TRUE : JNI_FALSE);
+      (*env)->SetBooleanField(env, jOpen, FuseOpen->field.keepCache, ffi->keep_cache ? JNI_TRUE : JNI_FALSE);
+
+      jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFSFileHandleSupport->method.create__Ljava_nio_ByteBuffer_IILfuse_FuseOpenSetter_, jPath, (jint)mode, (jint)(ffi->flags), jOpen);
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      // if fh is non null then create a global reference to it (will be released in release callback)
+      jobject jFh = (*env)->GetObjectField(env, jOpen, FuseOpen->field.fh);
+      jobject jFhGlobalRef = (jFh == NULL) ? NULL : (*env)->NewGlobalRef(env, jFh);
+
+      create_file_handle(ffi, jFhGlobalRef);
+      ffi->direct_io = ((*env)->GetBooleanField(env, jOpen, FuseOpen->field.directIO) == JNI_TRUE)? 1 : 0;
+      ffi->keep_cache = ((*env)->GetBooleanField(env, jOpen, FuseOpen->field.keepCache) == JNI_TRUE)? 1 : 0;
+
+      // remove local reference to fh
+      if (jFh != NULL) (*env)->DeleteLocalRef(env, jFh);
+
+      break;
+   }
+
+   // cleanup
+
+   if (jPath != NULL) (*env)->DeleteLocalRef(env, jPath);
+   if (jOpen != NULL) (*env)->DeleteLocalRef(env, jOpen);
+
+   release_env(env);
+
+   return -jerrno;
+}
+
+
+static int javafs_ftruncate(const char *path, off_t size, struct fuse_file_info *ffi)
+{
+   JNIEnv *env = get_env();
+   jobject jPath = NULL;
+   jint jerrno = 0;
+
+   if (!(*env)->IsInstanceOf(env, fuseFS, FuseFSFileHandleSupport->class))
+   {
+      release_env(env);
+      return javafs_truncate(path, size);
+   }
+
+   while (1)
+   {
+      jPath = (*env)->NewDirectByteBuffer(env, (void *)path, (jlong)strlen(path));
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFSFileHandleSupport->method.ftruncate__Ljava_nio_ByteBuffer_Ljava_lang_Object_J, jPath, read_file_handle(ffi), (jlong)size);
+      exception_check_jerrno(env, &jerrno);
+      break;
+   }
+
+   // cleanup
+
+   if (jPath != NULL) (*env)->DeleteLocalRef(env, jPath);
+
+   release_env(env);
+
+   return -jerrno;
+}
+
+
+static int javafs_fgetattr(const char *path, struct stat *stbuf, struct fuse_file_info *ffi)
+{
+   JNIEnv *env = get_env();
+   jobject jPath = NULL;
+   jobject jGetattr = NULL;
+   jint jerrno = 0;
+
+   if (!(*env)->IsInstanceOf(env, fuseFS, FuseFSFileHandleSupport->class))
+   {
+      release_env(env);
+      return javafs_getattr(path, stbuf);
+   }
+
+   if ((jerrno = ring_fgetattr(path, read_file_handle(ffi), stbuf)) != RING_UNAVAILABLE)
+   {
+      release_env(env);
+      return jerrno;
+   }
+   jerrno = 0;
+
+   while (1)
+   {
+      jPath = (*env)->NewDirectByteBuffer(env, (void *)path, (jlong)strlen(path));
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      jGetattr = (*env)->NewObject(env, FuseGetattr->class, FuseGetattr->constructor.new);
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFSFileHandleSupport->method.fgetattr__Ljava_nio_ByteBuffer_Ljava_lang_Object_Lfuse_FuseGetattrSetter_, jPath, read_file_handle(ffi), jGetattr);
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      copy_getattr(env, jGetattr, stbuf);
+
+      break;
+   }
+
+   // cleanup
+
+   if (jPath != NULL) (*env)->DeleteLocalRef(env, jPath);
+   if (jGetattr != NULL) (*env)->DeleteLocalRef(env, jGetattr);
+
+   release_env(env);
+
+   return -jerrno;
+}
+
+
 //
 // extended attributes support contributed by Steven Pearson <steven_pearson@final-step.com>
 // and then modified by Peter Levart <peter@select-tech.si> to fit the new errno returning scheme
@@ -901,6 +1055,60 @@ static int javafs_removexattr(const char *path, const char *name)
    return -jerrno;
 }
 
+/**
+ * Copy the connection parameters offered by the kernel into a fuse.FuseConnInfo object,
+ * let the filesystem adjust them and copy the writable ones back. Only filesystems that
+ * implement fuse.FuseFSConnInfoSupport take part, the others keep the libfuse defaults.
+ */
+static void javafs_init_conn(JNIEnv *env, struct fuse_conn_info *conn)
+{
+   jobject jConnInfo = NULL;
+   jint jerrno = 0;
+
+   if (!(*env)->IsInstanceOf(env, fuseFS, FuseFSConnInfoSupport->class))
+      return;
+
+   while (1)
+   {
+      jConnInfo = (*env)->NewObject(env, FuseConnInfo->class, FuseConnInfo->constructor.new__I, (jint)(conn->max_readahead));
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.protoMajor, (jint)(conn->proto_major));
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.protoMinor, (jint)(conn->proto_minor));
+      (*env)->SetBooleanField(env, jConnInfo, FuseConnInfo->field.asyncRead, conn->async_read ? JNI_TRUE : JNI_FALSE);
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.maxWrite, (jint)(conn->max_write));
+#if FUSE_VERSION >= 28
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.capable, (jint)(conn->capable));
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.want, (jint)(conn->want));
+#endif
+#if FUSE_VERSION >= 29
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.maxBackground, (jint)(conn->max_background));
+      (*env)->SetIntField(env, jConnInfo, FuseConnInfo->field.congestionThreshold, (jint)(conn->congestion_threshold));
+#endif
+
+      jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFSConnInfoSupport->method.init__Lfuse_FuseConnInfo_, jConnInfo);
+      if (exception_check_jerrno(env, &jerrno)) break;
+
+      conn->async_read = ((*env)->GetBooleanField(env, jConnInfo, FuseConnInfo->field.asyncRead) == JNI_TRUE)? 1 : 0;
+      conn->max_write = (unsigned)((*env)->GetIntField(env, jConnInfo, FuseConnInfo->field.maxWrite));
+      conn->max_readahead = (unsigned)((*env)->GetIntField(env, jConnInfo, FuseConnInfo->field.maxReadahead));
+#if FUSE_VERSION >= 28
+      // never request a capability the kernel or libfuse does not know about
+      conn->want = (unsigned)((*env)->GetIntField(env, jConnInfo, FuseConnInfo->field.want)) & conn->capable;
+#endif
+#if FUSE_VERSION >= 29
+      conn->max_background = (unsigned)((*env)->GetIntField(env, jConnInfo, FuseConnInfo->field.maxBackground));
+      conn->congestion_threshold = (unsigned)((*env)->GetIntField(env, jConnInfo, FuseConnInfo->field.congestionThreshold));
+#endif
+
+      break;
+   }
+
+   // cleanup
+
+   if (jConnInfo != NULL) (*env)->DeleteLocalRef(env, jConnInfo);
+}
+
 /**
  * Initialize filesystem
  *
@@ -917,21 +1125,29 @@ static void * javafs_init(struct fuse_conn_info *conn)
 
     // The param's object is not set by the mount call
     // Hence java is only initialized if called from the launcher
+    // (javafs_main() normally starts it before the session loop)
 
     if (params)
     {
-        if (init_java(params))
-        {
-            JNIEnv *env = get_env();
-            jint jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFS->method.init);
-            exception_check_jerrno(env, &jerrno);
-            release_env(env);
-
-            return params;
-        }
+        if (vm == NULL && !init_java(params))
+            return NULL;
+
+        JNIEnv *env = get_env();
+        jint jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFS->method.init);
+        exception_check_jerrno(env, &jerrno);
+        release_env(env);
+    }
+
+    // Both the launcher and the mount call negotiate the connection parameters
+
+    if (fuseFS != NULL)
+    {
+        JNIEnv *env = get_env();
+        javafs_init_conn(env, conn);
+        release_env(env);
     }
 
-    return NULL;
+    return params;
 }
 
 /**
@@ -992,7 +1208,7 @@ struct fuse_operations javafs_oper = {
    init:        javafs_init,
    destroy:     javafs_destroy,
    access:      NULL,
-   create:      NULL,
-   ftruncate:   NULL,
-   fgetattr:    NULL
+   create:      javafs_create,
+   ftruncate:   javafs_ftruncate,
+   fgetattr:    javafs_fgetattr
 };
@@ -1,6 +1,100 @@
 #include "javafs.h"
 #include "fuse_callback.h"
 #include "util.h"
+#include "dispatcher.h"
+#include "javafs_mount_options.h"
+
+static int is_fuse_mount_option(const char *opt)
+{
+    const char **known;
+
+    for (known = fuse_mount_options; *known != NULL; known++)
+    {
+        size_t len = strlen(*known);
+
+        if ((*known)[len - 1] == '=' ? !strncmp(opt, *known, len) : !strcmp(opt, *known))
+            return 1;
+    }
+
+    return 0;
+}
+
+static int add_java_arg(char **argv, int *argc, char *arg)
+{
+    if (*argc >= 100)
+    {
+        fprintf(stderr, "Too many arguments: %s\n", arg);
+        return 0;
+    }
+
+    argv[(*argc)++] = arg;
+
+    return 1;
+}
+
+/**
+ * Takes the launcher's own options (class=, jvm=, java=) from an argument, returns -1 if it is none
+ */
+static int add_launcher_option(jfuse_params *params, char *opt)
+{
+    if (!strncmp(opt, "class=", 6))
+    {
+        params->filesystemClassName = &(opt[6]);
+        return 1;
+    }
+    if (!strncmp(opt, "jvm=", 4))
+        return add_java_arg(params->jvmArgv, &(params->jvmArgc), &(opt[4]));
+    if (!strncmp(opt, "java=", 5))
+        return add_java_arg(params->javaArgv, &(params->javaArgc), &(opt[5]));
+
+    return -1;
+}
+
+/**
+ * Splits the comma separated list of a -o argument: the launcher's options are taken and the ones known
+ * to fuse.FuseMountOptions are passed on to libfuse. The rest is left to the filesystem, forwarded as
+ * one -o argument like before. (So the values of class=, jvm= and java= can't contain commas, give them
+ * their own -o.)
+ */
+static int add_mount_options(struct fuse_args *args, jfuse_params *params, const char *list)
+{
+    char *copy = strdup(list);
+    char *rest = calloc(1, strlen(list) + 1);
+    char *saveptr = NULL;
+    char *opt;
+
+    // the launcher's options point into the copy, which is therefore never freed
+    for (opt = strtok_r(copy, ",", &saveptr); opt != NULL; opt = strtok_r(NULL, ",", &saveptr))
+    {
+        int res = add_launcher_option(params, opt);
+
+        if (res == 0)
+            return 0;
+        if (res > 0)
+            continue;
+
+        if (is_fuse_mount_option(opt))
+        {
+            fuse_opt_add_arg(args, "-o");
+            fuse_opt_add_arg(args, opt);
+        }
+        else
+        {
+            if (rest[0] != '\0')
+                strcat(rest, ",");
+            strcat(rest, opt);
+        }
+    }
+
+    if (rest[0] == '\0')
+    {
+        free(rest);
+        return 1;
+    }
+
+    return add_java_arg(params->javaArgv, &(params->javaArgc), "-o") &&
+           add_java_arg(params->javaArgv, &(params->javaArgc), rest);
+}
 
 int main(int argc, char *argv[])
 {
@@ -11,28 +105,35 @@ int main(int argc, char *argv[])
     for(i = 0; i < argc; i++)
     {
         char *arg = argv[i];
-        
-        // Fuse only captures command name, mount point and -f (foreground mode)
-        if (i < 2 || !strcmp(arg, "-f"))
-          fuse_opt_add_arg(&args, argv[i]);
-        
-        
+        int res;
 
+        // Fuse captures command name, mount point, -f (foreground mode), -s (single threaded) and -d (debug)
+        if (i < 2 || !strcmp(arg, "-f") || !strcmp(arg, "-s") || !strcmp(arg, "-d"))
+            fuse_opt_add_arg(&args, argv[i]);
+
+        // ... and the mount options it knows about, the rest is left to the filesystem
+        if (i > 0 && !strcmp(argv[i - 1], "-o"))
+        {
+            if (!add_mount_options(&args, params, arg))
+                return -1;
+        }
         // Suppress all -o arguments so that we can choose to add them if we want them.
-        if (!strcmp(arg, "-o")) {}        
-        else if (!strncmp(arg, "class=", 6))
-            params->filesystemClassName = &(arg[6]);
-        else if (!strncmp(arg, "jvm=", 4))
-            params->jvmArgv[(params->jvmArgc)++] = &(arg[4]);
-        else if (!strncmp(arg, "java=", 5))
-            params->javaArgv[(params->javaArgc)++] = &(arg[5]);
-        else if (params->javaArgc == 1)
-            params->javaArgv[(params->javaArgc)++] = argv[i];
-        else if (i>0) { // Don't capture argv[0] - command name
-            // Done with special handling so re-add -o if needed.
-            if (!strcmp(argv[i - 1], "-o"))
-                params->javaArgv[(params->javaArgc)++] = "-o";
-            params->javaArgv[(params->javaArgc)++] = argv[i];
+        else if (!strcmp(arg, "-o")) {}
+        // the joined form -oLIST is split the same way
+        else if (i > 0 && !strncmp(arg, "-o", 2) && arg[2] != '\0')
+        {
+            if (!add_mount_options(&args, params, arg + 2))
+                return -1;
+        }
+        else if ((res = add_launcher_option(params, arg)) >= 0)
+        {
+            if (res == 0)
+                return -1;
+        }
+        else if (i > 0) // Don't capture argv[0] - command name
+        {
+            if (!add_java_arg(params->javaArgv, &(params->javaArgc), arg))
+                return -1;
         }
     }
 
@@ -42,5 +143,5 @@ int main(int argc, char *argv[])
         return -1;
     }
 
-    return fuse_main(args.argc, args.argv, &javafs_oper, params);
+    return javafs_main(args.argc, args.argv, &javafs_oper, params);
 }
@@ -632,6 +632,112 @@ jclass_fuse_FuseContext *alloc_jclass_fuse_FuseContext(JNIEnv *env)
    return NULL;
 }
 
+/**
+ * free structure with a reference to fuse.FuseConnInfo java class and cached field & method IDs
+ */
+void free_jclass_fuse_FuseConnInfo(JNIEnv *env, jclass_fuse_FuseConnInfo *fuse_FuseConnInfo)
+{
+   if (fuse_FuseConnInfo->class != NULL)
+      (*env)->DeleteGlobalRef(env, fuse_FuseConnInfo->class);
+
+   free(fuse_FuseConnInfo);
+}
+
+/**
+ * alloc structure with a reference to fuse.FuseConnInfo java class and cached field & method IDs
+ */
+jclass_fuse_FuseConnInfo *alloc_jclass_fuse_FuseConnInfo(JNIEnv *env)
+{
+   jclass class;
+
+   jclass_fuse_FuseConnInfo *fuse_FuseConnInfo = (jclass_fuse_FuseConnInfo*)calloc(1, sizeof(jclass_fuse_FuseConnInfo));
+   if (fuse_FuseConnInfo == NULL)
+   {
+      WARN("Can't allocate structure jclass_fuse_FuseConnInfo");
+      return NULL;
+   }
+
+   while (1)
+   {
+      class = (*env)->FindClass(env, "fuse/FuseConnInfo");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      fuse_FuseConnInfo->class = (*env)->NewGlobalRef(env, class);
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // obtain instance field IDs
+      fuse_FuseConnInfo->field.asyncRead = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "asyncRead", "Z");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.capable = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "capable", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.congestionThreshold = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "congestionThreshold", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.maxBackground = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "maxBackground", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.maxReadahead = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "maxReadahead", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.maxWrite = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "maxWrite", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.protoMajor = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "protoMajor", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.protoMinor = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "protoMinor", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->field.want = (*env)->GetFieldID(env, fuse_FuseConnInfo->class, "want", "I");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // obtain constructor method IDs
+      fuse_FuseConnInfo->constructor.new__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "<init>", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // obtain instance method IDs
+      fuse_FuseConnInfo->method.clone = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "clone", "()Ljava/lang/Object;");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.equals__Ljava_lang_Object_ = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "equals", "(Ljava/lang/Object;)Z");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.getClass = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "getClass", "()Ljava/lang/Class;");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.hashCode = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "hashCode", "()I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.isCapable__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "isCapable", "(I)Z");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.isWanted__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "isWanted", "(I)Z");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.notify = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "notify", "()V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.notifyAll = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "notifyAll", "()V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.setCongestionThreshold__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "setCongestionThreshold", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.setMaxBackground__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "setMaxBackground", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.setMaxReadahead__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "setMaxReadahead", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.setMaxWrite__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "setMaxWrite", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.toString = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "toString", "()Ljava/lang/String;");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.unwant__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "unwant", "(I)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.wait = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "wait", "()V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.wait__J = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "wait", "(J)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.wait__JI = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "wait", "(JI)V");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseConnInfo->method.want__I = (*env)->GetMethodID(env, fuse_FuseConnInfo->class, "want", "(I)Z");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // we're done
+      return fuse_FuseConnInfo;
+   }
+
+   // error handler
+   (*env)->ExceptionDescribe(env);
+   (*env)->ExceptionClear(env);
+   free_jclass_fuse_FuseConnInfo(env, fuse_FuseConnInfo);
+   return NULL;
+}
+
 /**
  * free structure with a reference to fuse.FuseFS java class and cached field & method IDs
  */
@@ -736,6 +842,106 @@ jclass_fuse_FuseFS *alloc_jclass_fuse_FuseFS(JNIEnv *env)
    return NULL;
 }
 
+/**
+ * free structure with a reference to fuse.FuseFSConnInfoSupport java class and cached field & method IDs
+ */
+void free_jclass_fuse_FuseFSConnInfoSupport(JNIEnv *env, jclass_fuse_FuseFSConnInfoSupport *fuse_FuseFSConnInfoSupport)
+{
+   if (fuse_FuseFSConnInfoSupport->class != NULL)
+      (*env)->DeleteGlobalRef(env, fuse_FuseFSConnInfoSupport->class);
+
+   free(fuse_FuseFSConnInfoSupport);
+}
+
+/**
+ * alloc structure with a reference to fuse.FuseFSConnInfoSupport java class and cached field & method IDs
+ */
+jclass_fuse_FuseFSConnInfoSupport *alloc_jclass_fuse_FuseFSConnInfoSupport(JNIEnv *env)
+{
+   jclass class;
+
+   jclass_fuse_FuseFSConnInfoSupport *fuse_FuseFSConnInfoSupport = (jclass_fuse_FuseFSConnInfoSupport*)calloc(1, sizeof(jclass_fuse_FuseFSConnInfoSupport));
+   if (fuse_FuseFSConnInfoSupport == NULL)
+   {
+      WARN("Can't allocate structure jclass_fuse_FuseFSConnInfoSupport");
+      return NULL;
+   }
+
+   while (1)
+   {
+      class = (*env)->FindClass(env, "fuse/FuseFSConnInfoSupport");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      fuse_FuseFSConnInfoSupport->class = (*env)->NewGlobalRef(env, class);
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // obtain instance method IDs
+      fuse_FuseFSConnInfoSupport->method.init__Lfuse_FuseConnInfo_ = (*env)->GetMethodID(env, fuse_FuseFSConnInfoSupport->class, "init", "(Lfuse/FuseConnInfo;)I");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // we're done
+      return fuse_FuseFSConnInfoSupport;
+   }
+
+   // error handler
+   (*env)->ExceptionDescribe(env);
+   (*env)->ExceptionClear(env);
+   free_jclass_fuse_FuseFSConnInfoSupport(env, fuse_FuseFSConnInfoSupport);
+   return NULL;
+}
+
+/**
+ * free structure with a reference to fuse.FuseFSFileHandleSupport java class and cached field & method IDs
+ */
+void free_jclass_fuse_FuseFSFileHandleSupport(JNIEnv *env, jclass_fuse_FuseFSFileHandleSupport *fuse_FuseFSFileHandleSupport)
+{
+   if (fuse_FuseFSFileHandleSupport->class != NULL)
+      (*env)->DeleteGlobalRef(env, fuse_FuseFSFileHandleSupport->class);
+
+   free(fuse_FuseFSFileHandleSupport);
+}
+
+/**
+ * alloc structure with a reference to fuse.FuseFSFileHandleSupport java class and cached field & method IDs
+ */
+jclass_fuse_FuseFSFileHandleSupport *alloc_jclass_fuse_FuseFSFileHandleSupport(JNIEnv *env)
+{
+   jclass class;
+
+   jclass_fuse_FuseFSFileHandleSupport *fuse_FuseFSFileHandleSupport = (jclass_fuse_FuseFSFileHandleSupport*)calloc(1, sizeof(jclass_fuse_FuseFSFileHandleSupport));
+   if (fuse_FuseFSFileHandleSupport == NULL)
+   {
+      WARN("Can't allocate structure jclass_fuse_FuseFSFileHandleSupport");
+      return NULL;
+   }
+
+   while (1)
+   {
+      class = (*env)->FindClass(env, "fuse/FuseFSFileHandleSupport");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      fuse_FuseFSFileHandleSupport->class = (*env)->NewGlobalRef(env, class);
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // obtain instance method IDs
+      fuse_FuseFSFileHandleSupport->method.create__Ljava_nio_ByteBuffer_IILfuse_FuseOpenSetter_ = (*env)->GetMethodID(env, fuse_FuseFSFileHandleSupport->class, "create", "(Ljava/nio/ByteBuffer;IILfuse/FuseOpenSetter;)I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseFSFileHandleSupport->method.fgetattr__Ljava_nio_ByteBuffer_Ljava_lang_Object_Lfuse_FuseGetattrSetter_ = (*env)->GetMethodID(env, fuse_FuseFSFileHandleSupport->class, "fgetattr", "(Ljava/nio/ByteBuffer;Ljava/lang/Object;Lfuse/FuseGetattrSetter;)I");
+      if ((*env)->ExceptionCheck(env)) break;
+      fuse_FuseFSFileHandleSupport->method.ftruncate__Ljava_nio_ByteBuffer_Ljava_lang_Object_J = (*env)->GetMethodID(env, fuse_FuseFSFileHandleSupport->class, "ftruncate", "(Ljava/nio/ByteBuffer;Ljava/lang/Object;J)I");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      // we're done
+      return fuse_FuseFSFileHandleSupport;
+   }
+
+   // error handler
+   (*env)->ExceptionDescribe(env);
+   (*env)->ExceptionClear(env);
+   free_jclass_fuse_FuseFSFileHandleSupport(env, fuse_FuseFSFileHandleSupport);
+   return NULL;
+}
+
 /**
  * free structure with a reference to java.nio.ByteBuffer java class and cached field & method IDs
  */
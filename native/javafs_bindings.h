@@ -384,6 +384,69 @@ void free_jclass_fuse_FuseContext(JNIEnv *env, jclass_fuse_FuseContext *fuse_Fus
 jclass_fuse_FuseContext *alloc_jclass_fuse_FuseContext(JNIEnv *env);
 
 
+/**
+ * structure with a reference to fuse.FuseConnInfo java class and cached field & method IDs
+ */
+typedef struct _jclass_fuse_FuseConnInfo
+{
+   // a pointer to globaly referenced Java class
+   jclass class;
+
+   // cached instance field IDs
+   struct
+   {
+      jfieldID asyncRead;
+      jfieldID capable;
+      jfieldID congestionThreshold;
+      jfieldID maxBackground;
+      jfieldID maxReadahead;
+      jfieldID maxWrite;
+      jfieldID protoMajor;
+      jfieldID protoMinor;
+      jfieldID want;
+
+   } field;
+
+   // cached constructor IDs
+   struct
+   {
+      jmethodID new__I;
+
+   } constructor;
+
+   // cached instance method IDs
+   struct
+   {
+      jmethodID clone;
+      jmethodID equals__Ljava_lang_Object_;
+      jmethodID getClass;
+      jmethodID hashCode;
+      jmethodID isCapable__I;
+      jmethodID isWanted__I;
+      jmethodID notify;
+      jmethodID notifyAll;
+      jmethodID setCongestionThreshold__I;
+      jmethodID setMaxBackground__I;
+      jmethodID setMaxReadahead__I;
+      jmethodID setMaxWrite__I;
+      jmethodID toString;
+      jmethodID unwant__I;
+      jmethodID wait;
+      jmethodID wait__J;
+      jmethodID wait__JI;
+      jmethodID want__I;
+
+   } method;
+
+} jclass_fuse_FuseConnInfo;
+
+// free structure
+void free_jclass_fuse_FuseConnInfo(JNIEnv *env, jclass_fuse_FuseConnInfo *fuse_FuseConnInfo);
+
+// alloc structure
+jclass_fuse_FuseConnInfo *alloc_jclass_fuse_FuseConnInfo(JNIEnv *env);
+
+
 /**
  * structure with a reference to fuse.FuseFS java class and cached field & method IDs
  */
@@ -436,6 +499,56 @@ void free_jclass_fuse_FuseFS(JNIEnv *env, jclass_fuse_FuseFS *fuse_FuseFS);
 jclass_fuse_FuseFS *alloc_jclass_fuse_FuseFS(JNIEnv *env);
 
 
+/**
+ * structure with a reference to fuse.FuseFSConnInfoSupport java class and cached field & method IDs
+ */
+typedef struct _jclass_fuse_FuseFSConnInfoSupport
+{
+   // a pointer to globaly referenced Java class
+   jclass class;
+
+   // cached instance method IDs
+   struct
+   {
+      jmethodID init__Lfuse_FuseConnInfo_;
+
+   } method;
+
+} jclass_fuse_FuseFSConnInfoSupport;
+
+// free structure
+void free_jclass_fuse_FuseFSConnInfoSupport(JNIEnv *env, jclass_fuse_FuseFSConnInfoSupport *fuse_FuseFSConnInfoSupport);
+
+// alloc structure
+jclass_fuse_FuseFSConnInfoSupport *alloc_jclass_fuse_FuseFSConnInfoSupport(JNIEnv *env);
+
+
+/**
+ * structure with a reference to fuse.FuseFSFileHandleSupport java class and cached field & method IDs
+ */
+typedef struct _jclass_fuse_FuseFSFileHandleSupport
+{
+   // a pointer to globaly referenced Java class
+   jclass class;
+
+   // cached instance method IDs
+   struct
+   {
+      jmethodID create__Ljava_nio_ByteBuffer_IILfuse_FuseOpenSetter_;
+      jmethodID fgetattr__Ljava_nio_ByteBuffer_Ljava_lang_Object_Lfuse_FuseGetattrSetter_;
+      jmethodID ftruncate__Ljava_nio_ByteBuffer_Ljava_lang_Object_J;
+
+   } method;
+
+} jclass_fuse_FuseFSFileHandleSupport;
+
+// free structure
+void free_jclass_fuse_FuseFSFileHandleSupport(JNIEnv *env, jclass_fuse_FuseFSFileHandleSupport *fuse_FuseFSFileHandleSupport);
+
+// alloc structure
+jclass_fuse_FuseFSFileHandleSupport *alloc_jclass_fuse_FuseFSFileHandleSupport(JNIEnv *env);
+
+
 /**
  * structure with a reference to java.nio.ByteBuffer java class and cached field & method IDs
  */
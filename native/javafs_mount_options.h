@@ -0,0 +1,31 @@
+/**
+ * javafs_mount_options.h - autogenerated from fuse.FuseMountOptions by java2c.MountOptionsGenerator
+ */
+
+// the mount options known to fuse.FuseMountOptions, these are passed on to javafs_main()
+static const char *fuse_mount_options[] =
+{
+    "entry_timeout=",
+    "attr_timeout=",
+    "negative_timeout=",
+    "kernel_cache",
+    "auto_cache",
+    "direct_io",
+    "max_read=",
+    "max_write=",
+    "max_readahead=",
+    "large_read",
+    "big_writes",
+    "sync_read",
+    "async_read",
+    "allow_other",
+    "allow_root",
+    "default_permissions",
+    "fsname=",
+    "subtype=",
+    "max_threads=",
+    "worker_cpus=",
+    "ring_slots=",
+    "ring_consumers=",
+    NULL
+};
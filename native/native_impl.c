@@ -2,6 +2,8 @@
 #include "native_impl.h"
 #include "fuse_callback.h"
 #include "util.h"
+#include "dispatcher.h"
+#include "ring.h"
 
 #define ENOTSUPP        524
 
@@ -120,7 +122,7 @@ JNIEXPORT void JNICALL Java_fuse_FuseMount_mount(JNIEnv *env, jclass class, jobj
 
                if (jerrno == 0 || jerrno == ENOTSUPP) {
                    // main loop
-                   fuse_main(fuseArgc, fuseArgv, &javafs_oper, NULL);
+                   javafs_main(fuseArgc, fuseArgv, &javafs_oper, NULL);
 
                    jerrno = (*env)->CallIntMethod(env, fuseFS, FuseFS->method.destroy);
                    exception_check_jerrno(env, &jerrno);
@@ -250,6 +252,8 @@ int RegisterNativeMethods(JNIEnv *env)
         if (!LoadClassAndRegisterMethod(env, "fuse/FuseFSFillDir",   "fill",              "(Ljava/nio/ByteBuffer;JIJJJ)Z",                                     Java_fuse_FuseFSFillDir_fill)) break;
         if (!RegisterMethod            (env,  PasswordEntry->class,  "lookupByUsername",  "(Ljava/nio/charset/Charset;Ljava/lang/String;)Lfuse/PasswordEntry;", Java_fuse_PasswordEntry_lookupByUsername)) break;
         if (!RegisterMethod            (env,  PasswordEntry->class,  "lookupByUid",       "(Ljava/nio/charset/Charset;I)Lfuse/PasswordEntry;",                  Java_fuse_PasswordEntry_lookupByUid)) break;
+        if (!LoadClassAndRegisterMethod(env, "fuse/FuseRequestRing", "awaitBatch",        "([I[Ljava/lang/Object;)I",                                          Java_fuse_FuseRequestRing_awaitBatch)) break;
+        if (!LoadClassAndRegisterMethod(env, "fuse/FuseRequestRing", "complete",          "([II)V",                                                            Java_fuse_FuseRequestRing_complete)) break;
 
         return 1;
     }
@@ -0,0 +1,477 @@
+/**
+ *   FUSE-J: Java bindings for FUSE (Filesystem in Userspace by Miklos Szeredi (mszeredi@inf.bme.hu))
+ *
+ *   Copyright (C) 2003 Peter Levart (peter@select-tech.si)
+ *
+ *   This program can be distributed under the terms of the GNU LGPL.
+ *   See the file COPYING.LIB
+ */
+
+#include <stddef.h>
+#include <stdint.h>
+#include <pthread.h>
+
+#include "ring.h"
+#include "util.h"
+
+//
+// Shared-memory request ring
+//
+// The FUSE worker threads encode getattr/fgetattr/readlink requests into slots of a memory region
+// that Java sees as a direct ByteBuffer (fuse.FuseRequestRing) and block until the reply
+// has been written into the same slot. Java consumer threads take submitted slots in
+// batches, so a batch of requests costs two JNI transitions instead of one upcall (plus
+// a few object allocations) per request.
+
+#define RING_PATH_MAX 4096
+#define RING_DATA_MAX 4096
+
+#define RING_OP_GETATTR  1
+#define RING_OP_READLINK 2
+#define RING_OP_FGETATTR 3
+
+#define SLOT_FREE      0
+#define SLOT_SUBMITTED 1
+#define SLOT_TAKEN     2
+#define SLOT_DONE      3
+
+
+// the layout must match the offsets in fuse.FuseRequestRing
+typedef struct _jfuse_ring_slot
+{
+   // request
+   int32_t opcode;
+   int32_t err;          // reply: positive errno
+   int32_t pathLen;
+   int32_t dataLen;      // request: capacity of data, reply: bytes written
+   int32_t uid;
+   int32_t gid;
+   int32_t pid;
+
+   // reply (getattr)
+   int32_t mode;
+   int64_t inode;
+   int32_t nlink;
+   int32_t stUid;
+   int32_t stGid;
+   int32_t rdev;
+   int64_t size;
+   int64_t blocks;
+   int32_t atime;
+   int32_t mtime;
+   int32_t ctime;
+   int32_t reserved;
+
+   char path[RING_PATH_MAX];
+   char data[RING_DATA_MAX];
+
+} jfuse_ring_slot;
+
+typedef char jfuse_ring_slot_size_check[(sizeof(jfuse_ring_slot) == 8280) ? 1 : -1];
+
+
+typedef struct _jfuse_ring
+{
+   jfuse_ring_slot *slots;
+   int nslots;
+   int *state;
+   jobject *handles;      // per slot, the file handle of an fgetattr (a global reference owned by the open file)
+   pthread_cond_t *done;  // per slot, signalled on completion
+   int *free;             // stack of free slot indexes
+   int nfree;
+   int *queue;            // submitted slot indexes in FIFO order
+   int head;
+   int count;
+   int waiting;           // consumers blocked in awaitBatch()
+   int closed;
+
+} jfuse_ring;
+
+
+static pthread_mutex_t ring_lock = PTHREAD_MUTEX_INITIALIZER;
+static pthread_cond_t ring_submitted = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t ring_freed = PTHREAD_COND_INITIALIZER;
+static pthread_cond_t ring_idle = PTHREAD_COND_INITIALIZER;
+
+// only changed before the session loop starts and after it has ended
+static jfuse_ring *ring = NULL;
+
+
+static void free_ring(jfuse_ring *r)
+{
+   int i;
+
+   if (r->done != NULL)
+   {
+      for (i = 0; i < r->nslots; i++)
+         pthread_cond_destroy(&r->done[i]);
+   }
+
+   free(r->slots);
+   free(r->state);
+   free(r->handles);
+   free(r->done);
+   free(r->free);
+   free(r->queue);
+   free(r);
+}
+
+
+int ring_start(JNIEnv *env, int slots, int consumers)
+{
+   jfuse_ring *r;
+   jclass jRingClass = NULL;
+   jmethodID jStart;
+   jobject jBuffer = NULL;
+   int ok = 0;
+   int i;
+
+   if ((r = (jfuse_ring *)calloc(1, sizeof(jfuse_ring))) == NULL)
+      return 0;
+
+   r->nslots = slots;
+   r->slots = (jfuse_ring_slot *)calloc(slots, sizeof(jfuse_ring_slot));
+   r->state = (int *)calloc(slots, sizeof(int));
+   r->handles = (jobject *)calloc(slots, sizeof(jobject));
+   r->free = (int *)calloc(slots, sizeof(int));
+   r->queue = (int *)calloc(slots, sizeof(int));
+   r->done = (pthread_cond_t *)calloc(slots, sizeof(pthread_cond_t));
+
+   if (r->slots == NULL || r->state == NULL || r->handles == NULL || r->free == NULL || r->queue == NULL || r->done == NULL)
+   {
+      ERROR("Can't allocate request ring with %d slots", slots);
+      free_ring(r);
+      return 0;
+   }
+
+   for (i = 0; i < slots; i++)
+   {
+      pthread_cond_init(&r->done[i], NULL);
+      r->free[r->nfree++] = slots - 1 - i;
+   }
+
+   ring = r;
+
+   while (1)
+   {
+      jBuffer = (*env)->NewDirectByteBuffer(env, (void *)r->slots, (jlong)(slots * sizeof(jfuse_ring_slot)));
+      if ((*env)->ExceptionCheck(env)) break;
+
+      jRingClass = (*env)->FindClass(env, "fuse/FuseRequestRing");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      jStart = (*env)->GetStaticMethodID(env, jRingClass, "start", "(Lfuse/FuseFS;Ljava/nio/ByteBuffer;IILjava/lang/ThreadGroup;)V");
+      if ((*env)->ExceptionCheck(env)) break;
+
+      (*env)->CallStaticVoidMethod(env, jRingClass, jStart, fuseFS, jBuffer, (jint)slots, (jint)consumers, threadGroup);
+      if ((*env)->ExceptionCheck(env)) break;
+
+      ok = 1;
+      break;
+   }
+
+   if ((*env)->ExceptionCheck(env))
+   {
+      (*env)->ExceptionDescribe(env);
+      (*env)->ExceptionClear(env);
+   }
+
+   // cleanup
+
+   if (jBuffer != NULL) (*env)->DeleteLocalRef(env, jBuffer);
+   if (jRingClass != NULL) (*env)->DeleteLocalRef(env, jRingClass);
+
+   if (!ok)
+   {
+      ring = NULL;
+      free_ring(r);
+   }
+
+   return ok;
+}
+
+
+void ring_stop(void)
+{
+   pthread_mutex_lock(&ring_lock);
+
+   if (ring != NULL)
+   {
+      // wake up the consumers, they terminate once awaitBatch() returns -1
+      ring->closed = 1;
+      pthread_cond_broadcast(&ring_submitted);
+
+      while (ring->waiting > 0)
+         pthread_cond_wait(&ring_idle, &ring_lock);
+
+      free_ring(ring);
+      ring = NULL;
+   }
+
+   pthread_mutex_unlock(&ring_lock);
+}
+
+
+/**
+ * Take a free slot and fill in the common request fields, returns -1 if the ring is not in use
+ */
+static int ring_acquire(int opcode, const char *path)
+{
+   struct fuse_context *context = fuse_get_context();
+   size_t pathLen = strlen(path);
+   jfuse_ring_slot *slot;
+   int i = -1;
+
+   if (ring == NULL || pathLen >= RING_PATH_MAX)
+      return -1;
+
+   pthread_mutex_lock(&ring_lock);
+
+   while (!ring->closed && ring->nfree == 0)
+      pthread_cond_wait(&ring_freed, &ring_lock);
+
+   if (!ring->closed)
+      i = ring->free[--ring->nfree];
+
+   pthread_mutex_unlock(&ring_lock);
+
+   if (i < 0)
+      return -1;
+
+   slot = &ring->slots[i];
+   slot->opcode = opcode;
+   slot->err = 0;
+   slot->pathLen = (int32_t)pathLen;
+   slot->dataLen = 0;
+   slot->uid = (int32_t)context->uid;
+   slot->gid = (int32_t)context->gid;
+   slot->pid = (int32_t)context->pid;
+   ring->handles[i] = NULL;
+   // a reply that leaves fields unset must not hand the kernel those of the slot's previous request
+   memset(&slot->mode, 0, offsetof(jfuse_ring_slot, path) - offsetof(jfuse_ring_slot, mode));
+   memcpy(slot->path, path, pathLen + 1);
+
+   return i;
+}
+
+
+/**
+ * Submit a filled-in slot and wait for the reply, returns 0 if completed
+ */
+static int ring_call(int i)
+{
+   int res;
+
+   pthread_mutex_lock(&ring_lock);
+
+   ring->state[i] = SLOT_SUBMITTED;
+   ring->queue[(ring->head + ring->count) % ring->nslots] = i;
+   ring->count++;
+   pthread_cond_signal(&ring_submitted);
+
+   while (ring->state[i] != SLOT_DONE && !ring->closed)
+      pthread_cond_wait(&ring->done[i], &ring_lock);
+
+   res = (ring->state[i] == SLOT_DONE) ? 0 : -1;
+
+   pthread_mutex_unlock(&ring_lock);
+
+   return res;
+}
+
+
+static void ring_release(int i)
+{
+   pthread_mutex_lock(&ring_lock);
+
+   ring->state[i] = SLOT_FREE;
+   ring->free[ring->nfree++] = i;
+   pthread_cond_signal(&ring_freed);
+
+   pthread_mutex_unlock(&ring_lock);
+}
+
+
+/**
+ * getattr and fgetattr: the same reply, fgetattr passes the file handle along to Java
+ */
+static int ring_stat(int opcode, const char *path, jobject fh, struct stat *stbuf)
+{
+   jfuse_ring_slot *slot;
+   int i = ring_acquire(opcode, path);
+   int res;
+
+   if (i < 0)
+      return RING_UNAVAILABLE;
+
+   ring->handles[i] = fh;
+   res = ring_call(i);
+   slot = &ring->slots[i];
+
+   if (res != 0)
+      res = -EIO;
+   else if (slot->err != 0)
+      res = -slot->err;
+   else
+   {
+      stbuf->st_ino =    (ino_t)slot->inode;
+      stbuf->st_mode =   (mode_t)slot->mode;
+      stbuf->st_nlink =  (nlink_t)slot->nlink;
+      stbuf->st_uid =    (uid_t)slot->stUid;
+      stbuf->st_gid =    (gid_t)slot->stGid;
+      stbuf->st_rdev =   (dev_t)slot->rdev;
+      stbuf->st_size =   (off_t)slot->size;
+      stbuf->st_blocks = (blkcnt_t)slot->blocks;
+      stbuf->st_atime =  (time_t)slot->atime;
+      stbuf->st_mtime =  (time_t)slot->mtime;
+      stbuf->st_ctime =  (time_t)slot->ctime;
+   }
+
+   ring_release(i);
+
+   return res;
+}
+
+
+int ring_getattr(const char *path, struct stat *stbuf)
+{
+   return ring_stat(RING_OP_GETATTR, path, NULL, stbuf);
+}
+
+
+int ring_fgetattr(const char *path, jobject fh, struct stat *stbuf)
+{
+   return ring_stat(RING_OP_FGETATTR, path, fh, stbuf);
+}
+
+
+int ring_readlink(const char *path, char *buf, size_t size)
+{
+   jfuse_ring_slot *slot;
+   int i;
+   int res;
+
+   if (size == 0)
+      return RING_UNAVAILABLE;
+
+   if ((i = ring_acquire(RING_OP_READLINK, path)) < 0)
+      return RING_UNAVAILABLE;
+
+   slot = &ring->slots[i];
+   slot->dataLen = (int32_t)((size - 1 < RING_DATA_MAX) ? size - 1 : RING_DATA_MAX);
+
+   res = ring_call(i);
+
+   if (res != 0)
+      res = -EIO;
+   else if (slot->err != 0)
+      res = -slot->err;
+   else
+   {
+      size_t len = (slot->dataLen < 0) ? 0 : (size_t)slot->dataLen;
+
+      if (len > size - 1)
+         len = size - 1;
+
+      memcpy(buf, slot->data, len);
+      buf[len] = '\0';
+   }
+
+   ring_release(i);
+
+   return res;
+}
+
+
+/*
+ * Class:     fuse_FuseRequestRing
+ * Method:    awaitBatch
+ * Signature: ([I[Ljava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_fuse_FuseRequestRing_awaitBatch(JNIEnv *env, jclass cls, jintArray jSlots, jobjectArray jHandles)
+{
+   jint max = (*env)->GetArrayLength(env, jSlots);
+   jint batch[max > 0 ? max : 1];
+   jint n = 0;
+   jint k;
+
+   if ((*env)->GetArrayLength(env, jHandles) < max)
+      max = (*env)->GetArrayLength(env, jHandles);
+
+   pthread_mutex_lock(&ring_lock);
+
+   if (ring == NULL)
+   {
+      pthread_mutex_unlock(&ring_lock);
+      return -1;
+   }
+
+   ring->waiting++;
+
+   while (ring->count == 0 && !ring->closed)
+      pthread_cond_wait(&ring_submitted, &ring_lock);
+
+   while (ring->count > 0 && n < max)
+   {
+      int i = ring->queue[ring->head];
+
+      ring->head = (ring->head + 1) % ring->nslots;
+      ring->count--;
+      ring->state[i] = SLOT_TAKEN;
+      batch[n++] = i;
+   }
+
+   if (ring->closed && n == 0)
+      n = -1;
+
+   if (--ring->waiting == 0 && ring->closed)
+      pthread_cond_broadcast(&ring_idle);
+
+   pthread_mutex_unlock(&ring_lock);
+
+   if (n > 0)
+      (*env)->SetIntArrayRegion(env, jSlots, 0, n, batch);
+
+   // the taken slots belong to this consumer until they are completed, their handles can be read unlocked
+   for (k = 0; k < n; k++)
+      (*env)->SetObjectArrayElement(env, jHandles, k, ring->handles[batch[k]]);
+
+   return n;
+}
+
+
+/*
+ * Class:     fuse_FuseRequestRing
+ * Method:    complete
+ * Signature: ([II)V
+ */
+JNIEXPORT void JNICALL Java_fuse_FuseRequestRing_complete(JNIEnv *env, jclass cls, jintArray jSlots, jint count)
+{
+   jint n = (*env)->GetArrayLength(env, jSlots);
+   jint batch[n > 0 ? n : 1];
+   jint k;
+
+   if (count > n) count = n;
+   if (count <= 0) return;
+
+   (*env)->GetIntArrayRegion(env, jSlots, 0, count, batch);
+   if ((*env)->ExceptionCheck(env)) return;
+
+   pthread_mutex_lock(&ring_lock);
+
+   if (ring != NULL)
+   {
+      for (k = 0; k < count; k++)
+      {
+         int i = batch[k];
+
+         if (i >= 0 && i < ring->nslots && ring->state[i] == SLOT_TAKEN)
+         {
+            ring->state[i] = SLOT_DONE;
+            pthread_cond_signal(&ring->done[i]);
+         }
+      }
+   }
+
+   pthread_mutex_unlock(&ring_lock);
+}
@@ -0,0 +1,19 @@
+#ifndef _RING_H_
+#define _RING_H_
+
+#include "javafs.h"
+
+// returned by ring_getattr()/ring_fgetattr()/ring_readlink() when the request must take the per-call JNI path
+#define RING_UNAVAILABLE 1
+
+int  ring_start(JNIEnv *env, int slots, int consumers);
+void ring_stop(void);
+
+int  ring_getattr(const char *path, struct stat *stbuf);
+int  ring_fgetattr(const char *path, jobject fh, struct stat *stbuf);
+int  ring_readlink(const char *path, char *buf, size_t size);
+
+JNIEXPORT jint JNICALL Java_fuse_FuseRequestRing_awaitBatch(JNIEnv *env, jclass cls, jintArray jSlots, jobjectArray jHandles);
+JNIEXPORT void JNICALL Java_fuse_FuseRequestRing_complete(JNIEnv *env, jclass cls, jintArray jSlots, jint count);
+
+#endif
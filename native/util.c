@@ -9,8 +9,11 @@ jobject fuseFS = NULL;
 
 jclass_fuse_PasswordEntry     *PasswordEntry;
 jclass_fuse_FuseContext       *FuseContext;
+jclass_fuse_FuseConnInfo      *FuseConnInfo;
 jclass_fuse_FuseGetattr       *FuseGetattr;
 jclass_fuse_FuseFS            *FuseFS;
+jclass_fuse_FuseFSConnInfoSupport *FuseFSConnInfoSupport;
+jclass_fuse_FuseFSFileHandleSupport *FuseFSFileHandleSupport;
 jclass_fuse_FuseFSDirEnt      *FuseFSDirEnt;
 jclass_fuse_FuseFSDirFiller   *FuseFSDirFiller;
 jclass_fuse_FuseFSFactory     *FuseFSFactory;
@@ -102,9 +105,12 @@ int alloc_classes(JNIEnv *env)
       if (!(FuseOpen        = alloc_jclass_fuse_FuseOpen(env))) break;
       if (!(FuseSize        = alloc_jclass_fuse_FuseSize(env))) break;
       if (!(FuseContext     = alloc_jclass_fuse_FuseContext(env))) break;
+      if (!(FuseConnInfo    = alloc_jclass_fuse_FuseConnInfo(env))) break;
       if (!(PasswordEntry   = alloc_jclass_fuse_PasswordEntry(env))) break;
       if (!(ByteBuffer      = alloc_jclass_java_nio_ByteBuffer(env))) break;
       if (!(FuseFS          = alloc_jclass_fuse_FuseFS(env))) break;
+      if (!(FuseFSConnInfoSupport = alloc_jclass_fuse_FuseFSConnInfoSupport(env))) break;
+      if (!(FuseFSFileHandleSupport = alloc_jclass_fuse_FuseFSFileHandleSupport(env))) break;
       if (!(FuseFSFactory   = alloc_jclass_fuse_FuseFSFactory(env))) break;
 
       return 1;
@@ -131,9 +137,12 @@ void free_classes(JNIEnv *env)
     if (FuseOpen != NULL)        { free_jclass_fuse_FuseOpen(env, FuseOpen);               FuseOpen = NULL; }
     if (FuseSize != NULL)        { free_jclass_fuse_FuseSize(env, FuseSize);               FuseSize = NULL; }
     if (FuseContext != NULL)     { free_jclass_fuse_FuseContext(env, FuseContext);         FuseContext = NULL; }
+    if (FuseConnInfo != NULL)    { free_jclass_fuse_FuseConnInfo(env, FuseConnInfo);       FuseConnInfo = NULL; }
     if (PasswordEntry != NULL)   { free_jclass_fuse_PasswordEntry(env, PasswordEntry);     PasswordEntry = NULL; }
     if (ByteBuffer != NULL)      { free_jclass_java_nio_ByteBuffer(env, ByteBuffer);       ByteBuffer = NULL; }
     if (FuseFS != NULL)          { free_jclass_fuse_FuseFS(env, FuseFS);                   FuseFS = NULL; }
+    if (FuseFSConnInfoSupport != NULL) { free_jclass_fuse_FuseFSConnInfoSupport(env, FuseFSConnInfoSupport); FuseFSConnInfoSupport = NULL; }
+    if (FuseFSFileHandleSupport != NULL) { free_jclass_fuse_FuseFSFileHandleSupport(env, FuseFSFileHandleSupport); FuseFSFileHandleSupport = NULL; }
     if (FuseFSFactory != NULL)   { free_jclass_fuse_FuseFSFactory(env, FuseFSFactory);     FuseFSFactory = NULL; }
 
     if ((*env)->ExceptionCheck(env))
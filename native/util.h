@@ -25,9 +25,12 @@ extern jobject threadGroup;
 extern jobject fuseFS;
 
 extern jclass_fuse_FuseContext       *FuseContext;
+extern jclass_fuse_FuseConnInfo      *FuseConnInfo;
 extern jclass_fuse_PasswordEntry     *PasswordEntry;
 extern jclass_fuse_FuseGetattr       *FuseGetattr;
 extern jclass_fuse_FuseFS            *FuseFS;
+extern jclass_fuse_FuseFSConnInfoSupport *FuseFSConnInfoSupport;
+extern jclass_fuse_FuseFSFileHandleSupport *FuseFSFileHandleSupport;
 extern jclass_fuse_FuseFSDirEnt      *FuseFSDirEnt;
 extern jclass_fuse_FuseFSDirFiller   *FuseFSDirFiller;
 extern jclass_fuse_FuseFSFactory     *FuseFSFactory;